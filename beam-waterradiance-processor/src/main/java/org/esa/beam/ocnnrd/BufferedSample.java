@@ -0,0 +1,115 @@
+package org.esa.beam.ocnnrd;
+
+import org.esa.beam.framework.datamodel.RasterDataNode;
+import org.esa.beam.framework.gpf.pointop.WritableSample;
+
+import java.util.Arrays;
+
+/**
+ * A target sample buffering the values of the pixels of a rectangle, which are written to the target samples
+ * later, see {@link #writeTo}. The values are kept as double, like they are set by the operator.
+ */
+class BufferedSample implements WritableSample {
+
+    private final int index;
+    private final RasterDataNode node;
+    private final double[] values;
+    private final boolean[] written;
+    private int pixel;
+
+    /**
+     * @param index     the sample index
+     * @param node      the target raster
+     * @param numPixels the number of pixels buffered
+     */
+    BufferedSample(int index, RasterDataNode node, int numPixels) {
+        this.index = index;
+        this.node = node;
+        values = new double[numPixels];
+        written = new boolean[numPixels];
+    }
+
+    /**
+     * @param pixel the index of the pixel accessed by the sample methods
+     */
+    void setPixel(int pixel) {
+        this.pixel = pixel;
+    }
+
+    void clear() {
+        Arrays.fill(written, false);
+    }
+
+    /**
+     * Writes the value of a pixel, if one has been set.
+     *
+     * @param pixel  the index of the pixel
+     * @param target the target sample
+     */
+    void writeTo(int pixel, WritableSample target) {
+        if (written[pixel]) {
+            target.set(values[pixel]);
+        }
+    }
+
+    @Override
+    public RasterDataNode getNode() {
+        return node;
+    }
+
+    @Override
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public int getDataType() {
+        return node.getDataType();
+    }
+
+    @Override
+    public boolean getBit(int bitIndex) {
+        return (((long) values[pixel]) & (1L << bitIndex)) != 0;
+    }
+
+    @Override
+    public boolean getBoolean() {
+        return values[pixel] != 0.0;
+    }
+
+    @Override
+    public int getInt() {
+        return (int) values[pixel];
+    }
+
+    @Override
+    public float getFloat() {
+        return (float) values[pixel];
+    }
+
+    @Override
+    public double getDouble() {
+        return values[pixel];
+    }
+
+    @Override
+    public void set(int bitIndex, boolean v) {
+        throw new UnsupportedOperationException("Setting bits is not supported by buffered samples");
+    }
+
+    @Override
+    public void set(int v) {
+        set((double) v);
+    }
+
+    @Override
+    public void set(float v) {
+        set((double) v);
+    }
+
+    @Override
+    public void set(double v) {
+        values[pixel] = v;
+        written[pixel] = true;
+    }
+}
@@ -16,4 +16,5 @@ class Constants {
     static final int SRC_SOL_FLUX_OFFSET = 25;
     static final int SRC_LAT = 40;
     static final int SRC_LON = 41;
+    static final int SRC_PREVIOUS_OFFSET = 42;
 }
@@ -1,6 +1,7 @@
 package org.esa.beam.ocnnrd;
 
 import com.bc.ceres.core.ProgressMonitor;
+import com.bc.ceres.glevel.MultiLevelImage;
 import org.esa.beam.dataio.envisat.EnvisatConstants;
 import org.esa.beam.framework.datamodel.*;
 import org.esa.beam.framework.gpf.OperatorException;
@@ -9,6 +10,7 @@ import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
 import org.esa.beam.framework.gpf.annotations.Parameter;
 import org.esa.beam.framework.gpf.annotations.SourceProduct;
 import org.esa.beam.framework.gpf.pointop.*;
+import org.esa.beam.jai.ImageManager;
 import org.esa.beam.util.ResourceInstaller;
 import org.esa.beam.util.StringUtils;
 import org.esa.beam.util.SystemUtils;
@@ -18,11 +20,16 @@ import org.esa.beam.waterradiance.NO2Auxdata;
 import org.esa.beam.waterradiance.SalinityTemperatureAuxdata;
 import org.esa.beam.waterradiance.erainterim.EraInterimAuxdataImpl;
 import org.esa.beam.waterradiance.realoptimizers.LevMarNN;
+import org.esa.beam.waterradiance.realoptimizers.LevMarNNConfig;
 
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * An operator computing water IOPs starting from radiances.
@@ -34,6 +41,9 @@ import java.util.Date;
                   description = "An operator computing water IOPs starting from radiances.")
 public class OcNnRdOperator extends PixelOperator {
 
+    // the retrieved values of a previous result product, in the order of the outputs of LevMarNN
+    static final String[] PREVIOUS_BAND_NAMES = {"aot_550", "ang_864_443", "a_pig", "a_ys", "a_part", "b_part", "b_wit"};
+
     private int NUM_OUTPUTS;
 
     private final ThreadLocal<double[]> input = new ThreadLocal<double[]>() {
@@ -49,11 +59,33 @@ public class OcNnRdOperator extends PixelOperator {
         }
     };
 
+    private final ThreadLocal<double[]> parameters = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            return new double[8];
+        }
+    };
+    private final ThreadLocal<double[]> previousValues = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            return new double[PREVIOUS_BAND_NAMES.length];
+        }
+    };
+    private final ThreadLocal<double[]> previousParameters = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            return new double[8];
+        }
+    };
+
     private double[] solarFluxes;
     private SalinityTemperatureAuxdata salinityTemperatureAuxdata = null;
     private AtmosphericAuxdata atmosphericAuxdata = null;
     private Date date = null;
     private ThreadLocal<LevMarNN> levMarNN;
+    private ThreadLocal<SpatialWarmStart> spatialWarmStart;
+    private ThreadLocal<OrderedStrip> orderedStrip;
+    private SampleDefinitions sourceSampleDefinitions;
     private SensorContext sensorContext;
     private NO2Auxdata no2Auxdata;
 
@@ -113,12 +145,95 @@ public class OcNnRdOperator extends PixelOperator {
                    optional = true)
     private Product eraInterimEndProduct;
 
+    @SourceProduct(description = "A previous result product of this operator, co-registered with the source product. " +
+                                 "The LM fit of a pixel starts from its retrieved values where they are valid.",
+                   optional = true)
+    private Product previousProduct;
+
     @Parameter(description = "Defines the sensor type to use. If the parameter is not set, the product type defined by the input file is used.")
     String sensorTypeString;
 
+    @Parameter(defaultValue = "false", description = "Evaluates the neural nets in single precision (float32). Faster, but slightly less accurate.")
+    private boolean useSinglePrecision;
+
+    @Parameter(defaultValue = "false", description = "Uses a compact, cache resident interpolated table for the activation function of the neural nets.")
+    private boolean useInterpolatedActivation;
+
+    @Parameter(defaultValue = "false", description = "Folds the input normalisation of the neural nets into their first layer. Faster, but not bit-identical to the reference processing.")
+    private boolean foldInputNormalisation;
+
+    @Parameter(defaultValue = "false", description = "Applies single parameter perturbations as rank-1 updates of the first layer of the neural nets. Faster, but not bit-identical to the reference processing.")
+    private boolean useRankOneFirstLayerUpdate;
+
+    @Parameter(defaultValue = "false", description = "Evaluates the neural nets with code generated and compiled at runtime for their topology. Requires a JDK when the generated code is not cached yet.")
+    private boolean useGeneratedNetCode;
+
+    @Parameter(defaultValue = "0", description = "Number of water net output spectra cached per thread for the final evaluation of the converged pixels, 0 disables the cache. Not bit-identical to the reference processing.")
+    private int waterNetCacheSize;
+
+    @Parameter(defaultValue = "1.0E-4", description = "Quantisation step of the water net inputs forming the keys of the water net output cache.")
+    private double waterNetCachePrecision;
+
+    @Parameter(description = "Path to an inverse neural net mapping geometry and TOSA reflectances directly to the retrieval parameters. " +
+                             "If set, the net replaces the iterative LM fit.")
+    private String inverseNetFile;
+
+    @Parameter(defaultValue = "1.0E-4", description = "Pixels retrieved by the inverse net are flagged if their sum_sq exceeds this value.")
+    private double inverseResidualThreshold;
+
+    @Parameter(defaultValue = "false", description = "Refines the flagged pixels of the inverse net retrieval with the LM fit.")
+    private boolean refineInverseRetrieval;
+
+    @Parameter(description = "Path to an inverse neural net providing the start parameters of the LM fit.")
+    private String firstGuessNetFile;
+
+    @Parameter(description = "Path to a table of simulated spectra providing the start parameters of the LM fit by nearest neighbour search. " +
+                             "Not used if firstGuessNetFile is set.")
+    private String firstGuessTableFile;
+
+    @Parameter(description = "Path to an atmosphere table replacing the atmosphere nets during the LM fit. " +
+                             "The table is generated with the AtmosphereLutTool, pixels off its temperature and " +
+                             "salinity range use the nets. Slower than the nets for MERIS, the fit needs more iterations.")
+    private String atmosphereLutFile;
+
+    @Parameter(defaultValue = "LevenbergMarquardt", valueSet = {"LevenbergMarquardt", "BoundedLevenbergMarquardt"},
+               description = "The LM optimizer, BoundedLevenbergMarquardt is specialised for the 8 parameters of the fit.")
+    private String optimizer;
+
+    @Parameter(defaultValue = "false", description = "Uses the analytic Jacobian of the forward model in the BoundedLevenbergMarquardt optimizer.")
+    private boolean useAnalyticJacobian;
+
+    @Parameter(defaultValue = "0", description = "The number of Broyden rank-1 updates of the Jacobian between finite difference refreshes in the BoundedLevenbergMarquardt optimizer, 0 disables them.")
+    private int broydenRefreshInterval;
+
+    @Parameter(defaultValue = "false", description = "Starts the LM fit of a pixel from the converged parameters of its left or upper neighbour in the same tile.")
+    private boolean useSpatialWarmStart;
+
+    @Parameter(defaultValue = "1.0E-3", description = "Neighbours with a sum_sq above this value are not used for the spatial warm start.")
+    private double warmStartMaxSumSq;
+
+    @Parameter(defaultValue = "raster", valueSet = {"raster", "hilbert", "zorder"},
+               description = "The order the pixels of a tile are processed in. Along the hilbert and zorder curves consecutive pixels " +
+                             "are mostly neighbours, which improves the spatial warm start and the water net output cache.")
+    private String pixelOrder;
+
 
     @Override
     protected void computePixel(int x, int y, Sample[] sourceSamples, WritableSample[] targetSamples) {
+        if (orderedStrip != null) {
+            orderedStrip.get().computePixel(x, y, targetSamples);
+            return;
+        }
+        if (spatialWarmStart != null) {
+            final SpatialWarmStart warmStart_local = spatialWarmStart.get();
+            if (warmStart_local.isTileOrigin(x, y)) {
+                warmStart_local.startTile();
+            }
+        }
+        processPixel(x, y, sourceSamples, targetSamples);
+    }
+
+    private void processPixel(int x, int y, Sample[] sourceSamples, WritableSample[] targetSamples) {
         final Sensor sensorType = sensorContext.getSensor();
         if (sensorType == Sensor.MODIS || sensorType == Sensor.SEAWIFS || isValid(sourceSamples)) {
             final double[] input_local = input.get();
@@ -132,9 +247,16 @@ public class OcNnRdOperator extends PixelOperator {
             final int detectorIndex = sensorContext.getDetectorIndex(sourceSamples);
             final double[] output_local = output.get();
             final LevMarNN levMarNN_local = levMarNN.get();
+            final double[] p_start = getStartParameters(x, y, sourceSamples);
             try {
-                levMarNN_local.levmar_nn(detectorIndex, input_local, output_local);
+                levMarNN_local.levmar_nn(detectorIndex, input_local, output_local, p_start);
+                if (spatialWarmStart != null) {
+                    setWarmStartResult(x, y, output_local, levMarNN_local);
+                }
             } catch (Exception e) {
+                if (spatialWarmStart != null) {
+                    spatialWarmStart.get().setInvalid(x, y);
+                }
                 // @todo 2 improve error handling tb 2013-12-17
                 e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
             }
@@ -149,13 +271,56 @@ public class OcNnRdOperator extends PixelOperator {
             targetSamples[targetSamples.length - 2].set(input_local[4]);
             targetSamples[targetSamples.length - 1].set(input_local[5]);
         } else {
+            if (spatialWarmStart != null) {
+                spatialWarmStart.get().setInvalid(x, y);
+            }
             setToInvalid(targetSamples);
         }
     }
 
+    // the previous result takes precedence over the neighbours, null if the fit starts from p_init
+    private double[] getStartParameters(int x, int y, Sample[] sourceSamples) {
+        if (previousProduct != null) {
+            final double[] values = previousValues.get();
+            for (int i = 0; i < values.length; i++) {
+                values[i] = sourceSamples[Constants.SRC_PREVIOUS_OFFSET + i].getDouble();
+            }
+            final double[] p_previous = previousParameters.get();
+            if (LevMarNN.toParameters(values, p_previous)) {
+                return p_previous;
+            }
+        }
+        if (spatialWarmStart != null) {
+            return spatialWarmStart.get().getStartParameters(x, y);
+        }
+        return null;
+    }
+
+    private void setWarmStartResult(int x, int y, double[] output_local, LevMarNN levMarNN_local) {
+        final double[] p = parameters.get();
+        levMarNN_local.getParameters(p);
+        // sum_sq follows the 5 spectra and the 7 parameters
+        spatialWarmStart.get().setResult(x, y, p, output_local[5 * sensorContext.getNnOutputIndices().length + 7]);
+    }
+
     @Override
     protected void configureSourceSamples(SampleConfigurer sampleConfigurer) throws OperatorException {
+        if (orderedStrip != null) {
+            // the ordered processing reads the source tiles itself, the PixelOperator reads none
+            sourceSampleDefinitions = new SampleDefinitions(sourceProduct);
+            sampleConfigurer = sourceSampleDefinitions;
+        }
         sensorContext.configureSourceSamples(sampleConfigurer, csvMode);
+        if (previousProduct != null) {
+            configurePreviousSamples(sampleConfigurer, previousProduct);
+        }
+    }
+
+    // package access for testing only
+    static void configurePreviousSamples(SampleConfigurer sampleConfigurer, Product previousProduct) {
+        for (int i = 0; i < PREVIOUS_BAND_NAMES.length; i++) {
+            sampleConfigurer.defineSample(Constants.SRC_PREVIOUS_OFFSET + i, PREVIOUS_BAND_NAMES[i], previousProduct);
+        }
     }
 
     @Override
@@ -166,6 +331,8 @@ public class OcNnRdOperator extends PixelOperator {
             final String bandName = bandNames[i];
             sampleConfigurer.defineSample(i, bandName);
         }
+        // computePixel copies the outputs to all target samples, including the optional residual_flag
+        NUM_OUTPUTS = bandNames.length - sensorContext.getTargetSampleOffset();
     }
 
     @Override
@@ -200,6 +367,10 @@ public class OcNnRdOperator extends PixelOperator {
         addBand(productConfigurer, "sum_sq", ProductData.TYPE_FLOAT32, "", "Square sums");
         /*   68*/
         addBand(productConfigurer, "num_iter", ProductData.TYPE_INT32, "", "Number of iterations in LM");
+        if (isInverseRetrieval()) {
+            /*   69*/
+            addBand(productConfigurer, "residual_flag", ProductData.TYPE_INT32, "", "Set if sum_sq of the inverse net retrieval exceeds the threshold");
+        }
 
         addBand(productConfigurer, "temperature", ProductData.TYPE_INT32, "", "Temperature");
         addBand(productConfigurer, "salinity", ProductData.TYPE_INT32, "", "Salinity");
@@ -255,7 +426,6 @@ public class OcNnRdOperator extends PixelOperator {
 
         sensorContext = SensorContextFactory.fromTypeString(getSensorTypeString());
         sensorContext.init(sourceProduct);
-        NUM_OUTPUTS = 13 + 5 * sensorContext.getNumSpectralInputBands();
         if (sensorContext.getSensor() == Sensor.MERIS) {
             if (isCsvMode(sourceProduct)) {
                 csvMode = true;
@@ -271,11 +441,51 @@ public class OcNnRdOperator extends PixelOperator {
             initAuxdataDataProviders();
         }
 
+        if (previousProduct != null) {
+            checkPreviousProduct();
+        }
+        if (useSpatialWarmStart) {
+            initSpatialWarmStart();
+        }
+        if (!PixelOrder.RASTER.equals(pixelOrder)) {
+            orderedStrip = new ThreadLocal<OrderedStrip>() {
+                @Override
+                protected OrderedStrip initialValue() {
+                    return new OrderedStrip();
+                }
+            };
+        }
+
         levMarNN = new ThreadLocal<LevMarNN>() {
             @Override
             protected LevMarNN initialValue() {
                 try {
-                    return new LevMarNN(sensorContext);
+                    final LevMarNNConfig config = new LevMarNNConfig();
+                    config.setSinglePrecision(useSinglePrecision);
+                    config.setInterpolatedActivation(useInterpolatedActivation);
+                    config.setFoldInputNormalisation(foldInputNormalisation);
+                    config.setRankOneFirstLayerUpdate(useRankOneFirstLayerUpdate);
+                    config.setCodeGeneration(useGeneratedNetCode);
+                    config.setWaterNetCacheSize(waterNetCacheSize);
+                    config.setWaterNetCachePrecision(waterNetCachePrecision);
+                    if (StringUtils.isNotNullAndNotEmpty(firstGuessNetFile)) {
+                        config.setFirstGuessNetPath(firstGuessNetFile);
+                    }
+                    if (StringUtils.isNotNullAndNotEmpty(firstGuessTableFile)) {
+                        config.setFirstGuessTablePath(firstGuessTableFile);
+                    }
+                    if (StringUtils.isNotNullAndNotEmpty(atmosphereLutFile)) {
+                        config.setAtmosphereLutPath(atmosphereLutFile);
+                    }
+                    config.setOptimizerName(optimizer);
+                    config.setAnalyticJacobian(useAnalyticJacobian);
+                    config.setBroydenRefreshInterval(broydenRefreshInterval);
+                    if (isInverseRetrieval()) {
+                        config.setInverseNetPath(inverseNetFile);
+                        config.setInverseResidualThreshold(inverseResidualThreshold);
+                        config.setInverseRefinement(refineInverseRetrieval);
+                    }
+                    return new LevMarNN(sensorContext, config);
                 } catch (IOException e) {
                     // @todo 3 tb/tb improve error handling here ... tb 2013-05-20
                     e.printStackTrace();
@@ -285,6 +495,42 @@ public class OcNnRdOperator extends PixelOperator {
         };
     }
 
+    private void checkPreviousProduct() {
+        if (previousProduct.getSceneRasterWidth() != sourceProduct.getSceneRasterWidth() ||
+            previousProduct.getSceneRasterHeight() != sourceProduct.getSceneRasterHeight()) {
+            throw new OperatorException("The previous product must have the size of the source product.");
+        }
+        for (String bandName : PREVIOUS_BAND_NAMES) {
+            if (!previousProduct.containsBand(bandName)) {
+                throw new OperatorException("The previous product does not contain the band '" + bandName + "'.");
+            }
+        }
+    }
+
+    // the target product and its tiling are known when the first pixel is computed
+    private void initSpatialWarmStart() {
+        spatialWarmStart = new ThreadLocal<SpatialWarmStart>() {
+            @Override
+            protected SpatialWarmStart initialValue() {
+                final Dimension tileSize = getTileSize();
+                return new SpatialWarmStart(tileSize.width, tileSize.height, warmStartMaxSumSq);
+            }
+        };
+    }
+
+    private Dimension getTileSize() {
+        final Product targetProduct = getTargetProduct();
+        final Dimension tileSize = targetProduct.getPreferredTileSize();
+        if (tileSize == null) {
+            return ImageManager.getPreferredTileSize(targetProduct);
+        }
+        return tileSize;
+    }
+
+    private boolean isInverseRetrieval() {
+        return StringUtils.isNotNullAndNotEmpty(inverseNetFile);
+    }
+
     private void installAuxiliaryData() {
         final File auxdataDir = new File(SystemUtils.getApplicationDataDir(), "beam-waterradiance-processor/auxdata");
         final URL sourceUrl = ResourceInstaller.getSourceUrl(OcNnRdOperator.class);
@@ -450,6 +696,160 @@ public class OcNnRdOperator extends PixelOperator {
         }
     }
 
+    /**
+     * Processes the pixels of a target rectangle in the order of a space filling curve and buffers the target samples.
+     * The PixelOperator computes the rectangles in scanline order, the rectangle is taken from the tile of the target
+     * image starting at its first pixel, and its source tiles are read once. The rectangle is processed in strips as
+     * high as the blocks of the curve, so the buffer stays small; a strip is computed when the PixelOperator asks for
+     * one of its pixels, the target samples of all its pixels are then taken from the buffer.
+     * <p/>
+     * GPF does not guarantee target rectangles matching the tiles, e.g. with another tile cache or a subset writer. If
+     * the first pixel of a rectangle does not start a tile, the pixels from there to the end of the tile are processed
+     * in raster order instead, directly into the target samples.
+     */
+    private final class OrderedStrip {
+
+        private static final int BLOCK_SIZE = 64;
+
+        private final Rectangle rectangle;
+        private final Rectangle strip;
+        private boolean ordered;
+        private TileSample[] sourceSamples;
+        private BufferedSample[] targetSamples;
+        private int[] order;
+        private int orderWidth;
+        private int orderHeight;
+
+        OrderedStrip() {
+            rectangle = new Rectangle();
+            strip = new Rectangle();
+        }
+
+        void computePixel(int x, int y, WritableSample[] targetSamples_out) {
+            if (!rectangle.contains(x, y) || x == rectangle.x && y == rectangle.y) {
+                startRectangle(x, y, targetSamples_out);
+            }
+            if (!ordered) {
+                setSourcePixel(x, y);
+                processPixel(x, y, sourceSamples, targetSamples_out);
+                return;
+            }
+            if (!strip.contains(x, y)) {
+                final int stripY = rectangle.y + (y - rectangle.y) / BLOCK_SIZE * BLOCK_SIZE;
+                strip.setBounds(rectangle.x, stripY, rectangle.width,
+                                Math.min(BLOCK_SIZE, rectangle.y + rectangle.height - stripY));
+                computeStrip();
+            }
+            final int pixel = (y - strip.y) * strip.width + x - strip.x;
+            for (int i = 0; i < targetSamples_out.length; i++) {
+                if (targetSamples[i] != null) {
+                    targetSamples[i].writeTo(pixel, targetSamples_out[i]);
+                }
+            }
+        }
+
+        private void startRectangle(int x, int y, WritableSample[] targetSamples_out) {
+            MultiLevelImage targetImage = null;
+            for (WritableSample targetSample : targetSamples_out) {
+                if (targetSample != null) {
+                    targetImage = targetSample.getNode().getSourceImage();
+                    break;
+                }
+            }
+            final Rectangle tile = targetImage.getTileRect(targetImage.XToTileX(x), targetImage.YToTileY(y));
+            ordered = x == tile.x && y == tile.y;
+            if (ordered) {
+                rectangle.setBounds(tile);
+            } else {
+                rectangle.setBounds(x, y, tile.x + tile.width - x, tile.y + tile.height - y);
+            }
+            // no strip computed yet
+            strip.setBounds(0, 0, 0, 0);
+            sourceSamples = sourceSampleDefinitions.createSamples(rectangle);
+            if (targetSamples == null) {
+                // a strip is at most as wide as the tiles
+                targetSamples = new BufferedSample[targetSamples_out.length];
+                for (int i = 0; i < targetSamples.length; i++) {
+                    if (targetSamples_out[i] != null) {
+                        targetSamples[i] = new BufferedSample(i, targetSamples_out[i].getNode(),
+                                                              targetImage.getTileWidth() * BLOCK_SIZE);
+                    }
+                }
+            }
+            if (spatialWarmStart != null) {
+                spatialWarmStart.get().startTile();
+            }
+        }
+
+        private void computeStrip() {
+            for (BufferedSample targetSample : targetSamples) {
+                if (targetSample != null) {
+                    targetSample.clear();
+                }
+            }
+            if (order == null || orderWidth != strip.width || orderHeight != strip.height) {
+                order = PixelOrder.create(pixelOrder, strip.width, strip.height, BLOCK_SIZE);
+                orderWidth = strip.width;
+                orderHeight = strip.height;
+            }
+
+            for (int pixel : order) {
+                final int x = strip.x + pixel % strip.width;
+                final int y = strip.y + pixel / strip.width;
+                setSourcePixel(x, y);
+                for (BufferedSample targetSample : targetSamples) {
+                    if (targetSample != null) {
+                        targetSample.setPixel(pixel);
+                    }
+                }
+                processPixel(x, y, sourceSamples, targetSamples);
+            }
+        }
+
+        private void setSourcePixel(int x, int y) {
+            for (TileSample sourceSample : sourceSamples) {
+                if (sourceSample != null) {
+                    sourceSample.setPixel(x, y);
+                }
+            }
+        }
+    }
+
+    // records the source samples defined by the sensor context, to read them from the source tiles
+    private final class SampleDefinitions implements SampleConfigurer {
+
+        private final Product defaultProduct;
+        private final Map<Integer, RasterDataNode> rasters;
+
+        SampleDefinitions(Product defaultProduct) {
+            this.defaultProduct = defaultProduct;
+            rasters = new TreeMap<Integer, RasterDataNode>();
+        }
+
+        @Override
+        public void defineSample(int index, String name) {
+            defineSample(index, name, defaultProduct);
+        }
+
+        @Override
+        public void defineSample(int index, String name, Product product) {
+            rasters.put(index, product.getRasterDataNode(name));
+        }
+
+        TileSample[] createSamples(Rectangle rectangle) {
+            int numSamples = 0;
+            for (Integer index : rasters.keySet()) {
+                numSamples = Math.max(numSamples, index + 1);
+            }
+            final TileSample[] samples = new TileSample[numSamples];
+            for (Map.Entry<Integer, RasterDataNode> entry : rasters.entrySet()) {
+                final RasterDataNode raster = entry.getValue();
+                samples[entry.getKey()] = new TileSample(entry.getKey(), raster, getSourceTile(raster, rectangle));
+            }
+            return samples;
+        }
+    }
+
     public static class Spi extends OperatorSpi {
         public Spi() {
             super(OcNnRdOperator.class);
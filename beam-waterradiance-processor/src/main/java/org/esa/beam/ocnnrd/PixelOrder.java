@@ -0,0 +1,101 @@
+package org.esa.beam.ocnnrd;
+
+/**
+ * Orders in which the pixels of a rectangle are processed. Along the Hilbert and Z-order curves consecutive pixels
+ * are mostly neighbours, which improves the spatial warm start and the reuse of cached net outputs.
+ * <p/>
+ * The curves are laid over square blocks of the rectangle, the blocks follow each other from left to right and top
+ * to bottom. A Hilbert curve starts at the upper left and ends at the upper right corner of its block, so it
+ * continues with the neighbouring pixel in the next block. Blocks cut by the rectangle are filled with the part of the
+ * curve of the full block, skipping the pixels outside.
+ */
+class PixelOrder {
+
+    static final String RASTER = "raster";
+    static final String HILBERT = "hilbert";
+    static final String Z_ORDER = "zorder";
+
+    /**
+     * @param order     the name of the order
+     * @param width     the width of the rectangle
+     * @param height    the height of the rectangle
+     * @param blockSize the side length of the blocks of the curves, a power of two
+     * @return the pixel indices y * width + x relative to the rectangle, in the order of processing
+     */
+    static int[] create(String order, int width, int height, int blockSize) {
+        if (Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("The block size must be a power of two: " + blockSize);
+        }
+        final int[] indices = new int[width * height];
+        if (RASTER.equals(order)) {
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = i;
+            }
+            return indices;
+        }
+        final boolean hilbert = HILBERT.equals(order);
+        if (!hilbert && !Z_ORDER.equals(order)) {
+            throw new IllegalArgumentException("Unknown pixel order: " + order);
+        }
+
+        final int[] xy = new int[2];
+        int count = 0;
+        for (int blockY = 0; blockY < height; blockY += blockSize) {
+            for (int blockX = 0; blockX < width; blockX += blockSize) {
+                for (int d = 0; d < blockSize * blockSize; d++) {
+                    if (hilbert) {
+                        hilbertToXY(blockSize, d, xy);
+                    } else {
+                        zOrderToXY(d, xy);
+                    }
+                    final int x = blockX + xy[0];
+                    final int y = blockY + xy[1];
+                    if (x < width && y < height) {
+                        indices[count++] = y * width + x;
+                    }
+                }
+            }
+        }
+        return indices;
+    }
+
+    // the position of the d-th pixel on the Hilbert curve filling an n x n square
+    static void hilbertToXY(int n, int d, int[] xy) {
+        int x = 0;
+        int y = 0;
+        int t = d;
+        for (int s = 1; s < n; s *= 2) {
+            final int rx = 1 & (t / 2);
+            final int ry = 1 & (t ^ rx);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                final int swap = x;
+                x = y;
+                y = swap;
+            }
+            x += s * rx;
+            y += s * ry;
+            t /= 4;
+        }
+        xy[0] = x;
+        xy[1] = y;
+    }
+
+    // the position of the d-th pixel on the Z-order curve, the even bits of d are x, the odd ones y
+    static void zOrderToXY(int d, int[] xy) {
+        xy[0] = compactBits(d);
+        xy[1] = compactBits(d >>> 1);
+    }
+
+    private static int compactBits(int v) {
+        v &= 0x55555555;
+        v = (v | (v >>> 1)) & 0x33333333;
+        v = (v | (v >>> 2)) & 0x0f0f0f0f;
+        v = (v | (v >>> 4)) & 0x00ff00ff;
+        v = (v | (v >>> 8)) & 0x0000ffff;
+        return v;
+    }
+}
@@ -0,0 +1,120 @@
+package org.esa.beam.ocnnrd;
+
+import java.util.Arrays;
+
+/**
+ * Provides the start parameters of the LM fit of a pixel from the converged parameters of a neighbour, instead of
+ * the constant p_init. Aerosol and IOPs are strongly correlated in space, so the fit starts close to its solution.
+ * <p/>
+ * The pixels of a tile are processed by one thread, the results of the tile are kept per pixel. Of the left, upper,
+ * right and lower neighbours already processed the one with the lowest sum_sq is used, in scanline order these are
+ * the left and upper ones. Only neighbours within the same tile are used, this makes the results independent of the
+ * order the tiles are computed. Neighbours with a sum_sq above the threshold are not used, if no neighbour remains
+ * the fit starts from p_init.
+ */
+class SpatialWarmStart {
+
+    private static final int NUM_PARAMETERS = 8;
+
+    private final int tileWidth;
+    private final int tileHeight;
+    private final double maxSumSq;
+    private final double[] parameters;
+    private final double[] sumSq;
+    private final boolean[] processed;
+    private final double[] p_start;
+
+    /**
+     * @param tileWidth  the width of the tiles
+     * @param tileHeight the height of the tiles
+     * @param maxSumSq   the maximum sum_sq of a neighbour used for the start parameters
+     */
+    SpatialWarmStart(int tileWidth, int tileHeight, double maxSumSq) {
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.maxSumSq = maxSumSq;
+        parameters = new double[tileWidth * tileHeight * NUM_PARAMETERS];
+        sumSq = new double[tileWidth * tileHeight];
+        processed = new boolean[tileWidth * tileHeight];
+        p_start = new double[NUM_PARAMETERS];
+    }
+
+    /**
+     * @param x the pixel x coordinate
+     * @param y the pixel y coordinate
+     * @return true if the pixel is the upper left one of its tile, the first one processed in scanline order
+     */
+    boolean isTileOrigin(int x, int y) {
+        return x % tileWidth == 0 && y % tileHeight == 0;
+    }
+
+    /**
+     * Forgets the results of the previous tile, to be called before the first pixel of a tile is processed.
+     */
+    void startTile() {
+        Arrays.fill(processed, false);
+    }
+
+    /**
+     * @param x the pixel x coordinate
+     * @param y the pixel y coordinate
+     * @return the converged parameters of the best neighbour, null if none is usable
+     */
+    double[] getStartParameters(int x, int y) {
+        final int tileX = x % tileWidth;
+        final int tileY = y % tileHeight;
+        final int index = tileY * tileWidth + tileX;
+        int best = -1;
+        if (tileX > 0) {
+            best = better(best, index - 1);
+        }
+        if (tileY > 0) {
+            best = better(best, index - tileWidth);
+        }
+        if (tileX < tileWidth - 1) {
+            best = better(best, index + 1);
+        }
+        if (tileY < tileHeight - 1) {
+            best = better(best, index + tileWidth);
+        }
+        if (best < 0) {
+            return null;
+        }
+        System.arraycopy(parameters, best * NUM_PARAMETERS, p_start, 0, NUM_PARAMETERS);
+        return p_start;
+    }
+
+    /**
+     * Stores the result of a pixel.
+     *
+     * @param x      the pixel x coordinate
+     * @param y      the pixel y coordinate
+     * @param p      the converged parameters
+     * @param sum_sq the sum_sq of the fit
+     */
+    void setResult(int x, int y, double[] p, double sum_sq) {
+        final int index = (y % tileHeight) * tileWidth + x % tileWidth;
+        System.arraycopy(p, 0, parameters, index * NUM_PARAMETERS, NUM_PARAMETERS);
+        sumSq[index] = sum_sq;
+        processed[index] = true;
+    }
+
+    /**
+     * Marks a pixel without result, e.g. an invalid one.
+     *
+     * @param x the pixel x coordinate
+     * @param y the pixel y coordinate
+     */
+    void setInvalid(int x, int y) {
+        processed[(y % tileHeight) * tileWidth + x % tileWidth] = false;
+    }
+
+    // the better usable one of two neighbours, -1 for none
+    private int better(int best, int index) {
+        // also false for a NaN sum_sq
+        if (processed[index] && sumSq[index] <= maxSumSq && (best < 0 || sumSq[index] < sumSq[best])) {
+            return index;
+        }
+        return best;
+    }
+}
@@ -0,0 +1,69 @@
+package org.esa.beam.ocnnrd;
+
+import org.esa.beam.framework.datamodel.RasterDataNode;
+import org.esa.beam.framework.gpf.Tile;
+import org.esa.beam.framework.gpf.pointop.Sample;
+
+/**
+ * A source sample reading the pixel of a tile set with {@link #setPixel}, for processing the pixels of a tile in an
+ * order other than the one of the {@link org.esa.beam.framework.gpf.pointop.PixelOperator}.
+ */
+class TileSample implements Sample {
+
+    private final int index;
+    private final RasterDataNode node;
+    private final Tile tile;
+    private int x;
+    private int y;
+
+    TileSample(int index, RasterDataNode node, Tile tile) {
+        this.index = index;
+        this.node = node;
+        this.tile = tile;
+    }
+
+    void setPixel(int x, int y) {
+        this.x = x;
+        this.y = y;
+    }
+
+    @Override
+    public RasterDataNode getNode() {
+        return node;
+    }
+
+    @Override
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public int getDataType() {
+        return node.getDataType();
+    }
+
+    @Override
+    public boolean getBit(int bitIndex) {
+        return tile.getSampleBit(x, y, bitIndex);
+    }
+
+    @Override
+    public boolean getBoolean() {
+        return tile.getSampleBoolean(x, y);
+    }
+
+    @Override
+    public int getInt() {
+        return tile.getSampleInt(x, y);
+    }
+
+    @Override
+    public float getFloat() {
+        return tile.getSampleFloat(x, y);
+    }
+
+    @Override
+    public double getDouble() {
+        return tile.getSampleDouble(x, y);
+    }
+}
@@ -1,15 +1,27 @@
 package org.esa.beam.waterradiance.realoptimizers;
 
-
-class AlphaTab {
+/**
+ * The default sigmoid activation function of the nets: a nearest-index table of 100000 nodes, optionally with a
+ * float copy for single precision nets.
+ */
+final class AlphaTab implements Sigmoid {
 
     private static final double ALPHA_ANF = -10.0;
     private static final int N_ALPHA = 100000;
 
     private final double rec_delta_alpha;
     private final double[] alpha_tab;
+    private final float rec_delta_alpha_f;
+    private final float[] alpha_tab_f;
 
     AlphaTab() {
+        this(false);
+    }
+
+    /**
+     * @param singlePrecision if true, an additional float table is set up for single precision lookups
+     */
+    AlphaTab(boolean singlePrecision) {
         alpha_tab =  new double[N_ALPHA];
         double sum, delta;
         int i;
@@ -21,13 +33,24 @@ class AlphaTab {
             sum += delta;
         }
         rec_delta_alpha = 1. / delta;
+
+        if (singlePrecision) {
+            alpha_tab_f = new float[N_ALPHA];
+            for (i = 0; i < N_ALPHA; i++) {
+                alpha_tab_f[i] = (float) alpha_tab[i];
+            }
+            rec_delta_alpha_f = (float) rec_delta_alpha;
+        } else {
+            alpha_tab_f = null;
+            rec_delta_alpha_f = 0.f;
+        }
     }
 
     double getRecDelta() {
         return rec_delta_alpha;
     }
 
-    double get(double x) {
+    public double get(double x) {
         int ind = (int) ((x - ALPHA_ANF) * rec_delta_alpha);
         if (ind < 0)
             ind = 0;
@@ -36,7 +59,20 @@ class AlphaTab {
         return alpha_tab[ind];
     }
 
-    private double calpha(double x) {
+    public boolean isSinglePrecision() {
+        return alpha_tab_f != null;
+    }
+
+    public float get(float x) {
+        int ind = (int) ((x - (float) ALPHA_ANF) * rec_delta_alpha_f);
+        if (ind < 0)
+            ind = 0;
+        if (ind >= N_ALPHA)
+            ind = N_ALPHA - 1;
+        return alpha_tab_f[ind];
+    }
+
+    static double calpha(double x) {
         return (1. / (1. + Math.exp(-x)));
     }
 }
@@ -0,0 +1,332 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Tabulated atmosphere model: rho_path, t_down and t_up of the fitted bands, sampled from the atmosphere nets on a
+ * regular grid and answered by multilinear interpolation. The table is memory-mapped and shared by all threads.
+ * <p/>
+ * The grid has eight axes: sun zenith, view zenith, azimuth difference, temperature, salinity (constant for a
+ * pixel) and log aot, log angstrom, log wind (the atmosphere parameters of the LM fit). Per pixel, a
+ * {@link PixelGrid} locates the cell along the pixel axes once, the cost function calls then only locate the
+ * parameters and interpolate the corners of the cell. Pixels outside the range of a pixel axis, e.g. off the single
+ * temperature node of a table without temperature axis, are not covered by the table; the nets are used for them.
+ * <p/>
+ * Layout (big endian):
+ * <pre>
+ *     int      magic, version
+ *     int      numBands, fit band indices[numBands]
+ *     int      numAxes, then per axis: int size, double min, double max
+ *     float    values[node][quantity * numBands + band], last axis varying fastest
+ * </pre>
+ * Use {@link AtmosphereLutTool} to generate a table and compare it to the nets.
+ */
+class AtmosphereLut {
+
+    static final int NUM_PIXEL_AXES = 5;
+    static final int NUM_PARAMETER_AXES = 3;
+    static final int NUM_AXES = NUM_PIXEL_AXES + NUM_PARAMETER_AXES;
+    static final int NUM_QUANTITIES = 3;
+
+    private static final int MAGIC = 0x41544C31; // "ATL1"
+    private static final int VERSION = 1;
+
+    private final int[] fitBands;
+    private final int[] size;
+    private final double[] min;
+    private final double[] max;
+    private final double[] step;
+    private final int numOutputs;
+    private final int blockSize;
+    private final FloatBuffer values;
+
+    private AtmosphereLut(int[] fitBands, int[] size, double[] min, double[] max, FloatBuffer values) {
+        this.fitBands = fitBands;
+        this.size = size;
+        this.min = min;
+        this.max = max;
+        step = new double[NUM_AXES];
+        for (int i = 0; i < NUM_AXES; i++) {
+            step[i] = size[i] > 1 ? (max[i] - min[i]) / (size[i] - 1) : 1.0;
+        }
+        numOutputs = NUM_QUANTITIES * fitBands.length;
+        blockSize = size[5] * size[6] * size[7] * numOutputs;
+        this.values = values;
+    }
+
+    static AtmosphereLut read(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Atmosphere LUT too large to be mapped: " + file.getPath());
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not an atmosphere LUT file: " + file.getPath());
+            }
+            final int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported atmosphere LUT version " + version + ": " + file.getPath());
+            }
+            final int[] fitBands = new int[buffer.getInt()];
+            for (int i = 0; i < fitBands.length; i++) {
+                fitBands[i] = buffer.getInt();
+            }
+            if (buffer.getInt() != NUM_AXES) {
+                throw new IOException("Invalid number of axes in atmosphere LUT file: " + file.getPath());
+            }
+            final int[] size = new int[NUM_AXES];
+            final double[] min = new double[NUM_AXES];
+            final double[] max = new double[NUM_AXES];
+            long numValues = NUM_QUANTITIES * fitBands.length;
+            for (int i = 0; i < NUM_AXES; i++) {
+                size[i] = buffer.getInt();
+                min[i] = buffer.getDouble();
+                max[i] = buffer.getDouble();
+                numValues *= size[i];
+            }
+            if (buffer.remaining() != numValues * 4) {
+                throw new IOException("Corrupt atmosphere LUT file: " + file.getPath());
+            }
+            return new AtmosphereLut(fitBands, size, min, max, buffer.slice().asFloatBuffer());
+        } catch (RuntimeException e) {
+            // buffer underflow on truncated files
+            throw new IOException("Corrupt atmosphere LUT file: " + file.getPath(), e);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the header of a table, the values are to be appended with {@link DataOutputStream#writeFloat(float)}.
+     */
+    static void writeHeader(DataOutputStream out, int[] fitBands, int[] size, double[] min, double[] max) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(fitBands.length);
+        for (int band : fitBands) {
+            out.writeInt(band);
+        }
+        out.writeInt(NUM_AXES);
+        for (int i = 0; i < NUM_AXES; i++) {
+            out.writeInt(size[i]);
+            out.writeDouble(min[i]);
+            out.writeDouble(max[i]);
+        }
+    }
+
+    /**
+     * @return the indices of the tabulated bands within the 29 net bands
+     */
+    int[] getFitBandIndices() {
+        return fitBands;
+    }
+
+    /**
+     * @return a new per-thread interpolation workspace
+     */
+    PixelGrid createPixelGrid() {
+        return new PixelGrid();
+    }
+
+    /**
+     * The interpolation cell of one pixel along the pixel axes, leaving a grid over the three atmosphere parameters
+     * which is interpolated on each call. Not thread safe, each thread needs its own grid.
+     */
+    class PixelGrid {
+
+        private final FloatBuffer view;
+        private final float[] corner;
+        private final double[] value;
+        private final double[][] gradient;
+        private final double[] pixel;
+        private final int[] index;
+        private final double[] weight;
+        private final double[] slope;
+        private final int[] pixelOffset;
+        private final double[] pixelWeight;
+        private final int[] offset;
+        private final double[] cornerWeight;
+        private final double[][] cornerSlope;
+        private int numPixelCorners;
+        private boolean covered;
+
+        private PixelGrid() {
+            view = values.duplicate();
+            corner = new float[numOutputs];
+            value = new double[numOutputs];
+            gradient = new double[NUM_PARAMETER_AXES][numOutputs];
+            pixel = new double[NUM_PIXEL_AXES];
+            Arrays.fill(pixel, Double.NaN);
+            index = new int[NUM_AXES];
+            weight = new double[NUM_AXES];
+            slope = new double[NUM_AXES];
+            pixelOffset = new int[1 << NUM_PIXEL_AXES];
+            pixelWeight = new double[1 << NUM_PIXEL_AXES];
+            offset = new int[8];
+            cornerWeight = new double[8];
+            cornerSlope = new double[8][NUM_PARAMETER_AXES];
+        }
+
+        /**
+         * Locates the pixel along the pixel axes, unless the values equal those of the previous call.
+         *
+         * @return false if the pixel lies outside the range of a pixel axis, it must not be interpolated then
+         */
+        boolean prepare(double sun_zeni, double view_zeni, double azi_diff, double temperature, double salinity) {
+            if (sun_zeni == pixel[0] && view_zeni == pixel[1] && azi_diff == pixel[2] &&
+                temperature == pixel[3] && salinity == pixel[4]) {
+                return covered;
+            }
+            pixel[0] = sun_zeni;
+            pixel[1] = view_zeni;
+            pixel[2] = azi_diff;
+            pixel[3] = temperature;
+            pixel[4] = salinity;
+            covered = true;
+            for (int i = 0; i < NUM_PIXEL_AXES; i++) {
+                // also false for NaN
+                covered &= pixel[i] >= min[i] && pixel[i] <= max[i];
+            }
+            if (!covered) {
+                return false;
+            }
+            for (int i = 0; i < NUM_PIXEL_AXES; i++) {
+                locate(i, pixel[i]);
+            }
+
+            // the corners of the pixel cell with a non-zero weight, degenerate axes have a single corner
+            numPixelCorners = 0;
+            for (int c = 0; c < 1 << NUM_PIXEL_AXES; c++) {
+                double w = 1.0;
+                int node = 0;
+                boolean used = true;
+                for (int i = 0; i < NUM_PIXEL_AXES; i++) {
+                    final int bit = (c >> (NUM_PIXEL_AXES - 1 - i)) & 1;
+                    if (bit == 1 && size[i] == 1) {
+                        used = false;
+                        break;
+                    }
+                    w *= bit == 0 ? 1.0 - weight[i] : weight[i];
+                    node = node * size[i] + index[i] + bit;
+                }
+                if (used && w != 0.0) {
+                    pixelOffset[numPixelCorners] = node * blockSize;
+                    pixelWeight[numPixelCorners] = w;
+                    numPixelCorners++;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Interpolates rho_path, t_down and t_up of the fitted bands for the given atmosphere parameters, the pixel
+         * must have been prepared and be covered by the table.
+         *
+         * @param log_aot   the log aerosol optical thickness
+         * @param log_ang   the log angstrom coefficient
+         * @param log_wind  the log wind speed
+         * @param out       the interpolated values [quantity][band] (output)
+         * @param gradients the derivatives with respect to the three parameters [quantity][band][parameter]
+         *                  (output), null if not needed
+         */
+        void interpolate(double log_aot, double log_ang, double log_wind, double[][] out, double[][][] gradients) {
+            locate(5, log_aot);
+            locate(6, log_ang);
+            locate(7, log_wind);
+            int numCorners = 0;
+            for (int c = 0; c < 8; c++) {
+                final int a = (c >> 2) & 1;
+                final int b = (c >> 1) & 1;
+                final int d = c & 1;
+                if ((a == 1 && size[5] == 1) || (b == 1 && size[6] == 1) || (d == 1 && size[7] == 1)) {
+                    continue;
+                }
+                final double wa = a == 0 ? 1.0 - weight[5] : weight[5];
+                final double wb = b == 0 ? 1.0 - weight[6] : weight[6];
+                final double wd = d == 0 ? 1.0 - weight[7] : weight[7];
+                final double sa = a == 0 ? -slope[5] : slope[5];
+                final double sb = b == 0 ? -slope[6] : slope[6];
+                final double sd = d == 0 ? -slope[7] : slope[7];
+                offset[numCorners] = (((index[5] + a) * size[6] + index[6] + b) * size[7] + index[7] + d) * numOutputs;
+                cornerWeight[numCorners] = wa * wb * wd;
+                cornerSlope[numCorners][0] = sa * wb * wd;
+                cornerSlope[numCorners][1] = wa * sb * wd;
+                cornerSlope[numCorners][2] = wa * wb * sd;
+                numCorners++;
+            }
+
+            Arrays.fill(value, 0.0);
+            if (gradients != null) {
+                for (double[] g : gradient) {
+                    Arrays.fill(g, 0.0);
+                }
+            }
+            final double[] g0 = gradient[0];
+            final double[] g1 = gradient[1];
+            final double[] g2 = gradient[2];
+            for (int p = 0; p < numPixelCorners; p++) {
+                for (int c = 0; c < numCorners; c++) {
+                    view.position(pixelOffset[p] + offset[c]);
+                    view.get(corner);
+                    final double w = pixelWeight[p] * cornerWeight[c];
+                    for (int o = 0; o < numOutputs; o++) {
+                        value[o] += w * corner[o];
+                    }
+                    if (gradients != null) {
+                        final double s0 = pixelWeight[p] * cornerSlope[c][0];
+                        final double s1 = pixelWeight[p] * cornerSlope[c][1];
+                        final double s2 = pixelWeight[p] * cornerSlope[c][2];
+                        for (int o = 0; o < numOutputs; o++) {
+                            g0[o] += s0 * corner[o];
+                            g1[o] += s1 * corner[o];
+                            g2[o] += s2 * corner[o];
+                        }
+                    }
+                }
+            }
+
+            final int numBands = fitBands.length;
+            for (int q = 0; q < NUM_QUANTITIES; q++) {
+                for (int band = 0; band < numBands; band++) {
+                    final int o = q * numBands + band;
+                    out[q][band] = value[o];
+                    if (gradients != null) {
+                        gradients[q][band][0] = g0[o];
+                        gradients[q][band][1] = g1[o];
+                        gradients[q][band][2] = g2[o];
+                    }
+                }
+            }
+        }
+
+        // finds the grid cell of a value along an axis, values outside of the axis are clamped
+        private void locate(int axis, double value) {
+            final int n = size[axis];
+            if (n == 1) {
+                index[axis] = 0;
+                weight[axis] = 0.0;
+                slope[axis] = 0.0;
+                return;
+            }
+            double t = (value - min[axis]) / step[axis];
+            if (t < 0.0) {
+                t = 0.0;
+            } else if (t > n - 1) {
+                t = n - 1;
+            }
+            final int i = Math.min((int) t, n - 2);
+            index[axis] = i;
+            weight[axis] = t - i;
+            slope[axis] = 1.0 / step[axis];
+        }
+    }
+}
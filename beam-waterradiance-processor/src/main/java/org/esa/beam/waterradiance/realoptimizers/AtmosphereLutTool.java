@@ -0,0 +1,202 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.esa.beam.ocnnrd.SensorContext;
+import org.esa.beam.ocnnrd.SensorContextFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates an {@link AtmosphereLut} from the atmosphere nets and compares the modelled TOSA reflectances of a table
+ * to those of the nets.
+ * <p/>
+ * Usage:
+ * <pre>
+ *     AtmosphereLutTool generate &lt;product type&gt; &lt;table file&gt; [n_sun n_view n_azi n_temp n_sal n_aot n_ang n_wind]
+ *     AtmosphereLutTool compare &lt;product type&gt; &lt;table file&gt; [number of samples]
+ * </pre>
+ * The pixel axes cover the input ranges of the nets, the parameter axes the bounds of the LM fit. A pixel axis with a
+ * single node fixes that input to the middle of its range, e.g. 15 degC or 35 PSU; pixels off the node are not
+ * covered by the table and use the nets. The comparison draws pixels over the full input ranges, including temperature
+ * and salinity, once per 20 parameter vectors like in the LM fit, and reports the fraction of samples covered by the
+ * table.
+ */
+public class AtmosphereLutTool {
+
+    private static final int[] DEFAULT_SIZE = {16, 14, 13, 2, 2, 10, 8, 6};
+    private static final double[] PIXEL_MIN = {0.0, 0.0, 0.0, 0.0, 30.0};
+    private static final double[] PIXEL_MAX = {75.0, 65.0, 180.0, 30.0, 38.0};
+    private static final double[] PIXEL_DEFAULT = {37.5, 32.5, 90.0, 15.0, 35.0};
+    // the cost function is called for many parameter vectors of the same pixel
+    private static final int CALLS_PER_PIXEL = 20;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            printUsage();
+            return;
+        }
+        final SensorContext sensorContext = SensorContextFactory.fromTypeString(args[1]);
+        final File file = new File(args[2]);
+        if ("generate".equals(args[0])) {
+            final int[] size = DEFAULT_SIZE.clone();
+            for (int i = 0; i < size.length && i + 3 < args.length; i++) {
+                size[i] = Integer.parseInt(args[i + 3]);
+            }
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                generate(sensorContext, size, out);
+            } finally {
+                out.close();
+            }
+        } else if ("compare".equals(args[0])) {
+            final int numSamples = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+            compare(sensorContext, file, numSamples);
+        } else {
+            printUsage();
+        }
+    }
+
+    /**
+     * Samples the pruned atmosphere nets of the fitted bands on a regular grid and writes the table.
+     *
+     * @param sensorContext the sensor defining the fitted bands
+     * @param size          the number of nodes per axis; a pixel axis with a single node is fixed to the middle of
+     *                      its range, e.g. 15 degC and 35 PSU
+     * @param out           the stream the table is written to
+     * @throws IOException on failures loading the nets or writing the table
+     */
+    static void generate(SensorContext sensorContext, int[] size, DataOutputStream out) throws IOException {
+        final int[] fitBands = NnAtmoWat.getFitBandIndices(sensorContext.getSensor());
+        final LevMarNNConfig config = new LevMarNNConfig();
+        final AlphaTab alphaTab = NnModelRegistry.getAlphaTab(false);
+        final String[] netPaths = NnAtmoWat.getAtmosphereNetPaths(new NnResources());
+        final a_nn[] nets = new a_nn[AtmosphereLut.NUM_QUANTITIES];
+        for (int q = 0; q < nets.length; q++) {
+            nets[q] = NnModelRegistry.getNet(netPaths[q], config, fitBands);
+        }
+
+        final double[] min = new double[AtmosphereLut.NUM_AXES];
+        final double[] max = new double[AtmosphereLut.NUM_AXES];
+        for (int i = 0; i < AtmosphereLut.NUM_PIXEL_AXES; i++) {
+            min[i] = size[i] > 1 ? PIXEL_MIN[i] : PIXEL_DEFAULT[i];
+            max[i] = size[i] > 1 ? PIXEL_MAX[i] : PIXEL_DEFAULT[i];
+        }
+        for (int i = 0; i < AtmosphereLut.NUM_PARAMETER_AXES; i++) {
+            min[AtmosphereLut.NUM_PIXEL_AXES + i] = LevMarNN.LOWER_BOUNDS[i];
+            max[AtmosphereLut.NUM_PIXEL_AXES + i] = LevMarNN.UPPER_BOUNDS[i];
+        }
+        AtmosphereLut.writeHeader(out, fitBands, size, min, max);
+
+        final double[] node = new double[AtmosphereLut.NUM_AXES];
+        final int[] index = new int[AtmosphereLut.NUM_AXES];
+        final double[] conc_all = new double[3];
+        final double[] innet = new double[9];
+        final double[] outnet = new double[fitBands.length];
+        long numNodes = 1;
+        for (int s : size) {
+            numNodes *= s;
+        }
+        for (long n = 0; n < numNodes; n++) {
+            // decompose the node number, the last axis varies fastest
+            long rest = n;
+            for (int i = AtmosphereLut.NUM_AXES - 1; i >= 0; i--) {
+                index[i] = (int) (rest % size[i]);
+                rest /= size[i];
+                node[i] = size[i] > 1 ? min[i] + index[i] * (max[i] - min[i]) / (size[i] - 1) : min[i];
+            }
+            conc_all[0] = node[5];
+            conc_all[1] = node[6];
+            conc_all[2] = node[7];
+            NnAtmoWat.setAtmosphereInputs(node[0], node[1], node[2], node[3], node[4], conc_all, innet);
+            for (a_nn net : nets) {
+                LevMarNN.use_the_nn(net, innet, outnet, alphaTab);
+                for (double value : outnet) {
+                    out.writeFloat((float) value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares the TOSA reflectances of the fitted bands modelled with the table to those modelled with the nets,
+     * for random pixels and parameters within the bounds of the LM fit, and prints the errors and timings. Samples
+     * off the table use the nets in both models, they are counted but excluded from the errors.
+     */
+    static void compare(SensorContext sensorContext, File file, int numSamples) throws IOException {
+        final AlphaTab alphaTab = NnModelRegistry.getAlphaTab(false);
+        final NnAtmoWat netModel = new NnAtmoWat(alphaTab, sensorContext, new LevMarNNConfig());
+        final LevMarNNConfig lutConfig = new LevMarNNConfig();
+        lutConfig.setAtmosphereLutPath(file.getPath());
+        final NnAtmoWat lutModel = new NnAtmoWat(alphaTab, sensorContext, lutConfig);
+        final int numBands = NnAtmoWat.getFitBandIndices(sensorContext.getSensor()).length;
+        final AtmosphereLut.PixelGrid grid = NnModelRegistry.getAtmosphereLut(file.getPath()).createPixelGrid();
+
+        final Random random = new Random(42L);
+        final s_nn_atdata nn_data = new s_nn_atdata();
+        nn_data.prepare = -1;
+        NNReturnData netReturnData = new NNReturnData();
+        NNReturnData lutReturnData = new NNReturnData();
+        final double[] conc_all = new double[LevMarNN.P_INIT.length];
+        final double[] netRtosa = new double[numBands];
+        final double[] lutRtosa = new double[numBands];
+        double maxAbsError = 0.0;
+        double maxRelError = 0.0;
+        double sumSqAbsError = 0.0;
+        double sumSqRelError = 0.0;
+        int numCovered = 0;
+        boolean covered = false;
+        long netNanos = 0;
+        long lutNanos = 0;
+        for (int i = 0; i < numSamples; i++) {
+            if (i % CALLS_PER_PIXEL == 0) {
+                nn_data.setSun_thet(75.0 * random.nextDouble());
+                nn_data.setView_zeni(45.0 * random.nextDouble());
+                nn_data.azi_diff_hl = 180.0 * random.nextDouble();
+                nn_data.setTemperature(PIXEL_MIN[3] + (PIXEL_MAX[3] - PIXEL_MIN[3]) * random.nextDouble());
+                nn_data.setSalinity(PIXEL_MIN[4] + (PIXEL_MAX[4] - PIXEL_MIN[4]) * random.nextDouble());
+                covered = grid.prepare(nn_data.getSun_thet(), nn_data.getView_zeni(), nn_data.getAzi_diff_hl(),
+                                       nn_data.getTemperature(), nn_data.getSalinity());
+            }
+            for (int k = 0; k < conc_all.length; k++) {
+                final double lb = LevMarNN.LOWER_BOUNDS[k];
+                conc_all[k] = lb + (LevMarNN.UPPER_BOUNDS[k] - lb) * random.nextDouble();
+            }
+
+            long start = System.nanoTime();
+            netReturnData = netModel.nn_atmo_wat(conc_all, netRtosa, nn_data, netReturnData);
+            netNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            lutReturnData = lutModel.nn_atmo_wat(conc_all, lutRtosa, nn_data, lutReturnData);
+            lutNanos += System.nanoTime() - start;
+
+            if (!covered) {
+                continue;
+            }
+            numCovered++;
+            for (int band = 0; band < numBands; band++) {
+                final double absError = Math.abs(lutRtosa[band] - netRtosa[band]);
+                final double relError = absError / Math.abs(netRtosa[band]);
+                maxAbsError = Math.max(maxAbsError, absError);
+                maxRelError = Math.max(maxRelError, relError);
+                sumSqAbsError += absError * absError;
+                sumSqRelError += relError * relError;
+            }
+        }
+        final long numValues = Math.max((long) numCovered * numBands, 1L);
+        System.out.printf("samples: %d, covered by the table: %d, bands: %d%n", numSamples, numCovered, numBands);
+        System.out.printf("rtosa abs error: max %.3e, rms %.3e%n", maxAbsError, Math.sqrt(sumSqAbsError / numValues));
+        System.out.printf("rtosa rel error: max %.3e, rms %.3e%n", maxRelError, Math.sqrt(sumSqRelError / numValues));
+        System.out.printf("time per call: nets %.2f us, table %.2f us%n",
+                          netNanos * 1.0e-3 / numSamples, lutNanos * 1.0e-3 / numSamples);
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: AtmosphereLutTool generate <product type> <table file> " +
+                           "[n_sun n_view n_azi n_temp n_sal n_aot n_ang n_wind]");
+        System.out.println("       AtmosphereLutTool compare <product type> <table file> [number of samples]");
+    }
+}
@@ -0,0 +1,24 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+/**
+ * Implemented by forward models which evaluate the modelled signal for many variable vectors at once, as used by
+ * {@link BatchedLevenbergMarquardt}. Each variable vector (column) belongs to a lane, e.g. a pixel, which provides
+ * the remaining inputs of the model.
+ */
+interface BatchForwardModel {
+
+    /**
+     * @return the number of bands of the modelled signal
+     */
+    int getNumberOfSignalBands();
+
+    /**
+     * Computes the modelled signals of a batch of variable vectors.
+     *
+     * @param lanes      the lane of each column
+     * @param variables  the variables [variable][column]
+     * @param numColumns the number of columns
+     * @param signals    the modelled signals [band][column] (output)
+     */
+    void getModeledSignals(int[] lanes, double[][] variables, int numColumns, double[][] signals);
+}
@@ -0,0 +1,312 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+/**
+ * Box-constrained Levenberg-Marquardt optimizer advancing the fits of a batch of pixels (lanes) in lock-step. It is
+ * the batched counterpart of {@link BoundedLevenbergMarquardt} with forward difference Jacobians: every lane runs
+ * the same iteration with the same damping, trials, projection onto the bounds and stop criteria, so a lane gives
+ * the result of the scalar optimizer for the same forward model.
+ * <p/>
+ * Parameters, signals, Jacobians and normal equations are held in structure-of-arrays form, [element][lane]. Each
+ * round evaluates the forward model twice: once for the Jacobians of all lanes starting an iteration, nine columns
+ * per lane, and once for the trial steps of all active lanes. The columns are packed densely, so the nets of the
+ * model process matrices instead of vectors. Lanes which have converged or failed are masked off and no longer
+ * evaluated.
+ * <p/>
+ * Not thread safe, every LevMarNN needs its own instance.
+ */
+class BatchedLevenbergMarquardt {
+
+    private static final int NUM_PARAMETERS = BoundedLevenbergMarquardt.NUM_PARAMETERS;
+    private static final int COLUMNS_PER_JACOBIAN = NUM_PARAMETERS + 1;
+
+    private final BatchForwardModel model;
+    private final int batchSize;
+    private final int numBands;
+    private final int maxIterations;
+    private final double threshold;
+
+    private final double[][] p;
+    private final double[][] signal;
+    private final double[][] jacobian;
+    private final double[][] jtj;
+    private final double[][] jte;
+    private final double[] cost;
+    private final double[] mu;
+    private final int[] numIterations;
+    private final int[] numTrials;
+    private final boolean[] startIteration;
+    private final boolean[] finished;
+    private final int[] active;
+    private final int[] jacobianLanes;
+    private final int[] trialLanes;
+
+    private final int[] columnLanes;
+    private final double[][] columnParameters;
+    private final double[][] columnSignals;
+
+    private final double[] a;
+    private final double[] b;
+    private final double[] dp;
+
+    /**
+     * @param model         the forward model
+     * @param batchSize     the maximum number of lanes
+     * @param maxIterations the maximum number of iterations of a lane
+     * @param threshold     the relative reduction of the sum of squares below which a lane has converged
+     */
+    BatchedLevenbergMarquardt(BatchForwardModel model, int batchSize, int maxIterations, double threshold) {
+        this.model = model;
+        this.batchSize = batchSize;
+        this.maxIterations = maxIterations;
+        this.threshold = threshold;
+        numBands = model.getNumberOfSignalBands();
+        if (numBands > BoundedLevenbergMarquardt.MAX_RESIDUALS) {
+            throw new IllegalArgumentException("Up to " + BoundedLevenbergMarquardt.MAX_RESIDUALS + " signal bands supported: " + numBands);
+        }
+
+        p = new double[NUM_PARAMETERS][batchSize];
+        signal = new double[numBands][batchSize];
+        jacobian = new double[numBands * NUM_PARAMETERS][batchSize];
+        jtj = new double[NUM_PARAMETERS * NUM_PARAMETERS][batchSize];
+        jte = new double[NUM_PARAMETERS][batchSize];
+        cost = new double[batchSize];
+        mu = new double[batchSize];
+        numIterations = new int[batchSize];
+        numTrials = new int[batchSize];
+        startIteration = new boolean[batchSize];
+        finished = new boolean[batchSize];
+        active = new int[batchSize];
+        jacobianLanes = new int[batchSize];
+        trialLanes = new int[batchSize];
+
+        final int maxColumns = batchSize * COLUMNS_PER_JACOBIAN;
+        columnLanes = new int[maxColumns];
+        columnParameters = new double[NUM_PARAMETERS][maxColumns];
+        columnSignals = new double[numBands][maxColumns];
+
+        a = new double[NUM_PARAMETERS * NUM_PARAMETERS];
+        b = new double[NUM_PARAMETERS];
+        dp = new double[NUM_PARAMETERS];
+    }
+
+    /**
+     * @return the maximum number of lanes
+     */
+    int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Runs the fits of a batch of lanes. The results are written to p0.
+     *
+     * @param p0       the start parameters [parameter][lane], replaced by the optimized parameters
+     * @param x        the measured signals [band][lane]
+     * @param numLanes the number of lanes, at most the batch size
+     * @param lb       the lower bounds of the parameters
+     * @param ub       the upper bounds of the parameters
+     */
+    void optimize(double[][] p0, double[][] x, int numLanes, double[] lb, double[] ub) {
+        if (numLanes > batchSize) {
+            throw new IllegalArgumentException("Too many lanes: " + numLanes);
+        }
+        for (int j = 0; j < NUM_PARAMETERS; j++) {
+            for (int lane = 0; lane < numLanes; lane++) {
+                p[j][lane] = clip(p0[j][lane], lb[j], ub[j]);
+            }
+        }
+        for (int lane = 0; lane < numLanes; lane++) {
+            mu[lane] = BoundedLevenbergMarquardt.INITIAL_DAMPING;
+            numIterations[lane] = 0;
+            startIteration[lane] = true;
+            finished[lane] = false;
+            active[lane] = lane;
+        }
+
+        int numActive = numLanes;
+        while (numActive > 0) {
+            // start the iterations of the lanes with an accepted step, masking off the finished lanes
+            int numJacobians = 0;
+            int count = 0;
+            for (int c = 0; c < numActive; c++) {
+                final int lane = active[c];
+                if (startIteration[lane]) {
+                    if (numIterations[lane] == maxIterations) {
+                        continue;
+                    }
+                    numIterations[lane]++;
+                    numTrials[lane] = 0;
+                    startIteration[lane] = false;
+                    jacobianLanes[numJacobians++] = lane;
+                }
+                if (!finished[lane]) {
+                    active[count++] = lane;
+                }
+            }
+            numActive = count;
+            if (numJacobians > 0) {
+                evaluateJacobians(x, numJacobians);
+            }
+
+            // one trial step per active lane
+            int numTrialLanes = 0;
+            for (int c = 0; c < numActive; c++) {
+                final int lane = active[c];
+                if (solveStep(lane, numTrialLanes, lb, ub)) {
+                    trialLanes[numTrialLanes++] = lane;
+                } else {
+                    reject(lane);
+                }
+            }
+            if (numTrialLanes > 0) {
+                model.getModeledSignals(columnLanes, columnParameters, numTrialLanes, columnSignals);
+            }
+            for (int t = 0; t < numTrialLanes; t++) {
+                final int lane = trialLanes[t];
+                double trialCost = 0.0;
+                for (int i = 0; i < numBands; i++) {
+                    final double e = columnSignals[i][t] - x[i][lane];
+                    trialCost += e * e;
+                }
+                if (trialCost < cost[lane]) {
+                    final boolean converged = cost[lane] - trialCost < threshold * cost[lane] + BoundedLevenbergMarquardt.MIN_REDUCTION;
+                    for (int j = 0; j < NUM_PARAMETERS; j++) {
+                        p[j][lane] = columnParameters[j][t];
+                    }
+                    cost[lane] = trialCost;
+                    mu[lane] /= BoundedLevenbergMarquardt.DAMPING_FACTOR;
+                    finished[lane] = converged;
+                    startIteration[lane] = !converged;
+                } else {
+                    reject(lane);
+                }
+            }
+
+            count = 0;
+            for (int c = 0; c < numActive; c++) {
+                final int lane = active[c];
+                if (!finished[lane]) {
+                    active[count++] = lane;
+                }
+            }
+            numActive = count;
+        }
+
+        for (int j = 0; j < NUM_PARAMETERS; j++) {
+            System.arraycopy(p[j], 0, p0[j], 0, numLanes);
+        }
+    }
+
+    /**
+     * @param lane the lane
+     * @return the sum of squares of the last fit of the lane
+     */
+    double getCost(int lane) {
+        return cost[lane];
+    }
+
+    /**
+     * @param lane the lane
+     * @return the number of iterations of the last fit of the lane
+     */
+    int getNumberOfIterations(int lane) {
+        return numIterations[lane];
+    }
+
+    // the signals and forward difference Jacobians at p of the given lanes, in one evaluation of the model
+    private void evaluateJacobians(double[][] x, int numJacobians) {
+        int column = 0;
+        for (int c = 0; c < numJacobians; c++) {
+            final int lane = jacobianLanes[c];
+            for (int k = 0; k < COLUMNS_PER_JACOBIAN; k++) {
+                columnLanes[column + k] = lane;
+                for (int j = 0; j < NUM_PARAMETERS; j++) {
+                    columnParameters[j][column + k] = p[j][lane];
+                }
+            }
+            for (int j = 0; j < NUM_PARAMETERS; j++) {
+                columnParameters[j][column + 1 + j] += getStep(p[j][lane]);
+            }
+            column += COLUMNS_PER_JACOBIAN;
+        }
+        model.getModeledSignals(columnLanes, columnParameters, column, columnSignals);
+
+        column = 0;
+        for (int c = 0; c < numJacobians; c++) {
+            final int lane = jacobianLanes[c];
+            for (int i = 0; i < numBands; i++) {
+                final double[] bandSignals = columnSignals[i];
+                final double s = bandSignals[column];
+                signal[i][lane] = s;
+                for (int j = 0; j < NUM_PARAMETERS; j++) {
+                    jacobian[i * NUM_PARAMETERS + j][lane] = (bandSignals[column + 1 + j] - s) / getStep(p[j][lane]);
+                }
+            }
+            if (numIterations[lane] == 1) {
+                double sum = 0.0;
+                for (int i = 0; i < numBands; i++) {
+                    final double e = signal[i][lane] - x[i][lane];
+                    sum += e * e;
+                }
+                cost[lane] = sum;
+            }
+            computeNormalEquations(lane, x);
+            column += COLUMNS_PER_JACOBIAN;
+        }
+    }
+
+    // J^T J and J^T e of a lane, summed like BoundedLevenbergMarquardt
+    private void computeNormalEquations(int lane, double[][] x) {
+        for (int j = 0; j < NUM_PARAMETERS; j++) {
+            for (int k = 0; k <= j; k++) {
+                double sum = 0.0;
+                for (int i = 0; i < numBands; i++) {
+                    sum += jacobian[i * NUM_PARAMETERS + j][lane] * jacobian[i * NUM_PARAMETERS + k][lane];
+                }
+                jtj[j * NUM_PARAMETERS + k][lane] = sum;
+                jtj[k * NUM_PARAMETERS + j][lane] = sum;
+            }
+            double sum = 0.0;
+            for (int i = 0; i < numBands; i++) {
+                sum += jacobian[i * NUM_PARAMETERS + j][lane] * (x[i][lane] - signal[i][lane]);
+            }
+            jte[j][lane] = sum;
+        }
+    }
+
+    // solves the damped normal equations of a lane and puts the trial parameters into the given column
+    private boolean solveStep(int lane, int column, double[] lb, double[] ub) {
+        for (int jk = 0; jk < a.length; jk++) {
+            a[jk] = jtj[jk][lane];
+        }
+        for (int j = 0; j < NUM_PARAMETERS; j++) {
+            final int jj = j * NUM_PARAMETERS + j;
+            a[jj] += mu[lane] * jtj[jj][lane] + BoundedLevenbergMarquardt.MIN_DAMPING;
+            b[j] = jte[j][lane];
+        }
+        if (!BoundedLevenbergMarquardt.choleskySolve(a, b, dp)) {
+            return false;
+        }
+        columnLanes[column] = lane;
+        for (int j = 0; j < NUM_PARAMETERS; j++) {
+            columnParameters[j][column] = clip(p[j][lane] + dp[j], lb[j], ub[j]);
+        }
+        return true;
+    }
+
+    // increases the damping after a failed trial, the lane fails after the maximum number of trials
+    private void reject(int lane) {
+        mu[lane] *= BoundedLevenbergMarquardt.DAMPING_FACTOR;
+        numTrials[lane]++;
+        if (numTrials[lane] == BoundedLevenbergMarquardt.MAX_TRIALS) {
+            finished[lane] = true;
+        }
+    }
+
+    private static double getStep(double p) {
+        return BoundedLevenbergMarquardt.FD_STEP * Math.max(Math.abs(p), 1.0);
+    }
+
+    private static double clip(double value, double lower, double upper) {
+        return Math.min(Math.max(value, lower), upper);
+    }
+}
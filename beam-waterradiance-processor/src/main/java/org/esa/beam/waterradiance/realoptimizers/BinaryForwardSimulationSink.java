@@ -0,0 +1,60 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes forward simulation results as a binary file of fixed-length records.
+ * <p/>
+ * Layout (big endian):
+ * <pre>
+ *     int      magic, version
+ *     int      numVariables (13), numBands
+ *     float    records[sample][13 + 4 * numBands]: the variables, then rtosa, rpath, tdown and tup of all bands
+ * </pre>
+ * The records follow up to the end of the file, their number is not stored so that the file can be streamed.
+ */
+public class BinaryForwardSimulationSink implements ForwardSimulationSink {
+
+    static final int MAGIC = 0x46575331; // "FWS1"
+    static final int VERSION = 1;
+
+    private final DataOutputStream out;
+
+    /**
+     * @param out the stream the records are written to, closed with the sink
+     */
+    public BinaryForwardSimulationSink(DataOutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void start(int numBands) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(ForwardSampleSpace.NUM_VARIABLES);
+        out.writeInt(numBands);
+    }
+
+    @Override
+    public void write(double[] geometry, double[] parameters, double[] rtosa, double[] rpath, double[] tdown,
+                      double[] tup) throws IOException {
+        write(geometry);
+        write(parameters);
+        write(rtosa);
+        write(rpath);
+        write(tdown);
+        write(tup);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void write(double[] values) throws IOException {
+        for (double value : values) {
+            out.writeFloat((float) value);
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import com.bc.ceres.binding.Property;
+import com.bc.ceres.binding.PropertyContainer;
+import com.bc.ceres.binding.PropertySet;
+import com.bc.ceres.binding.ValidationException;
+import com.bc.siocs.core.CostFunction;
+import com.bc.siocs.core.ForwardModel;
+import com.bc.siocs.core.Optimizer;
+import com.bc.siocs.core.StopCriterion;
+
+import java.util.Arrays;
+
+/**
+ * Box-constrained Levenberg-Marquardt optimizer specialised for the LevMarNN problem: eight parameters and at most
+ * eleven residuals. All buffers are allocated once and the normal equations are solved by an in-place Cholesky
+ * decomposition. Models implementing {@link JacobianModel} are evaluated without intermediate arrays, other models
+ * through {@link ForwardModel}. The Jacobian is approximated by forward differences, or taken from the
+ * {@link JacobianModel} if configured. Optionally, the Jacobian is only recomputed every k iterations and updated
+ * by Broyden's rank-1 formula from the accepted steps in between; a step rejected with an updated Jacobian triggers
+ * a full recomputation.
+ * <p/>
+ * Each iteration computes the Jacobian once and solves the normal equations with Marquardt's diagonal damping,
+ * which is decreased tenfold after an accepted step and increased tenfold after a rejected one, up to ten times
+ * per iteration. The steps are projected onto the bounds. The iteration stops after the maximum number of
+ * iterations of the stop criterion, when an accepted step reduces the sum of squares by less than the threshold of
+ * the stop criterion relative to the current sum of squares, or when no step is accepted. The optimizer minimises
+ * the sum of squared residuals, weighted by the weights of an {@link OcNnRdCostFunction}; other cost functions are
+ * rejected.
+ * <p/>
+ * Not thread safe, every LevMarNN needs its own instance.
+ */
+public class BoundedLevenbergMarquardt implements Optimizer {
+
+    public static final String NAME = "BoundedLevenbergMarquardt";
+
+    static final int NUM_PARAMETERS = 8;
+    static final int MAX_RESIDUALS = 11;
+
+    static final double INITIAL_DAMPING = 1.0e-3;
+    static final double DAMPING_FACTOR = 10.0;
+    static final double MIN_DAMPING = 1.0e-12;
+    static final double MIN_REDUCTION = 1.0e-14;
+    static final int MAX_TRIALS = 10;
+    static final double FD_STEP = 1.0e-2;
+    private static final int DEFAULT_MAX_ITERATIONS = 150;
+    private static final double DEFAULT_THRESHOLD = 1.0e-8;
+
+    private PropertySet config;
+    private ForwardModel forwardModel;
+    private JacobianModel jacobianModel;
+    private double[] weights;
+    private int maxIterations;
+    private double threshold;
+    private final boolean analyticJacobian;
+    private final int broydenRefreshInterval;
+
+    private final double[] p;
+    private final double[] pPrevious;
+    private final double[] pTrial;
+    private final double[] dp;
+    private final double[] jtj;
+    private final double[] jte;
+    private final double[] a;
+    private double[] signal;
+    private double[] trialSignal;
+    private double[] residuals;
+    private double[][] jacobian;
+
+    private double cost;
+    private int numIterations;
+
+    public BoundedLevenbergMarquardt() {
+        this(false, 0);
+    }
+
+    /**
+     * @param analyticJacobian       true if the analytic Jacobian of a {@link JacobianModel} is used instead of
+     *                               finite differences
+     * @param broydenRefreshInterval the number of iterations using Broyden updates of the Jacobian between full
+     *                               computations, 0 to compute the Jacobian in every iteration
+     */
+    public BoundedLevenbergMarquardt(boolean analyticJacobian, int broydenRefreshInterval) {
+        this.analyticJacobian = analyticJacobian;
+        this.broydenRefreshInterval = broydenRefreshInterval;
+        config = new PropertyContainer();
+        config.addProperty(Property.create("lowerBounds", double[].class));
+        config.addProperty(Property.create("upperBounds", double[].class));
+        maxIterations = DEFAULT_MAX_ITERATIONS;
+        threshold = DEFAULT_THRESHOLD;
+        p = new double[NUM_PARAMETERS];
+        pPrevious = new double[NUM_PARAMETERS];
+        pTrial = new double[NUM_PARAMETERS];
+        dp = new double[NUM_PARAMETERS];
+        jtj = new double[NUM_PARAMETERS * NUM_PARAMETERS];
+        jte = new double[NUM_PARAMETERS];
+        a = new double[NUM_PARAMETERS * NUM_PARAMETERS];
+    }
+
+    @Override
+    public PropertySet getConfig() {
+        return config;
+    }
+
+    @Override
+    public void setConfig(PropertySet config) {
+        this.config = config;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * @param costFunction an {@link OcNnRdCostFunction} with one non-negative weight per signal band, or null for
+     *                     unit weights
+     */
+    @Override
+    public void init(ForwardModel forwardModel, CostFunction costFunction, StopCriterion stopCriterion)
+            throws ValidationException {
+        if (forwardModel.getVariableCount() != NUM_PARAMETERS) {
+            throw new ValidationException(NAME + " supports " + NUM_PARAMETERS + " variables only");
+        }
+        final int numBands = forwardModel.getNumberOfSignalBands();
+        if (numBands > MAX_RESIDUALS) {
+            throw new ValidationException(NAME + " supports up to " + MAX_RESIDUALS + " signal bands only");
+        }
+        weights = getWeights(costFunction, numBands);
+        this.forwardModel = forwardModel;
+        // sized to the signal, the model distinguishes the fit from the full spectrum by the signal length
+        signal = new double[numBands];
+        trialSignal = new double[numBands];
+        residuals = new double[numBands];
+        jacobian = new double[numBands][NUM_PARAMETERS];
+        jacobianModel = forwardModel instanceof JacobianModel ? (JacobianModel) forwardModel : null;
+        final PropertySet stopConfig = stopCriterion.getConfig();
+        final Integer maximumNumberOfIterations = stopConfig.getValue("maximumNumberOfIterations");
+        final Double stopThreshold = stopConfig.getValue("threshold");
+        maxIterations = maximumNumberOfIterations != null ? maximumNumberOfIterations : DEFAULT_MAX_ITERATIONS;
+        threshold = stopThreshold != null ? stopThreshold : DEFAULT_THRESHOLD;
+    }
+
+    /**
+     * Runs the optimization. The result is written to p0 to avoid an allocation per call.
+     *
+     * @return p0, holding the optimized parameters
+     */
+    @Override
+    public double[] optimize(double[] p0, double[] x, double[] lb, double[] ub) {
+        final int n = signal.length;
+        for (int j = 0; j < NUM_PARAMETERS; j++) {
+            p[j] = clip(p0[j], lb[j], ub[j]);
+        }
+        if (jacobianModel == null) {
+            forwardModel.setReferenceSignal(x);
+        }
+
+        evaluateJacobian(p, x, n);
+        cost = getCost(signal, x, n);
+        double mu = INITIAL_DAMPING;
+        int numUpdates = 0;
+        boolean updated = false;
+        numIterations = 0;
+        while (numIterations < maxIterations) {
+            numIterations++;
+            if (numIterations > 1) {
+                if (numUpdates < broydenRefreshInterval) {
+                    broydenUpdate(x, n);
+                    numUpdates++;
+                    updated = true;
+                } else {
+                    evaluateJacobian(p, x, n);
+                    numUpdates = 0;
+                    updated = false;
+                }
+            }
+            computeNormalEquations(n);
+
+            boolean accepted = false;
+            boolean converged = false;
+            for (int trial = 0; trial < MAX_TRIALS && !accepted; trial++) {
+                // damped normal equations (J^T J + mu diag(J^T J)) dp = J^T e
+                System.arraycopy(jtj, 0, a, 0, a.length);
+                for (int j = 0; j < NUM_PARAMETERS; j++) {
+                    final int jj = j * NUM_PARAMETERS + j;
+                    a[jj] += mu * jtj[jj] + MIN_DAMPING;
+                }
+                if (!choleskySolve(a, jte, dp)) {
+                    mu *= DAMPING_FACTOR;
+                    continue;
+                }
+                for (int j = 0; j < NUM_PARAMETERS; j++) {
+                    pTrial[j] = clip(p[j] + dp[j], lb[j], ub[j]);
+                }
+                evaluateSignal(pTrial, trialSignal);
+                final double trialCost = getCost(trialSignal, x, n);
+                if (trialCost < cost) {
+                    converged = cost - trialCost < threshold * cost + MIN_REDUCTION;
+                    System.arraycopy(p, 0, pPrevious, 0, NUM_PARAMETERS);
+                    System.arraycopy(pTrial, 0, p, 0, NUM_PARAMETERS);
+                    cost = trialCost;
+                    mu /= DAMPING_FACTOR;
+                    accepted = true;
+                } else if (updated) {
+                    // the updated Jacobian failed, retry with a fresh one
+                    evaluateJacobian(p, x, n);
+                    computeNormalEquations(n);
+                    numUpdates = 0;
+                    updated = false;
+                } else {
+                    mu *= DAMPING_FACTOR;
+                }
+            }
+            if (!accepted || converged) {
+                break;
+            }
+        }
+        System.arraycopy(p, 0, p0, 0, NUM_PARAMETERS);
+        return p0;
+    }
+
+    @Override
+    public double getCost() {
+        return cost;
+    }
+
+    @Override
+    public int getNumberOfIterations() {
+        return numIterations;
+    }
+
+    // the modelled signal and its Jacobian at p, the residuals e = x - f
+    private void evaluateJacobian(double[] p, double[] x, int n) {
+        if (analyticJacobian && jacobianModel != null) {
+            jacobianModel.getModeledSignal(p, signal, jacobian);
+        } else {
+            // forward differences, the step of 1 % is wide compared to the steps of the activation tables
+            evaluateSignal(p, signal);
+            System.arraycopy(p, 0, pTrial, 0, NUM_PARAMETERS);
+            for (int j = 0; j < NUM_PARAMETERS; j++) {
+                final double h = FD_STEP * Math.max(Math.abs(p[j]), 1.0);
+                pTrial[j] = p[j] + h;
+                evaluateSignal(pTrial, trialSignal);
+                pTrial[j] = p[j];
+                for (int i = 0; i < n; i++) {
+                    jacobian[i][j] = (trialSignal[i] - signal[i]) / h;
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            residuals[i] = x[i] - signal[i];
+        }
+    }
+
+    private void evaluateSignal(double[] p, double[] out) {
+        if (jacobianModel != null) {
+            jacobianModel.getModeledSignal(p, out);
+        } else {
+            System.arraycopy(forwardModel.getModeledSignal(p), 0, out, 0, out.length);
+        }
+    }
+
+    /**
+     * Broyden's rank-1 update of the Jacobian from the accepted step, J += (df - J dp) dp^T / (dp^T dp), replacing
+     * the signal by the signal at the new parameters. To be called after a step from pPrevious to p, with the new
+     * signal in trialSignal.
+     */
+    private void broydenUpdate(double[] x, int n) {
+        double dpNorm2 = 0.0;
+        for (int j = 0; j < NUM_PARAMETERS; j++) {
+            dp[j] = p[j] - pPrevious[j];
+            dpNorm2 += dp[j] * dp[j];
+        }
+        for (int i = 0; i < n; i++) {
+            final double[] row = jacobian[i];
+            double predicted = 0.0;
+            for (int j = 0; j < NUM_PARAMETERS; j++) {
+                predicted += row[j] * dp[j];
+            }
+            final double scale = (trialSignal[i] - signal[i] - predicted) / dpNorm2;
+            for (int j = 0; j < NUM_PARAMETERS; j++) {
+                row[j] += scale * dp[j];
+            }
+            signal[i] = trialSignal[i];
+            residuals[i] = x[i] - signal[i];
+        }
+    }
+
+    // J^T W J (full matrix) and J^T W e, unit weights leave the sums unchanged
+    private void computeNormalEquations(int n) {
+        for (int j = 0; j < NUM_PARAMETERS; j++) {
+            for (int k = 0; k <= j; k++) {
+                double sum = 0.0;
+                for (int i = 0; i < n; i++) {
+                    sum += weights[i] * (jacobian[i][j] * jacobian[i][k]);
+                }
+                jtj[j * NUM_PARAMETERS + k] = sum;
+                jtj[k * NUM_PARAMETERS + j] = sum;
+            }
+            double sum = 0.0;
+            for (int i = 0; i < n; i++) {
+                sum += weights[i] * (jacobian[i][j] * residuals[i]);
+            }
+            jte[j] = sum;
+        }
+    }
+
+    /**
+     * Solves a x = b for a symmetric positive definite matrix by Cholesky decomposition. The lower triangle of a is
+     * overwritten with the factor L.
+     *
+     * @param a the matrix, row-major NUM_PARAMETERS x NUM_PARAMETERS (overwritten)
+     * @param b the right-hand side
+     * @param x the solution (output)
+     * @return false if the matrix is not positive definite
+     */
+    static boolean choleskySolve(double[] a, double[] b, double[] x) {
+        final int m = NUM_PARAMETERS;
+        for (int j = 0; j < m; j++) {
+            double d = a[j * m + j];
+            for (int k = 0; k < j; k++) {
+                d -= a[j * m + k] * a[j * m + k];
+            }
+            if (!(d > 0.0)) {
+                return false;
+            }
+            d = Math.sqrt(d);
+            a[j * m + j] = d;
+            for (int i = j + 1; i < m; i++) {
+                double s = a[i * m + j];
+                for (int k = 0; k < j; k++) {
+                    s -= a[i * m + k] * a[j * m + k];
+                }
+                a[i * m + j] = s / d;
+            }
+        }
+        // L y = b, then L^T x = y
+        for (int i = 0; i < m; i++) {
+            double s = b[i];
+            for (int k = 0; k < i; k++) {
+                s -= a[i * m + k] * x[k];
+            }
+            x[i] = s / a[i * m + i];
+        }
+        for (int i = m - 1; i >= 0; i--) {
+            double s = x[i];
+            for (int k = i + 1; k < m; k++) {
+                s -= a[k * m + i] * x[k];
+            }
+            x[i] = s / a[i * m + i];
+        }
+        return true;
+    }
+
+    private double getCost(double[] signal, double[] x, int n) {
+        double cost = 0.0;
+        for (int i = 0; i < n; i++) {
+            final double e = signal[i] - x[i];
+            cost += weights[i] * (e * e);
+        }
+        return cost;
+    }
+
+    private static double[] getWeights(CostFunction costFunction, int numBands) throws ValidationException {
+        final double[] weights = new double[numBands];
+        if (costFunction == null) {
+            Arrays.fill(weights, 1.0);
+            return weights;
+        }
+        if (!(costFunction instanceof OcNnRdCostFunction)) {
+            throw new ValidationException(NAME + " does not support the cost function " + costFunction.getName());
+        }
+        final double[] costWeights = ((OcNnRdCostFunction) costFunction).getWeights();
+        if (costWeights == null || costWeights.length != numBands) {
+            throw new ValidationException(NAME + " needs one weight per signal band");
+        }
+        for (int i = 0; i < numBands; i++) {
+            if (!(costWeights[i] >= 0.0)) {
+                throw new ValidationException(NAME + " does not support negative weights");
+            }
+            weights[i] = costWeights[i];
+        }
+        return weights;
+    }
+
+    private static double clip(double value, double lower, double upper) {
+        return Math.min(Math.max(value, lower), upper);
+    }
+}
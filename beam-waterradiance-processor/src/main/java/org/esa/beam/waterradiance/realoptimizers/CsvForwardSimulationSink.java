@@ -0,0 +1,64 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes forward simulation results as comma separated values, one sample per line, preceded by a header line with
+ * the column names.
+ */
+public class CsvForwardSimulationSink implements ForwardSimulationSink {
+
+    private static final String[] QUANTITY_NAMES = {"rtosa", "rpath", "tdown", "tup"};
+
+    private final Writer writer;
+    private final StringBuilder line;
+
+    /**
+     * @param writer the writer the values are written to, closed with the sink
+     */
+    public CsvForwardSimulationSink(Writer writer) {
+        this.writer = writer;
+        line = new StringBuilder();
+    }
+
+    @Override
+    public void start(int numBands) throws IOException {
+        line.setLength(0);
+        for (String name : ForwardSampleSpace.VARIABLE_NAMES) {
+            line.append(name).append(',');
+        }
+        for (String quantity : QUANTITY_NAMES) {
+            for (int band = 0; band < numBands; band++) {
+                line.append(quantity).append('_').append(band).append(',');
+            }
+        }
+        line.setCharAt(line.length() - 1, '\n');
+        writer.write(line.toString());
+    }
+
+    @Override
+    public void write(double[] geometry, double[] parameters, double[] rtosa, double[] rpath, double[] tdown,
+                      double[] tup) throws IOException {
+        line.setLength(0);
+        append(geometry);
+        append(parameters);
+        append(rtosa);
+        append(rpath);
+        append(tdown);
+        append(tup);
+        line.setCharAt(line.length() - 1, '\n');
+        writer.write(line.toString());
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private void append(double[] values) {
+        for (double value : values) {
+            line.append(value).append(',');
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+/**
+ * Estimates the start parameters of the LM fit of a pixel, instead of the constant p_init. A close first guess
+ * saves iterations.
+ */
+interface FirstGuess {
+
+    /**
+     * @param nn_data the geometry, temperature and salinity of the pixel
+     * @param rtosa   the TOSA reflectances of the fitted bands
+     * @param lb      the lower bounds of the parameters
+     * @param ub      the upper bounds of the parameters
+     * @param p       the estimated parameters, within the bounds (output), unchanged if no estimate is possible
+     * @return false if no estimate is possible, e.g. for non-positive reflectances
+     */
+    boolean estimate(s_nn_atdata nn_data, double[] rtosa, double[] lb, double[] ub, double[] p);
+}
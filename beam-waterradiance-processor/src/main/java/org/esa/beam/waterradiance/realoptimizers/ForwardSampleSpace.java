@@ -0,0 +1,160 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import java.util.Random;
+
+/**
+ * The ranges of the thirteen input variables of the forward model, from which regular grids or random samples are
+ * drawn. A variable whose minimum equals its maximum is held fixed. By default the geometry and conditions are fixed
+ * to a typical pixel and the parameters to the start parameters of the LM fit.
+ */
+public class ForwardSampleSpace {
+
+    public static final int NUM_GEOMETRY_VARIABLES = 5;
+    public static final int NUM_PARAMETERS = 8;
+    public static final int NUM_VARIABLES = NUM_GEOMETRY_VARIABLES + NUM_PARAMETERS;
+
+    public static final String[] VARIABLE_NAMES = {
+            "sun_zeni", "view_zeni", "azi_diff", "temperature", "salinity",
+            "log_aot", "log_ang", "log_wind", "log_apig", "log_apart", "log_agelb", "log_bpart", "log_bwit"
+    };
+
+    private static final double[] DEFAULT_GEOMETRY = {30.0, 20.0, 90.0, 15.0, 35.0};
+
+    private final double[] min;
+    private final double[] max;
+
+    public ForwardSampleSpace() {
+        min = new double[NUM_VARIABLES];
+        max = new double[NUM_VARIABLES];
+        for (int i = 0; i < NUM_GEOMETRY_VARIABLES; i++) {
+            setValue(i, DEFAULT_GEOMETRY[i]);
+        }
+        for (int i = 0; i < NUM_PARAMETERS; i++) {
+            setValue(NUM_GEOMETRY_VARIABLES + i, LevMarNN.P_INIT[i]);
+        }
+    }
+
+    /**
+     * @param name the name of a variable, see {@link #VARIABLE_NAMES}
+     * @return the index of the variable
+     * @throws IllegalArgumentException if there is no variable of this name
+     */
+    public static int getVariableIndex(String name) {
+        for (int i = 0; i < VARIABLE_NAMES.length; i++) {
+            if (VARIABLE_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown variable: " + name);
+    }
+
+    /**
+     * Sets the range of a parameter to the bounds of the LM fit.
+     *
+     * @param parameter the index of the parameter, 0 to 7
+     */
+    public void setParameterBounds(int parameter) {
+        setRange(NUM_GEOMETRY_VARIABLES + parameter, LevMarNN.LOWER_BOUNDS[parameter], LevMarNN.UPPER_BOUNDS[parameter]);
+    }
+
+    public void setValue(int variable, double value) {
+        setRange(variable, value, value);
+    }
+
+    public void setRange(int variable, double min, double max) {
+        if (min > max) {
+            throw new IllegalArgumentException("Invalid range of " + VARIABLE_NAMES[variable] + ": " + min + " > " + max);
+        }
+        this.min[variable] = min;
+        this.max[variable] = max;
+    }
+
+    public double getMin(int variable) {
+        return min[variable];
+    }
+
+    public double getMax(int variable) {
+        return max[variable];
+    }
+
+    /**
+     * Creates the samples of a regular grid, the last variable varying fastest.
+     *
+     * @param size the number of nodes per variable, variables with a fixed value have a single node
+     * @return the grid samples
+     */
+    public ForwardSamples createGrid(int[] size) {
+        if (size.length != NUM_VARIABLES) {
+            throw new IllegalArgumentException("Grid size of " + NUM_VARIABLES + " variables expected");
+        }
+        final double[] gridMin = min.clone();
+        final double[] gridStep = new double[NUM_VARIABLES];
+        final int[] gridSize = new int[NUM_VARIABLES];
+        for (int i = 0; i < NUM_VARIABLES; i++) {
+            gridSize[i] = min[i] == max[i] ? 1 : size[i];
+            if (gridSize[i] < 1) {
+                throw new IllegalArgumentException("Invalid grid size of " + VARIABLE_NAMES[i] + ": " + size[i]);
+            }
+            gridStep[i] = gridSize[i] > 1 ? (max[i] - min[i]) / (gridSize[i] - 1) : 0.0;
+        }
+        return new ForwardSamples() {
+            private final int[] index = new int[NUM_VARIABLES];
+            private boolean done = false;
+
+            @Override
+            public boolean next(double[] geometry, double[] parameters) {
+                if (done) {
+                    return false;
+                }
+                for (int i = 0; i < NUM_VARIABLES; i++) {
+                    setVariable(i, gridMin[i] + index[i] * gridStep[i], geometry, parameters);
+                }
+                // advance the index, the last variable fastest
+                int i = NUM_VARIABLES - 1;
+                while (i >= 0 && ++index[i] == gridSize[i]) {
+                    index[i] = 0;
+                    i--;
+                }
+                done = i < 0;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Creates uniformly distributed random samples.
+     *
+     * @param numSamples the number of samples
+     * @param seed       the seed of the random numbers
+     * @return the random samples
+     */
+    public ForwardSamples createRandom(final long numSamples, long seed) {
+        final double[] sampleMin = min.clone();
+        final double[] sampleMax = max.clone();
+        final Random random = new Random(seed);
+        return new ForwardSamples() {
+            private long count = 0;
+
+            @Override
+            public boolean next(double[] geometry, double[] parameters) {
+                if (count == numSamples) {
+                    return false;
+                }
+                for (int i = 0; i < NUM_VARIABLES; i++) {
+                    final double value = sampleMin[i] + (sampleMax[i] - sampleMin[i]) * random.nextDouble();
+                    setVariable(i, value, geometry, parameters);
+                }
+                count++;
+                return true;
+            }
+        };
+    }
+
+    private static void setVariable(int variable, double value, double[] geometry, double[] parameters) {
+        if (variable < NUM_GEOMETRY_VARIABLES) {
+            geometry[variable] = value;
+        } else {
+            parameters[variable - NUM_GEOMETRY_VARIABLES] = value;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+/**
+ * A sequence of input samples of the forward model, each consisting of the pixel geometry and conditions and the
+ * eight (log-transformed) model parameters. Only accessed by a single thread.
+ *
+ * @see ForwardSampleSpace
+ */
+public interface ForwardSamples {
+
+    /**
+     * Retrieves the next sample.
+     *
+     * @param geometry   sun zenith, view zenith, azimuth difference [deg], temperature [degC] and salinity [PSU]
+     *                   (output)
+     * @param parameters log aot, log angstrom, log wind, log a_pig, log a_part, log a_gelb, log b_part, log b_wit
+     *                   (output)
+     * @return false if there are no more samples, the arrays are not modified then
+     */
+    boolean next(double[] geometry, double[] parameters);
+}
@@ -0,0 +1,34 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import java.io.IOException;
+
+/**
+ * Receives the results of a {@link ForwardSimulator} in the order of the samples. Only called by a single thread.
+ */
+public interface ForwardSimulationSink {
+
+    /**
+     * Called once before the first result.
+     *
+     * @param numBands the number of spectral bands of the results
+     */
+    void start(int numBands) throws IOException;
+
+    /**
+     * Receives the result of one sample.
+     *
+     * @param geometry   sun zenith, view zenith, azimuth difference, temperature and salinity
+     * @param parameters the eight log-transformed model parameters
+     * @param rtosa      the modelled TOSA reflectances
+     * @param rpath      the path reflectances
+     * @param tdown      the downward transmittances
+     * @param tup        the upward transmittances
+     */
+    void write(double[] geometry, double[] parameters, double[] rtosa, double[] rpath, double[] tdown,
+               double[] tup) throws IOException;
+
+    /**
+     * Called once after the last result, flushes and releases the sink.
+     */
+    void close() throws IOException;
+}
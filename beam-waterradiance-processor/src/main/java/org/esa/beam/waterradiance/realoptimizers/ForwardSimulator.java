@@ -0,0 +1,290 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.esa.beam.ocnnrd.SensorContext;
+import org.esa.beam.ocnnrd.SensorContextFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Multi-threaded batch evaluation of the forward model: the atmosphere nets and the water net of all 29 net bands,
+ * as used for the final spectra of {@link LevMarNN}. For each input sample the modelled TOSA reflectances, path
+ * reflectances and transmittances are computed and handed to a sink.
+ * <p/>
+ * The samples are processed in chunks. The chunk is split among the threads, each thread has its own workspace
+ * sharing the read-only nets. The results of a chunk are written while the next chunk is computed, in the order
+ * of the samples, so the output does not depend on the number of threads.
+ * <p/>
+ * Usage (command line):
+ * <pre>
+ *     ForwardSimulator &lt;product type&gt; &lt;output file&gt; [-random &lt;count&gt;] [-seed &lt;seed&gt;]
+ *                      [-threads &lt;n&gt;] [-format csv|binary] [&lt;variable&gt;=&lt;range&gt; ...]
+ * </pre>
+ * A range is a fixed value, &lt;min&gt;:&lt;max&gt;[:&lt;n&gt;] or, for the parameters, bounds[:&lt;n&gt;] for the bounds
+ * of the LM fit. The number of grid nodes n defaults to 10 and is ignored for random samples. The variables are
+ * listed in {@link ForwardSampleSpace#VARIABLE_NAMES}, all not given are fixed to their defaults.
+ */
+public class ForwardSimulator {
+
+    public static final int NUM_BANDS = 29;
+
+    private static final int CHUNK_SIZE = 4096;
+    private static final int DEFAULT_GRID_SIZE = 10;
+
+    private final Workspace[] workspaces;
+
+    /**
+     * @param sensorContext the sensor, defining the nets
+     * @param config        the evaluation settings of the nets
+     * @param numThreads    the number of threads
+     * @throws IOException on failures loading the nets
+     */
+    public ForwardSimulator(SensorContext sensorContext, LevMarNNConfig config, int numThreads) throws IOException {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads: " + numThreads);
+        }
+        final Sigmoid alphaTab;
+        if (config.isInterpolatedActivation()) {
+            alphaTab = NnModelRegistry.getInterpolatedSigmoid();
+        } else {
+            alphaTab = NnModelRegistry.getAlphaTab(config.isSinglePrecision());
+        }
+        workspaces = new Workspace[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            workspaces[i] = new Workspace(new NnAtmoWat(alphaTab, sensorContext, config));
+        }
+    }
+
+    /**
+     * Simulates all samples and writes the results to the sink. The sink is started, but not closed.
+     *
+     * @param samples the input samples
+     * @param sink    the sink receiving the results
+     * @return the number of samples simulated
+     * @throws IOException on failures writing the results or if the simulation failed
+     */
+    public long simulate(ForwardSamples samples, ForwardSimulationSink sink) throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(workspaces.length);
+        try {
+            sink.start(NUM_BANDS);
+            Chunk current = new Chunk();
+            Chunk next = new Chunk();
+            current.fill(samples);
+            List<Future<Object>> futures = submit(executor, current);
+            long count = 0;
+            while (current.size > 0) {
+                await(futures);
+                // compute the next chunk while writing the current one
+                next.fill(samples);
+                futures = submit(executor, next);
+                current.write(sink);
+                count += current.size;
+
+                final Chunk written = current;
+                current = next;
+                next = written;
+            }
+            return count;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<Future<Object>> submit(ExecutorService executor, final Chunk chunk) {
+        final List<Future<Object>> futures = new ArrayList<Future<Object>>(workspaces.length);
+        final int numThreads = workspaces.length;
+        for (int t = 0; t < numThreads; t++) {
+            final Workspace workspace = workspaces[t];
+            final int start = (int) ((long) chunk.size * t / numThreads);
+            final int end = (int) ((long) chunk.size * (t + 1) / numThreads);
+            if (start == end) {
+                continue;
+            }
+            futures.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    for (int i = start; i < end; i++) {
+                        workspace.simulate(chunk, i);
+                    }
+                    return null;
+                }
+            }));
+        }
+        return futures;
+    }
+
+    private static void await(List<Future<Object>> futures) throws IOException {
+        try {
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Forward simulation interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Forward simulation failed", e.getCause());
+        }
+    }
+
+    /**
+     * Runs a forward simulation, see the class documentation for the arguments.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            printUsage();
+            return;
+        }
+        final SensorContext sensorContext = SensorContextFactory.fromTypeString(args[0]);
+        final String outputPath = args[1];
+        final ForwardSampleSpace sampleSpace = new ForwardSampleSpace();
+        final int[] size = new int[ForwardSampleSpace.NUM_VARIABLES];
+        long numRandomSamples = -1;
+        long seed = 42L;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        String format = "csv";
+        for (int i = 2; i < args.length; i++) {
+            final String arg = args[i];
+            if ("-random".equals(arg) && i + 1 < args.length) {
+                numRandomSamples = Long.parseLong(args[++i]);
+            } else if ("-seed".equals(arg) && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else if ("-threads".equals(arg) && i + 1 < args.length) {
+                numThreads = Integer.parseInt(args[++i]);
+            } else if ("-format".equals(arg) && i + 1 < args.length) {
+                format = args[++i];
+            } else if (arg.indexOf('=') > 0) {
+                final int variable = ForwardSampleSpace.getVariableIndex(arg.substring(0, arg.indexOf('=')));
+                size[variable] = parseRange(sampleSpace, variable, arg.substring(arg.indexOf('=') + 1));
+            } else {
+                printUsage();
+                return;
+            }
+        }
+
+        final ForwardSamples samples;
+        if (numRandomSamples >= 0) {
+            samples = sampleSpace.createRandom(numRandomSamples, seed);
+        } else {
+            for (int i = 0; i < size.length; i++) {
+                if (size[i] == 0) {
+                    size[i] = 1;
+                }
+            }
+            samples = sampleSpace.createGrid(size);
+        }
+        final ForwardSimulationSink sink;
+        if ("binary".equals(format)) {
+            sink = new BinaryForwardSimulationSink(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputPath))));
+        } else if ("csv".equals(format)) {
+            sink = new CsvForwardSimulationSink(new BufferedWriter(new FileWriter(outputPath)));
+        } else {
+            printUsage();
+            return;
+        }
+
+        final ForwardSimulator simulator = new ForwardSimulator(sensorContext, new LevMarNNConfig(), numThreads);
+        final long start = System.nanoTime();
+        final long count;
+        try {
+            count = simulator.simulate(samples, sink);
+        } finally {
+            sink.close();
+        }
+        final double seconds = (System.nanoTime() - start) * 1.0e-9;
+        System.out.printf("%d samples in %.1f s (%.0f samples/s, %d threads)%n", count, seconds, count / seconds, numThreads);
+    }
+
+    // sets the range of a variable, returns the number of grid nodes
+    private static int parseRange(ForwardSampleSpace sampleSpace, int variable, String range) {
+        final String[] tokens = range.split(":");
+        if ("bounds".equals(tokens[0]) && variable >= ForwardSampleSpace.NUM_GEOMETRY_VARIABLES) {
+            sampleSpace.setParameterBounds(variable - ForwardSampleSpace.NUM_GEOMETRY_VARIABLES);
+            return tokens.length > 1 ? Integer.parseInt(tokens[1]) : DEFAULT_GRID_SIZE;
+        }
+        if (tokens.length == 1) {
+            sampleSpace.setValue(variable, Double.parseDouble(tokens[0]));
+            return 1;
+        }
+        sampleSpace.setRange(variable, Double.parseDouble(tokens[0]), Double.parseDouble(tokens[1]));
+        return tokens.length > 2 ? Integer.parseInt(tokens[2]) : DEFAULT_GRID_SIZE;
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: ForwardSimulator <product type> <output file> [-random <count>] [-seed <seed>] " +
+                           "[-threads <n>] [-format csv|binary] [<variable>=<value>|<min>:<max>[:<n>]|bounds[:<n>] ...]");
+        final StringBuilder variables = new StringBuilder("Variables:");
+        for (String name : ForwardSampleSpace.VARIABLE_NAMES) {
+            variables.append(' ').append(name);
+        }
+        System.out.println(variables);
+    }
+
+    // the inputs and results of a chunk of samples
+    private static class Chunk {
+
+        private final double[][] geometry = new double[CHUNK_SIZE][ForwardSampleSpace.NUM_GEOMETRY_VARIABLES];
+        private final double[][] parameters = new double[CHUNK_SIZE][ForwardSampleSpace.NUM_PARAMETERS];
+        private final double[][] rtosa = new double[CHUNK_SIZE][NUM_BANDS];
+        private final double[][] rpath = new double[CHUNK_SIZE][NUM_BANDS];
+        private final double[][] tdown = new double[CHUNK_SIZE][NUM_BANDS];
+        private final double[][] tup = new double[CHUNK_SIZE][NUM_BANDS];
+        private int size;
+
+        void fill(ForwardSamples samples) {
+            size = 0;
+            while (size < CHUNK_SIZE && samples.next(geometry[size], parameters[size])) {
+                size++;
+            }
+        }
+
+        void write(ForwardSimulationSink sink) throws IOException {
+            for (int i = 0; i < size; i++) {
+                sink.write(geometry[i], parameters[i], rtosa[i], rpath[i], tdown[i], tup[i]);
+            }
+        }
+    }
+
+    // the forward model of one thread
+    private static class Workspace {
+
+        private final NnAtmoWat nnAtmoWat;
+        private final s_nn_atdata nn_data;
+        private final double[] rtosa_nn;
+        private NNReturnData nnReturnData;
+
+        Workspace(NnAtmoWat nnAtmoWat) {
+            this.nnAtmoWat = nnAtmoWat;
+            nn_data = new s_nn_atdata();
+            nn_data.prepare = -1;
+            rtosa_nn = new double[NUM_BANDS];
+            nnReturnData = new NNReturnData();
+        }
+
+        void simulate(Chunk chunk, int i) {
+            final double[] geometry = chunk.geometry[i];
+            nn_data.setSun_thet(geometry[0]);
+            nn_data.setView_zeni(geometry[1]);
+            nn_data.azi_diff_hl = geometry[2];
+            nn_data.setTemperature(geometry[3]);
+            nn_data.setSalinity(geometry[4]);
+
+            nnReturnData = nnAtmoWat.nn_atmo_wat(chunk.parameters[i], rtosa_nn, nn_data, nnReturnData);
+            final s_nn_atdata result = nnReturnData.getNn_atdata();
+            System.arraycopy(nnReturnData.getOutputValues(), 0, chunk.rtosa[i], 0, NUM_BANDS);
+            System.arraycopy(result.rpath_nn, 0, chunk.rpath[i], 0, NUM_BANDS);
+            System.arraycopy(result.tdown_nn, 0, chunk.tdown[i], 0, NUM_BANDS);
+            System.arraycopy(result.tup_nn, 0, chunk.tup[i], 0, NUM_BANDS);
+        }
+    }
+}
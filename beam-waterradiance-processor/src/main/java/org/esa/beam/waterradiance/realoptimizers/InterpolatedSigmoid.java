@@ -0,0 +1,61 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+/**
+ * Compact variant of the activation table: 1025 float nodes of the sigmoid over [-10, 10] (about 4 KB, so the
+ * table stays in the L1 cache), linearly interpolated between the nodes. The maximum deviation from the exact
+ * sigmoid inside the table range is below 5e-6, which is smaller than the quantisation error of the large
+ * nearest-index table. Outside the range the value saturates at the outermost node, as in the large table.
+ */
+final class InterpolatedSigmoid implements Sigmoid {
+
+    private static final double ALPHA_ANF = -10.0;
+    private static final int N_NODES = 1025;
+
+    private final float[] nodes;
+    private final double rec_delta;
+    private final float rec_delta_f;
+
+    InterpolatedSigmoid() {
+        final double delta = -2. * ALPHA_ANF / (N_NODES - 1);
+        nodes = new float[N_NODES + 1];
+        for (int i = 0; i < N_NODES; i++) {
+            nodes[i] = (float) AlphaTab.calpha(ALPHA_ANF + i * delta);
+        }
+        // duplicate the last node so that the upper end needs no special treatment
+        nodes[N_NODES] = nodes[N_NODES - 1];
+        rec_delta = 1. / delta;
+        rec_delta_f = (float) rec_delta;
+    }
+
+    double getRecDelta() {
+        return rec_delta;
+    }
+
+    public boolean isSinglePrecision() {
+        return true;
+    }
+
+    public double get(double x) {
+        double t = (x - ALPHA_ANF) * rec_delta;
+        if (t < 0.0) {
+            t = 0.0;
+        } else if (t > N_NODES - 1) {
+            t = N_NODES - 1;
+        }
+        final int ind = (int) t;
+        final double lower = nodes[ind];
+        return lower + (t - ind) * (nodes[ind + 1] - lower);
+    }
+
+    public float get(float x) {
+        float t = (x - (float) ALPHA_ANF) * rec_delta_f;
+        if (t < 0.f) {
+            t = 0.f;
+        } else if (t > N_NODES - 1) {
+            t = N_NODES - 1;
+        }
+        final int ind = (int) t;
+        final float lower = nodes[ind];
+        return lower + (t - ind) * (nodes[ind + 1] - lower);
+    }
+}
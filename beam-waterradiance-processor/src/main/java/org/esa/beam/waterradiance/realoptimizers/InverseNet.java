@@ -0,0 +1,65 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import java.io.IOException;
+
+/**
+ * Direct inverse model: a neural net mapping the geometry and the TOSA reflectances of the fitted bands to the eight
+ * log-transformed parameters of the forward model, in the order of the LM parameter vector (aot, ang, wind, apig,
+ * apart, agelb, bpart, bwit). Serves as retrieval of its own or as first guess of the LM fit.
+ * <p/>
+ * The net has 5 + n inputs: sun zenith, view zenith, azimuth difference (all in degrees), temperature, salinity and
+ * the logarithms of the TOSA reflectances of the n fitted bands.
+ */
+class InverseNet implements FirstGuess {
+
+    private static final int NUM_GEOMETRY_INPUTS = 5;
+    private static final int NUM_PARAMETERS = 8;
+
+    private final a_nn net;
+    private final Sigmoid alphaTab;
+    private final double[] nn_in;
+    private double[] nn_out;
+
+    /**
+     * @param path     the path to the net file
+     * @param numBands the number of fitted bands
+     * @param config   the evaluation settings
+     * @param alphaTab the activation function table
+     * @throws IOException on failures reading the net, or if the net does not match the number of bands
+     */
+    InverseNet(String path, int numBands, LevMarNNConfig config, Sigmoid alphaTab) throws IOException {
+        net = NnModelRegistry.getNet(path, config);
+        if (net.getNnin() != NUM_GEOMETRY_INPUTS + numBands || net.getNnout() != NUM_PARAMETERS) {
+            throw new IOException("The inverse net " + path + " must have " + (NUM_GEOMETRY_INPUTS + numBands) +
+                                  " inputs and " + NUM_PARAMETERS + " outputs");
+        }
+        this.alphaTab = alphaTab;
+        nn_in = new double[NUM_GEOMETRY_INPUTS + numBands];
+        nn_out = new double[NUM_PARAMETERS];
+    }
+
+    @Override
+    public boolean estimate(s_nn_atdata nn_data, double[] rtosa, double[] lb, double[] ub, double[] p) {
+        for (double r : rtosa) {
+            // also rejects NaN
+            if (!(r > 0.0)) {
+                return false;
+            }
+        }
+        nn_in[0] = nn_data.getSun_thet();
+        nn_in[1] = nn_data.getView_zeni();
+        nn_in[2] = nn_data.getAzi_diff_hl();
+        nn_in[3] = nn_data.getTemperature();
+        nn_in[4] = nn_data.getSalinity();
+        for (int i = 0; i < rtosa.length; i++) {
+            nn_in[NUM_GEOMETRY_INPUTS + i] = Math.log(rtosa[i]);
+        }
+
+        nn_out = LevMarNN.use_the_nn(net, nn_in, nn_out, alphaTab);
+
+        for (int i = 0; i < NUM_PARAMETERS; i++) {
+            p[i] = Math.min(Math.max(nn_out[i], lb[i]), ub[i]);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,25 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+/**
+ * Implemented by forward models which provide analytic derivatives of the modelled signal, so that optimizers
+ * need not approximate the Jacobian by finite differences.
+ */
+interface JacobianModel {
+
+    /**
+     * Computes the modelled signal without allocating an output array.
+     *
+     * @param variables the variables
+     * @param signal    the modelled signal (output)
+     */
+    void getModeledSignal(double[] variables, double[] signal);
+
+    /**
+     * Computes the modelled signal and its partial derivatives with respect to the variables.
+     *
+     * @param variables the variables
+     * @param signal    the modelled signal (output)
+     * @param jacobian  the derivatives [signal band][variable] (output)
+     */
+    void getModeledSignal(double[] variables, double[] signal, double[][] jacobian);
+}
@@ -10,23 +10,19 @@ import com.bc.siocs.core.registry.StopCriteriaRegistry;
 import com.bc.siocs.core.support.ForwardModelAdapter;
 import org.esa.beam.ocnnrd.Sensor;
 import org.esa.beam.ocnnrd.SensorContext;
+import org.esa.beam.util.logging.BeamLogManager;
 
 import java.io.*;
 import java.util.Arrays;
 
 public class LevMarNN {
 
-    private static final int FR_TAB = 3700;
-    private static final int RR_TAB = 925;
-
     private static final double DEG_2_RAD = (3.1415927 / 180.0);
     private final CostFunction costFunction;
     private final SensorContext sensorContext;
 
-    private double[][] frlam = new double[FR_TAB][15];
-    private double[][] fredtoa = new double[FR_TAB][15];
-    private double[][] rrlam = new double[FR_TAB][15];
-    private double[][] rredtoa = new double[FR_TAB][15];
+    private final double[][] rrlam;
+    private final double[][] rredtoa;
 
     private static final int NLAM = 40;
 
@@ -38,6 +34,43 @@ public class LevMarNN {
     private static final int[] MERBAND_12_INDEX = new int[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 11, 12};
     private static final int[] MERIS_11_OUTOF_12_IX = new int[]{0, 1, 2, 3, 4, 5, 6, 8, 9, 10, 11};
 
+    // lower and upper boundary for variables aot, ang, wind, log_conc_chl, log_conc_det, log_conc_gelb, log_conc_min
+    // lb = new double[]{0.001, 0.001, 0.001, -13.96, -15.42, -16.38, -15.87, 0.0};
+    static final double[] LOWER_BOUNDS = {
+            -4.6,   // aot
+            -3.8,   // ang
+            -2.3,   // wind
+            -19.9,  // apig
+            -15.89, // apart
+            -17.23, // agelb
+            -15.8,  // bpart
+            -14.92  // bwit
+    };
+
+    //ub = new double[]{1.0, 2.2, 10.0, 3.9, 2.294, 1.599, 4.594, 1.1};
+    // start parameters of the LM fit
+    static final double[] P_INIT = {
+            Math.log(0.1),   // tau550
+            Math.log(1.0),   // ang
+            Math.log(3.0),   // wind
+            Math.log(0.005), // apig
+            Math.log(0.005), // adet
+            Math.log(0.005), // agelb
+            Math.log(0.01),  // bspm
+            Math.log(0.01)   // bwit
+    };
+
+    static final double[] UPPER_BOUNDS = {
+            0.0,   // aot
+            0.788, // ang
+            2.3,   // wind
+            0.685, // apig
+            2.297, // apart
+            1.6,   // agelb
+            4.598, // bpart
+            4.599  // bwit
+    };
+
 //    private static final double[] modisReflectanceScales = {1.7005885E-5f, 9.557186E-6f, 6.1540863E-6f, 4.824122E-6f,
 //            3.8021312E-6f, 2.2562692E-6f, 2.3084365E-6f, 2.1856329E-6f, 1.9265376E-6f};
 //    private static final double[] modisReflectanceOffsets = {316.9722f, 316.9722f, 316.9722f, 316.9722f, 316.9722f,
@@ -61,7 +94,7 @@ public class LevMarNN {
     private final double[] rl_toa;
 
     private double[] x;
-    private final AlphaTab alphaTab;
+    private final Sigmoid alphaTab;
     private final double[] lb;
     private final double[] ub;
     private final StopCriterion breakingCriterion;
@@ -94,9 +127,31 @@ public class LevMarNN {
     private s_nn_atdata nn_at_data;
     private a_nn norm_net;
     private double[] x11;
+    private final InverseNet inverseNet;
+    private final FirstGuess firstGuess;
+    private final double inverseResidualThreshold;
+    private final boolean inverseRefinement;
+    private final NnAtmoWatBatch batchModel;
+    private final BatchedLevenbergMarquardt batchOptimizer;
+    private final double[][] batch_p;
+    private final double[][] batch_x;
+    // the results of preparePixel needed by writeOutput, per lane
+    private final double[][] batch_rho_tosa_corr;
+    private final double[][] batch_x_all;
+    private final double[][] batch_geometry;
 
 
     public LevMarNN(SensorContext sensorContext) throws IOException {
+        this(sensorContext, new LevMarNNConfig());
+    }
+
+    /**
+     * @param sensorContext the sensor context
+     * @param config        the optional evaluation settings
+     * @throws IOException on failures reading the auxiliary data
+     */
+    public LevMarNN(SensorContext sensorContext, LevMarNNConfig config) throws IOException {
+        final boolean singlePrecision = config.isSinglePrecision();
         x = new double[NLAM];
         trans_ozon = new double[NLAM];
         solar_flux = new double[NLAM];
@@ -133,30 +188,8 @@ public class LevMarNN {
         trans_ozond = new double[15];
         trans_ozonu = new double[15];
 
-        // lower and upper boundary for variables aot, ang, wind, log_conc_chl, log_conc_det, log_conc_gelb, log_conc_min
-        // lb = new double[]{0.001, 0.001, 0.001, -13.96, -15.42, -16.38, -15.87, 0.0};
-        lb = new double[]{
-                -4.6,   // aot
-                -3.8,   // ang
-                -2.3,   // wind
-                -19.9,  // apig
-                -15.89, // apart
-                -17.23, // agelb
-                -15.8,  // bpart
-                -14.92  // bwit
-        };
-
-        //ub = new double[]{1.0, 2.2, 10.0, 3.9, 2.294, 1.599, 4.594, 1.1};
-        ub = new double[]{
-                0.0,   // aot
-                0.788, // ang
-                2.3,   // wind
-                0.685, // apig
-                2.297, // apart
-                1.6,   // agelb
-                4.598, // bpart
-                4.599  // bwit
-        };
+        lb = LOWER_BOUNDS.clone();
+        ub = UPPER_BOUNDS.clone();
         p = new double[8];
         for (int i = 0; i < p.length; i++) {
             if (lb[i] < 0.0)
@@ -164,15 +197,7 @@ public class LevMarNN {
             else
                 p[i] = lb[i] + lb[i] * 0.2;
         }
-        p_init = new double[8];
-        p_init[0] = Math.log(0.1);   // tau550
-        p_init[1] = Math.log(1.0);   // ang
-        p_init[2] = Math.log(3.0);   // wind
-        p_init[3] = Math.log(0.005); // apig
-        p_init[4] = Math.log(0.005); // adet
-        p_init[5] = Math.log(0.005); // agelb
-        p_init[6] = Math.log(0.01);  // bspm
-        p_init[7] = Math.log(0.01);  // bwit
+        p_init = P_INIT.clone();
 
         this.sensorContext = sensorContext;
 
@@ -185,11 +210,17 @@ public class LevMarNN {
         }
 
         nnResources = new NnResources();
-        alphaTab = new AlphaTab();
+        if (config.isInterpolatedActivation()) {
+            alphaTab = NnModelRegistry.getInterpolatedSigmoid();
+        } else {
+            alphaTab = NnModelRegistry.getAlphaTab(singlePrecision);
+        }
 
-        norm_net = prepare_a_nn(nnResources.getNormNetPath());
+        norm_net = NnModelRegistry.getNet(nnResources.getNormNetPath(), config);
 
-        smile_tab_ini();
+        final SmileTables smileTables = NnModelRegistry.getSmileTables(nnResources);
+        rrlam = smileTables.getRrLam();
+        rredtoa = smileTables.getRrEdToa();
         model = new nn_atmo_watForwardModel();
         breakingCriterion = StopCriteriaRegistry.getInstance().get("Default");
         final PropertySet breakingCriterionConfig = breakingCriterion.getConfig();
@@ -199,7 +230,7 @@ public class LevMarNN {
         final double[] weights = new double[x11.length];
         Arrays.fill(weights, 1.0);
         costFunction = new OcNnRdCostFunction(weights);
-        optimizer = OptimizerRegistry.getInstance().get("LevenbergMarquardt");
+        optimizer = createOptimizer(config);
         final PropertySet optimizerConfig = optimizer.getConfig();
         optimizerConfig.setValue("lowerBounds", lb);
         optimizerConfig.setValue("upperBounds", ub);
@@ -210,9 +241,115 @@ public class LevMarNN {
             e.printStackTrace();
         }
 
-        nnAtmoWat = new NnAtmoWat(alphaTab, sensorContext);
+        nnAtmoWat = new NnAtmoWat(alphaTab, sensorContext, config);
         nn_at_data = new s_nn_atdata();
         nn_at_data.prepare = -1;
+
+        final String inverseNetPath = config.getInverseNetPath();
+        inverseNet = inverseNetPath == null ? null : new InverseNet(inverseNetPath, x11.length, config, alphaTab);
+        inverseResidualThreshold = config.getInverseResidualThreshold();
+        inverseRefinement = config.isInverseRefinement();
+        firstGuess = createFirstGuess(config, x11.length, alphaTab);
+
+        final int batchSize = config.getBatchSize();
+        if (batchSize > 0) {
+            checkBatchConfig(config);
+            final Integer maxIterations = breakingCriterionConfig.getValue("maximumNumberOfIterations");
+            final Double threshold = breakingCriterionConfig.getValue("threshold");
+            batchModel = new NnAtmoWatBatch(alphaTab, sensorContext, config, batchSize);
+            batchOptimizer = new BatchedLevenbergMarquardt(batchModel, batchSize, maxIterations, threshold);
+            batch_p = new double[p.length][batchSize];
+            batch_x = new double[x11.length][batchSize];
+            batch_rho_tosa_corr = new double[batchSize][rho_tosa_corr.length];
+            batch_x_all = new double[batchSize][x.length];
+            batch_geometry = new double[batchSize][6];
+        } else {
+            batchModel = null;
+            batchOptimizer = null;
+            batch_p = null;
+            batch_x = null;
+            batch_rho_tosa_corr = null;
+            batch_x_all = null;
+            batch_geometry = null;
+        }
+    }
+
+    // the batch reproduces the bounded LM with forward difference Jacobians and the atmosphere nets in double precision
+    private static void checkBatchConfig(LevMarNNConfig config) {
+        if (!BoundedLevenbergMarquardt.NAME.equals(config.getOptimizerName())) {
+            throw new IllegalArgumentException("The batched LM needs the optimizer " + BoundedLevenbergMarquardt.NAME +
+                                               ": " + config.getOptimizerName());
+        }
+        if (config.isAnalyticJacobian() || config.getBroydenRefreshInterval() > 0) {
+            throw new IllegalArgumentException("The batched LM supports forward difference Jacobians only");
+        }
+        if (config.isSinglePrecision()) {
+            throw new IllegalArgumentException("The batched LM supports double precision only");
+        }
+        if (config.getAtmosphereLutPath() != null) {
+            throw new IllegalArgumentException("The batched LM does not support the atmosphere LUT");
+        }
+    }
+
+    private static Optimizer createOptimizer(LevMarNNConfig config) {
+        final String name = config.getOptimizerName();
+        if (BoundedLevenbergMarquardt.NAME.equals(name)) {
+            // the optimizer holds the buffers of one LevMarNN, so each needs its own instance
+            return new BoundedLevenbergMarquardt(config.isAnalyticJacobian(), config.getBroydenRefreshInterval());
+        }
+        return OptimizerRegistry.getInstance().get(name);
+    }
+
+    // the inverse net takes precedence over the table, null if p_init is used
+    private static FirstGuess createFirstGuess(LevMarNNConfig config, int numBands, Sigmoid alphaTab) throws IOException {
+        if (config.getFirstGuessNetPath() != null) {
+            return new InverseNet(config.getFirstGuessNetPath(), numBands, config, alphaTab);
+        } else if (config.getFirstGuessTablePath() != null) {
+            return NnModelRegistry.getSpectraTable(config.getFirstGuessTablePath(), numBands);
+        }
+        return null;
+    }
+
+    /**
+     * @param params the converged parameters of the last pixel processed (output), in the order of p_init
+     */
+    public void getParameters(double[] params) {
+        System.arraycopy(p, 0, params, 0, p.length);
+    }
+
+    /**
+     * Converts retrieved values back to LM parameters, e.g. to start the fit from the result of a previous scene.
+     * This is the inverse of the parameter outputs of {@link #levmar_nn}, the log wind speed is not an output and
+     * taken from p_init.
+     *
+     * @param values the aot_550, ang_864_443 and the 5 IOP outputs, in the order of the outputs of levmar_nn
+     * @param p      the parameters, within the bounds of the fit (output)
+     * @return false if a value is not a valid positive number
+     */
+    public static boolean toParameters(double[] values, double[] p) {
+        for (int i = 0; i < 7; i++) {
+            if (!(values[i] > 0.0) || Double.isInfinite(values[i])) {
+                return false;
+            }
+        }
+        p[0] = Math.log(values[0]);
+        p[1] = Math.log(values[1]);
+        p[2] = P_INIT[2];
+        for (int i = 2; i < 7; i++) {
+            p[i + 1] = Math.log(values[i]);
+        }
+        for (int i = 0; i < p.length; i++) {
+            p[i] = Math.min(Math.max(p[i], LOWER_BOUNDS[i]), UPPER_BOUNDS[i]);
+        }
+        return true;
+    }
+
+    /**
+     * @return the fraction of the final water net evaluations served from the output cache, 0 if not in use
+     */
+    public double getWaterNetCacheHitRatio() {
+        final NnOutputCache cache = nnAtmoWat.getWaterNetCache();
+        return cache == null ? 0.0 : cache.getHitRatio();
     }
 
 //    private double angleDiff(double a, double b) {
@@ -221,6 +358,168 @@ public class LevMarNN {
 //    }
 
     public int levmar_nn(int detector, double[] input, double[] output) throws Exception {
+        return levmar_nn(detector, input, output, null);
+    }
+
+    /**
+     * Processes a pixel, starting the LM fit from the given parameters, e.g. the converged parameters of a
+     * neighbouring pixel.
+     *
+     * @param detector the detector index
+     * @param input    the input data of the pixel
+     * @param output   the results (output)
+     * @param p_start  the start parameters of the LM fit, null for p_init or the first guess. Used by the inverse
+     *                 net retrieval only for pixels the net cannot be applied to
+     * @return 0
+     * @throws Exception on failures of the fit
+     */
+    public int levmar_nn(int detector, double[] input, double[] output, double[] p_start) throws Exception {
+        preparePixel(detector, input);
+
+        if (p_start != null) {
+            System.arraycopy(p_start, 0, p, 0, p.length);
+        } else {
+            System.arraycopy(p_init, 0, p, 0, p.length);
+        }
+
+        /* optimization control parameters; passing to levmar NULL instead of opts reverts to defaults */
+        //  opts[0]=LM_INIT_MU; opts[1]=1E-15; opts[2]=1E-15; opts[3]=1E-20;
+//        final double LM_INIT_MU = 1E-03;
+//        final int LM_OPTS_SZ = 5; /* max(4, 5) */
+//        final double[] opts = new double[LM_OPTS_SZ];
+//        opts[0] = LM_INIT_MU;
+//        opts[1] = 1E-10;
+//        opts[2] = 1E-10;
+//        opts[3] = 1E-10;
+//        //  opts[4]=LM_DIFF_DELTA; // relevant only if the finite difference Jacobian version is used
+//        //  opts[4]= 0.2; // relevant only if the finite difference Jacobian version is used
+//        opts[4] = -0.1; // relevant only if the finite difference Jacobian version is used
+
+        /* invoke the optimization function */
+//        ret = dlevmar_bc_dif(nn_atmo_wat, p, x11, m, n, lb, ub, 150, opts, info, NULL, & covar_out[0][0],&nn_at_data)
+//        ; // without Jacobian
+
+        costFunction.setReferenceSignal(x11);
+        final double sum_sq;
+        final int num_iter;
+        boolean residualFlag = false;
+        if (inverseNet != null) {
+            // single evaluation of the inverse net, one forward pass for the residual. Without estimate, e.g. for
+            // non-positive reflectances, p keeps the start parameters and the pixel is flagged
+            final boolean estimated = inverseNet.estimate(nn_at_data, x11, lb, ub, p);
+            model.setReferenceSignal(x11);
+            final double inverse_sum_sq = costFunction.getCost(model.getModeledSignal(p));
+            // a NaN residual is flagged as well
+            residualFlag = !estimated || !(inverse_sum_sq <= inverseResidualThreshold);
+            if (residualFlag && inverseRefinement) {
+                p = optimizer.optimize(p, x11, lb, ub);
+                sum_sq = optimizer.getCost();
+                num_iter = optimizer.getNumberOfIterations();
+            } else {
+                sum_sq = inverse_sum_sq;
+                num_iter = 0;
+            }
+        } else {
+            if (firstGuess != null && p_start == null) {
+                firstGuess.estimate(nn_at_data, x11, lb, ub, p);
+            }
+            p = optimizer.optimize(p, x11, lb, ub);
+            sum_sq = optimizer.getCost();
+            num_iter = optimizer.getNumberOfIterations();
+        }
+
+        writeOutput(output, sum_sq, num_iter, residualFlag);
+
+        return (0);
+    }
+
+    /**
+     * Processes several pixels like {@link #levmar_nn(int, double[], double[], double[])}. If a batch size is
+     * configured, the LM fits of up to batch size pixels are advanced together by the {@link BatchedLevenbergMarquardt},
+     * which gives the results of the {@link BoundedLevenbergMarquardt} to rounding (see {@link NnAtmoWatBatch}).
+     * Otherwise, and for the inverse net retrieval, the pixels are processed one by one.
+     *
+     * @param detectors the detector indices of the pixels
+     * @param inputs    the input data of the pixels
+     * @param outputs   the results of the pixels (output)
+     * @param p_starts  the start parameters of the LM fits, null or null entries for p_init or the first guess
+     * @param numPixels the number of pixels
+     * @throws Exception on failures of the fit
+     */
+    public void levmar_nn(int[] detectors, double[][] inputs, double[][] outputs, double[][] p_starts, int numPixels) throws Exception {
+        if (batchOptimizer == null || inverseNet != null) {
+            for (int i = 0; i < numPixels; i++) {
+                levmar_nn(detectors[i], inputs[i], outputs[i], p_starts == null ? null : p_starts[i]);
+            }
+            return;
+        }
+        final int batchSize = batchOptimizer.getBatchSize();
+        for (int first = 0; first < numPixels; first += batchSize) {
+            final int numLanes = Math.min(batchSize, numPixels - first);
+            for (int lane = 0; lane < numLanes; lane++) {
+                final int i = first + lane;
+                final double[] p_start = p_starts == null ? null : p_starts[i];
+                preparePixel(detectors[i], inputs[i]);
+                if (p_start != null) {
+                    System.arraycopy(p_start, 0, p, 0, p.length);
+                } else {
+                    System.arraycopy(p_init, 0, p, 0, p.length);
+                    if (firstGuess != null) {
+                        firstGuess.estimate(nn_at_data, x11, lb, ub, p);
+                    }
+                }
+                for (int j = 0; j < p.length; j++) {
+                    batch_p[j][lane] = p[j];
+                }
+                for (int ilam = 0; ilam < x11.length; ilam++) {
+                    batch_x[ilam][lane] = x11[ilam];
+                }
+                batchModel.setPixel(lane, nn_at_data);
+                savePreparedPixel(lane);
+            }
+
+            batchOptimizer.optimize(batch_p, batch_x, numLanes, lb, ub);
+
+            for (int lane = 0; lane < numLanes; lane++) {
+                final int i = first + lane;
+                restorePreparedPixel(lane);
+                for (int j = 0; j < p.length; j++) {
+                    p[j] = batch_p[j][lane];
+                }
+                writeOutput(outputs[i], batchOptimizer.getCost(lane), batchOptimizer.getNumberOfIterations(lane), false);
+            }
+        }
+    }
+
+    // keeps the state of preparePixel for the pixel of the lane
+    private void savePreparedPixel(int lane) {
+        System.arraycopy(rho_tosa_corr, 0, batch_rho_tosa_corr[lane], 0, rho_tosa_corr.length);
+        System.arraycopy(x, 0, batch_x_all[lane], 0, x.length);
+        final double[] geometry = batch_geometry[lane];
+        geometry[0] = nn_at_data.getSun_thet();
+        geometry[1] = nn_at_data.view_zeni;
+        geometry[2] = nn_at_data.view_azi;
+        geometry[3] = nn_at_data.azi_diff_hl;
+        geometry[4] = nn_at_data.temperature;
+        geometry[5] = nn_at_data.salinity;
+    }
+
+    // the state of preparePixel for the pixel of the lane, as needed by writeOutput
+    private void restorePreparedPixel(int lane) {
+        System.arraycopy(batch_rho_tosa_corr[lane], 0, rho_tosa_corr, 0, rho_tosa_corr.length);
+        System.arraycopy(batch_x_all[lane], 0, x, 0, x.length);
+        final double[] geometry = batch_geometry[lane];
+        nn_at_data.setSun_thet(geometry[0]);
+        nn_at_data.view_zeni = geometry[1];
+        nn_at_data.view_azi = geometry[2];
+        nn_at_data.azi_diff_hl = geometry[3];
+        nn_at_data.temperature = geometry[4];
+        nn_at_data.salinity = geometry[5];
+        model.init(nn_at_data);
+    }
+
+    // converts the input of a pixel into the TOSA reflectances x and x11 and the geometry of nn_at_data
+    private void preparePixel(int detector, double[] input) {
         double view_zeni, azi_diff_hl, temperature, salinity, ozone;
 
         // @todo 2 tb/** can this be a field - check when all tests run green tb 2013-05-14
@@ -233,8 +532,6 @@ public class LevMarNN {
         double sun_azimuth, view_azimuth, surf_pressure;
         int nlam, ilam, ix;
 
-        double[] conc_at = {0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0};
-
         double trans708, X2;
 
         double smile_lam;
@@ -515,8 +812,6 @@ public class LevMarNN {
 //            }
 //        }
 
-        System.arraycopy(p_init, 0, p, 0, p.length);
-
         if (sensorContext.getSensor() == Sensor.MERIS) {
             // select the 11 bands for iterations
             for (int i = 0; i < 11; i++) {
@@ -528,26 +823,13 @@ public class LevMarNN {
         } else if (sensorContext.getSensor() == Sensor.SEAWIFS) {
             System.arraycopy(x, 0, x11, 0, 8);
         }
-        /* optimization control parameters; passing to levmar NULL instead of opts reverts to defaults */
-        //  opts[0]=LM_INIT_MU; opts[1]=1E-15; opts[2]=1E-15; opts[3]=1E-20;
-//        final double LM_INIT_MU = 1E-03;
-//        final int LM_OPTS_SZ = 5; /* max(4, 5) */
-//        final double[] opts = new double[LM_OPTS_SZ];
-//        opts[0] = LM_INIT_MU;
-//        opts[1] = 1E-10;
-//        opts[2] = 1E-10;
-//        opts[3] = 1E-10;
-//        //  opts[4]=LM_DIFF_DELTA; // relevant only if the finite difference Jacobian version is used
-//        //  opts[4]= 0.2; // relevant only if the finite difference Jacobian version is used
-//        opts[4] = -0.1; // relevant only if the finite difference Jacobian version is used
-
-        /* invoke the optimization function */
-//        ret = dlevmar_bc_dif(nn_atmo_wat, p, x11, m, n, lb, ub, 150, opts, info, NULL, & covar_out[0][0],&nn_at_data)
-//        ; // without Jacobian
-
         model.init(nn_at_data);
-        costFunction.setReferenceSignal(x11);
-        p = optimizer.optimize(p, x11, lb, ub);
+    }
+
+    // the final spectra at p and the results of the fit, preparePixel must have been called for the pixel
+    private void writeOutput(double[] output, double sum_sq, int num_iter, boolean residualFlag) {
+        int nlam, ix;
+        double[] conc_at = {0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0};
 
         System.arraycopy(p, 0, conc_at, 0, p.length);
 //        for (int i = 0; i < m; i++) {
@@ -570,11 +852,11 @@ public class LevMarNN {
 //            rlw2[i] = 0.0;
 //        }
 //
-        nn_in[0] = sun_zenith;
-        nn_in[1] = view_zeni;
-        nn_in[2] = azi_diff_hl;
-        nn_in[3] = temperature;
-        nn_in[4] = salinity;
+        nn_in[0] = nn_at_data.getSun_thet();
+        nn_in[1] = nn_at_data.view_zeni;
+        nn_in[2] = nn_at_data.azi_diff_hl;
+        nn_in[3] = nn_at_data.temperature;
+        nn_in[4] = nn_at_data.salinity;
         int offset = 5;
         for (int n = 0; n < 29; n++) {
             nn_in[offset] = Math.log(nn_at_data.rw_nn[n]);
@@ -622,13 +904,48 @@ public class LevMarNN {
         output[offset + 4] = Math.exp(p[5]);    // a_gelb
         output[offset + 5] = Math.exp(p[6]);    // b_spm
         output[offset + 6] = Math.exp(p[7]);    // b_wit
-        output[offset + 7] = optimizer.getCost();  // sum_sq
-        output[offset + 8] = optimizer.getNumberOfIterations();
-
-        return (0);
+        output[offset + 7] = sum_sq;
+        output[offset + 8] = num_iter;
+        if (inverseNet != null) {
+            output[offset + 9] = residualFlag ? 1.0 : 0.0;
+        }
     }
 
     static a_nn prepare_a_nn(String filename) throws IOException {
+        return prepare_a_nn(filename, false);
+    }
+
+    /**
+     * Loads a net. If a binary version of the net exists next to the ASCII file (see {@link NnBinaryFile}), it is
+     * used, otherwise the ASCII file is parsed. The ASCII file is also parsed, with a warning, if the binary file is
+     * invalid or out of date.
+     *
+     * @param filename        the path to the ASCII .net file
+     * @param singlePrecision if true, the net is set up for single precision evaluation
+     * @return the net
+     * @throws IOException on failures reading the file
+     */
+    static a_nn prepare_a_nn(String filename, boolean singlePrecision) throws IOException {
+        a_nn res = null;
+        final File binaryFile = new File(NnBinaryFile.getBinaryPath(filename));
+        if (binaryFile.isFile()) {
+            try {
+                res = NnBinaryFile.read(binaryFile, new File(filename));
+            } catch (IOException e) {
+                BeamLogManager.getSystemLogger().warning("Unable to use binary net, reading " + filename + " instead: " +
+                                                         e.getMessage());
+            }
+        }
+        if (res == null) {
+            res = prepare_a_nn_from_text(filename);
+        }
+        if (singlePrecision) {
+            res.getNn().useSinglePrecision();
+        }
+        return res;
+    }
+
+    static a_nn prepare_a_nn_from_text(String filename) throws IOException {
         File fp;
         char ch;
         int i;
@@ -744,29 +1061,29 @@ public class LevMarNN {
                             subSize[i - 1] = size[i];
                         }
                     }
-                    double[][] bias = make_vecv(numberOfPlanes - 1, subSize);
-                    double[][][] wgt = make_mtxv(numberOfPlanes, size);
+                    double[][] layer = make_layerv(numberOfPlanes, size);
                     double[][] act = make_vecv(numberOfPlanes, size);
                     for (int i = 0; i < numberOfPlanes - 1; i++) {
                         reader.readLine();
+                        final int biasOffset = size[i + 1] * size[i];
                         for (int j = 0; j < subSize[i]; j++) {
                             line = reader.readLine();
-                            bias[i][j] = Double.parseDouble(line);
+                            layer[i][biasOffset + j] = Double.parseDouble(line);
                         }
                     }
                     for (int i = 0; i < numberOfPlanes - 1; i++) {
                         reader.readLine();
                         for (int j = 0; j < size[i + 1]; j++) {
+                            final int rowOffset = j * size[i];
                             for (int k = 0; k < size[i]; k++) {
                                 line = reader.readLine();
-                                wgt[i][j][k] = Double.parseDouble(line);
+                                layer[i][rowOffset + k] = Double.parseDouble(line);
                             }
                         }
                     }
                     ff.setNplanes(numberOfPlanes);
                     ff.setSize(size);
-                    ff.setBias(bias);
-                    ff.setWgt(wgt);
+                    ff.setLayer(layer);
                     ff.setAct(act);
                     break;
                 }
@@ -780,19 +1097,17 @@ public class LevMarNN {
         return ff;
     }
 
-    private static double[][][] make_mtxv(int n, int[] s) {
-        int i, j;
-        double[][][] wgt = new double[n - 1][][];
+    // allocates one contiguous array per plane: row-major weights [to_neuron][from_neuron] followed by the biases
+    private static double[][] make_layerv(int n, int[] s) {
+        int i;
+        double[][] layer = new double[n - 1][];
         for (i = 0; i < n - 1; i++) {
-            wgt[i] = new double[s[i + 1]][];
-            for (j = 0; j < s[i + 1]; j++) {
-                wgt[i][j] = new double[s[i]];
-            }
+            layer[i] = new double[s[i + 1] * s[i] + s[i + 1]];
         }
-        return wgt;
+        return layer;
     }
 
-    private static double[][] make_vecv(int n, int[] s) {
+    static double[][] make_vecv(int n, int[] s) {
         int i;
         double[][] bias;
         bias = new double[n][];
@@ -802,147 +1117,408 @@ public class LevMarNN {
         return bias;
     }
 
-    private void smile_tab_ini() throws IOException {
-        File fp_ini, fp_tab;
-        char[] name = new char[500];
-        char[] buf = new char[500];
-        int i, k, iband, ipix, num;
-        double[] nomi_lam = new double[15];
-        double[] nomi_sun = new double[15];
-        String smile_name = "";
-
-        /* read the tables */
-        fp_tab = open_auxfile(nnResources.getCentralWavelengthFrPath());
-        BufferedReader reader;
+    static double[] use_the_nn(a_nn a_net, double[] nn_in, double[] nn_out, Sigmoid alphaTab) {
+        final long anetNnin = a_net.getNnin();
+        final feedforward nn = a_net.getNn();
+        if (nn.isSinglePrecision()) {
+            return use_the_nn_f(a_net, nn_in, nn_out, alphaTab);
+        }
 
-        reader = new BufferedReader(new FileReader(fp_tab));
-        String line = reader.readLine(); // header
-        for (int count = 0; count < FR_TAB; count++) {
-            line = reader.readLine();
-            final String[] tableLine = line.split("\t");
-            for (int count2 = 0; count2 < 15; count2++) {
-                frlam[count][count2] = Double.parseDouble(tableLine[count2 + 1]);
-            }
+        for (int i = 0; i < anetNnin; i++) {
+            final double value = a_net.getLayerInput(i, nn_in[i]);
+            nn.setInput(i, value);
         }
-        reader.close();
 
-        fp_tab = open_auxfile(nnResources.getSunSpectralFluxFrPath());
-        reader = new BufferedReader(new FileReader(fp_tab));
-        line = reader.readLine(); // header
-        for (int count = 0; count < FR_TAB; count++) {
-            line = reader.readLine();
-            final String[] tableLine = line.split("\t");
-            for (int count2 = 0; count2 < 15; count2++) {
-                fredtoa[count][count2] = Double.parseDouble(tableLine[count2 + 1]);
-            }
+        ff_proc(nn, alphaTab);
+
+        final double[] nnOutput = nn.getOutput();
+        final double[] outrange = a_net.getOutrange();
+        final double[] outmin = a_net.getOutmin();
+
+        for (int i = 0; i < a_net.getNnout(); i++) {
+            nn_out[i] = nnOutput[i] * outrange[i] + outmin[i];
+        }
+        return nn_out;
+    }
+
+    /**
+     * Evaluates the net like {@link #use_the_nn(a_nn, double[], double[], Sigmoid)}, but takes the first layer
+     * contribution of the constant leading inputs from the given cache. Single precision nets are evaluated without
+     * the cache.
+     *
+     * @param a_net       the net
+     * @param nn_in       the inputs
+     * @param nn_out      the outputs
+     * @param partialSums the first layer cache of the net
+     * @param alphaTab    the activation function table
+     * @return the outputs
+     */
+    static double[] use_the_nn(a_nn a_net, double[] nn_in, double[] nn_out, NnPartialSums partialSums, Sigmoid alphaTab) {
+        final feedforward nn = a_net.getNn();
+        if (nn.isSinglePrecision()) {
+            return use_the_nn_f(a_net, nn_in, nn_out, alphaTab);
         }
-        reader.close();
 
+        final double[][] act = nn.getAct();
+        final double[] input = act[0];
+        for (int i = 0; i < a_net.getNnin(); i++) {
+            input[i] = a_net.getLayerInput(i, nn_in[i]);
+        }
 
-        fp_tab = open_auxfile(nnResources.getCentralWavelengthRrPath());
-        reader = new BufferedReader(new FileReader(fp_tab));
-        line = reader.readLine(); // header
-        for (int count = 0; count < RR_TAB; count++) {
-            line = reader.readLine();
-            final String[] tableLine = line.split("\t");
-            for (int count2 = 0; count2 < 15; count2++) {
-                rrlam[count][count2] = Double.parseDouble(tableLine[count2 + 1]);
-            }
+        final int[] size = nn.getSize();
+        final int n = size[0];
+        final int m = size[1];
+        final double[] layer = nn.getLayer()[0];
+        final double[] sums = partialSums.computeSums(layer, input, n, m);
+        final double[] act_plus = act[1];
+        for (int i = 0; i < m; i++) {
+            act_plus[i] = alphaTab.get(layer[m * n + i] + sums[i]);
         }
-        reader.close();
 
-        fp_tab = open_auxfile(nnResources.getSunSpectralFluxRrPath());
+        ff_proc(nn, 1, alphaTab);
 
-        reader = new BufferedReader(new FileReader(fp_tab));
-        line = reader.readLine(); // header
-        for (int count = 0; count < RR_TAB; count++) {
-            line = reader.readLine();
-            final String[] tableLine = line.split("\t");
-            for (int count2 = 0; count2 < 15; count2++) {
-                rredtoa[count][count2] = Double.parseDouble(tableLine[count2 + 1]);
-            }
+        final double[] nnOutput = nn.getOutput();
+        final double[] outrange = a_net.getOutrange();
+        final double[] outmin = a_net.getOutmin();
+
+        for (int i = 0; i < a_net.getNnout(); i++) {
+            nn_out[i] = nnOutput[i] * outrange[i] + outmin[i];
+        }
+        return nn_out;
+    }
+
+    private static double[] use_the_nn_f(a_nn a_net, double[] nn_in, double[] nn_out, Sigmoid alphaTab) {
+        final feedforward nn = a_net.getNn();
+        final float[] input = nn.getActF()[0];
+
+        for (int i = 0; i < a_net.getNnin(); i++) {
+            input[i] = (float) a_net.getLayerInput(i, nn_in[i]);
         }
-        reader.close();
 
-        fp_tab = open_auxfile(nnResources.getNominalLamSunPath());
+        ff_proc_f(nn, alphaTab);
+
+        final float[] nnOutput = nn.getActF()[nn.getActF().length - 1];
+        final double[] outrange = a_net.getOutrange();
+        final double[] outmin = a_net.getOutmin();
+
+        for (int i = 0; i < a_net.getNnout(); i++) {
+            nn_out[i] = nnOutput[i] * outrange[i] + outmin[i];
+        }
+        return nn_out;
+    }
 
-        reader = new BufferedReader(new FileReader(fp_tab));
-        for (int count = 0; count < 15; count++) {
-            line = reader.readLine();
-            final String[] tableLine = line.split("\t");
-            nomi_lam[count] = Double.parseDouble(tableLine[0]);
-            nomi_sun[count] = Double.parseDouble(tableLine[1]);
+    /**
+     * Evaluates the net like {@link #use_the_nn(a_nn, double[], double[], Sigmoid)} in double precision and
+     * additionally computes the partial derivatives of all outputs with respect to the consecutive inputs
+     * firstInput .. firstInput + numInputs - 1. The derivatives are propagated forward through the layers along
+     * with the activations, using the analytic derivative a * (1 - a) of the sigmoid at the tabulated activation a.
+     *
+     * @param a_net      the net
+     * @param nn_in      the inputs
+     * @param nn_out     the outputs
+     * @param firstInput the index of the first input to differentiate for
+     * @param numInputs  the number of inputs to differentiate for
+     * @param jacobian   the derivatives [output][input - firstInput]
+     * @param alphaTab   the activation function table
+     * @return the outputs
+     */
+    static double[] use_the_nn_jacobian(a_nn a_net, double[] nn_in, double[] nn_out, int firstInput, int numInputs,
+                                        double[][] jacobian, Sigmoid alphaTab) {
+        final feedforward nn = a_net.getNn();
+        final double[][] act = nn.getAct();
+        final double[][] layer = nn.getLayer();
+        final double[][] tangent = nn.getTangent(numInputs);
+        final int[] size = nn.getSize();
+        final int nplanes = (int) nn.getNplanes();
+
+        for (int i = 0; i < a_net.getNnin(); i++) {
+            act[0][i] = a_net.getLayerInput(i, nn_in[i]);
         }
-        reader.close();
 
-        /* make ed ratio tab, i.e. compute the ratio between the Ed_toa for each pixel relative to ed-toa at the mean pixel for each camera */
+        // first plane: the derivatives of the normalised inputs are constant
+        final int n0 = size[0];
+        final double[] tangent0 = tangent[0];
+        for (int k = 0; k < numInputs; k++) {
+            final int offset = k * n0;
+            for (int i = 0; i < n0; i++) {
+                tangent0[offset + i] = 0.0;
+            }
+            tangent0[offset + firstInput + k] = a_net.getLayerInputDerivative(firstInput + k);
+        }
 
-        /* compute ratio */
-        for (ipix = 0; ipix < RR_TAB; ipix++) {
-            for (iband = 0; iband < 15; iband++) {
-                rredtoa[ipix][iband] /= nomi_sun[iband];
+        for (int pl = 0; pl < nplanes - 1; pl++) {
+            final int n = size[pl];
+            final int m = size[pl + 1];
+            final double[] plLayer = layer[pl];
+            final double[] plTangent = tangent[pl];
+            final double[] nextAct = act[pl + 1];
+            final double[] nextTangent = tangent[pl + 1];
+            mvp(plLayer, act[pl], n, nextAct, m, alphaTab);
+            for (int i = 0; i < m; i++) {
+                final double a = nextAct[i];
+                final double slope = a * (1.0 - a);
+                for (int k = 0; k < numInputs; k++) {
+                    nextTangent[k * m + i] = slope * scp(plLayer, i * n, plTangent, k * n, n);
+                }
             }
         }
 
-        /* compute ratio */
-        for (ipix = 0; ipix < FR_TAB; ipix++) {
-            for (iband = 0; iband < 15; iband++) {
-                fredtoa[ipix][iband] /= nomi_sun[iband];
+        final double[] nnOutput = act[nplanes - 1];
+        final double[] outputTangent = tangent[nplanes - 1];
+        final int numOutputs = size[nplanes - 1];
+        final double[] outrange = a_net.getOutrange();
+        final double[] outmin = a_net.getOutmin();
+        for (int i = 0; i < a_net.getNnout(); i++) {
+            final double range = outrange[i];
+            nn_out[i] = nnOutput[i] * range + outmin[i];
+            final double[] row = jacobian[i];
+            for (int k = 0; k < numInputs; k++) {
+                row[k] = outputTangent[k * numOutputs + i] * range;
             }
         }
+        return nn_out;
     }
 
-
-    static double[] use_the_nn(a_nn a_net, double[] nn_in, double[] nn_out, AlphaTab alphaTab) {
-        final long anetNnin = a_net.getNnin();
+    /**
+     * Evaluates the net for a batch of input vectors, e.g. a complete tile row. Inputs and outputs are passed in
+     * structure-of-arrays form, each layer is processed as one matrix-matrix product so that a single pass over the
+     * weights serves all pixels of the batch. The results are identical to calling
+     * {@link #use_the_nn(a_nn, double[], double[], Sigmoid)} for each pixel in double precision.
+     *
+     * @param a_net     the net
+     * @param nn_in     the inputs [input][pixel]
+     * @param nn_out    the outputs [output][pixel]
+     * @param numPixels the number of pixels in the batch
+     * @param alphaTab  the activation function table
+     * @return the outputs
+     */
+    static double[][] use_the_nn(a_nn a_net, double[][] nn_in, double[][] nn_out, int numPixels, Sigmoid alphaTab) {
         final feedforward nn = a_net.getNn();
-        final double[] inmin = a_net.getInmin();
-        final double[] inmax = a_net.getInmax();
-
-        for (int i = 0; i < anetNnin; i++) {
-            final double value = (nn_in[i] - inmin[i]) / (inmax[i] - inmin[i]);
-            nn.setInput(i, value);
+        final double[][] act = nn.getActBatch(numPixels);
+
+        final double[] input = act[0];
+        for (int i = 0; i < a_net.getNnin(); i++) {
+            final double[] values = nn_in[i];
+            final int offset = i * numPixels;
+            for (int p = 0; p < numPixels; p++) {
+                input[offset + p] = a_net.getLayerInput(i, values[p]);
+            }
         }
 
-        ff_proc(nn, alphaTab);
+        final double[][] layer = nn.getLayer();
+        final int[] size = nn.getSize();
+        for (int pl = 0; pl < nn.getNplanes() - 1; pl++) {
+            mmp(layer[pl], act[pl], size[pl], act[pl + 1], size[pl + 1], numPixels, alphaTab);
+        }
 
-        final double[] nnOutput = nn.getOutput();
-        final double[] outmax = a_net.getOutmax();
+        final double[] nnOutput = act[act.length - 1];
+        final double[] outrange = a_net.getOutrange();
         final double[] outmin = a_net.getOutmin();
-
         for (int i = 0; i < a_net.getNnout(); i++) {
-            nn_out[i] = nnOutput[i] * (outmax[i] - outmin[i]) + outmin[i];
+            final double[] values = nn_out[i];
+            final int offset = i * numPixels;
+            for (int p = 0; p < numPixels; p++) {
+                values[p] = nnOutput[offset + p] * outrange[i] + outmin[i];
+            }
         }
         return nn_out;
     }
 
-    private static void ff_proc(feedforward ff, AlphaTab alphaTab) {
-        double[] bias;
-        double[] act_plus;
-        double[][] wgt;
+    /**
+     * Matrix-matrix product of a packed layer with the activations of the previous plane for a batch of pixels,
+     * including bias and activation function. The activations are stored neuron by neuron, i.e.
+     * act[neuron * numPixels + pixel].
+     *
+     * @param layer     the packed layer, row-major weights followed by the biases
+     * @param act       the activations of the source plane
+     * @param n         the number of source neurons
+     * @param act_plus  the activations of the target plane (output)
+     * @param m         the number of target neurons
+     * @param numPixels the number of pixels in the batch
+     * @param alphaTab  the activation function table
+     */
+    static void mmp(double[] layer, double[] act, int n, double[] act_plus, int m, int numPixels, Sigmoid alphaTab) {
+        final int biasOffset = m * n;
+        int i = 0;
+        // two rows per pass over the source activations, the unit-stride pixel loops are vectorised by the JIT
+        for (; i + 1 < m; i += 2) {
+            final int outOffset0 = i * numPixels;
+            final int outOffset1 = outOffset0 + numPixels;
+            Arrays.fill(act_plus, outOffset0, outOffset1 + numPixels, 0.);
+            for (int k = 0; k < n; k++) {
+                final double weight0 = layer[i * n + k];
+                final double weight1 = layer[(i + 1) * n + k];
+                final int inOffset = k * numPixels;
+                for (int p = 0; p < numPixels; p++) {
+                    final double a = act[inOffset + p];
+                    act_plus[outOffset0 + p] += weight0 * a;
+                    act_plus[outOffset1 + p] += weight1 * a;
+                }
+            }
+            applyBiasAndAlpha(act_plus, outOffset0, layer[biasOffset + i], numPixels, alphaTab);
+            applyBiasAndAlpha(act_plus, outOffset1, layer[biasOffset + i + 1], numPixels, alphaTab);
+        }
+        for (; i < m; i++) {
+            final int outOffset = i * numPixels;
+            Arrays.fill(act_plus, outOffset, outOffset + numPixels, 0.);
+            for (int k = 0; k < n; k++) {
+                final double weight = layer[i * n + k];
+                final int inOffset = k * numPixels;
+                for (int p = 0; p < numPixels; p++) {
+                    act_plus[outOffset + p] += weight * act[inOffset + p];
+                }
+            }
+            applyBiasAndAlpha(act_plus, outOffset, layer[biasOffset + i], numPixels, alphaTab);
+        }
+    }
+
+    private static void applyBiasAndAlpha(double[] act_plus, int offset, double bias, int numPixels, Sigmoid alphaTab) {
+        for (int p = 0; p < numPixels; p++) {
+            act_plus[offset + p] = alphaTab.get(bias + act_plus[offset + p]);
+        }
+    }
+
+    private static void ff_proc(feedforward ff, Sigmoid alphaTab) {
+        ff_proc(ff, 0, alphaTab);
+    }
+
+    // propagates the activation of plane firstPlane through the remaining planes
+    static void ff_proc(feedforward ff, int firstPlane, Sigmoid alphaTab) {
+        final double[][] act = ff.getAct();
+        final double[][] layer = ff.getLayer();
+        final int[] size = ff.getSize();
+        final NnEvaluator evaluator = ff.getEvaluator();
+
+        if (evaluator != null) {
+            for (int pl = firstPlane; pl < ff.getNplanes() - 1; pl++) {
+                final double[] act_plus = act[pl + 1];
+                evaluator.computeLayer(pl, act[pl], act_plus);
+                for (int i = 0; i < size[pl + 1]; i++) {
+                    act_plus[i] = alphaTab.get(act_plus[i]);
+                }
+            }
+            return;
+        }
+        for (int pl = firstPlane; pl < ff.getNplanes() - 1; pl++) {
+            mvp(layer[pl], act[pl], size[pl], act[pl + 1], size[pl + 1], alphaTab);
+        }
+    }
+
+    /**
+     * Matrix-vector product of a packed layer with the activation of the previous plane, including bias and
+     * activation function.
+     *
+     * @param layer    the packed layer, row-major weights followed by the biases
+     * @param act      the activation of the source plane
+     * @param n        the number of source neurons
+     * @param act_plus the activation of the target plane (output)
+     * @param m        the number of target neurons
+     * @param alphaTab the activation function table
+     */
+    static void mvp(double[] layer, double[] act, int n, double[] act_plus, int m, Sigmoid alphaTab) {
+        final int biasOffset = m * n;
+        int i = 0;
+        // four rows per pass: every activation is loaded once for four independent accumulation chains, each row
+        // keeps its summation order, so the results are identical to row-by-row scalar products
+        for (; i + 3 < m; i += 4) {
+            final int offset0 = i * n;
+            final int offset1 = offset0 + n;
+            final int offset2 = offset1 + n;
+            final int offset3 = offset2 + n;
+            double sum0 = 0.;
+            double sum1 = 0.;
+            double sum2 = 0.;
+            double sum3 = 0.;
+            for (int k = 0; k < n; k++) {
+                final double a = act[k];
+                sum0 += layer[offset0 + k] * a;
+                sum1 += layer[offset1 + k] * a;
+                sum2 += layer[offset2 + k] * a;
+                sum3 += layer[offset3 + k] * a;
+            }
+            act_plus[i] = alphaTab.get(layer[biasOffset + i] + sum0);
+            act_plus[i + 1] = alphaTab.get(layer[biasOffset + i + 1] + sum1);
+            act_plus[i + 2] = alphaTab.get(layer[biasOffset + i + 2] + sum2);
+            act_plus[i + 3] = alphaTab.get(layer[biasOffset + i + 3] + sum3);
+        }
+        for (; i < m; i++) {
+            final double x = layer[biasOffset + i] + scp(layer, i * n, act, n);
+            act_plus[i] = alphaTab.get(x);
+        }
+    }
+
+    private static void ff_proc_f(feedforward ff, Sigmoid alphaTab) {
+        final float[][] act = ff.getActF();
+        final float[][] layer = ff.getLayerF();
+        final int[] size = ff.getSize();
 
         for (int pl = 0; pl < ff.getNplanes() - 1; pl++) {
-            final double[][] act = ff.getAct();
-            final int[] size = ff.getSize();
-            bias = ff.getBias()[pl];
-            wgt = ff.getWgt()[pl];
-            act_plus = act[pl + 1];
-            for (int i = 0; i < size[pl + 1]; i++) {
-                final double x = bias[i] + scp(wgt[i], act[pl], size[pl]);
-                act_plus[i] = alphaTab.get(x);
+            mvp(layer[pl], act[pl], size[pl], act[pl + 1], size[pl + 1], alphaTab);
+        }
+    }
+
+    /**
+     * Single precision variant of {@link #mvp(double[], double[], int, double[], int, Sigmoid)}.
+     */
+    static void mvp(float[] layer, float[] act, int n, float[] act_plus, int m, Sigmoid alphaTab) {
+        final int biasOffset = m * n;
+        int i = 0;
+        for (; i + 3 < m; i += 4) {
+            final int offset0 = i * n;
+            final int offset1 = offset0 + n;
+            final int offset2 = offset1 + n;
+            final int offset3 = offset2 + n;
+            float sum0 = 0.f;
+            float sum1 = 0.f;
+            float sum2 = 0.f;
+            float sum3 = 0.f;
+            for (int k = 0; k < n; k++) {
+                final float a = act[k];
+                sum0 += layer[offset0 + k] * a;
+                sum1 += layer[offset1 + k] * a;
+                sum2 += layer[offset2 + k] * a;
+                sum3 += layer[offset3 + k] * a;
             }
+            act_plus[i] = alphaTab.get(layer[biasOffset + i] + sum0);
+            act_plus[i + 1] = alphaTab.get(layer[biasOffset + i + 1] + sum1);
+            act_plus[i + 2] = alphaTab.get(layer[biasOffset + i + 2] + sum2);
+            act_plus[i + 3] = alphaTab.get(layer[biasOffset + i + 3] + sum3);
+        }
+        for (; i < m; i++) {
+            final float x = layer[biasOffset + i] + scp(layer, i * n, act, n);
+            act_plus[i] = alphaTab.get(x);
         }
     }
 
+    static float scp(float[] x, int xOffset, float[] y, int n) {
+        float sum = 0.f;
+        for (int i = 0; i < n; i++) {
+            sum += x[xOffset + i] * y[i];
+        }
+        return sum;
+    }
+
+    static double scp(double[] x, int xOffset, double[] y, int yOffset, int n) {
+        double sum = 0.;
+        for (int i = 0; i < n; i++) {
+            sum += x[xOffset + i] * y[yOffset + i];
+        }
+        return sum;
+    }
+
     static double scp(double[] x, double[] y, long n) {
+        return scp(x, 0, y, (int) n);
+    }
+
+    static double scp(double[] x, int xOffset, double[] y, int n) {
         double sum = 0.;
         for (int i = 0; i < n; i++) {
-            sum += x[i] * y[i];
+            sum += x[xOffset + i] * y[i];
         }
         return sum;
     }
 
-    private class nn_atmo_watForwardModel extends ForwardModelAdapter {
+    private class nn_atmo_watForwardModel extends ForwardModelAdapter implements JacobianModel {
         private double[] rtosa_nn;
         private s_nn_atdata nn_data;
         private NNReturnData nnReturnData;
@@ -977,6 +1553,17 @@ public class LevMarNN {
             return nnReturnData.getOutputValues();
         }
 
+        @Override
+        public void getModeledSignal(double[] variables, double[] signal) {
+            nnReturnData = nnAtmoWat.nn_atmo_wat(variables, signal, nn_data, nnReturnData);
+            nn_data = nnReturnData.getNn_atdata();
+        }
+
+        @Override
+        public void getModeledSignal(double[] variables, double[] signal, double[][] jacobian) {
+            nnAtmoWat.nn_atmo_wat_jacobian(variables, signal, jacobian, nn_data);
+        }
+
         @Override
         public int getNumberOfSignalBands() {
             return x11.length;
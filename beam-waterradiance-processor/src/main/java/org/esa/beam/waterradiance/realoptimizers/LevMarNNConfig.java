@@ -0,0 +1,249 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+/**
+ * Optional settings of the neural net evaluation and optimisation in {@link LevMarNN}. The defaults reproduce the
+ * reference processing.
+ */
+public class LevMarNNConfig {
+
+    private boolean singlePrecision;
+    private boolean interpolatedActivation;
+    private boolean foldInputNormalisation;
+    private boolean rankOneFirstLayerUpdate;
+    private boolean codeGeneration;
+    private int waterNetCacheSize;
+    private double waterNetCachePrecision;
+    private String inverseNetPath;
+    private double inverseResidualThreshold;
+    private boolean inverseRefinement;
+    private String firstGuessNetPath;
+    private String firstGuessTablePath;
+    private String atmosphereLutPath;
+    private String optimizerName;
+    private boolean analyticJacobian;
+    private int broydenRefreshInterval;
+    private int batchSize;
+
+    public LevMarNNConfig() {
+        singlePrecision = false;
+        interpolatedActivation = false;
+        foldInputNormalisation = false;
+        rankOneFirstLayerUpdate = false;
+        codeGeneration = false;
+        waterNetCacheSize = 0;
+        waterNetCachePrecision = 1.0e-4;
+        inverseNetPath = null;
+        inverseResidualThreshold = 1.0e-4;
+        inverseRefinement = false;
+        firstGuessNetPath = null;
+        firstGuessTablePath = null;
+        atmosphereLutPath = null;
+        optimizerName = "LevenbergMarquardt";
+        analyticJacobian = false;
+        broydenRefreshInterval = 0;
+        batchSize = 0;
+    }
+
+    /**
+     * @return true if the neural nets are evaluated in single precision (float32)
+     */
+    public boolean isSinglePrecision() {
+        return singlePrecision;
+    }
+
+    public void setSinglePrecision(boolean singlePrecision) {
+        this.singlePrecision = singlePrecision;
+    }
+
+    /**
+     * @return true if the activation function is looked up in the compact interpolated table
+     */
+    public boolean isInterpolatedActivation() {
+        return interpolatedActivation;
+    }
+
+    public void setInterpolatedActivation(boolean interpolatedActivation) {
+        this.interpolatedActivation = interpolatedActivation;
+    }
+
+    /**
+     * @return true if the input normalisation of the nets is folded into their first layer when loading
+     */
+    public boolean isFoldInputNormalisation() {
+        return foldInputNormalisation;
+    }
+
+    public void setFoldInputNormalisation(boolean foldInputNormalisation) {
+        this.foldInputNormalisation = foldInputNormalisation;
+    }
+
+    /**
+     * @return true if the first layer sums of the nets are updated with rank-1 corrections when a single parameter
+     *         is perturbed
+     */
+    public boolean isRankOneFirstLayerUpdate() {
+        return rankOneFirstLayerUpdate;
+    }
+
+    public void setRankOneFirstLayerUpdate(boolean rankOneFirstLayerUpdate) {
+        this.rankOneFirstLayerUpdate = rankOneFirstLayerUpdate;
+    }
+
+    /**
+     * @return true if the double precision nets are evaluated by evaluators generated and compiled at runtime for
+     *         their topology, requires a JDK when a topology is not in the cache yet
+     */
+    public boolean isCodeGeneration() {
+        return codeGeneration;
+    }
+
+    public void setCodeGeneration(boolean codeGeneration) {
+        this.codeGeneration = codeGeneration;
+    }
+
+    /**
+     * @return the number of entries of the per-thread cache of the water net outputs of the final evaluations,
+     *         0 if the outputs are not cached
+     */
+    public int getWaterNetCacheSize() {
+        return waterNetCacheSize;
+    }
+
+    public void setWaterNetCacheSize(int waterNetCacheSize) {
+        this.waterNetCacheSize = waterNetCacheSize;
+    }
+
+    /**
+     * @return the quantisation step of the water net inputs forming the cache keys
+     */
+    public double getWaterNetCachePrecision() {
+        return waterNetCachePrecision;
+    }
+
+    public void setWaterNetCachePrecision(double waterNetCachePrecision) {
+        this.waterNetCachePrecision = waterNetCachePrecision;
+    }
+
+    /**
+     * @return the path to the inverse net replacing the LM fit by a single evaluation, null for the LM fit
+     * @see InverseNet
+     */
+    public String getInverseNetPath() {
+        return inverseNetPath;
+    }
+
+    public void setInverseNetPath(String inverseNetPath) {
+        this.inverseNetPath = inverseNetPath;
+    }
+
+    /**
+     * @return the sum_sq above which the result of the inverse net is flagged. Pixels to which the net cannot be
+     *         applied, and NaN residuals, are flagged as well
+     */
+    public double getInverseResidualThreshold() {
+        return inverseResidualThreshold;
+    }
+
+    public void setInverseResidualThreshold(double inverseResidualThreshold) {
+        this.inverseResidualThreshold = inverseResidualThreshold;
+    }
+
+    /**
+     * @return true if flagged results of the inverse net are refined by the LM fit, starting from the inverse estimate
+     */
+    public boolean isInverseRefinement() {
+        return inverseRefinement;
+    }
+
+    public void setInverseRefinement(boolean inverseRefinement) {
+        this.inverseRefinement = inverseRefinement;
+    }
+
+    /**
+     * @return the path to an inverse net providing the start parameters of the LM fit, null if not in use
+     */
+    public String getFirstGuessNetPath() {
+        return firstGuessNetPath;
+    }
+
+    public void setFirstGuessNetPath(String firstGuessNetPath) {
+        this.firstGuessNetPath = firstGuessNetPath;
+    }
+
+    /**
+     * @return the path to a table of simulated spectra providing the start parameters of the LM fit by nearest
+     *         neighbour search, null if not in use
+     */
+    public String getFirstGuessTablePath() {
+        return firstGuessTablePath;
+    }
+
+    public void setFirstGuessTablePath(String firstGuessTablePath) {
+        this.firstGuessTablePath = firstGuessTablePath;
+    }
+
+    /**
+     * @return the path to a table replacing the atmosphere nets of the fitted bands during the LM fit, null if not
+     *         in use. Pixels outside the table, e.g. off its temperature and salinity range, use the nets. With
+     *         the pruned MERIS nets the table of the AtmosphereLutTool is about five times slower than the nets and
+     *         the LM fit needs more iterations (50 vs 28 on average)
+     * @see AtmosphereLutTool
+     */
+    public String getAtmosphereLutPath() {
+        return atmosphereLutPath;
+    }
+
+    public void setAtmosphereLutPath(String atmosphereLutPath) {
+        this.atmosphereLutPath = atmosphereLutPath;
+    }
+
+    /**
+     * @return the name of the LM optimizer, "LevenbergMarquardt" for the siocs optimizer or
+     *         {@link BoundedLevenbergMarquardt#NAME} for the specialised one
+     */
+    public String getOptimizerName() {
+        return optimizerName;
+    }
+
+    public void setOptimizerName(String optimizerName) {
+        this.optimizerName = optimizerName;
+    }
+
+    /**
+     * @return true if the specialised optimizer uses the analytic Jacobian of the forward model instead of finite
+     *         differences
+     */
+    public boolean isAnalyticJacobian() {
+        return analyticJacobian;
+    }
+
+    public void setAnalyticJacobian(boolean analyticJacobian) {
+        this.analyticJacobian = analyticJacobian;
+    }
+
+    /**
+     * @return the number of iterations of the specialised optimizer which update the Jacobian by Broyden's rank-1
+     *         formula between full computations, 0 if the Jacobian is computed in every iteration
+     */
+    public int getBroydenRefreshInterval() {
+        return broydenRefreshInterval;
+    }
+
+    public void setBroydenRefreshInterval(int broydenRefreshInterval) {
+        this.broydenRefreshInterval = broydenRefreshInterval;
+    }
+
+    /**
+     * @return the number of pixels whose LM fits are advanced together when LevMarNN processes several pixels at
+     *         once, 0 if these pixels are processed one by one. Batching needs the specialised optimizer with
+     *         finite differences in double precision and the atmosphere nets
+     * @see BatchedLevenbergMarquardt
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+}
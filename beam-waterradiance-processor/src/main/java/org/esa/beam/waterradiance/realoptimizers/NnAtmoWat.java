@@ -1,8 +1,10 @@
 package org.esa.beam.waterradiance.realoptimizers;
 
+import org.esa.beam.ocnnrd.Sensor;
 import org.esa.beam.ocnnrd.SensorContext;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 class NnAtmoWat {
 
@@ -29,6 +31,7 @@ class NnAtmoWat {
     private static final String tup_net_name = "ac_tup_b29/17x37x31_118.5.net";
 
     private static final double DEG_2_RAD = (3.1415927 / 180.0);
+    private static final int NUM_ATMO_INPUTS = 9;
     private static final int[] lam29_meris11_ix = {1, 2, 4, 6, 11, 12, 15, 20, 22, 24, 25};
     private static final int[] lam29_modis9_ix = {1, 2, 4, 8, 9, 15, 18, 21, 26};
     private static final int[] lam29_seawifs8_ix = {1, 2, 4, 6, 10, 16, 23, 25};
@@ -37,7 +40,20 @@ class NnAtmoWat {
     private final a_nn tdown_net;
     private final a_nn tup_net;
     private final a_nn wat_net_for;
-    private final AlphaTab alphaTab;
+    private final NnStack atmo_nets; // fused rhopath, tdown and tup nets, null in single precision mode
+    // views of the nets pruned to the bands fitted by the LM, in the order of fit_ix
+    private final int[] fit_ix;
+    private final a_nn rhopath_net_fit;
+    private final a_nn tdown_net_fit;
+    private final a_nn tup_net_fit;
+    private final a_nn wat_net_fit;
+    private final NnStack atmo_nets_fit;
+    private final double[][] outnet_atmo_fit;
+    private final NnInputMemo atmo_memo;
+    private final NnInputMemo atmo_memo_fit;
+    private final NnPartialSums atmo_partial_sums;
+    private final NnPartialSums atmo_partial_sums_fit;
+    private final Sigmoid alphaTab;
     private final double[] innet;
     private final double[] tdown_nn;
     private final double[] rpath_nn;
@@ -45,32 +61,72 @@ class NnAtmoWat {
     private final double[] rw_nn;
     private final SensorContext sensorContext;
 
-    private double[] outnet1;
-    private double[] outnet2;
-    private double[] outnet3;
+    private final double[][] outnet_atmo;
+    private final double[] outnet1;
+    private final double[] outnet2;
+    private final double[] outnet3;
     private double[] rlw_nn;
     private final NnWater nnWater;
+    private final NnOutputCache wat_cache;
+    private final AtmosphereLut.PixelGrid atmo_lut_grid; // tabulated atmosphere of the fitted bands, null if not in use
+    private final double[][][] doutnet_atmo;
+    private final double[][] drlw_nn;
 
-    NnAtmoWat(AlphaTab alphaTab, SensorContext sensorContext) throws IOException {
+    NnAtmoWat(Sigmoid alphaTab, SensorContext sensorContext, LevMarNNConfig config) throws IOException {
+        final boolean singlePrecision = config.isSinglePrecision();
         this.alphaTab = alphaTab;
         this.sensorContext = sensorContext;
         final NnResources nnResources = new NnResources();
-        rhopath_net = LevMarNN.prepare_a_nn(nnResources.getAcForwardNetPath(rhopath_net_name));
-        tdown_net = LevMarNN.prepare_a_nn(nnResources.getAcForwardNetPath(tdown_net_name));
-        tup_net = LevMarNN.prepare_a_nn(nnResources.getAcForwardNetPath(tup_net_name));
-        wat_net_for = LevMarNN.prepare_a_nn(nnResources.getNetWaterPath());
+        final String[] atmoNetPaths = getAtmosphereNetPaths(nnResources);
+        final String rhopathNetPath = atmoNetPaths[0];
+        final String tdownNetPath = atmoNetPaths[1];
+        final String tupNetPath = atmoNetPaths[2];
+        rhopath_net = NnModelRegistry.getNet(rhopathNetPath, config);
+        tdown_net = NnModelRegistry.getNet(tdownNetPath, config);
+        tup_net = NnModelRegistry.getNet(tupNetPath, config);
+        wat_net_for = NnModelRegistry.getNet(nnResources.getNetWaterPath(), config);
+        atmo_nets = singlePrecision ? null : NnModelRegistry.getNetStack(config, null, rhopathNetPath, tdownNetPath, tupNetPath);
 
-        nnWater = new NnWater();
+        fit_ix = getFitBandIndices(sensorContext.getSensor());
+        rhopath_net_fit = NnModelRegistry.getNet(rhopathNetPath, config, fit_ix);
+        tdown_net_fit = NnModelRegistry.getNet(tdownNetPath, config, fit_ix);
+        tup_net_fit = NnModelRegistry.getNet(tupNetPath, config, fit_ix);
+        wat_net_fit = NnModelRegistry.getNet(nnResources.getNetWaterPath(), config, fit_ix);
+        atmo_nets_fit = singlePrecision ? null : NnModelRegistry.getNetStack(config, fit_ix, rhopathNetPath, tdownNetPath, tupNetPath);
+        outnet_atmo_fit = new double[3][fit_ix.length];
+        atmo_memo = new NnInputMemo(NUM_ATMO_INPUTS);
+        atmo_memo_fit = new NnInputMemo(NUM_ATMO_INPUTS);
+        // the leading inputs (sun zenith cosine and viewing direction) are constant for a pixel
+        atmo_partial_sums = new NnPartialSums(4, config.isRankOneFirstLayerUpdate());
+        atmo_partial_sums_fit = new NnPartialSums(4, config.isRankOneFirstLayerUpdate());
+
+        nnWater = new NnWater(config);
+        final int cacheSize = config.getWaterNetCacheSize();
+        wat_cache = cacheSize > 0 ? new NnOutputCache((int) wat_net_for.getNnin(), (int) wat_net_for.getNnout(), cacheSize, config.getWaterNetCachePrecision()) : null;
+
+        final String atmosphereLutPath = config.getAtmosphereLutPath();
+        if (atmosphereLutPath != null) {
+            final AtmosphereLut atmosphereLut = NnModelRegistry.getAtmosphereLut(atmosphereLutPath);
+            if (!Arrays.equals(atmosphereLut.getFitBandIndices(), fit_ix)) {
+                throw new IOException("The atmosphere LUT " + atmosphereLutPath + " does not match the bands of " + sensorContext.getSensor());
+            }
+            atmo_lut_grid = atmosphereLut.createPixelGrid();
+        } else {
+            atmo_lut_grid = null;
+        }
 
         innet = new double[10];
         tdown_nn = new double[29];
         tup_nn = new double[29];
-        outnet1 = new double[29];
-        outnet2 = new double[29];
-        outnet3 = new double[29];
+        outnet_atmo = new double[3][29];
+        outnet1 = outnet_atmo[0];
+        outnet2 = outnet_atmo[1];
+        outnet3 = outnet_atmo[2];
         rlw_nn = new double[29];
         rpath_nn = new double[29];
         rw_nn = new double[29];
+        doutnet_atmo = new double[3][fit_ix.length][3];
+        drlw_nn = new double[29][5];
     }
 
     /**
@@ -83,100 +139,55 @@ class NnAtmoWat {
      * nn_data:  additional data
      */
     NNReturnData nn_atmo_wat(final double[] conc_all, final double[] rtosa_nn, s_nn_atdata nn_data, NNReturnData nnReturnData) {
-        final double sun_thet = nn_data.getSun_thet();
-        final double view_zeni = nn_data.getView_zeni();
-        final double azi_diff_hl = nn_data.getAzi_diff_hl();
-        //azi_diff_hl=180.0-azi_diff_hl;
-        final double temperature = nn_data.getTemperature();
-        final double salinity = nn_data.getSalinity();
-        final double azimuth = DEG_2_RAD * azi_diff_hl;
-        final double elevation = DEG_2_RAD * view_zeni;
-
-        final double sin_elevation = Math.sin(elevation);
-        final double x = sin_elevation * Math.cos(azimuth);
-        final double y = sin_elevation * Math.sin(azimuth);
-        final double z = Math.cos(elevation);
-
-
-        final double log_aot = conc_all[0];
-        final double log_ang = conc_all[1];
-        final double log_wind = conc_all[2];
-//            log_conc_chl = conc_all[3];
-//            log_conc_det = conc_all[4];
-//            log_conc_gelb = conc_all[5];
-//            log_conc_min = conc_all[6];
-//            log_conc_wit = conc_all[7];
-
-        // innet[0] = sun_thet;
-        // CHANGED for new nets, RD 20130308:
-        innet[0] = Math.cos(DEG_2_RAD * sun_thet);
-
-        innet[1] = x;
-        innet[2] = y;
-        innet[3] = z;
-
-        innet[4] = log_aot;
-        innet[5] = Math.exp(log_ang);
-        innet[6] = Math.exp(log_wind);
-
-        innet[7] = temperature;
-        innet[8] = salinity;
-
-        outnet1 = LevMarNN.use_the_nn(rhopath_net, innet, outnet1, alphaTab);
-        outnet2 = LevMarNN.use_the_nn(tdown_net, innet, outnet2, alphaTab);
-        outnet3 = LevMarNN.use_the_nn(tup_net, innet, outnet3, alphaTab);
+        setAtmosphereInputs(conc_all, nn_data);
 
 //        final int[] nnOutputIndices = sensorContext.getNnOutputIndices();
         int nlam = rtosa_nn.length; // if n == 11, then iteration for LM fit, if > 11, then computation for full spectrum
         //int nlam = nnOutputIndices.length; // if n == 11, then iteration for LM fit, if > 11, then computation for full spectrum
-        if (nlam == 11) {
-            for (int ilam = 0; ilam < nlam; ilam++) {
-                final int ix = lam29_meris11_ix[ilam];
-                rpath_nn[ilam] = outnet1[ix];
-                tdown_nn[ilam] = outnet2[ix];
-                tup_nn[ilam] = outnet3[ix];
-            }
-            nnReturnData = nnWater.nn_water(conc_all, rlw_nn, rtosa_nn.length, nn_data, wat_net_for, alphaTab, nnReturnData);
-            rlw_nn = nnReturnData.getOutputValues();
-            for (int ilam = 0; ilam < 11; ilam++) {
-                // @todo 1 tb/tb - check with nns if we need to multiply by Pi here
-                rw_nn[ilam] = rlw_nn[ilam];
-                rtosa_nn[ilam] = rpath_nn[ilam] + rw_nn[ilam] * tdown_nn[ilam] * tup_nn[ilam];
-            }
-        } else if (nlam == 9) {
-            for (int ilam = 0; ilam < nlam; ilam++) {
-                final int ix = lam29_modis9_ix[ilam];
-                rpath_nn[ilam] = outnet1[ix];
-                tdown_nn[ilam] = outnet2[ix];
-                tup_nn[ilam] = outnet3[ix];
+        if (nlam == fit_ix.length) {
+            // LM iteration: the pruned nets deliver the fitted bands only
+            if (prepareAtmosphereLut(nn_data)) {
+                atmo_lut_grid.interpolate(conc_all[0], conc_all[1], conc_all[2], outnet_atmo_fit, null);
+            } else if (!atmo_memo_fit.contains(rhopath_net_fit, innet)) {
+                if (atmo_nets_fit != null) {
+                    atmo_nets_fit.use_the_nn(innet, outnet_atmo_fit, atmo_partial_sums_fit, alphaTab);
+                } else {
+                    LevMarNN.use_the_nn(rhopath_net_fit, innet, outnet_atmo_fit[0], alphaTab);
+                    LevMarNN.use_the_nn(tdown_net_fit, innet, outnet_atmo_fit[1], alphaTab);
+                    LevMarNN.use_the_nn(tup_net_fit, innet, outnet_atmo_fit[2], alphaTab);
+                }
+                atmo_memo_fit.put(rhopath_net_fit, innet);
             }
-            nnReturnData = nnWater.nn_water(conc_all, rlw_nn, rtosa_nn.length, nn_data, wat_net_for, alphaTab, nnReturnData);
-            rlw_nn = nnReturnData.getOutputValues();
-            for (int ilam = 0; ilam < nlam; ilam++) {
-                rw_nn[ilam] = rlw_nn[ilam];
-                rtosa_nn[ilam] = rpath_nn[ilam] + rw_nn[ilam] * tdown_nn[ilam] * tup_nn[ilam];
-            }
-        } else if (nlam == 8) {
-            for (int ilam = 0; ilam < nlam; ilam++) {
-                final int ix = lam29_seawifs8_ix[ilam];
-                rpath_nn[ilam] = outnet1[ix];
-                tdown_nn[ilam] = outnet2[ix];
-                tup_nn[ilam] = outnet3[ix];
-            }
-            nnReturnData = nnWater.nn_water(conc_all, rlw_nn, rtosa_nn.length, nn_data, wat_net_for, alphaTab, nnReturnData);
+            nnReturnData = nnWater.nn_water(conc_all, rlw_nn, nlam, nn_data, wat_net_fit, alphaTab, nnReturnData);
             rlw_nn = nnReturnData.getOutputValues();
             for (int ilam = 0; ilam < nlam; ilam++) {
+                // @todo 1 tb/tb - check with nns if we need to multiply by Pi here
+                rpath_nn[ilam] = outnet_atmo_fit[0][ilam];
+                tdown_nn[ilam] = outnet_atmo_fit[1][ilam];
+                tup_nn[ilam] = outnet_atmo_fit[2][ilam];
                 rw_nn[ilam] = rlw_nn[ilam];
                 rtosa_nn[ilam] = rpath_nn[ilam] + rw_nn[ilam] * tdown_nn[ilam] * tup_nn[ilam];
             }
         } else {
+            if (!atmo_memo.contains(rhopath_net, innet)) {
+                if (atmo_nets != null) {
+                    atmo_nets.use_the_nn(innet, outnet_atmo, atmo_partial_sums, alphaTab);
+                } else {
+                    LevMarNN.use_the_nn(rhopath_net, innet, outnet1, alphaTab);
+                    LevMarNN.use_the_nn(tdown_net, innet, outnet2, alphaTab);
+                    LevMarNN.use_the_nn(tup_net, innet, outnet3, alphaTab);
+                }
+                atmo_memo.put(rhopath_net, innet);
+            }
+
             nlam = 29; // all bands for other calculations
             for (int ilam = 0; ilam < nlam; ilam++) {
                 rpath_nn[ilam] = outnet1[ilam];
                 tdown_nn[ilam] = outnet2[ilam];
                 tup_nn[ilam] = outnet3[ilam];
             }
-            nnReturnData = nnWater.nn_water(conc_all, rlw_nn, nlam, nn_data, wat_net_for, alphaTab, nnReturnData);
+            // only the final evaluations use the cache, it would hide the perturbations of the LM iterations
+            nnReturnData = nnWater.nn_water(conc_all, rlw_nn, nlam, nn_data, wat_net_for, wat_cache, alphaTab, nnReturnData);
             rlw_nn = nnReturnData.getOutputValues();
             nn_data = nnReturnData.getNn_atdata();
             for (int ilam = 0; ilam < nlam; ilam++) {
@@ -194,4 +205,146 @@ class NnAtmoWat {
         nnReturnData.setNn_atdata(nn_data);
         return nnReturnData;
     }
+
+    /**
+     * Computes the modelled TOSA reflectances of the fitted bands like nn_atmo_wat, together with their analytic
+     * derivatives with respect to all eight parameters. The derivatives of the atmosphere and water nets are
+     * propagated through the layers of the nets, including the exp() transform of angstrom and wind speed.
+     *
+     * @param conc_all the parameters
+     * @param rtosa_nn the modelled reflectances of the fitted bands (output)
+     * @param jacobian the derivatives [band][parameter] (output)
+     * @param nn_data  additional data
+     */
+    void nn_atmo_wat_jacobian(double[] conc_all, double[] rtosa_nn, double[][] jacobian, s_nn_atdata nn_data) {
+        setAtmosphereInputs(conc_all, nn_data);
+
+        final double[] outnet1_fit = outnet_atmo_fit[0];
+        final double[] outnet2_fit = outnet_atmo_fit[1];
+        final double[] outnet3_fit = outnet_atmo_fit[2];
+        final double dang;
+        final double dwind;
+        if (prepareAtmosphereLut(nn_data)) {
+            // the table is interpolated in the log parameters directly
+            atmo_lut_grid.interpolate(conc_all[0], conc_all[1], conc_all[2], outnet_atmo_fit, doutnet_atmo);
+            dang = 1.0;
+            dwind = 1.0;
+        } else {
+            LevMarNN.use_the_nn_jacobian(rhopath_net_fit, innet, outnet1_fit, 4, 3, doutnet_atmo[0], alphaTab);
+            LevMarNN.use_the_nn_jacobian(tdown_net_fit, innet, outnet2_fit, 4, 3, doutnet_atmo[1], alphaTab);
+            LevMarNN.use_the_nn_jacobian(tup_net_fit, innet, outnet3_fit, 4, 3, doutnet_atmo[2], alphaTab);
+            atmo_memo_fit.put(rhopath_net_fit, innet);
+            // d exp(p) / dp = exp(p) for angstrom and wind speed
+            dang = innet[5];
+            dwind = innet[6];
+        }
+
+        final int nlam = fit_ix.length;
+        nnWater.nn_water_jacobian(conc_all, rlw_nn, drlw_nn, nlam, nn_data, wat_net_fit, alphaTab);
+
+        for (int ilam = 0; ilam < nlam; ilam++) {
+            final double rpath = outnet1_fit[ilam];
+            final double tdown = outnet2_fit[ilam];
+            final double tup = outnet3_fit[ilam];
+            final double rw = rlw_nn[ilam];
+            rtosa_nn[ilam] = rpath + rw * tdown * tup;
+
+            final double[] drpath = doutnet_atmo[0][ilam];
+            final double[] dtdown = doutnet_atmo[1][ilam];
+            final double[] dtup = doutnet_atmo[2][ilam];
+            final double[] row = jacobian[ilam];
+            for (int k = 0; k < 3; k++) {
+                row[k] = drpath[k] + rw * (dtdown[k] * tup + tdown * dtup[k]);
+            }
+            row[1] *= dang;
+            row[2] *= dwind;
+
+            final double tdownTup = tdown * tup;
+            for (int k = 0; k < 5; k++) {
+                row[3 + k] = drlw_nn[ilam][k] * tdownTup;
+            }
+        }
+    }
+
+    /**
+     * @return the cache of the water net outputs of the final evaluations, null if not in use
+     */
+    NnOutputCache getWaterNetCache() {
+        return wat_cache;
+    }
+
+    /**
+     * @return the paths to the rhopath, tdown and tup nets
+     */
+    static String[] getAtmosphereNetPaths(NnResources nnResources) {
+        return new String[]{
+                nnResources.getAcForwardNetPath(rhopath_net_name),
+                nnResources.getAcForwardNetPath(tdown_net_name),
+                nnResources.getAcForwardNetPath(tup_net_name)
+        };
+    }
+
+    static int[] getFitBandIndices(Sensor sensor) {
+        if (sensor == Sensor.MODIS) {
+            return lam29_modis9_ix;
+        } else if (sensor == Sensor.SEAWIFS) {
+            return lam29_seawifs8_ix;
+        }
+        return lam29_meris11_ix;
+    }
+
+    // true if the atmosphere table is in use and covers the pixel, otherwise the nets are used
+    private boolean prepareAtmosphereLut(s_nn_atdata nn_data) {
+        return atmo_lut_grid != null &&
+               atmo_lut_grid.prepare(nn_data.getSun_thet(), nn_data.getView_zeni(), nn_data.getAzi_diff_hl(),
+                                     nn_data.getTemperature(), nn_data.getSalinity());
+    }
+
+    private void setAtmosphereInputs(double[] conc_all, s_nn_atdata nn_data) {
+        setAtmosphereInputs(nn_data.getSun_thet(), nn_data.getView_zeni(), nn_data.getAzi_diff_hl(),
+                            nn_data.getTemperature(), nn_data.getSalinity(), conc_all, innet);
+    }
+
+    /**
+     * Computes the inputs of the atmosphere nets.
+     *
+     * @param conc_all the parameters, the first three are log aot, log angstrom and log wind
+     * @param innet    the net inputs (output)
+     */
+    static void setAtmosphereInputs(double sun_thet, double view_zeni, double azi_diff_hl, double temperature,
+                                    double salinity, double[] conc_all, double[] innet) {
+        //azi_diff_hl=180.0-azi_diff_hl;
+        final double azimuth = DEG_2_RAD * azi_diff_hl;
+        final double elevation = DEG_2_RAD * view_zeni;
+
+        final double sin_elevation = Math.sin(elevation);
+        final double x = sin_elevation * Math.cos(azimuth);
+        final double y = sin_elevation * Math.sin(azimuth);
+        final double z = Math.cos(elevation);
+
+
+        final double log_aot = conc_all[0];
+        final double log_ang = conc_all[1];
+        final double log_wind = conc_all[2];
+//            log_conc_chl = conc_all[3];
+//            log_conc_det = conc_all[4];
+//            log_conc_gelb = conc_all[5];
+//            log_conc_min = conc_all[6];
+//            log_conc_wit = conc_all[7];
+
+        // innet[0] = sun_thet;
+        // CHANGED for new nets, RD 20130308:
+        innet[0] = Math.cos(DEG_2_RAD * sun_thet);
+
+        innet[1] = x;
+        innet[2] = y;
+        innet[3] = z;
+
+        innet[4] = log_aot;
+        innet[5] = Math.exp(log_ang);
+        innet[6] = Math.exp(log_wind);
+
+        innet[7] = temperature;
+        innet[8] = salinity;
+    }
 }
@@ -0,0 +1,183 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.esa.beam.ocnnrd.SensorContext;
+
+import java.io.IOException;
+
+/**
+ * Batched forward model of the LM fit: the TOSA reflectances of the fitted bands as computed by
+ * {@link NnAtmoWat#nn_atmo_wat} during the iterations, for many parameter vectors at once. The atmosphere nets and
+ * the water net pruned to the fitted bands are evaluated for all columns of a batch by matrix-matrix products. The
+ * geometry, temperature and salinity are set per lane.
+ * <p/>
+ * The columns of a forward difference Jacobian vary either the atmosphere or the water parameters of the lane, the
+ * outputs of the other nets are taken from the lane's first column instead of being evaluated again.
+ * <p/>
+ * The nets are loaded with the input transform and evaluated with the activation function of the configuration, in
+ * double precision. The first layer caches and generated evaluators of NnAtmoWat are not used, so the results agree
+ * with nn_atmo_wat to rounding. The atmosphere table is not supported.
+ */
+class NnAtmoWatBatch implements BatchForwardModel {
+
+    private static final int NUM_ATMO_INPUTS = 9;
+    private static final int NUM_WATER_INPUTS = 10;
+    private static final int NUM_LANE_INPUTS = 5;
+
+    private final a_nn rhopath_net_fit;
+    private final a_nn tdown_net_fit;
+    private final a_nn tup_net_fit;
+    private final a_nn wat_net_fit;
+    private final Sigmoid alphaTab;
+    private final int numBands;
+
+    // the inputs constant for a lane: the direction inputs of the atmosphere nets and the geometry of the water net
+    private final double[][] laneAtmoInputs;
+    private final double[][] laneWaterInputs;
+    private final double[] temperature;
+    private final double[] salinity;
+    private final double[] innet;
+    private final double[] conc_all;
+
+    private double[][] atmoIn;
+    private double[][] waterIn;
+    private double[][] rpath;
+    private double[][] tdown;
+    private double[][] tup;
+    private double[][] rlw;
+    private int[] atmoColumns;
+    private int[] waterColumns;
+
+    /**
+     * @param alphaTab      the activation function table
+     * @param sensorContext the sensor, defining the fitted bands
+     * @param config        the evaluation settings, defining the input transform of the nets
+     * @param numLanes      the maximum number of lanes
+     * @throws IOException on failures loading the nets
+     */
+    NnAtmoWatBatch(Sigmoid alphaTab, SensorContext sensorContext, LevMarNNConfig config, int numLanes) throws IOException {
+        this.alphaTab = alphaTab;
+        final NnResources nnResources = new NnResources();
+        final String[] atmoNetPaths = NnAtmoWat.getAtmosphereNetPaths(nnResources);
+        final int[] fit_ix = NnAtmoWat.getFitBandIndices(sensorContext.getSensor());
+        rhopath_net_fit = NnModelRegistry.getNet(atmoNetPaths[0], config, fit_ix);
+        tdown_net_fit = NnModelRegistry.getNet(atmoNetPaths[1], config, fit_ix);
+        tup_net_fit = NnModelRegistry.getNet(atmoNetPaths[2], config, fit_ix);
+        wat_net_fit = NnModelRegistry.getNet(nnResources.getNetWaterPath(), config, fit_ix);
+        numBands = fit_ix.length;
+
+        laneAtmoInputs = new double[4][numLanes];
+        laneWaterInputs = new double[NUM_LANE_INPUTS][numLanes];
+        temperature = new double[numLanes];
+        salinity = new double[numLanes];
+        innet = new double[NUM_ATMO_INPUTS];
+        conc_all = new double[BoundedLevenbergMarquardt.NUM_PARAMETERS];
+    }
+
+    @Override
+    public int getNumberOfSignalBands() {
+        return numBands;
+    }
+
+    /**
+     * Sets the inputs of a lane which are constant during the fit.
+     *
+     * @param lane    the lane
+     * @param nn_data the geometry, temperature and salinity of the pixel
+     */
+    void setPixel(int lane, s_nn_atdata nn_data) {
+        NnAtmoWat.setAtmosphereInputs(nn_data.getSun_thet(), nn_data.getView_zeni(), nn_data.getAzi_diff_hl(),
+                                      nn_data.getTemperature(), nn_data.getSalinity(), conc_all, innet);
+        for (int i = 0; i < 4; i++) {
+            laneAtmoInputs[i][lane] = innet[i];
+        }
+        temperature[lane] = innet[7];
+        salinity[lane] = innet[8];
+
+        laneWaterInputs[0][lane] = nn_data.getSun_thet();
+        laneWaterInputs[1][lane] = nn_data.getView_zeni();
+        laneWaterInputs[2][lane] = nn_data.getAzi_diff_hl();
+        laneWaterInputs[3][lane] = nn_data.getTemperature();
+        laneWaterInputs[4][lane] = nn_data.getSalinity();
+    }
+
+    @Override
+    public void getModeledSignals(int[] lanes, double[][] variables, int numColumns, double[][] signals) {
+        ensureCapacity(numColumns);
+        int numAtmoColumns = 0;
+        int numWaterColumns = 0;
+        int first = 0;
+        for (int c = 0; c < numColumns; c++) {
+            final int lane = lanes[c];
+            if (c == 0 || lanes[c - 1] != lane) {
+                first = c;
+            }
+            if (c != first && equalVariables(variables, 0, 3, c, first)) {
+                atmoColumns[c] = atmoColumns[first];
+            } else {
+                for (int i = 0; i < 4; i++) {
+                    atmoIn[i][numAtmoColumns] = laneAtmoInputs[i][lane];
+                }
+                atmoIn[4][numAtmoColumns] = variables[0][c];
+                atmoIn[5][numAtmoColumns] = Math.exp(variables[1][c]);
+                atmoIn[6][numAtmoColumns] = Math.exp(variables[2][c]);
+                atmoIn[7][numAtmoColumns] = temperature[lane];
+                atmoIn[8][numAtmoColumns] = salinity[lane];
+                atmoColumns[c] = numAtmoColumns++;
+            }
+            if (c != first && equalVariables(variables, 3, 8, c, first)) {
+                waterColumns[c] = waterColumns[first];
+            } else {
+                for (int i = 0; i < NUM_LANE_INPUTS; i++) {
+                    waterIn[i][numWaterColumns] = laneWaterInputs[i][lane];
+                }
+                for (int i = NUM_LANE_INPUTS; i < NUM_WATER_INPUTS; i++) {
+                    // log_conc_chl, log_conc_det, log_conc_gelb, log_conc_min, log_bwit
+                    waterIn[i][numWaterColumns] = variables[i - 2][c];
+                }
+                waterColumns[c] = numWaterColumns++;
+            }
+        }
+
+        LevMarNN.use_the_nn(rhopath_net_fit, atmoIn, rpath, numAtmoColumns, alphaTab);
+        LevMarNN.use_the_nn(tdown_net_fit, atmoIn, tdown, numAtmoColumns, alphaTab);
+        LevMarNN.use_the_nn(tup_net_fit, atmoIn, tup, numAtmoColumns, alphaTab);
+        LevMarNN.use_the_nn(wat_net_fit, waterIn, rlw, numWaterColumns, alphaTab);
+
+        for (int ilam = 0; ilam < numBands; ilam++) {
+            final double[] rpath_lam = rpath[ilam];
+            final double[] tdown_lam = tdown[ilam];
+            final double[] tup_lam = tup[ilam];
+            final double[] rlw_lam = rlw[ilam];
+            final double[] signal = signals[ilam];
+            for (int c = 0; c < numColumns; c++) {
+                final int a = atmoColumns[c];
+                final double rw = Math.exp(rlw_lam[waterColumns[c]]);
+                signal[c] = rpath_lam[a] + rw * tdown_lam[a] * tup_lam[a];
+            }
+        }
+    }
+
+    // true if the variables from (inclusive) to (exclusive) of both columns are equal
+    private static boolean equalVariables(double[][] variables, int from, int to, int column, int otherColumn) {
+        for (int j = from; j < to; j++) {
+            if (variables[j][column] != variables[j][otherColumn]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // (re-)allocates the buffers of the net inputs and outputs if they are too small for the number of columns
+    private void ensureCapacity(int numColumns) {
+        if (atmoIn == null || atmoIn[0].length < numColumns) {
+            atmoIn = new double[NUM_ATMO_INPUTS][numColumns];
+            waterIn = new double[NUM_WATER_INPUTS][numColumns];
+            rpath = new double[numBands][numColumns];
+            tdown = new double[numBands][numColumns];
+            tup = new double[numBands][numColumns];
+            rlw = new double[numBands][numColumns];
+            atmoColumns = new int[numColumns];
+            waterColumns = new int[numColumns];
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes neural nets in a compact binary format. Loading a binary net is a memory mapping and a few bulk
+ * copies instead of parsing thousands of text lines.
+ * <p/>
+ * Layout (big endian):
+ * <pre>
+ *     int      magic, version
+ *     long     length and CRC32 checksum of the ASCII source file, -1 and 0 if unknown
+ *     int      nnin, nnout
+ *     double   inmin[nnin], inmax[nnin], outmin[nnout], outmax[nnout]
+ *     int      nplanes, size[nplanes], padding to 8 bytes
+ *     double   layer[nplanes - 1][size[pl + 1] * size[pl] + size[pl + 1]]  (packed weights and biases)
+ * </pre>
+ * <p/>
+ * Use the main method to convert ASCII .net files. A binary file is only read if it was converted from the current
+ * content of its ASCII file, a binary file without ASCII file is always read.
+ */
+class NnBinaryFile {
+
+    static final String EXTENSION = ".bnet";
+
+    private static final int MAGIC = 0x4E4E4231; // "NNB1"
+    private static final int VERSION = 2;
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Retrieves the path of the binary file belonging to an ASCII net file.
+     *
+     * @param netPath the path to the ASCII .net file
+     * @return the path to the binary file
+     */
+    static String getBinaryPath(String netPath) {
+        if (netPath.endsWith(".net")) {
+            return netPath.substring(0, netPath.length() - 4) + EXTENSION;
+        }
+        return netPath + EXTENSION;
+    }
+
+    static void write(a_nn net, File file) throws IOException {
+        write(net, null, file);
+    }
+
+    /**
+     * Writes a net, recording length and checksum of the ASCII file it was read from.
+     *
+     * @param net        the net
+     * @param sourceFile the ASCII file of the net, null if unknown
+     * @param file       the binary file
+     * @throws IOException on failures reading the source file or writing the binary file
+     */
+    static void write(a_nn net, File sourceFile, File file) throws IOException {
+        final long sourceLength = sourceFile != null ? sourceFile.length() : -1;
+        final long sourceChecksum = sourceFile != null ? getChecksum(sourceFile) : 0;
+        final feedforward ff = net.getNn();
+        final int[] size = ff.getSize();
+        final int nplanes = (int) ff.getNplanes();
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceLength);
+            out.writeLong(sourceChecksum);
+            out.writeInt((int) net.getNnin());
+            out.writeInt((int) net.getNnout());
+            writeDoubles(out, net.getInmin());
+            writeDoubles(out, net.getInmax());
+            writeDoubles(out, net.getOutmin());
+            writeDoubles(out, net.getOutmax());
+            out.writeInt(nplanes);
+            for (int i = 0; i < nplanes; i++) {
+                out.writeInt(size[i]);
+            }
+            if ((nplanes + 1) % 2 != 0) {
+                out.writeInt(0);
+            }
+            for (double[] layer : ff.getLayer()) {
+                writeDoubles(out, layer);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static a_nn read(File file) throws IOException {
+        return read(file, null);
+    }
+
+    /**
+     * Reads a net.
+     *
+     * @param file       the binary file
+     * @param sourceFile the ASCII file of the net, null or non-existing to skip the check
+     * @return the net
+     * @throws IOException if the file is invalid, or if it was not converted from the current content of the ASCII
+     *                     file
+     */
+    static a_nn read(File file, File sourceFile) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a binary net file: " + file.getPath());
+            }
+            final int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary net version " + version + ": " + file.getPath());
+            }
+            final long sourceLength = buffer.getLong();
+            final long sourceChecksum = buffer.getLong();
+            if (sourceFile != null && sourceFile.isFile()
+                && (sourceLength != sourceFile.length() || sourceChecksum != getChecksum(sourceFile))) {
+                throw new IOException("Binary net file " + file.getPath() + " is out of date, " +
+                                      sourceFile.getPath() + " has changed");
+            }
+
+            final a_nn res = new a_nn();
+            final int nnin = buffer.getInt();
+            final int nnout = buffer.getInt();
+            res.setNnin(nnin);
+            res.setNnout(nnout);
+            res.setInmin(readDoubles(buffer, nnin));
+            res.setInmax(readDoubles(buffer, nnin));
+            res.setOutmin(readDoubles(buffer, nnout));
+            res.setOutmax(readDoubles(buffer, nnout));
+
+            final int nplanes = buffer.getInt();
+            final int[] size = new int[nplanes];
+            for (int i = 0; i < nplanes; i++) {
+                size[i] = buffer.getInt();
+            }
+            if ((nplanes + 1) % 2 != 0) {
+                buffer.getInt();
+            }
+            final double[][] layer = new double[nplanes - 1][];
+            for (int pl = 0; pl < nplanes - 1; pl++) {
+                layer[pl] = readDoubles(buffer, size[pl + 1] * size[pl] + size[pl + 1]);
+            }
+
+            final feedforward ff = new feedforward();
+            ff.setNplanes(nplanes);
+            ff.setSize(size);
+            ff.setLayer(layer);
+            ff.setAct(LevMarNN.make_vecv(nplanes, size));
+            res.setNn(ff);
+            return res;
+        } catch (RuntimeException e) {
+            // buffer underflow on truncated files
+            throw new IOException("Corrupt binary net file: " + file.getPath(), e);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Converts ASCII .net files to the binary format, the binary file is written next to the input file.
+     *
+     * @param args the paths of the .net files
+     * @throws IOException on conversion failures
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: NnBinaryFile <net-file> ...");
+            System.exit(1);
+        }
+        for (String netPath : args) {
+            final a_nn net = LevMarNN.prepare_a_nn_from_text(netPath);
+            final File binaryFile = new File(getBinaryPath(netPath));
+            write(net, new File(netPath), binaryFile);
+            System.out.println(netPath + " -> " + binaryFile.getPath());
+        }
+    }
+
+    /**
+     * @param file a file
+     * @return the CRC32 checksum of the content of the file
+     * @throws IOException on failures reading the file
+     */
+    static long getChecksum(File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] bytes = new byte[BUFFER_SIZE];
+        final InputStream in = new FileInputStream(file);
+        try {
+            int count;
+            while ((count = in.read(bytes)) > 0) {
+                crc.update(bytes, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    private static double[] readDoubles(MappedByteBuffer buffer, int count) {
+        final double[] values = new double[count];
+        buffer.asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + count * 8);
+        return values;
+    }
+}
@@ -0,0 +1,207 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Constructor;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Generates, compiles and loads specialised {@link NnEvaluator} classes per net topology. The generated code has
+ * the layer sizes as constants and the scalar products unrolled, the weights are passed to the constructor and kept
+ * in final fields, so one class serves all nets of a topology. The summation order equals the one of
+ * {@link LevMarNN#mvp(double[], double[], int, double[], int, Sigmoid)}, the results are identical.
+ * <p/>
+ * The classes are compiled in-process with the system Java compiler and cached in a directory, so that later runs
+ * only load them. A JDK is required for the first run with a new topology.
+ */
+class NnCodeGenerator {
+
+    // increment whenever the generated code changes, outdated classes in the cache are not used then
+    private static final int GENERATOR_VERSION = 1;
+    private static final String PACKAGE_NAME = "org.esa.beam.waterradiance.realoptimizers.generated";
+
+    private final File cacheDir;
+    private final Map<String, Class<?>> evaluatorClasses;
+    private URLClassLoader classLoader;
+
+    /**
+     * @param cacheDir the directory the generated classes are cached in
+     */
+    NnCodeGenerator(File cacheDir) {
+        this.cacheDir = cacheDir;
+        evaluatorClasses = new HashMap<String, Class<?>>();
+    }
+
+    /**
+     * Creates an evaluator for the given net, generating and compiling its class if not yet in the cache.
+     *
+     * @param ff the net
+     * @return the evaluator, bound to the layers of the net
+     * @throws IOException on failures generating, compiling or loading the class
+     */
+    synchronized NnEvaluator createEvaluator(feedforward ff) throws IOException {
+        final String className = getClassName(ff.getSize());
+        Class<?> evaluatorClass = evaluatorClasses.get(className);
+        if (evaluatorClass == null) {
+            final File classFile = new File(getPackageDir(cacheDir), className + ".class");
+            if (!classFile.isFile()) {
+                compile(className, generateSource(className, ff.getSize()));
+            }
+            evaluatorClass = loadClass(className);
+            evaluatorClasses.put(className, evaluatorClass);
+        }
+        try {
+            final Constructor<?> constructor = evaluatorClass.getConstructor(double[][].class);
+            return (NnEvaluator) constructor.newInstance(new Object[]{ff.getLayer()});
+        } catch (Exception e) {
+            throw new IOException("Unable to instantiate " + className + ": " + e.getMessage());
+        }
+    }
+
+    static String getClassName(int[] size) {
+        final StringBuilder name = new StringBuilder("NnEvaluator_v").append(GENERATOR_VERSION);
+        for (int i = 0; i < size.length; i++) {
+            name.append(i == 0 ? '_' : 'x').append(size[i]);
+        }
+        return name.toString();
+    }
+
+    static String generateSource(String className, int[] size) {
+        final int numLayers = size.length - 1;
+        final StringBuilder src = new StringBuilder();
+        src.append("package ").append(PACKAGE_NAME).append(";\n\n");
+        src.append("import org.esa.beam.waterradiance.realoptimizers.NnEvaluator;\n\n");
+        src.append("/**\n * Generated by NnCodeGenerator, do not edit.\n */\n");
+        src.append("public final class ").append(className).append(" implements NnEvaluator {\n\n");
+        for (int pl = 0; pl < numLayers; pl++) {
+            src.append("    private final double[] layer").append(pl).append(";\n");
+        }
+        src.append("\n    public ").append(className).append("(double[][] layer) {\n");
+        for (int pl = 0; pl < numLayers; pl++) {
+            src.append("        layer").append(pl).append(" = layer[").append(pl).append("];\n");
+        }
+        src.append("    }\n\n");
+
+        src.append("    public void computeLayer(int plane, double[] act, double[] out) {\n");
+        src.append("        switch (plane) {\n");
+        for (int pl = 0; pl < numLayers; pl++) {
+            src.append("            case ").append(pl).append(":\n");
+            src.append("                layer").append(pl).append("(act, out);\n");
+            src.append("                break;\n");
+        }
+        src.append("            default:\n");
+        src.append("                throw new IllegalArgumentException(\"No layer for plane \" + plane);\n");
+        src.append("        }\n");
+        src.append("    }\n");
+
+        for (int pl = 0; pl < numLayers; pl++) {
+            final int n = size[pl];
+            final int m = size[pl + 1];
+            src.append("\n    private void layer").append(pl).append("(double[] act, double[] out) {\n");
+            src.append("        final double[] w = layer").append(pl).append(";\n");
+            for (int k = 0; k < n; k++) {
+                src.append("        final double a").append(k).append(" = act[").append(k).append("];\n");
+            }
+            src.append("        for (int i = 0; i < ").append(m).append("; i++) {\n");
+            src.append("            final int o = i * ").append(n).append(";\n");
+            src.append("            double sum = 0.;\n");
+            for (int k = 0; k < n; k++) {
+                src.append("            sum += w[o + ").append(k).append("] * a").append(k).append(";\n");
+            }
+            src.append("            out[i] = w[").append(m * n).append(" + i] + sum;\n");
+            src.append("        }\n");
+            src.append("    }\n");
+        }
+        src.append("}\n");
+        return src.toString();
+    }
+
+    private void compile(String className, String source) throws IOException {
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IOException("No Java compiler available, a JDK is required to generate " + className);
+        }
+
+        // compile into a private directory and move the class into the cache, other processes may use it already
+        final File workDir = new File(cacheDir, "tmp-" + className + "-" + System.nanoTime());
+        final File sourceDir = getPackageDir(workDir);
+        if (!sourceDir.mkdirs()) {
+            throw new IOException("Unable to create directory " + sourceDir);
+        }
+        try {
+            final File sourceFile = new File(sourceDir, className + ".java");
+            final Writer writer = new FileWriter(sourceFile);
+            try {
+                writer.write(source);
+            } finally {
+                writer.close();
+            }
+
+            final int status = compiler.run(null, null, null,
+                                            "-nowarn", "-g:none",
+                                            "-classpath", getClassPath(),
+                                            "-d", workDir.getPath(),
+                                            sourceFile.getPath());
+            if (status != 0) {
+                throw new IOException("Compilation of " + className + " failed");
+            }
+
+            final File packageDir = getPackageDir(cacheDir);
+            if (!packageDir.isDirectory() && !packageDir.mkdirs()) {
+                throw new IOException("Unable to create directory " + packageDir);
+            }
+            final File classFile = new File(packageDir, className + ".class");
+            if (!new File(sourceDir, className + ".class").renameTo(classFile) && !classFile.isFile()) {
+                throw new IOException("Unable to move " + className + " into the cache " + cacheDir);
+            }
+        } finally {
+            deleteTree(workDir);
+        }
+    }
+
+    private Class<?> loadClass(String className) throws IOException {
+        if (classLoader == null) {
+            classLoader = new URLClassLoader(new URL[]{cacheDir.toURI().toURL()}, NnEvaluator.class.getClassLoader());
+        }
+        try {
+            return classLoader.loadClass(PACKAGE_NAME + "." + className);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to load " + className + ": " + e.getMessage());
+        }
+    }
+
+    private static String getClassPath() throws IOException {
+        try {
+            final URL location = NnEvaluator.class.getProtectionDomain().getCodeSource().getLocation();
+            return new File(location.toURI()).getPath();
+        } catch (URISyntaxException e) {
+            throw new IOException(e.getMessage());
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to locate the class path of " + NnEvaluator.class.getName());
+        }
+    }
+
+    private static File getPackageDir(File rootDir) {
+        return new File(rootDir, PACKAGE_NAME.replace('.', File.separatorChar));
+    }
+
+    private static void deleteTree(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+/**
+ * Specialised evaluator of the layers of a net with a fixed topology, generated at runtime by
+ * {@link NnCodeGenerator}. Public because the generated classes are defined by their own class loader.
+ */
+public interface NnEvaluator {
+
+    /**
+     * Computes the pre-activations, bias plus weighted sum of the source activations, of the target plane of a layer.
+     *
+     * @param plane the index of the source plane
+     * @param act   the activations of the source plane
+     * @param out   the pre-activations of the target plane (output)
+     */
+    void computeLayer(int plane, double[] act, double[] out);
+}
@@ -0,0 +1,53 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+/**
+ * Remembers the net and the input vector of the last evaluation whose outputs are still held in the output buffer,
+ * so that a repeated evaluation with identical inputs can be skipped. During LM iterations and finite difference
+ * Jacobians consecutive calls often change only the atmosphere or only the water parameters, then the outputs of
+ * the other nets can be reused. Not thread safe, each thread has its own memo.
+ */
+class NnInputMemo {
+
+    private final double[] inputs;
+    private a_nn net;
+
+    NnInputMemo(int numInputs) {
+        inputs = new double[numInputs];
+        net = null;
+    }
+
+    /**
+     * @param net    the net to be evaluated
+     * @param inputs the inputs of the evaluation
+     * @return true if the last remembered evaluation used the same net and identical inputs
+     */
+    boolean contains(a_nn net, double[] inputs) {
+        if (net != this.net) {
+            return false;
+        }
+        for (int i = 0; i < this.inputs.length; i++) {
+            if (inputs[i] != this.inputs[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remembers an evaluation, to be called after the outputs have been written to the output buffer.
+     *
+     * @param net    the net evaluated
+     * @param inputs the inputs of the evaluation
+     */
+    void put(a_nn net, double[] inputs) {
+        System.arraycopy(inputs, 0, this.inputs, 0, this.inputs.length);
+        this.net = net;
+    }
+
+    /**
+     * Forgets the remembered evaluation, to be called when the output buffer is overwritten otherwise.
+     */
+    void clear() {
+        net = null;
+    }
+}
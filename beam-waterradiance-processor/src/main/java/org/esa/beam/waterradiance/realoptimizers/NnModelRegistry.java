@@ -0,0 +1,208 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.esa.beam.util.logging.BeamLogManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JVM-wide registry of the read-only model data: nets, net stacks, activation tables and smile tables.
+ * Each model is loaded once per resource path and shared by all LevMarNN instances. Nets and stacks are handed out
+ * as working copies which share the model data but have their own workspace, so every thread needs its own copy.
+ * If configured, the double precision nets are handed out with an evaluator generated for their topology.
+ */
+class NnModelRegistry {
+
+    private static final Map<String, a_nn> nets = new HashMap<String, a_nn>();
+    private static final Map<String, NnStack> netStacks = new HashMap<String, NnStack>();
+    private static final Map<String, SmileTables> smileTables = new HashMap<String, SmileTables>();
+    private static final Map<String, SimulatedSpectraTable> spectraTables = new HashMap<String, SimulatedSpectraTable>();
+    private static final Map<String, AtmosphereLut> atmosphereLuts = new HashMap<String, AtmosphereLut>();
+    private static final AlphaTab[] alphaTabs = new AlphaTab[2];
+    private static InterpolatedSigmoid interpolatedSigmoid;
+    private static NnCodeGenerator codeGenerator;
+
+    private NnModelRegistry() {
+    }
+
+    /**
+     * Retrieves a working copy of the net stored at the given path.
+     *
+     * @param path   the path to the net file
+     * @param config the evaluation settings, defining the precision and the input transform of the net
+     * @return a working copy of the shared net
+     * @throws IOException on failures reading the net
+     */
+    static a_nn getNet(String path, LevMarNNConfig config) throws IOException {
+        return getNet(path, config, null);
+    }
+
+    /**
+     * Retrieves a working copy of the net stored at the given path, pruned to the given outputs.
+     *
+     * @param path    the path to the net file
+     * @param config  the evaluation settings, defining the precision and the input transform of the net
+     * @param outputs the indices of the outputs to retain, null for all outputs
+     * @return a working copy of the shared pruned net
+     * @throws IOException on failures reading the net
+     * @see a_nn#createPrunedCopy(int[])
+     */
+    static a_nn getNet(String path, LevMarNNConfig config, int[] outputs) throws IOException {
+        final boolean singlePrecision = config.isSinglePrecision();
+        final boolean foldInput = config.isFoldInputNormalisation();
+        if (config.isCodeGeneration() && !singlePrecision) {
+            return getGeneratedNet(path, foldInput, outputs).createWorkingCopy();
+        }
+        return getSharedNet(path, singlePrecision, foldInput, outputs).createWorkingCopy();
+    }
+
+    /**
+     * Retrieves a working copy of the stack built from the nets stored at the given paths, each pruned to the
+     * given outputs. Stacks are always evaluated in double precision.
+     *
+     * @param config  the evaluation settings, defining the input transform of the nets
+     * @param outputs the indices of the outputs to retain, null for all outputs
+     * @param paths   the paths to the net files
+     * @return a working copy of the shared stack
+     * @throws IOException on failures reading the nets
+     */
+    static synchronized NnStack getNetStack(LevMarNNConfig config, int[] outputs, String... paths) throws IOException {
+        final boolean foldInput = config.isFoldInputNormalisation();
+        final StringBuilder key = new StringBuilder(getModelKey(false, foldInput, outputs));
+        for (String path : paths) {
+            key.append(';').append(path);
+        }
+        NnStack stack = netStacks.get(key.toString());
+        if (stack == null) {
+            final a_nn[] stackNets = new a_nn[paths.length];
+            for (int i = 0; i < paths.length; i++) {
+                stackNets[i] = getSharedNet(paths[i], false, foldInput, outputs);
+            }
+            stack = new NnStack(stackNets);
+            netStacks.put(key.toString(), stack);
+        }
+        return stack.createWorkingCopy();
+    }
+
+    static synchronized AlphaTab getAlphaTab(boolean singlePrecision) {
+        final int index = singlePrecision ? 1 : 0;
+        if (alphaTabs[index] == null) {
+            alphaTabs[index] = new AlphaTab(singlePrecision);
+        }
+        return alphaTabs[index];
+    }
+
+    /**
+     * @return the compact interpolated activation table, which supports both double and single precision lookups
+     */
+    static synchronized InterpolatedSigmoid getInterpolatedSigmoid() {
+        if (interpolatedSigmoid == null) {
+            interpolatedSigmoid = new InterpolatedSigmoid();
+        }
+        return interpolatedSigmoid;
+    }
+
+    static synchronized SmileTables getSmileTables(NnResources nnResources) throws IOException {
+        final String key = nnResources.getCentralWavelengthRrPath();
+        SmileTables tables = smileTables.get(key);
+        if (tables == null) {
+            tables = new SmileTables(nnResources);
+            smileTables.put(key, tables);
+        }
+        return tables;
+    }
+
+    /**
+     * Retrieves a working copy of the table of simulated spectra stored at the given path. The entries are shared,
+     * every thread needs its own copy.
+     */
+    static synchronized SimulatedSpectraTable getSpectraTable(String path, int numBands) throws IOException {
+        final String key = path + ";bands=" + numBands;
+        SimulatedSpectraTable table = spectraTables.get(key);
+        if (table == null) {
+            table = new SimulatedSpectraTable(path, numBands);
+            spectraTables.put(key, table);
+        }
+        return table.createWorkingCopy();
+    }
+
+    /**
+     * Retrieves the shared, memory-mapped atmosphere table stored at the given path. Interpolation workspaces are
+     * created per thread from the table.
+     */
+    static synchronized AtmosphereLut getAtmosphereLut(String path) throws IOException {
+        AtmosphereLut lut = atmosphereLuts.get(path);
+        if (lut == null) {
+            lut = AtmosphereLut.read(new File(path));
+            atmosphereLuts.put(path, lut);
+        }
+        return lut;
+    }
+
+    private static synchronized a_nn getSharedNet(String path, boolean singlePrecision, boolean foldInput,
+                                                  int[] outputs) throws IOException {
+        final String key = path + getModelKey(singlePrecision, foldInput, outputs);
+        a_nn net = nets.get(key);
+        if (net == null) {
+            if (outputs != null) {
+                net = getSharedNet(path, singlePrecision, foldInput, null).createPrunedCopy(outputs);
+            } else if (foldInput) {
+                net = LevMarNN.prepare_a_nn(path);
+                net.foldInputNormalisation();
+                if (singlePrecision) {
+                    net.getNn().useSinglePrecision();
+                }
+            } else {
+                net = LevMarNN.prepare_a_nn(path, singlePrecision);
+            }
+            nets.put(key, net);
+        }
+        return net;
+    }
+
+    // the shared net with a generated evaluator attached. If the code generation fails, a warning is logged and the
+    // plain shared net is used, which is evaluated by the interpreting loops
+    private static synchronized a_nn getGeneratedNet(String path, boolean foldInput, int[] outputs) throws IOException {
+        final String key = path + getModelKey(false, foldInput, outputs) + ";codegen";
+        a_nn net = nets.get(key);
+        if (net == null) {
+            final a_nn sharedNet = getSharedNet(path, false, foldInput, outputs);
+            if (codeGenerator == null) {
+                codeGenerator = new NnCodeGenerator(new File(new NnResources().getCodeGenerationCachePath()));
+            }
+            NnEvaluator evaluator;
+            try {
+                evaluator = codeGenerator.createEvaluator(sharedNet.getNn());
+            } catch (IOException e) {
+                BeamLogManager.getSystemLogger().warning("Code generation failed for " + path +
+                                                         ", using the interpreted net: " + e.getMessage());
+                evaluator = null;
+            }
+            if (evaluator != null) {
+                net = sharedNet.createWorkingCopy();
+                net.getNn().setEvaluator(evaluator);
+            } else {
+                net = sharedNet;
+            }
+            nets.put(key, net);
+        }
+        return net;
+    }
+
+    private static String getModelKey(boolean singlePrecision, boolean foldInput, int[] outputs) {
+        final StringBuilder key = new StringBuilder();
+        if (singlePrecision) {
+            key.append(";float32");
+        }
+        if (foldInput) {
+            key.append(";folded");
+        }
+        if (outputs != null) {
+            key.append(";outputs=").append(Arrays.toString(outputs));
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,243 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import java.util.Arrays;
+
+/**
+ * Bounded least-recently-used cache of net outputs, keyed by the net inputs quantised to a fixed precision.
+ * Neighbouring pixels of homogeneous areas converge to practically identical parameters, their final evaluations
+ * are then served from the cache. The outputs returned for a hit belong to the first inputs stored for the
+ * quantisation cell, so the cache trades accuracy against speed and must not be used within the LM iterations,
+ * where it would hide the finite difference perturbations.
+ * <p/>
+ * Keys and values are held in primitive arrays, with an open addressing hash table and an index-linked LRU list,
+ * so lookups do not allocate. Not thread safe, each thread has its own cache.
+ */
+class NnOutputCache {
+
+    private static final int EMPTY = -1;
+
+    private final int numInputs;
+    private final int numOutputs;
+    private final int capacity;
+    private final double recPrecision;
+
+    private final long[] keys;          // [entry * numInputs + input]
+    private final double[] values;      // [entry * numOutputs + output]
+    private final int[] hashes;         // [entry]
+    private final int[] slots;          // [entry], the position of the entry in the hash table
+    private final int[] previous;       // [entry], towards the most recently used entry
+    private final int[] next;           // [entry], towards the least recently used entry
+    private final int[] table;          // [slot], entry index or EMPTY
+    private final int mask;
+    private final long[] key;
+
+    private int size;
+    private int head;
+    private int tail;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param numInputs  the number of net inputs
+     * @param numOutputs the number of net outputs
+     * @param capacity   the maximum number of entries
+     * @param precision  the quantisation step of the inputs
+     */
+    NnOutputCache(int numInputs, int numOutputs, int capacity, double precision) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        if (!(precision > 0.0)) {
+            throw new IllegalArgumentException("precision must be positive");
+        }
+        this.numInputs = numInputs;
+        this.numOutputs = numOutputs;
+        this.capacity = capacity;
+        recPrecision = 1.0 / precision;
+
+        keys = new long[capacity * numInputs];
+        values = new double[capacity * numOutputs];
+        hashes = new int[capacity];
+        slots = new int[capacity];
+        previous = new int[capacity];
+        next = new int[capacity];
+        // at most half full, keeps the probe sequences short
+        int tableSize = 2;
+        while (tableSize < 2 * capacity) {
+            tableSize <<= 1;
+        }
+        table = new int[tableSize];
+        mask = tableSize - 1;
+        key = new long[numInputs];
+        clear();
+    }
+
+    /**
+     * Looks up the outputs for the given inputs.
+     *
+     * @param inputs  the net inputs
+     * @param outputs the cached outputs (output), only written on a hit
+     * @return true on a hit
+     */
+    boolean get(double[] inputs, double[] outputs) {
+        final int hash = quantise(inputs);
+        final int entry = find(hash);
+        if (entry == EMPTY) {
+            misses++;
+            return false;
+        }
+        hits++;
+        System.arraycopy(values, entry * numOutputs, outputs, 0, numOutputs);
+        moveToFront(entry);
+        return true;
+    }
+
+    /**
+     * Stores the outputs for the given inputs, evicting the least recently used entry if the cache is full.
+     *
+     * @param inputs  the net inputs
+     * @param outputs the net outputs
+     */
+    void put(double[] inputs, double[] outputs) {
+        final int hash = quantise(inputs);
+        int entry = find(hash);
+        if (entry == EMPTY) {
+            if (size < capacity) {
+                entry = size++;
+            } else {
+                entry = tail;
+                unlink(entry);
+                removeSlot(slots[entry]);
+            }
+            System.arraycopy(key, 0, keys, entry * numInputs, numInputs);
+            hashes[entry] = hash;
+            int slot = hash & mask;
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = entry;
+            slots[entry] = slot;
+            linkFirst(entry);
+        } else {
+            moveToFront(entry);
+        }
+        System.arraycopy(outputs, 0, values, entry * numOutputs, numOutputs);
+    }
+
+    void clear() {
+        Arrays.fill(table, EMPTY);
+        size = 0;
+        head = EMPTY;
+        tail = EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the fraction of lookups served from the cache, 0 if there was no lookup yet
+     */
+    double getHitRatio() {
+        final long lookups = hits + misses;
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    // quantises the inputs into the key buffer and returns the hash of the key
+    private int quantise(double[] inputs) {
+        long hash = 1;
+        for (int i = 0; i < numInputs; i++) {
+            final long k = Math.round(inputs[i] * recPrecision);
+            key[i] = k;
+            hash = 31 * hash + (k ^ (k >>> 32));
+        }
+        final int h = (int) (hash ^ (hash >>> 32));
+        return h ^ (h >>> 16);
+    }
+
+    private int find(int hash) {
+        int slot = hash & mask;
+        int entry;
+        while ((entry = table[slot]) != EMPTY) {
+            if (hashes[entry] == hash && keyEquals(entry)) {
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    private boolean keyEquals(int entry) {
+        final int offset = entry * numInputs;
+        for (int i = 0; i < numInputs; i++) {
+            if (keys[offset + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // linear probing deletion: moves the following entries of the probe sequence into the gap
+    private void removeSlot(int slot) {
+        int gap = slot;
+        table[gap] = EMPTY;
+        int current = gap;
+        while (true) {
+            current = (current + 1) & mask;
+            final int entry = table[current];
+            if (entry == EMPTY) {
+                return;
+            }
+            final int home = hashes[entry] & mask;
+            final boolean reachable = gap <= current ? (home <= gap || home > current) : (home <= gap && home > current);
+            if (reachable) {
+                table[gap] = entry;
+                slots[entry] = gap;
+                table[current] = EMPTY;
+                gap = current;
+            }
+        }
+    }
+
+    private void moveToFront(int entry) {
+        if (entry != head) {
+            unlink(entry);
+            linkFirst(entry);
+        }
+    }
+
+    private void linkFirst(int entry) {
+        previous[entry] = EMPTY;
+        next[entry] = head;
+        if (head != EMPTY) {
+            previous[head] = entry;
+        }
+        head = entry;
+        if (tail == EMPTY) {
+            tail = entry;
+        }
+    }
+
+    private void unlink(int entry) {
+        final int p = previous[entry];
+        final int n = next[entry];
+        if (p != EMPTY) {
+            next[p] = n;
+        } else {
+            head = n;
+        }
+        if (n != EMPTY) {
+            previous[n] = p;
+        } else {
+            tail = p;
+        }
+    }
+}
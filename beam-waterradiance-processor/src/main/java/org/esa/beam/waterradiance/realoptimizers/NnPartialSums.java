@@ -0,0 +1,119 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+/**
+ * Cache of the first layer sums of a net for inputs which stay constant over many evaluations. For a pixel the
+ * leading inputs of the nets (geometry, temperature, salinity) are fixed over all LM iterations, only the parameter
+ * inputs change. Their contribution to the first layer is computed once and continued with the remaining inputs
+ * on each evaluation. As the sums are continued in input order, the results are identical to the full sums.
+ * <p/>
+ * Optionally, a rank-1 update is applied when the inputs differ from the last fully computed evaluation in a single
+ * input only, as for the columns of a finite difference Jacobian. The update changes the rounding of the sums, so
+ * it is not bit-identical to the full computation.
+ * <p/>
+ * Not thread safe, each thread has its own cache.
+ */
+class NnPartialSums {
+
+    private final int numConstantInputs;
+    private final boolean rankOneUpdate;
+
+    private double[] layer;
+    private double[] constantInputs;
+    private double[] prefixSums;
+    private double[] sums;
+    private double[] baseInputs;
+    private double[] baseSums;
+    private boolean baseValid;
+
+    /**
+     * @param numConstantInputs the number of leading inputs which are constant over many evaluations
+     * @param rankOneUpdate     if true, single input changes are applied as rank-1 update of the last full sums
+     */
+    NnPartialSums(int numConstantInputs, boolean rankOneUpdate) {
+        this.numConstantInputs = numConstantInputs;
+        this.rankOneUpdate = rankOneUpdate;
+    }
+
+    /**
+     * Computes the first layer sums, without biases, of a packed layer for the given input.
+     *
+     * @param layer the packed first layer, row-major weights followed by the biases
+     * @param input the input of the first layer
+     * @param n     the number of inputs
+     * @param m     the number of rows
+     * @return the sums (owned by this cache, valid until the next call)
+     */
+    double[] computeSums(double[] layer, double[] input, int n, int m) {
+        if (layer != this.layer) {
+            this.layer = layer;
+            constantInputs = new double[numConstantInputs];
+            prefixSums = new double[m];
+            sums = new double[m];
+            baseInputs = new double[n];
+            baseSums = new double[m];
+            computePrefixSums(layer, input, n, m);
+        } else if (!equals(input, constantInputs, numConstantInputs)) {
+            computePrefixSums(layer, input, n, m);
+        }
+
+        if (rankOneUpdate && baseValid) {
+            int changed = -1;
+            for (int k = numConstantInputs; k < n; k++) {
+                if (input[k] != baseInputs[k]) {
+                    if (changed >= 0) {
+                        changed = -2;
+                        break;
+                    }
+                    changed = k;
+                }
+            }
+            if (changed == -1) {
+                System.arraycopy(baseSums, 0, sums, 0, m);
+                return sums;
+            } else if (changed >= 0) {
+                final double delta = input[changed] - baseInputs[changed];
+                for (int i = 0; i < m; i++) {
+                    sums[i] = baseSums[i] + layer[i * n + changed] * delta;
+                }
+                return sums;
+            }
+        }
+
+        for (int i = 0; i < m; i++) {
+            final int offset = i * n;
+            double sum = prefixSums[i];
+            for (int k = numConstantInputs; k < n; k++) {
+                sum += layer[offset + k] * input[k];
+            }
+            sums[i] = sum;
+        }
+        if (rankOneUpdate) {
+            System.arraycopy(input, 0, baseInputs, 0, n);
+            System.arraycopy(sums, 0, baseSums, 0, m);
+            baseValid = true;
+        }
+        return sums;
+    }
+
+    private void computePrefixSums(double[] layer, double[] input, int n, int m) {
+        for (int i = 0; i < m; i++) {
+            final int offset = i * n;
+            double sum = 0.;
+            for (int k = 0; k < numConstantInputs; k++) {
+                sum += layer[offset + k] * input[k];
+            }
+            prefixSums[i] = sum;
+        }
+        System.arraycopy(input, 0, constantInputs, 0, numConstantInputs);
+        baseValid = false;
+    }
+
+    private static boolean equals(double[] a, double[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -8,6 +8,7 @@ public class NnResources {
     private static final String AUXDATA_PATH = "auxdata/";
     private static final String SMILE_CORR_PATH = "auxdata/smile/";
     private static final String AC_FWD_PATH = "auxdata/oc_cci_20131206/ac_forward_all/";
+    private static final String CODEGEN_PATH = "codegen/";
 
     public String getNormNetPath() {
         return getResourcePath(AUXDATA_PATH + "27x19x27_416.2.net");
@@ -41,6 +42,10 @@ public class NnResources {
         return getResourcePath(AC_FWD_PATH + relativePathToNet);
     }
 
+    public String getCodeGenerationCachePath() {
+        return getResourcePath(CODEGEN_PATH);
+    }
+
     private String getResourcePath(String name) {
         String auxpath = "/.beam/beam-waterradiance-processor/";
         StringBuilder builder = new StringBuilder();
@@ -0,0 +1,134 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import java.util.Arrays;
+
+/**
+ * A stack of nets sharing the same inputs, evaluated in one pass. The first layers of all nets are fused into one
+ * packed layer, so the input is normalised once and the first plane is computed as a single mat-vec. The remaining
+ * planes are processed net by net (the fused net is block-diagonal there).
+ * The results are identical to evaluating each net with {@link LevMarNN#use_the_nn(a_nn, double[], double[], Sigmoid)}.
+ */
+class NnStack {
+
+    private final a_nn[] nets;
+    private final int nnin;
+    private final double[] input;
+    private final double[] layer;	/* fused first layer: row-major weights of all nets, followed by all biases */
+    private final int[] rowOffset;	/* first row of each net in the fused layer */
+    private final int numRows;
+
+    NnStack(a_nn... nets) {
+        if (nets.length == 0) {
+            throw new IllegalArgumentException("At least one net required");
+        }
+        this.nets = nets;
+        nnin = (int) nets[0].getNnin();
+        final double[] inmin = nets[0].getInmin();
+        final double[] inmax = nets[0].getInmax();
+        for (a_nn net : nets) {
+            if (net.getNnin() != nnin || !Arrays.equals(net.getInmin(), inmin) || !Arrays.equals(net.getInmax(), inmax)
+                || net.isInputFolded() != nets[0].isInputFolded()) {
+                throw new IllegalArgumentException("Nets of a stack must have identical inputs");
+            }
+            if (net.getNn().getSize()[0] != nnin) {
+                throw new IllegalArgumentException("Input plane does not match number of inputs");
+            }
+        }
+
+        rowOffset = new int[nets.length];
+        int rows = 0;
+        for (int j = 0; j < nets.length; j++) {
+            rowOffset[j] = rows;
+            rows += nets[j].getNn().getSize()[1];
+        }
+        numRows = rows;
+
+        layer = new double[numRows * nnin + numRows];
+        for (int j = 0; j < nets.length; j++) {
+            final feedforward ff = nets[j].getNn();
+            final double[] netLayer = ff.getLayer()[0];
+            final int m = ff.getSize()[1];
+            System.arraycopy(netLayer, 0, layer, rowOffset[j] * nnin, m * nnin);
+            System.arraycopy(netLayer, ff.getBiasOffset(0), layer, numRows * nnin + rowOffset[j], m);
+        }
+        input = new double[nnin];
+    }
+
+    private NnStack(NnStack other) {
+        nets = new a_nn[other.nets.length];
+        for (int j = 0; j < nets.length; j++) {
+            nets[j] = other.nets[j].createWorkingCopy();
+        }
+        nnin = other.nnin;
+        layer = other.layer;
+        rowOffset = other.rowOffset;
+        numRows = other.numRows;
+        input = new double[nnin];
+    }
+
+    /**
+     * Creates a copy of the stack sharing all model data with this stack, but having its own workspace.
+     *
+     * @return the working copy
+     */
+    NnStack createWorkingCopy() {
+        return new NnStack(this);
+    }
+
+    /**
+     * Evaluates all nets of the stack for the same input vector.
+     *
+     * @param nn_in    the input vector
+     * @param nn_out   the output vectors, one per net
+     * @param alphaTab the activation function table
+     * @return the output vectors
+     */
+    double[][] use_the_nn(double[] nn_in, double[][] nn_out, Sigmoid alphaTab) {
+        return use_the_nn(nn_in, nn_out, null, alphaTab);
+    }
+
+    /**
+     * Evaluates all nets of the stack for the same input vector, taking the first layer contribution of the
+     * constant leading inputs from the given cache.
+     *
+     * @param nn_in       the input vector
+     * @param nn_out      the output vectors, one per net
+     * @param partialSums the first layer cache of the stack, may be null
+     * @param alphaTab    the activation function table
+     * @return the output vectors
+     * @see NnPartialSums
+     */
+    double[][] use_the_nn(double[] nn_in, double[][] nn_out, NnPartialSums partialSums, Sigmoid alphaTab) {
+        for (int i = 0; i < nnin; i++) {
+            input[i] = nets[0].getLayerInput(i, nn_in[i]);
+        }
+
+        final int biasOffset = numRows * nnin;
+        final double[] sums = partialSums != null ? partialSums.computeSums(layer, input, nnin, numRows) : null;
+        for (int j = 0; j < nets.length; j++) {
+            final feedforward ff = nets[j].getNn();
+            final double[] act_plus = ff.getAct()[1];
+            final int m = ff.getSize()[1];
+            for (int i = 0; i < m; i++) {
+                final int row = rowOffset[j] + i;
+                final double sum = sums != null ? sums[row] : LevMarNN.scp(layer, row * nnin, input, nnin);
+                act_plus[i] = alphaTab.get(layer[biasOffset + row] + sum);
+            }
+        }
+
+        for (int j = 0; j < nets.length; j++) {
+            final a_nn net = nets[j];
+            final feedforward ff = net.getNn();
+            LevMarNN.ff_proc(ff, 1, alphaTab);
+
+            final double[] nnOutput = ff.getOutput();
+            final double[] outrange = net.getOutrange();
+            final double[] outmin = net.getOutmin();
+            final double[] out = nn_out[j];
+            for (int i = 0; i < net.getNnout(); i++) {
+                out[i] = nnOutput[i] * outrange[i] + outmin[i];
+            }
+        }
+        return nn_out;
+    }
+}
@@ -10,16 +10,52 @@ class NnWater {
 
     private final double[] innet;
     private double[] outnet;
+    private final double[][] doutnet;
+    private final NnInputMemo memo;
+    private final NnPartialSums partialSums;
 
     NnWater() {
+        this(new LevMarNNConfig());
+    }
+
+    NnWater(LevMarNNConfig config) {
         innet = new double[10];
         outnet = new double[35];
+        doutnet = new double[35][5];
+        memo = new NnInputMemo(innet.length);
+        // geometry, temperature and salinity are constant for a pixel
+        partialSums = new NnPartialSums(5, config.isRankOneFirstLayerUpdate());
+    }
+
+    /**
+     * @param n the number of bands of the LM fit
+     * @return the indices of the fitted bands within the 29 net bands, or null if n is not a sensor band count
+     */
+    static int[] getBandIndices(int n) {
+        if (n == 11) {
+            return lam29_meris11_ix;
+        } else if (n == 9) {
+            return lam29_modis9_ix;
+        } else if (n == 8) {
+            return lam29_seawifs8_ix;
+        }
+        return null;
     }
 
     /**
      * * water nn **
      */
-    NNReturnData nn_water(double[] conc_all, double[] rlw_nn, int n, s_nn_atdata nn_data, a_nn wat_net_for, AlphaTab alphaTab, NNReturnData nnReturnData) {
+    NNReturnData nn_water(double[] conc_all, double[] rlw_nn, int n, s_nn_atdata nn_data, a_nn wat_net_for, Sigmoid alphaTab, NNReturnData nnReturnData) {
+        return nn_water(conc_all, rlw_nn, n, nn_data, wat_net_for, null, alphaTab, nnReturnData);
+    }
+
+    /**
+     * Like {@link #nn_water(double[], double[], int, s_nn_atdata, a_nn, Sigmoid, NNReturnData)}, but looks up the
+     * net outputs in the given cache before evaluating the net.
+     *
+     * @param outputCache the cache of the outputs of wat_net_for, null for none
+     */
+    NNReturnData nn_water(double[] conc_all, double[] rlw_nn, int n, s_nn_atdata nn_data, a_nn wat_net_for, NnOutputCache outputCache, Sigmoid alphaTab, NNReturnData nnReturnData) {
         //char *wat_net_name_for={"./neural_nets/23x7x28_77.3.net"};
         //char *wat_net_name_for={"./neural_nets/27x17x41_43.8.net"};
         //char *wat_net_name_for={"./neural_nets/water_for_b33_20111220/17_1070.2.net"};
@@ -44,9 +80,22 @@ class NnWater {
         if (prepare < 0) {
             nn_data.setPrepare(prepare + 2);
         }
-        outnet = LevMarNN.use_the_nn(wat_net_for, innet, outnet, alphaTab);
+        if (!memo.contains(wat_net_for, innet)) {
+            if (outputCache == null || !outputCache.get(innet, outnet)) {
+                outnet = LevMarNN.use_the_nn(wat_net_for, innet, outnet, partialSums, alphaTab);
+                if (outputCache != null) {
+                    outputCache.put(innet, outnet);
+                }
+            }
+            memo.put(wat_net_for, innet);
+        }
 
-        if (n == 11) {
+        if (wat_net_for.getNnout() == n) {
+            // the net is pruned to the requested bands
+            for (int ilam = 0; ilam < n; ilam++) {
+                rlw_nn[ilam] = Math.exp(outnet[ilam]);
+            }
+        } else if (n == 11) {
             for (int ilam = 0; ilam < n; ilam++) {
                 final int ix = lam29_meris11_ix[ilam];
                 rlw_nn[ilam] = Math.exp(outnet[ix]);
@@ -71,4 +120,42 @@ class NnWater {
         nnReturnData.setNn_atdata(nn_data);
         return nnReturnData;
     }
+
+    /**
+     * Computes the water leaving reflectances of the fitted bands like nn_water, together with their derivatives
+     * with respect to the five water parameters conc_all[3] .. conc_all[7].
+     *
+     * @param conc_all    the parameters
+     * @param rlw_nn      the reflectances (output)
+     * @param drlw_nn     the derivatives [band][parameter - 3] (output)
+     * @param n           the number of fitted bands, 11, 9 or 8, or the number of outputs of a pruned net
+     * @param nn_data     additional data
+     * @param wat_net_for the water net, or its view pruned to the fitted bands
+     * @param alphaTab    the activation function table
+     */
+    void nn_water_jacobian(double[] conc_all, double[] rlw_nn, double[][] drlw_nn, int n, s_nn_atdata nn_data, a_nn wat_net_for, Sigmoid alphaTab) {
+        innet[0] = nn_data.getSun_thet();
+        innet[1] = nn_data.getView_zeni();
+        innet[2] = nn_data.getAzi_diff_hl();
+        innet[3] = nn_data.getTemperature();
+        innet[4] = nn_data.getSalinity();
+        System.arraycopy(conc_all, 3, innet, 5, 5);
+
+        final int prepare = nn_data.getPrepare();
+        if (prepare < 0) {
+            nn_data.setPrepare(prepare + 2);
+        }
+        outnet = LevMarNN.use_the_nn_jacobian(wat_net_for, innet, outnet, 5, 5, doutnet, alphaTab);
+        memo.put(wat_net_for, innet);
+
+        final int[] bandIndices = wat_net_for.getNnout() == n ? null : getBandIndices(n);
+        for (int ilam = 0; ilam < n; ilam++) {
+            final int ix = bandIndices == null ? ilam : bandIndices[ilam];
+            final double rlw = Math.exp(outnet[ix]);
+            rlw_nn[ilam] = rlw;
+            for (int k = 0; k < 5; k++) {
+                drlw_nn[ilam][k] = rlw * doutnet[ix][k];
+            }
+        }
+    }
 }
@@ -0,0 +1,17 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+/**
+ * The sigmoid activation function of the nets, evaluated in the innermost feed-forward loops. The implementation is
+ * chosen once per net: the default nearest-index {@link AlphaTab} or the compact {@link InterpolatedSigmoid}.
+ */
+interface Sigmoid {
+
+    double get(double x);
+
+    /**
+     * Single precision lookup, only available if {@link #isSinglePrecision()} is true.
+     */
+    float get(float x);
+
+    boolean isSinglePrecision();
+}
@@ -0,0 +1,375 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.esa.beam.ocnnrd.SensorContext;
+import org.esa.beam.ocnnrd.SensorContextFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * First guess by a nearest neighbour search in a precomputed table of simulated TOSA spectra. Each entry holds the
+ * geometry, temperature and salinity, the TOSA reflectances of the fitted bands and the eight parameters the
+ * spectrum was simulated with. The distance is measured on the logarithms of the reflectances and on the geometry,
+ * temperature and salinity, scaled to the value ranges of the table.
+ * <p/>
+ * Table files are plain text, one entry per line:
+ * <pre>
+ *     sun_zeni view_zeni azi_diff temperature salinity rtosa_1 .. rtosa_n p_1 .. p_8
+ * </pre>
+ * Lines starting with '#' are comments. Use the main method to simulate a table with the forward nets.
+ * <p/>
+ * The entries are stored in the order of an implicit k-d tree: the entry in the middle of a range splits it along
+ * the feature of the largest extent in the range. The search descends into the half containing the query first and
+ * visits the other half only if the splitting plane is closer than the nearest entry found so far, so it finds the
+ * same nearest distance as a full scan. Like the nets, a table is shared as working copies: the entries and the tree
+ * are shared, every working copy has its own search state and must be used by one thread only.
+ */
+class SimulatedSpectraTable implements FirstGuess {
+
+    private static final int NUM_GEOMETRY = 5;
+    private static final int NUM_PARAMETERS = 8;
+
+    private final int numBands;
+    private final int numFeatures;
+    private final int numEntries;
+    private final double[] features;     // [entry * numFeatures + feature], scaled geometry followed by log(rtosa)
+    private final double[] parameters;   // [entry * NUM_PARAMETERS + parameter]
+    private final double[] geometryOffset;
+    private final double[] geometryScale;
+    private final int[] splitFeatures;   // [entry], the feature the entry splits its range of the tree along
+
+    private final double[] query;
+    private double nearestDistance;
+    private int nearest;
+
+    /**
+     * @param path     the path to the table file
+     * @param numBands the number of fitted bands
+     * @throws IOException on failures reading the table, or if the table does not match the number of bands
+     */
+    SimulatedSpectraTable(String path, int numBands) throws IOException {
+        this.numBands = numBands;
+        numFeatures = NUM_GEOMETRY + numBands;
+        final int numColumns = numFeatures + NUM_PARAMETERS;
+
+        final List<double[]> rows = new ArrayList<double[]>();
+        final BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] tokens = line.split("\\s+");
+                if (tokens.length != numColumns) {
+                    throw new IOException("Invalid spectra table " + path + ": expected " + numColumns +
+                                          " columns, found " + tokens.length);
+                }
+                final double[] row = new double[numColumns];
+                for (int i = 0; i < numColumns; i++) {
+                    row[i] = Double.parseDouble(tokens[i]);
+                }
+                rows.add(row);
+            }
+        } finally {
+            reader.close();
+        }
+        if (rows.isEmpty()) {
+            throw new IOException("Empty spectra table " + path);
+        }
+
+        numEntries = rows.size();
+        geometryOffset = new double[NUM_GEOMETRY];
+        geometryScale = new double[NUM_GEOMETRY];
+        for (int g = 0; g < NUM_GEOMETRY; g++) {
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for (double[] row : rows) {
+                min = Math.min(min, row[g]);
+                max = Math.max(max, row[g]);
+            }
+            geometryOffset[g] = min;
+            geometryScale[g] = max > min ? 1.0 / (max - min) : 0.0;
+        }
+
+        final double[] rowFeatures = new double[numEntries * numFeatures];
+        for (int e = 0; e < numEntries; e++) {
+            final double[] row = rows.get(e);
+            final int offset = e * numFeatures;
+            for (int g = 0; g < NUM_GEOMETRY; g++) {
+                rowFeatures[offset + g] = (row[g] - geometryOffset[g]) * geometryScale[g];
+            }
+            for (int b = 0; b < numBands; b++) {
+                rowFeatures[offset + NUM_GEOMETRY + b] = Math.log(row[NUM_GEOMETRY + b]);
+            }
+        }
+
+        final int[] order = new int[numEntries];
+        for (int e = 0; e < numEntries; e++) {
+            order[e] = e;
+        }
+        splitFeatures = new int[numEntries];
+        buildTree(rowFeatures, numFeatures, order, 0, numEntries, splitFeatures);
+
+        features = new double[numEntries * numFeatures];
+        parameters = new double[numEntries * NUM_PARAMETERS];
+        for (int e = 0; e < numEntries; e++) {
+            System.arraycopy(rowFeatures, order[e] * numFeatures, features, e * numFeatures, numFeatures);
+            System.arraycopy(rows.get(order[e]), numFeatures, parameters, e * NUM_PARAMETERS, NUM_PARAMETERS);
+        }
+        query = new double[numFeatures];
+    }
+
+    private SimulatedSpectraTable(SimulatedSpectraTable table) {
+        numBands = table.numBands;
+        numFeatures = table.numFeatures;
+        numEntries = table.numEntries;
+        features = table.features;
+        parameters = table.parameters;
+        geometryOffset = table.geometryOffset;
+        geometryScale = table.geometryScale;
+        splitFeatures = table.splitFeatures;
+        query = new double[numFeatures];
+    }
+
+    /**
+     * @return a copy sharing the entries and the tree, with its own search state
+     */
+    SimulatedSpectraTable createWorkingCopy() {
+        return new SimulatedSpectraTable(this);
+    }
+
+    int getNumEntries() {
+        return numEntries;
+    }
+
+    /**
+     * Looks up the parameters of the nearest simulated spectrum. No estimate is made for non-positive reflectances
+     * and NaN geometry, temperature or salinity.
+     */
+    @Override
+    public boolean estimate(s_nn_atdata nn_data, double[] rtosa, double[] lb, double[] ub, double[] p) {
+        for (double r : rtosa) {
+            // also rejects NaN
+            if (!(r > 0.0)) {
+                return false;
+            }
+        }
+        query[0] = nn_data.getSun_thet();
+        query[1] = nn_data.getView_zeni();
+        query[2] = nn_data.getAzi_diff_hl();
+        query[3] = nn_data.getTemperature();
+        query[4] = nn_data.getSalinity();
+        for (int g = 0; g < NUM_GEOMETRY; g++) {
+            query[g] = (query[g] - geometryOffset[g]) * geometryScale[g];
+        }
+        for (int g = 0; g < NUM_GEOMETRY; g++) {
+            if (Double.isNaN(query[g])) {
+                return false;
+            }
+        }
+        for (int b = 0; b < numBands; b++) {
+            query[NUM_GEOMETRY + b] = Math.log(rtosa[b]);
+        }
+
+        nearest = 0;
+        nearestDistance = Double.MAX_VALUE;
+        search(0, numEntries);
+
+        final int offset = nearest * NUM_PARAMETERS;
+        for (int i = 0; i < NUM_PARAMETERS; i++) {
+            p[i] = Math.min(Math.max(parameters[offset + i], lb[i]), ub[i]);
+        }
+        return true;
+    }
+
+    // nearest neighbour search in the subtree of the entries [lo, hi)
+    private void search(int lo, int hi) {
+        final int mid = (lo + hi) >>> 1;
+        final int offset = mid * numFeatures;
+        double distance = 0.0;
+        // stop summing as soon as the entry is further away than the nearest so far
+        for (int f = 0; f < numFeatures && distance < nearestDistance; f++) {
+            final double d = features[offset + f] - query[f];
+            distance += d * d;
+        }
+        if (distance < nearestDistance) {
+            nearestDistance = distance;
+            nearest = mid;
+        }
+
+        final int splitFeature = splitFeatures[mid];
+        final double d = query[splitFeature] - features[offset + splitFeature];
+        if (d < 0.0) {
+            if (lo < mid) {
+                search(lo, mid);
+            }
+            if (mid + 1 < hi && d * d < nearestDistance) {
+                search(mid + 1, hi);
+            }
+        } else {
+            if (mid + 1 < hi) {
+                search(mid + 1, hi);
+            }
+            if (lo < mid && d * d < nearestDistance) {
+                search(lo, mid);
+            }
+        }
+    }
+
+    // orders the entries [lo, hi) as implicit k-d tree, the middle entry splitting along the feature of largest extent
+    private static void buildTree(double[] features, int numFeatures, int[] order, int lo, int hi, int[] splitFeatures) {
+        if (hi - lo < 2) {
+            return;
+        }
+        int splitFeature = 0;
+        double maxExtent = -1.0;
+        for (int f = 0; f < numFeatures; f++) {
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for (int e = lo; e < hi; e++) {
+                final double value = features[order[e] * numFeatures + f];
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            if (max - min > maxExtent) {
+                maxExtent = max - min;
+                splitFeature = f;
+            }
+        }
+        final int mid = (lo + hi) >>> 1;
+        select(features, numFeatures, splitFeature, order, lo, hi - 1, mid);
+        splitFeatures[mid] = splitFeature;
+        buildTree(features, numFeatures, order, lo, mid, splitFeatures);
+        buildTree(features, numFeatures, order, mid + 1, hi, splitFeatures);
+    }
+
+    // partially sorts order[lo..hi] by the given feature, so that order[k] is the entry of rank k (Hoare's selection)
+    private static void select(double[] features, int numFeatures, int feature, int[] order, int lo, int hi, int k) {
+        while (lo < hi) {
+            final double pivot = features[order[k] * numFeatures + feature];
+            int i = lo;
+            int j = hi;
+            do {
+                while (features[order[i] * numFeatures + feature] < pivot) {
+                    i++;
+                }
+                while (pivot < features[order[j] * numFeatures + feature]) {
+                    j--;
+                }
+                if (i <= j) {
+                    final int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                    i++;
+                    j--;
+                }
+            } while (i <= j);
+            if (j < k) {
+                lo = i;
+            }
+            if (k < i) {
+                hi = j;
+            }
+        }
+    }
+
+    /**
+     * Simulates a table with the forward nets, for random geometries and parameters drawn from normal distributions
+     * around the start parameters of the LM fit, clipped to its bounds. Parameters drawn uniformly within the bounds
+     * mostly describe unrealistic waters, such a table hardly saves iterations.
+     *
+     * @param sensorContext the sensor, defining the fitted bands
+     * @param numEntries    the number of entries to simulate
+     * @param spread        the standard deviation of the (log-transformed) parameters
+     * @param seed          the seed of the random numbers
+     * @param writer        the writer the table is written to
+     * @throws IOException on failures loading the nets or writing the table
+     */
+    static void simulate(SensorContext sensorContext, int numEntries, double spread, long seed, Writer writer) throws IOException {
+        final LevMarNNConfig config = new LevMarNNConfig();
+        final NnAtmoWat nnAtmoWat = new NnAtmoWat(NnModelRegistry.getAlphaTab(false), sensorContext, config);
+        final int numBands = NnAtmoWat.getFitBandIndices(sensorContext.getSensor()).length;
+        final double[] lb = LevMarNN.LOWER_BOUNDS;
+        final double[] ub = LevMarNN.UPPER_BOUNDS;
+        final double[] p_init = LevMarNN.P_INIT;
+        final Random random = new Random(seed);
+        final s_nn_atdata nn_data = new s_nn_atdata();
+        nn_data.prepare = -1;
+        NNReturnData nnReturnData = new NNReturnData();
+        final double[] conc_all = new double[NUM_PARAMETERS];
+
+        writer.write("# simulated TOSA spectra, " + sensorContext.getSensor() + ", " + numBands + " bands\n");
+        writer.write("# sun_zeni view_zeni azi_diff temperature salinity rtosa[" + numBands + "] p[" + NUM_PARAMETERS + "]\n");
+        int written = 0;
+        while (written < numEntries) {
+            nn_data.setSun_thet(75.0 * random.nextDouble());
+            nn_data.setView_zeni(45.0 * random.nextDouble());
+            nn_data.azi_diff_hl = 180.0 * random.nextDouble();
+            nn_data.setTemperature(30.0 * random.nextDouble());
+            nn_data.setSalinity(30.0 + 8.0 * random.nextDouble());
+            for (int i = 0; i < NUM_PARAMETERS; i++) {
+                conc_all[i] = Math.min(Math.max(p_init[i] + spread * random.nextGaussian(), lb[i]), ub[i]);
+            }
+
+            nnReturnData = nnAtmoWat.nn_atmo_wat(conc_all, new double[numBands], nn_data, nnReturnData);
+            final double[] rtosa = nnReturnData.getOutputValues();
+            if (!isValidSpectrum(rtosa)) {
+                continue;
+            }
+
+            final StringBuilder line = new StringBuilder();
+            line.append(nn_data.getSun_thet()).append(' ').append(nn_data.getView_zeni()).append(' ');
+            line.append(nn_data.getAzi_diff_hl()).append(' ').append(nn_data.getTemperature()).append(' ');
+            line.append(nn_data.getSalinity());
+            for (double value : rtosa) {
+                line.append(' ').append(value);
+            }
+            for (double value : conc_all) {
+                line.append(' ').append(value);
+            }
+            writer.write(line.append('\n').toString());
+            written++;
+        }
+    }
+
+    /**
+     * Simulates a table file.
+     * <p/>
+     * Usage: SimulatedSpectraTable &lt;product type&gt; &lt;number of entries&gt; &lt;table file&gt; [spread] [seed]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: SimulatedSpectraTable <product type> <number of entries> <table file> [spread] [seed]");
+            return;
+        }
+        final SensorContext sensorContext = SensorContextFactory.fromTypeString(args[0]);
+        final int numEntries = Integer.parseInt(args[1]);
+        final double spread = args.length > 3 ? Double.parseDouble(args[3]) : 0.5;
+        final long seed = args.length > 4 ? Long.parseLong(args[4]) : 42L;
+        final Writer writer = new BufferedWriter(new FileWriter(new File(args[2])));
+        try {
+            simulate(sensorContext, numEntries, spread, seed, writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static boolean isValidSpectrum(double[] rtosa) {
+        for (double value : rtosa) {
+            if (!(value > 0.0) || Double.isInfinite(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,124 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * The MERIS smile correction tables: central wavelengths and sun spectral flux ratios per detector.
+ * The tables are read-only after construction and may be shared between threads.
+ */
+class SmileTables {
+
+    private static final int FR_TAB = 3700;
+    private static final int RR_TAB = 925;
+
+    private final double[][] frlam = new double[FR_TAB][15];
+    private final double[][] fredtoa = new double[FR_TAB][15];
+    private final double[][] rrlam = new double[FR_TAB][15];
+    private final double[][] rredtoa = new double[FR_TAB][15];
+
+    SmileTables(NnResources nnResources) throws IOException {
+        File fp_tab;
+        int iband, ipix;
+        double[] nomi_lam = new double[15];
+        double[] nomi_sun = new double[15];
+
+        /* read the tables */
+        fp_tab = new File(nnResources.getCentralWavelengthFrPath());
+        BufferedReader reader;
+
+        reader = new BufferedReader(new FileReader(fp_tab));
+        String line = reader.readLine(); // header
+        for (int count = 0; count < FR_TAB; count++) {
+            line = reader.readLine();
+            final String[] tableLine = line.split("\t");
+            for (int count2 = 0; count2 < 15; count2++) {
+                frlam[count][count2] = Double.parseDouble(tableLine[count2 + 1]);
+            }
+        }
+        reader.close();
+
+        fp_tab = new File(nnResources.getSunSpectralFluxFrPath());
+        reader = new BufferedReader(new FileReader(fp_tab));
+        line = reader.readLine(); // header
+        for (int count = 0; count < FR_TAB; count++) {
+            line = reader.readLine();
+            final String[] tableLine = line.split("\t");
+            for (int count2 = 0; count2 < 15; count2++) {
+                fredtoa[count][count2] = Double.parseDouble(tableLine[count2 + 1]);
+            }
+        }
+        reader.close();
+
+
+        fp_tab = new File(nnResources.getCentralWavelengthRrPath());
+        reader = new BufferedReader(new FileReader(fp_tab));
+        line = reader.readLine(); // header
+        for (int count = 0; count < RR_TAB; count++) {
+            line = reader.readLine();
+            final String[] tableLine = line.split("\t");
+            for (int count2 = 0; count2 < 15; count2++) {
+                rrlam[count][count2] = Double.parseDouble(tableLine[count2 + 1]);
+            }
+        }
+        reader.close();
+
+        fp_tab = new File(nnResources.getSunSpectralFluxRrPath());
+
+        reader = new BufferedReader(new FileReader(fp_tab));
+        line = reader.readLine(); // header
+        for (int count = 0; count < RR_TAB; count++) {
+            line = reader.readLine();
+            final String[] tableLine = line.split("\t");
+            for (int count2 = 0; count2 < 15; count2++) {
+                rredtoa[count][count2] = Double.parseDouble(tableLine[count2 + 1]);
+            }
+        }
+        reader.close();
+
+        fp_tab = new File(nnResources.getNominalLamSunPath());
+
+        reader = new BufferedReader(new FileReader(fp_tab));
+        for (int count = 0; count < 15; count++) {
+            line = reader.readLine();
+            final String[] tableLine = line.split("\t");
+            nomi_lam[count] = Double.parseDouble(tableLine[0]);
+            nomi_sun[count] = Double.parseDouble(tableLine[1]);
+        }
+        reader.close();
+
+        /* make ed ratio tab, i.e. compute the ratio between the Ed_toa for each pixel relative to ed-toa at the mean pixel for each camera */
+
+        /* compute ratio */
+        for (ipix = 0; ipix < RR_TAB; ipix++) {
+            for (iband = 0; iband < 15; iband++) {
+                rredtoa[ipix][iband] /= nomi_sun[iband];
+            }
+        }
+
+        /* compute ratio */
+        for (ipix = 0; ipix < FR_TAB; ipix++) {
+            for (iband = 0; iband < 15; iband++) {
+                fredtoa[ipix][iband] /= nomi_sun[iband];
+            }
+        }
+    }
+
+    double[][] getFrLam() {
+        return frlam;
+    }
+
+    double[][] getFrEdToa() {
+        return fredtoa;
+    }
+
+    double[][] getRrLam() {
+        return rrlam;
+    }
+
+    double[][] getRrEdToa() {
+        return rredtoa;
+    }
+}
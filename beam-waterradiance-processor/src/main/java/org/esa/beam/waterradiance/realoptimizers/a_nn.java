@@ -9,8 +9,12 @@ class a_nn {
     private double[] outmin;	/* minima of outputs */
     private double[] outmax;	/* maxima of outputs */
     private feedforward nn;		/* the NN */
+    private double[] inrange;	/* inmax - inmin */
+    private double[] inscale;	/* 1 / (inmax - inmin) */
+    private double[] outrange;	/* outmax - outmin */
+    private boolean inputFolded;	/* true if the input normalisation is folded into the first layer */
 
-   public long getNnin() {
+    public long getNnin() {
         return nnin;
     }
 
@@ -32,6 +36,8 @@ class a_nn {
 
     public void setInmin(double[] inmin) {
         this.inmin = inmin;
+        inrange = range(inmin, inmax);
+        inscale = reciprocal(inrange);
     }
 
     public double[] getInmax() {
@@ -40,6 +46,8 @@ class a_nn {
 
     public void setInmax(double[] inmax) {
         this.inmax = inmax;
+        inrange = range(inmin, inmax);
+        inscale = reciprocal(inrange);
     }
 
     public double[] getOutmin() {
@@ -48,6 +56,7 @@ class a_nn {
 
     public void setOutmin(double[] outmin) {
         this.outmin = outmin;
+        outrange = range(outmin, outmax);
     }
 
     public double[] getOutmax() {
@@ -56,6 +65,74 @@ class a_nn {
 
     public void setOutmax(double[] outmax) {
         this.outmax = outmax;
+        outrange = range(outmin, outmax);
+    }
+
+    public double[] getInrange() {
+        return inrange;
+    }
+
+    public double[] getOutrange() {
+        return outrange;
+    }
+
+    public boolean isInputFolded() {
+        return inputFolded;
+    }
+
+    /**
+     * Transforms a physical input into the value expected by the first layer: the input normalised to [0, 1], or
+     * the raw input if the normalisation is folded into the first layer.
+     *
+     * @param i     the input index
+     * @param value the physical input value
+     * @return the input of the first layer
+     */
+    public double getLayerInput(int i, double value) {
+        if (inputFolded) {
+            return value;
+        }
+        return (value - inmin[i]) * inscale[i];
+    }
+
+    /**
+     * @param i the input index
+     * @return the derivative of the first layer input with respect to the physical input
+     * @see #getLayerInput(int, double)
+     */
+    public double getLayerInputDerivative(int i) {
+        if (inputFolded) {
+            return 1.0;
+        }
+        return inscale[i];
+    }
+
+    /**
+     * Folds the input normalisation into the weights and biases of the first layer, afterwards the net takes the
+     * raw physical inputs. The folded net computes the same function, but the rounding of the first layer sums
+     * differs. Must be called before the net is shared or set up for single precision.
+     */
+    public void foldInputNormalisation() {
+        if (inputFolded) {
+            return;
+        }
+        final int[] size = nn.getSize();
+        final int n = size[0];
+        final int m = size[1];
+        final double[][] layer = nn.getLayer().clone();
+        final double[] folded = layer[0].clone();
+        for (int j = 0; j < m; j++) {
+            double bias = folded[m * n + j];
+            for (int i = 0; i < n; i++) {
+                final double weight = folded[j * n + i] / inrange[i];
+                folded[j * n + i] = weight;
+                bias -= weight * inmin[i];
+            }
+            folded[m * n + j] = bias;
+        }
+        layer[0] = folded;
+        nn.setLayer(layer);
+        inputFolded = true;
     }
 
     public feedforward getNn() {
@@ -65,4 +142,77 @@ class a_nn {
     public void setNn(feedforward nn) {
         this.nn = nn;
     }
+
+    /**
+     * Creates a copy of the net sharing all model data with this net, but having its own workspace.
+     *
+     * @return the working copy
+     * @see feedforward#createWorkingCopy()
+     */
+    public a_nn createWorkingCopy() {
+        final a_nn copy = new a_nn();
+        copy.nnin = nnin;
+        copy.nnout = nnout;
+        copy.inmin = inmin;
+        copy.inmax = inmax;
+        copy.outmin = outmin;
+        copy.outmax = outmax;
+        copy.inrange = inrange;
+        copy.inscale = inscale;
+        copy.outrange = outrange;
+        copy.inputFolded = inputFolded;
+        copy.nn = nn.createWorkingCopy();
+        return copy;
+    }
+
+    /**
+     * Creates a copy of the net which only computes the given outputs, in the given order. The hidden layers are
+     * shared with this net, the copy can be used as model for working copies.
+     *
+     * @param outputs the indices of the outputs to retain
+     * @return the pruned net
+     * @see feedforward#createPrunedCopy(int[])
+     */
+    public a_nn createPrunedCopy(int[] outputs) {
+        final a_nn copy = new a_nn();
+        copy.nnin = nnin;
+        copy.nnout = outputs.length;
+        copy.inmin = inmin;
+        copy.inmax = inmax;
+        copy.inrange = inrange;
+        copy.inscale = inscale;
+        copy.inputFolded = inputFolded;
+        copy.outmin = new double[outputs.length];
+        copy.outmax = new double[outputs.length];
+        copy.outrange = new double[outputs.length];
+        for (int i = 0; i < outputs.length; i++) {
+            copy.outmin[i] = outmin[outputs[i]];
+            copy.outmax[i] = outmax[outputs[i]];
+            copy.outrange[i] = outrange[outputs[i]];
+        }
+        copy.nn = nn.createPrunedCopy(outputs);
+        return copy;
+    }
+
+    private static double[] reciprocal(double[] values) {
+        if (values == null) {
+            return null;
+        }
+        final double[] reciprocal = new double[values.length];
+        for (int i = 0; i < reciprocal.length; i++) {
+            reciprocal[i] = 1.0 / values[i];
+        }
+        return reciprocal;
+    }
+
+    private static double[] range(double[] min, double[] max) {
+        if (min == null || max == null || min.length != max.length) {
+            return null;
+        }
+        final double[] range = new double[min.length];
+        for (int i = 0; i < range.length; i++) {
+            range[i] = max[i] - min[i];
+        }
+        return range;
+    }
 }
@@ -4,9 +4,13 @@ class feedforward {
 
     private int nplanes;	    /* #of planes in net	*/
     private int size[];		/* their sizes	*/
-    private double[][][] wgt;	/* weight[plane][to_neuron][from_neuron] */
-    private double[][] bias;	/* [plane-1][neuron]	*/
+    private double[][] layer;	/* [plane][to_neuron * size[plane] + from_neuron], followed by the biases of plane+1 */
     private double[][] act;		/* neuron output[plane][neuron]	*/
+    private float[][] layer_f;	/* single precision copy of layer, null if not in use */
+    private float[][] act_f;	/* single precision neuron output[plane][neuron] */
+    private double[][] act_batch;	/* batch neuron output[plane][neuron * numPixels + pixel] */
+    private double[][] tangent;	/* input derivatives of the neuron outputs [plane][input * size[plane] + neuron] */
+    private NnEvaluator evaluator;	/* generated evaluator of the layers, null if not in use */
 
     public long getNplanes() {
         return nplanes;
@@ -24,20 +28,22 @@ class feedforward {
         this.size = size;
     }
 
-    public double[][][] getWgt() {
-        return wgt;
+    public double[][] getLayer() {
+        return layer;
     }
 
-    public void setWgt(double[][][] wgt) {
-        this.wgt = wgt;
+    public void setLayer(double[][] layer) {
+        this.layer = layer;
     }
 
-    public double[][] getBias() {
-        return bias;
-    }
-
-    public void setBias(double[][] bias) {
-        this.bias = bias;
+    /**
+     * Retrieves the position of the first bias value in the packed layer array of the given plane.
+     *
+     * @param plane the plane index
+     * @return the bias offset
+     */
+    public int getBiasOffset(int plane) {
+        return size[plane + 1] * size[plane];
     }
 
     public double[][] getAct() {
@@ -55,4 +61,145 @@ class feedforward {
     public double[] getOutput() {
         return act[nplanes - 1];
     }
+
+    public float[][] getLayerF() {
+        return layer_f;
+    }
+
+    public float[][] getActF() {
+        return act_f;
+    }
+
+    public NnEvaluator getEvaluator() {
+        return evaluator;
+    }
+
+    public void setEvaluator(NnEvaluator evaluator) {
+        this.evaluator = evaluator;
+    }
+
+    public boolean isSinglePrecision() {
+        return layer_f != null;
+    }
+
+    /**
+     * Sets up the single precision (float32) copies of the packed layers and activations. After this call,
+     * the net is evaluated in single precision.
+     */
+    public void useSinglePrecision() {
+        layer_f = new float[layer.length][];
+        for (int pl = 0; pl < layer.length; pl++) {
+            layer_f[pl] = new float[layer[pl].length];
+            for (int i = 0; i < layer[pl].length; i++) {
+                layer_f[pl][i] = (float) layer[pl][i];
+            }
+        }
+        act_f = new float[nplanes][];
+        for (int pl = 0; pl < nplanes; pl++) {
+            act_f[pl] = new float[size[pl]];
+        }
+    }
+
+    /**
+     * Retrieves the activation buffers for batch processing, the buffers are (re-)allocated if they are too small
+     * for the requested number of pixels.
+     *
+     * @param numPixels the number of pixels in the batch
+     * @return the activations [plane][neuron * numPixels + pixel]
+     */
+    public double[][] getActBatch(int numPixels) {
+        if (act_batch == null || act_batch[0].length < size[0] * numPixels) {
+            act_batch = new double[nplanes][];
+            for (int pl = 0; pl < nplanes; pl++) {
+                act_batch[pl] = new double[size[pl] * numPixels];
+            }
+        }
+        return act_batch;
+    }
+
+    /**
+     * Retrieves the buffers for the derivatives of the neuron outputs with respect to a number of inputs, the
+     * buffers are (re-)allocated if they are too small.
+     *
+     * @param numInputs the number of inputs to differentiate for
+     * @return the derivatives [plane][input * size[plane] + neuron]
+     */
+    public double[][] getTangent(int numInputs) {
+        if (tangent == null || tangent[0].length < size[0] * numInputs) {
+            tangent = new double[nplanes][];
+            for (int pl = 0; pl < nplanes; pl++) {
+                tangent[pl] = new double[size[pl] * numInputs];
+            }
+        }
+        return tangent;
+    }
+
+    /**
+     * Creates a copy of the net sharing the (read-only) layers with this net, but having its own activation
+     * buffers. Working copies of the same net can be evaluated concurrently.
+     *
+     * @return the working copy
+     */
+    public feedforward createWorkingCopy() {
+        final feedforward copy = new feedforward();
+        copy.nplanes = nplanes;
+        copy.size = size;
+        copy.layer = layer;
+        copy.layer_f = layer_f;
+        copy.evaluator = evaluator;
+        copy.act = new double[nplanes][];
+        for (int pl = 0; pl < nplanes; pl++) {
+            copy.act[pl] = new double[size[pl]];
+        }
+        if (layer_f != null) {
+            copy.act_f = new float[nplanes][];
+            for (int pl = 0; pl < nplanes; pl++) {
+                copy.act_f[pl] = new float[size[pl]];
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Creates a copy of the net whose output plane only contains the given neurons, in the given order. All other
+     * layers are shared with this net. The retained outputs are computed exactly as in the full net. The pruned net
+     * has no generated evaluator, as its topology differs.
+     *
+     * @param outputs the indices of the output neurons to retain
+     * @return the pruned net
+     */
+    public feedforward createPrunedCopy(int[] outputs) {
+        final int last = nplanes - 2;
+        final int n = size[last];
+        final int m = outputs.length;
+        final int biasOffset = getBiasOffset(last);
+
+        final feedforward copy = new feedforward();
+        copy.nplanes = nplanes;
+        copy.size = size.clone();
+        copy.size[nplanes - 1] = m;
+        copy.layer = layer.clone();
+        copy.layer[last] = new double[m * n + m];
+        for (int i = 0; i < m; i++) {
+            System.arraycopy(layer[last], outputs[i] * n, copy.layer[last], i * n, n);
+            copy.layer[last][m * n + i] = layer[last][biasOffset + outputs[i]];
+        }
+        copy.act = new double[nplanes][];
+        for (int pl = 0; pl < nplanes; pl++) {
+            copy.act[pl] = new double[copy.size[pl]];
+        }
+        if (layer_f != null) {
+            copy.layer_f = layer_f.clone();
+            copy.layer_f[last] = new float[m * n + m];
+            for (int i = 0; i < m; i++) {
+                System.arraycopy(layer_f[last], outputs[i] * n, copy.layer_f[last], i * n, n);
+                copy.layer_f[last][m * n + i] = layer_f[last][biasOffset + outputs[i]];
+            }
+            copy.act_f = new float[nplanes][];
+            for (int pl = 0; pl < nplanes; pl++) {
+                copy.act_f[pl] = new float[copy.size[pl]];
+            }
+        }
+        return copy;
+    }
 }
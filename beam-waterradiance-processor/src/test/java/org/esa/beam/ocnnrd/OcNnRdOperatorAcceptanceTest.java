@@ -2,15 +2,20 @@ package org.esa.beam.ocnnrd;
 
 
 import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.gpf.GPF;
 import org.esa.beam.util.io.FileUtils;
+import org.esa.beam.waterradiance.realoptimizers.TestNets;
 import org.junit.*;
 
 import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.fail;
 
@@ -175,4 +180,52 @@ public class OcNnRdOperatorAcceptanceTest {
             }
         }
     }
+
+    @Test
+    public void testModisL1B_inverseRetrieval() throws IOException {
+        // MODIS and SeaWiFS have as many output as input bands, the residual_flag target needs one output more
+        assertInverseRetrieval(ModisL1BProduct.create(), 9, "OcNnRd_modis_inverse.dim");
+    }
+
+    @Test
+    public void testSeaWiFSL1B_inverseRetrieval() throws IOException {
+        assertInverseRetrieval(SeaWiFSL1BProduct.create(), 8, "OcNnRd_seawifs_inverse.dim");
+    }
+
+    private void assertInverseRetrieval(Product l1bProduct, int numFitBands, String targetFileName) throws IOException {
+        // constant inverse net with the five geometry inputs, all parameters are about zero, i.e. aot_550 about one
+        final File netFile = new File(testOutDirectory, "inverse.net");
+        TestNets.writeConstantNet(netFile, 5 + numFitBands, new double[8], -10.0, 10.0);
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("inverseNetFile", netFile.getAbsolutePath());
+        parameters.put("inverseResidualThreshold", Double.MAX_VALUE);
+
+        Product savedProduct = null;
+        final Product target = GPF.createProduct("OCNNRD", parameters, l1bProduct);
+
+        try {
+            final String targetProductPath = testOutDirectory.getAbsolutePath() + File.separator + targetFileName;
+            ProductIO.writeProduct(target, targetProductPath, "BEAM-DIMAP");
+
+            savedProduct = ProductIO.readProduct(targetProductPath);
+            assertNotNull(savedProduct);
+
+            final Band residualFlag = savedProduct.getBand("residual_flag");
+            final Band numIter = savedProduct.getBand("num_iter");
+            final Band aot550 = savedProduct.getBand("aot_550");
+            assertNotNull(residualFlag);
+            for (int y = 0; y < savedProduct.getSceneRasterHeight(); y++) {
+                for (int x = 0; x < savedProduct.getSceneRasterWidth(); x++) {
+                    assertEquals(0, residualFlag.getSampleInt(x, y));
+                    assertEquals(0, numIter.getSampleInt(x, y));
+                    assertEquals(1.0, aot550.getSampleFloat(x, y), 1e-3);
+                }
+            }
+        } finally {
+            target.dispose();
+            if (savedProduct != null) {
+                savedProduct.dispose();
+            }
+        }
+    }
 }
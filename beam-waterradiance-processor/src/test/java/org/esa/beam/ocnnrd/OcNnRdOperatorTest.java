@@ -134,6 +134,17 @@ public class OcNnRdOperatorTest {
         assertEquals("MOD021KM", sensorTypeString);
     }
 
+    @Test
+    public void testConfigurePreviousSamples() {
+        final TestSampleConfigurer sampleConfigurer = new TestSampleConfigurer();
+
+        OcNnRdOperator.configurePreviousSamples(sampleConfigurer, new Product("previous", "OCNNRD", 2, 2));
+
+        assertEquals("aot_550", sampleConfigurer.get(Constants.SRC_PREVIOUS_OFFSET));
+        assertEquals("ang_864_443", sampleConfigurer.get(Constants.SRC_PREVIOUS_OFFSET + 1));
+        assertEquals("b_wit", sampleConfigurer.get(Constants.SRC_PREVIOUS_OFFSET + 6));
+    }
+
     private TestSample[] createTestSamples(int count) {
         final TestSample[] samples = new TestSample[count];
         for (int i = 0; i < samples.length; i++) {
@@ -0,0 +1,122 @@
+package org.esa.beam.ocnnrd;
+
+import org.esa.beam.waterradiance.realoptimizers.LevMarNN;
+import org.esa.beam.waterradiance.realoptimizers.LevMarNNConfig;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Benchmark of the pixel orders: processes a synthetic MERIS scene tile by tile like the operator, in raster, Hilbert
+ * and Z-order, with the spatial warm start and the water net output cache. Reports the mean number of LM iterations,
+ * the fraction of warm started pixels, the cache hit ratio and the time per pixel of each order, and of the raster
+ * order without warm start as reference.
+ * <p/>
+ * The scene varies smoothly in geometry and radiances, with Gaussian noise on the radiances, so that neighbouring
+ * pixels have close but not equal solutions.
+ */
+public class PixelOrderPerformanceTest {
+
+    private static final int SCENE_SIZE = 128;
+    private static final int TILE_SIZE = 128;
+    // the strip height of the operator's ordered processing
+    private static final int BLOCK_SIZE = 64;
+    private static final double NOISE = 0.002;
+    private static final double WARM_START_MAX_SUM_SQ = 1.0E-3;
+    private static final int WATER_NET_CACHE_SIZE = 256;
+    private static final double[] WATER_NET_CACHE_PRECISIONS = {1.0E-4, 1.0E-2};
+
+    private static final double[] TOA_RADIANCES = {
+            70.43595, 60.354992, 44.56492, 39.043613, 27.241674, 15.729385, 11.943042, 10.802422,
+            8.662219, 6.4378233, 2.8837085, 5.4307566, 3.2948744, 3.0640657, 2.1505015
+    };
+    private static final double[] SUN_SPECTRAL_FLUXES = {
+            1773.03, 1942.73, 1993.86, 1994.48, 1864.34, 1706.86, 1583.67, 1522.19,
+            1455.78, 1309.06, 1297.21, 1217.26, 990.95, 961.43, 925.89
+    };
+
+    @Test
+    @Ignore
+    public void testPixelOrders() throws Exception {
+        for (double precision : WATER_NET_CACHE_PRECISIONS) {
+            System.out.println("Scene " + SCENE_SIZE + "x" + SCENE_SIZE + ", tiles " + TILE_SIZE + "x" + TILE_SIZE +
+                               ", water net cache precision " + precision + ":");
+            process(PixelOrder.RASTER, false, precision);
+            process(PixelOrder.RASTER, true, precision);
+            process(PixelOrder.HILBERT, true, precision);
+            process(PixelOrder.Z_ORDER, true, precision);
+        }
+    }
+
+    private static void process(String pixelOrder, boolean warmStart, double cachePrecision) throws Exception {
+        final LevMarNNConfig config = new LevMarNNConfig();
+        config.setWaterNetCacheSize(WATER_NET_CACHE_SIZE);
+        config.setWaterNetCachePrecision(cachePrecision);
+        final LevMarNN levMarNN = new LevMarNN(new MerisSensorContext(), config);
+        final SpatialWarmStart spatialWarmStart = new SpatialWarmStart(TILE_SIZE, TILE_SIZE, WARM_START_MAX_SUM_SQ);
+        final double[][] inputs = createScene();
+        final double[] output = new double[75];
+        final double[] p = new double[8];
+
+        long numIterations = 0;
+        int numWarmStarted = 0;
+        final long start = System.nanoTime();
+        for (int tileY = 0; tileY < SCENE_SIZE; tileY += TILE_SIZE) {
+            for (int tileX = 0; tileX < SCENE_SIZE; tileX += TILE_SIZE) {
+                spatialWarmStart.startTile();
+                for (int stripY = tileY; stripY < tileY + TILE_SIZE; stripY += BLOCK_SIZE) {
+                    final int height = Math.min(BLOCK_SIZE, tileY + TILE_SIZE - stripY);
+                    for (int pixel : PixelOrder.create(pixelOrder, TILE_SIZE, height, BLOCK_SIZE)) {
+                        final int x = tileX + pixel % TILE_SIZE;
+                        final int y = stripY + pixel / TILE_SIZE;
+                        final double[] p_start = warmStart ? spatialWarmStart.getStartParameters(x, y) : null;
+                        if (p_start != null) {
+                            numWarmStarted++;
+                        }
+                        levMarNN.levmar_nn(181, inputs[y * SCENE_SIZE + x].clone(), output, p_start);
+                        if (warmStart) {
+                            levMarNN.getParameters(p);
+                            spatialWarmStart.setResult(x, y, p, output[67]);
+                        }
+                        numIterations += (long) output[68];
+                    }
+                }
+            }
+        }
+        final double numPixels = SCENE_SIZE * SCENE_SIZE;
+        System.out.println(String.format("%-8s warm start %-5s: mean num_iter %6.2f, warm started %5.1f%%, " +
+                                         "cache hit ratio %.3f, %.2f ms/pixel",
+                                         pixelOrder, warmStart, numIterations / numPixels,
+                                         100.0 * numWarmStarted / numPixels, levMarNN.getWaterNetCacheHitRatio(),
+                                         (System.nanoTime() - start) / 1.0E6 / numPixels));
+    }
+
+    private static double[][] createScene() {
+        final Random random = new Random(5);
+        final double[][] inputs = new double[SCENE_SIZE * SCENE_SIZE][];
+        for (int y = 0; y < SCENE_SIZE; y++) {
+            for (int x = 0; x < SCENE_SIZE; x++) {
+                final double[] input = new double[40];
+                input[0] = 30.0 + 20.0 * x / SCENE_SIZE;    // sun zenith
+                input[1] = 142.5679;                        // sun azimuth
+                input[2] = 10.0 + 20.0 * y / SCENE_SIZE;    // view zenith
+                input[3] = 103.322136;                      // view azimuth
+                input[4] = 1017.61487;                      // surface pressure
+                input[5] = 317.83008;                       // ozone
+                input[6] = 7.8687496;                       // wind x
+                input[7] = -2.525;                          // wind y
+                input[8] = 20.0;                            // temperature
+                input[9] = 35.0;                            // salinity
+                final double scale = 0.9 + 0.2 * Math.sin(x * 0.1) * Math.cos(y * 0.07) + NOISE * random.nextGaussian();
+                final double tilt = 0.2 * Math.sin(0.05 * (x + y)) + NOISE * random.nextGaussian();
+                for (int i = 0; i < 15; i++) {
+                    input[i + 10] = TOA_RADIANCES[i] * scale * (1.0 + tilt * i / 14.0);
+                    input[i + 25] = SUN_SPECTRAL_FLUXES[i];
+                }
+                inputs[y * SCENE_SIZE + x] = input;
+            }
+        }
+        return inputs;
+    }
+}
@@ -0,0 +1,58 @@
+package org.esa.beam.ocnnrd;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PixelOrderTest {
+
+    @Test
+    public void testCreate_raster() {
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4, 5}, PixelOrder.create(PixelOrder.RASTER, 3, 2, 4));
+    }
+
+    @Test
+    public void testCreate_zOrder() {
+        final int[] indices = PixelOrder.create(PixelOrder.Z_ORDER, 4, 4, 4);
+        assertArrayEquals(new int[]{0, 1, 4, 5, 2, 3, 6, 7, 8, 9, 12, 13, 10, 11, 14, 15}, indices);
+    }
+
+    @Test
+    public void testCreate_hilbertVisitsNeighbours() {
+        final int width = 32;
+        final int[] indices = PixelOrder.create(PixelOrder.HILBERT, width, 8, 8);
+        assertEquals(0, indices[0]);
+        for (int i = 1; i < indices.length; i++) {
+            final int dx = Math.abs(indices[i] % width - indices[i - 1] % width);
+            final int dy = Math.abs(indices[i] / width - indices[i - 1] / width);
+            assertEquals(1, dx + dy);
+        }
+    }
+
+    @Test
+    public void testCreate_allPixelsOnce() {
+        final String[] orders = {PixelOrder.RASTER, PixelOrder.HILBERT, PixelOrder.Z_ORDER};
+        for (String order : orders) {
+            final int[] indices = PixelOrder.create(order, 13, 7, 4);
+            final boolean[] visited = new boolean[13 * 7];
+            for (int index : indices) {
+                assertTrue(!visited[index]);
+                visited[index] = true;
+            }
+            assertEquals(13 * 7, indices.length);
+        }
+    }
+
+    @Test
+    public void testCreate_unknownOrder() {
+        try {
+            PixelOrder.create("spiral", 4, 4, 4);
+            fail("Exception expected");
+        } catch (IllegalArgumentException expected) {
+            assertEquals("Unknown pixel order: spiral", expected.getMessage());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.esa.beam.ocnnrd;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpatialWarmStartTest {
+
+    private static final double[] P_LEFT = {1, 1, 1, 1, 1, 1, 1, 1};
+    private static final double[] P_UPPER = {2, 2, 2, 2, 2, 2, 2, 2};
+    private static final double[] P_RIGHT = {3, 3, 3, 3, 3, 3, 3, 3};
+
+    @Test
+    public void testGetStartParameters_betterNeighbour() {
+        final SpatialWarmStart warmStart = new SpatialWarmStart(4, 4, 1.0e-3);
+        assertNull(warmStart.getStartParameters(1, 1));
+
+        warmStart.setResult(1, 0, P_UPPER, 1.0e-5);
+        assertArrayEquals(P_UPPER, warmStart.getStartParameters(1, 1), 0.0);
+
+        warmStart.setResult(0, 1, P_LEFT, 1.0e-4);
+        assertArrayEquals(P_UPPER, warmStart.getStartParameters(1, 1), 0.0);
+
+        warmStart.setResult(0, 1, P_LEFT, 1.0e-6);
+        assertArrayEquals(P_LEFT, warmStart.getStartParameters(1, 1), 0.0);
+
+        // processed before in curve order
+        warmStart.setResult(2, 1, P_RIGHT, 1.0e-7);
+        assertArrayEquals(P_RIGHT, warmStart.getStartParameters(1, 1), 0.0);
+    }
+
+    @Test
+    public void testGetStartParameters_poorOrInvalidNeighbours() {
+        final SpatialWarmStart warmStart = new SpatialWarmStart(4, 4, 1.0e-3);
+        warmStart.setResult(1, 0, P_UPPER, 1.0e-2);
+        warmStart.setResult(0, 1, P_LEFT, Double.NaN);
+        assertNull(warmStart.getStartParameters(1, 1));
+
+        warmStart.setResult(0, 1, P_LEFT, 1.0e-4);
+        warmStart.setInvalid(0, 1);
+        assertNull(warmStart.getStartParameters(1, 1));
+    }
+
+    @Test
+    public void testGetStartParameters_onlyWithinTile() {
+        final SpatialWarmStart warmStart = new SpatialWarmStart(4, 4, 1.0e-3);
+        // left tile border
+        warmStart.setResult(3, 5, P_LEFT, 1.0e-5);
+        assertNull(warmStart.getStartParameters(4, 5));
+        // upper tile border
+        warmStart.setResult(5, 3, P_UPPER, 1.0e-5);
+        assertNull(warmStart.getStartParameters(5, 4));
+    }
+
+    @Test
+    public void testStartTile() {
+        final SpatialWarmStart warmStart = new SpatialWarmStart(4, 4, 1.0e-3);
+        assertTrue(warmStart.isTileOrigin(4, 8));
+        assertFalse(warmStart.isTileOrigin(4, 9));
+
+        warmStart.setResult(1, 0, P_UPPER, 1.0e-5);
+        warmStart.startTile();
+        assertNull(warmStart.getStartParameters(1, 1));
+    }
+}
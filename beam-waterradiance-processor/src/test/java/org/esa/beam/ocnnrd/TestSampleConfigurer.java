@@ -20,7 +20,7 @@ class TestSampleConfigurer implements SampleConfigurer {
 
     @Override
     public void defineSample(int index, String name, Product product) {
-        //To change body of implemented methods use File | Settings | File Templates.
+        samples.put(index, name);
     }
 
     public String get(int index) {
@@ -5,6 +5,8 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class AlphaTabTest {
 
@@ -31,4 +33,52 @@ public class AlphaTabTest {
         value  = alphaTab.get(8.857275854786685);
         assertEquals(0.9998576797706701, value, 1e-8);
     }
+
+    @Test
+    public void testGet_singlePrecision() {
+        final AlphaTab singlePrecisionTab = new AlphaTab(true);
+        assertTrue(singlePrecisionTab.isSinglePrecision());
+        assertFalse(alphaTab.isSinglePrecision());
+
+        float value = singlePrecisionTab.get(-2.4651393f);
+        assertEquals(0.07833230435305982, value, 1e-6);
+
+        value = singlePrecisionTab.get(3.2729895f);
+        assertEquals(0.963491998600729, value, 1e-6);
+
+        value = singlePrecisionTab.get(8.857276f);
+        assertEquals(0.9998576797706701, value, 1e-6);
+    }
+
+    @Test
+    public void testGet_interpolated() {
+        final InterpolatedSigmoid interpolatedTab = new InterpolatedSigmoid();
+        assertTrue(interpolatedTab.isSinglePrecision());
+
+        double maxError = 0.0;
+        for (double x = -10.0; x <= 10.0; x += 1e-3) {
+            maxError = Math.max(maxError, Math.abs(interpolatedTab.get(x) - AlphaTab.calpha(x)));
+            maxError = Math.max(maxError, Math.abs(interpolatedTab.get((float) x) - AlphaTab.calpha((float) x)));
+        }
+        assertTrue("maximal error " + maxError, maxError < 5e-6);
+
+        // saturates outside the table range like the nearest-index table
+        assertEquals(AlphaTab.calpha(-10.0), interpolatedTab.get(-25.0), 1e-7);
+        assertEquals(AlphaTab.calpha(10.0), interpolatedTab.get(25.0), 1e-7);
+        assertEquals(AlphaTab.calpha(10.0), interpolatedTab.get(25.f), 1e-7);
+    }
+
+    @Test
+    public void testGet_interpolatedIsMoreAccurateThanLookup() {
+        final InterpolatedSigmoid interpolatedTab = new InterpolatedSigmoid();
+
+        double maxErrorLookup = 0.0;
+        double maxErrorInterpolated = 0.0;
+        for (double x = -10.0; x <= 10.0; x += 1.7e-4) {
+            final double expected = AlphaTab.calpha(x);
+            maxErrorLookup = Math.max(maxErrorLookup, Math.abs(alphaTab.get(x) - expected));
+            maxErrorInterpolated = Math.max(maxErrorInterpolated, Math.abs(interpolatedTab.get(x) - expected));
+        }
+        assertTrue(maxErrorInterpolated < maxErrorLookup);
+    }
 }
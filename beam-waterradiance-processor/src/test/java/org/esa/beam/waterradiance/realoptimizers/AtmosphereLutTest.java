@@ -0,0 +1,142 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AtmosphereLutTest {
+
+    private static final int[] FIT_BANDS = {1, 4};
+    private static final int[] SIZE = {4, 3, 2, 1, 2, 3, 2, 3};
+    private static final double[] MIN = {0.0, 0.0, 0.0, 15.0, 30.0, -4.0, -3.0, -2.0};
+    private static final double[] MAX = {75.0, 60.0, 180.0, 15.0, 38.0, 0.0, 1.0, 2.0};
+
+    private File lutFile;
+
+    @Before
+    public void setUp() {
+        lutFile = new File(System.getProperty("java.io.tmpdir"), "atmosphere-lut-test-" + System.nanoTime() + ".lut");
+    }
+
+    @After
+    public void tearDown() {
+        lutFile.delete();
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        writeLinearLut();
+        final AtmosphereLut lut = AtmosphereLut.read(lutFile);
+        assertArrayEquals(FIT_BANDS, lut.getFitBandIndices());
+    }
+
+    @Test
+    public void testInterpolate_reproducesLinearFunction() throws IOException {
+        writeLinearLut();
+        final AtmosphereLut.PixelGrid grid = AtmosphereLut.read(lutFile).createPixelGrid();
+        final double[][] out = new double[3][2];
+        final double[][][] gradients = new double[3][2][3];
+
+        grid.prepare(33.3, 21.0, 100.0, 15.0, 35.5);
+        grid.interpolate(-1.3, 0.2, 0.7, out, gradients);
+        for (int q = 0; q < 3; q++) {
+            for (int band = 0; band < 2; band++) {
+                final double expected = linear(q, band, new double[]{33.3, 21.0, 100.0, 15.0, 35.5, -1.3, 0.2, 0.7});
+                assertEquals(expected, out[q][band], 1.0e-5);
+                assertArrayEquals(new double[]{0.5, -0.25, 0.125}, gradients[q][band], 1.0e-5);
+            }
+        }
+
+        // another pixel, gradients not requested
+        grid.prepare(70.0, 5.0, 10.0, 15.0, 30.0);
+        grid.interpolate(-4.0, 1.0, -0.5, out, null);
+        assertEquals(linear(2, 1, new double[]{70.0, 5.0, 10.0, 15.0, 30.0, -4.0, 1.0, -0.5}), out[2][1], 1.0e-5);
+    }
+
+    @Test
+    public void testInterpolate_clampsParametersToAxisRange() throws IOException {
+        writeLinearLut();
+        final AtmosphereLut.PixelGrid grid = AtmosphereLut.read(lutFile).createPixelGrid();
+        final double[][] out = new double[3][2];
+
+        assertTrue(grid.prepare(75.0, 21.0, 100.0, 15.0, 35.5));
+        grid.interpolate(-5.0, 0.2, 2.5, out, null);
+        assertEquals(linear(0, 0, new double[]{75.0, 21.0, 100.0, 15.0, 35.5, -4.0, 0.2, 2.0}), out[0][0], 1.0e-5);
+    }
+
+    @Test
+    public void testPrepare_pixelOutsideTable() throws IOException {
+        writeLinearLut();
+        final AtmosphereLut.PixelGrid grid = AtmosphereLut.read(lutFile).createPixelGrid();
+
+        assertFalse(grid.prepare(80.0, 21.0, 100.0, 15.0, 35.5));
+        // the single temperature node covers that temperature only
+        assertFalse(grid.prepare(33.3, 21.0, 100.0, 20.0, 35.5));
+        assertFalse(grid.prepare(33.3, 21.0, 100.0, 15.0, 38.5));
+        assertFalse(grid.prepare(33.3, Double.NaN, 100.0, 15.0, 35.5));
+        assertTrue(grid.prepare(33.3, 21.0, 100.0, 15.0, 35.5));
+        // the same pixel again
+        assertTrue(grid.prepare(33.3, 21.0, 100.0, 15.0, 35.5));
+        assertFalse(grid.prepare(33.3, 21.0, 100.0, 14.0, 35.5));
+        assertFalse(grid.prepare(33.3, 21.0, 100.0, 14.0, 35.5));
+    }
+
+    @Test
+    public void testRead_truncatedFile() throws IOException {
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(lutFile));
+        try {
+            AtmosphereLut.writeHeader(out, FIT_BANDS, SIZE, MIN, MAX);
+            out.writeFloat(1.0F);
+        } finally {
+            out.close();
+        }
+        try {
+            AtmosphereLut.read(lutFile);
+            fail("IOException expected");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static double linear(int q, int band, double[] x) {
+        return q + 0.1 * band + 0.01 * x[0] + 0.02 * x[1] + 0.001 * x[2] + 0.03 * x[4] +
+               0.5 * x[5] - 0.25 * x[6] + 0.125 * x[7];
+    }
+
+    private void writeLinearLut() throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(lutFile)));
+        try {
+            AtmosphereLut.writeHeader(out, FIT_BANDS, SIZE, MIN, MAX);
+            final double[] x = new double[SIZE.length];
+            writeNodes(out, 0, x);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeNodes(DataOutputStream out, int axis, double[] x) throws IOException {
+        if (axis == SIZE.length) {
+            for (int q = 0; q < 3; q++) {
+                for (int band = 0; band < FIT_BANDS.length; band++) {
+                    out.writeFloat((float) linear(q, band, x));
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < SIZE[axis]; i++) {
+            x[axis] = SIZE[axis] > 1 ? MIN[axis] + i * (MAX[axis] - MIN[axis]) / (SIZE[axis] - 1) : MIN[axis];
+            writeNodes(out, axis + 1, x);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.esa.beam.ocnnrd.SensorContext;
+import org.esa.beam.ocnnrd.SensorContextFactory;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Benchmark of the batched LM: the time per pixel of the scalar {@link BoundedLevenbergMarquardt} against the
+ * {@link BatchedLevenbergMarquardt} with several batch sizes, on perturbed MERIS pixels. Also reports the mean
+ * number of iterations and the largest relative deviation of aot_550 between both.
+ */
+public class BatchedLevenbergMarquardtPerformanceTest {
+
+    private static final int NUM_PIXELS = 256;
+    private static final int NUM_WARMUP_RUNS = 2;
+    private static final int[] BATCH_SIZES = {8, 32, 128};
+
+    private static final double[] TOA_RADIANCES = {
+            70.43595, 60.354992, 44.56492, 39.043613, 27.241674, 15.729385, 11.943042, 10.802422,
+            8.662219, 6.4378233, 2.8837085, 5.4307566, 3.2948744, 3.0640657, 2.1505015
+    };
+    private static final double[] SUN_SPECTRAL_FLUXES = {
+            1773.03, 1942.73, 1993.86, 1994.48, 1864.34, 1706.86, 1583.67, 1522.19,
+            1455.78, 1309.06, 1297.21, 1217.26, 990.95, 961.43, 925.89
+    };
+
+    @Test
+    @Ignore
+    public void testBatchedAgainstScalar() throws Exception {
+        final SensorContext sensorContext = SensorContextFactory.fromTypeString("MER_RR__1P");
+        final double[][] inputs = createPixels();
+        final int[] detectors = new int[NUM_PIXELS];
+        final double[][] expected = new double[NUM_PIXELS][75];
+        final double[][] actual = new double[NUM_PIXELS][75];
+
+        final LevMarNNConfig config = new LevMarNNConfig();
+        config.setOptimizerName(BoundedLevenbergMarquardt.NAME);
+        final LevMarNN levMarNN = new LevMarNN(sensorContext, config);
+        for (int run = 0; run < NUM_WARMUP_RUNS; run++) {
+            levMarNN.levmar_nn(detectors, inputs, expected, null, NUM_PIXELS);
+        }
+        long start = System.nanoTime();
+        levMarNN.levmar_nn(detectors, inputs, expected, null, NUM_PIXELS);
+        report("scalar   ", System.nanoTime() - start, expected, expected);
+
+        for (int batchSize : BATCH_SIZES) {
+            config.setBatchSize(batchSize);
+            final LevMarNN batchLevMarNN = new LevMarNN(sensorContext, config);
+            for (int run = 0; run < NUM_WARMUP_RUNS; run++) {
+                batchLevMarNN.levmar_nn(detectors, inputs, actual, null, NUM_PIXELS);
+            }
+            start = System.nanoTime();
+            batchLevMarNN.levmar_nn(detectors, inputs, actual, null, NUM_PIXELS);
+            report("batch " + batchSize, System.nanoTime() - start, expected, actual);
+        }
+    }
+
+    private static void report(String name, long nanos, double[][] expected, double[][] actual) {
+        double numIterations = 0.0;
+        double maxDeviation = 0.0;
+        for (int pixel = 0; pixel < NUM_PIXELS; pixel++) {
+            numIterations += actual[pixel][68];
+            maxDeviation = Math.max(maxDeviation, Math.abs(actual[pixel][60] / expected[pixel][60] - 1.0));
+        }
+        System.out.println(String.format("%-9s: %.2f ms/pixel, mean num_iter %.2f, max rel. deviation of aot_550 %.1e",
+                                         name, nanos / 1.0E6 / NUM_PIXELS, numIterations / NUM_PIXELS, maxDeviation));
+    }
+
+    // the radiances scaled and tilted per pixel, the geometry varying across the pixels
+    private static double[][] createPixels() {
+        final Random random = new Random(5);
+        final double[][] inputs = new double[NUM_PIXELS][];
+        for (int pixel = 0; pixel < NUM_PIXELS; pixel++) {
+            final double[] input = new double[40];
+            input[0] = 30.0 + 20.0 * random.nextDouble();  // sun zenith
+            input[1] = 142.5679;                           // sun azimuth
+            input[2] = 10.0 + 20.0 * random.nextDouble();  // view zenith
+            input[3] = 103.322136;                         // view azimuth
+            input[4] = 1017.61487;                         // surface pressure
+            input[5] = 317.83008;                          // ozone
+            input[8] = 20.0;                               // temperature
+            input[9] = 35.0;                               // salinity
+            final double scale = 0.8 + 0.4 * random.nextDouble();
+            final double tilt = 0.4 * (random.nextDouble() - 0.5);
+            for (int i = 0; i < 15; i++) {
+                input[i + 10] = TOA_RADIANCES[i] * scale * (1.0 + tilt * i / 14.0);
+                input[i + 25] = SUN_SPECTRAL_FLUXES[i];
+            }
+            inputs[pixel] = input;
+        }
+        return inputs;
+    }
+}
@@ -0,0 +1,253 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import com.bc.ceres.binding.ValidationException;
+import org.esa.beam.ocnnrd.SensorContext;
+import org.esa.beam.ocnnrd.SensorContextFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatchedLevenbergMarquardtTest {
+
+    private static final double[] LB = {-3, -3, -3, -3, -3, -3, -3, -3};
+    private static final double[] UB = {3, 3, 3, 3, 3, 3, 3, 3};
+
+    private static final double[][] P_TRUE = {
+            {0.5, -0.3, 0.2, 1.0, 0.1, -0.2, 0.4, 0.3},
+            {-1.0, 0.7, 0.0, 0.5, -0.5, 1.2, -0.8, 0.1},
+            {0.5, -0.3, 0.2, 5.0, 0.1, -0.2, 0.4, 0.3},
+            {2.0, 1.5, -2.0, -1.0, 0.3, 0.0, 1.0, -1.5},
+            {0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0}
+    };
+
+    @Test
+    public void testOptimize_equalsBoundedLevenbergMarquardt() throws ValidationException {
+        final BoundedLevenbergMarquardtTest.TestModel model = new BoundedLevenbergMarquardtTest.TestModel();
+        final BatchedLevenbergMarquardt batchOptimizer = new BatchedLevenbergMarquardt(new TestBatchModel(model), 8, 150, 1e-8);
+        final int numLanes = P_TRUE.length;
+        final double[][] p = new double[8][8];
+        final double[][] x = new double[11][8];
+        for (int lane = 0; lane < numLanes; lane++) {
+            final double[] signal = model.compute(P_TRUE[lane]);
+            for (int i = 0; i < 11; i++) {
+                x[i][lane] = signal[i];
+            }
+            // the start of the last lane is its solution
+            for (int j = 0; j < 8; j++) {
+                p[j][lane] = lane == numLanes - 1 ? P_TRUE[lane][j] : 0.1 * lane;
+            }
+        }
+        final double[][] p0 = new double[8][numLanes];
+        for (int j = 0; j < 8; j++) {
+            System.arraycopy(p[j], 0, p0[j], 0, numLanes);
+        }
+
+        batchOptimizer.optimize(p, x, numLanes, LB, UB);
+
+        final BoundedLevenbergMarquardt optimizer = new BoundedLevenbergMarquardt();
+        optimizer.init(model, null, BoundedLevenbergMarquardtTest.createStopCriterion());
+        boolean differentIterations = false;
+        for (int lane = 0; lane < numLanes; lane++) {
+            final double[] expected = new double[8];
+            final double[] actual = new double[8];
+            for (int j = 0; j < 8; j++) {
+                expected[j] = p0[j][lane];
+                actual[j] = p[j][lane];
+            }
+            optimizer.optimize(expected, model.compute(P_TRUE[lane]), LB, UB);
+            assertArrayEquals(expected, actual, 0.0);
+            assertEquals(optimizer.getCost(), batchOptimizer.getCost(lane), 0.0);
+            assertEquals(optimizer.getNumberOfIterations(), batchOptimizer.getNumberOfIterations(lane));
+            differentIterations |= batchOptimizer.getNumberOfIterations(lane) != batchOptimizer.getNumberOfIterations(0);
+        }
+        // the lanes converge after different numbers of iterations
+        assertTrue(differentIterations);
+        assertEquals(3.0, p[3][2], 0.0);
+    }
+
+    @Test
+    public void testOptimize_tooManyLanes() {
+        final BatchedLevenbergMarquardt batchOptimizer = new BatchedLevenbergMarquardt(
+                new TestBatchModel(new BoundedLevenbergMarquardtTest.TestModel()), 2, 150, 1e-8);
+        try {
+            batchOptimizer.optimize(new double[8][3], new double[11][3], 3, LB, UB);
+            fail("Exception expected");
+        } catch (IllegalArgumentException expected) {
+            assertEquals("Too many lanes: 3", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void testLevmarNn_batchAgreesWithSinglePixels() throws Exception {
+        final SensorContext sensorContext = SensorContextFactory.fromTypeString("MER_RR__1P");
+        final LevMarNNConfig config = new LevMarNNConfig();
+        config.setOptimizerName(BoundedLevenbergMarquardt.NAME);
+        final LevMarNN levMarNN = new LevMarNN(sensorContext, config);
+        config.setBatchSize(2);
+        final LevMarNN batchLevMarNN = new LevMarNN(sensorContext, config);
+
+        final double[][] inputs = {
+                assembleInput(38.532475, 142.5679, 23.14311, 103.322136, 1017.61487, 317.83008, 20.0, 12.0,
+                              new double[]{70.43595, 60.354992, 44.56492, 39.043613, 27.241674, 15.729385, 11.943042,
+                                      10.802422, 8.662219, 6.4378233, 2.8837085, 5.4307566, 3.2948744, 3.0640657, 2.1505015},
+                              new double[]{1773.03, 1942.73, 1993.86, 1994.48, 1864.34, 1706.86, 1583.67, 1522.19,
+                                      1455.78, 1309.06, 1297.21, 1217.26, 990.95, 961.43, 925.89}),
+                assembleInput(43.913773, 76.12128, 34.740032, 108.32797, 1021.8688, 277.4056, 18.54, 35.34,
+                              new double[]{84.99878, 73.27003, 53.322674, 44.631977, 27.512224, 16.187922, 12.244357,
+                                      10.961995, 9.097538, 6.74975, 3.1055324, 5.605122, 3.3304179, 3.0823767, 2.4926267},
+                              new double[]{1773.7241, 1943.4926, 1994.6368, 1995.2565, 1865.0692, 1707.5303, 1584.2865,
+                                      1522.7838, 1456.3502, 1309.5717, 1297.716, 1217.7358, 991.3362, 961.8075, 926.2471})
+        };
+        // the third pixel starts from the solution of the first one, three pixels need two batches
+        final int[] detectors = {181, 873, 181};
+        final double[][] expected = new double[3][75];
+        final double[] p_solution = new double[8];
+        levMarNN.levmar_nn(detectors[0], inputs[0], expected[0]);
+        levMarNN.getParameters(p_solution);
+        levMarNN.levmar_nn(detectors[1], inputs[1], expected[1]);
+        levMarNN.levmar_nn(detectors[2], inputs[0], expected[2], p_solution);
+
+        final double[][] actual = new double[3][75];
+        batchLevMarNN.levmar_nn(detectors, new double[][]{inputs[0], inputs[1], inputs[0]}, actual,
+                                new double[][]{null, null, p_solution}, 3);
+
+        // the nets of the batch are evaluated without the single pixel optimisations, hence agree to rounding
+        for (int pixel = 0; pixel < 3; pixel++) {
+            for (int i = 0; i <= 68; i++) {
+                assertEquals(expected[pixel][i], actual[pixel][i], 1e-6 * Math.abs(expected[pixel][i]));
+            }
+        }
+        // starting at the solution takes fewer iterations
+        assertTrue(actual[2][68] < actual[0][68]);
+    }
+
+    @Test
+    public void testLevmarNn_batchRejectsUnsupportedConfigs() throws Exception {
+        final SensorContext sensorContext = SensorContextFactory.fromTypeString("MER_RR__1P");
+        final LevMarNNConfig config = new LevMarNNConfig();
+        config.setBatchSize(2);
+        try {
+            new LevMarNN(sensorContext, config);
+            fail("Exception expected");
+        } catch (IllegalArgumentException expected) {
+            assertEquals("The batched LM needs the optimizer BoundedLevenbergMarquardt: LevenbergMarquardt", expected.getMessage());
+        }
+
+        config.setOptimizerName(BoundedLevenbergMarquardt.NAME);
+        config.setBroydenRefreshInterval(3);
+        try {
+            new LevMarNN(sensorContext, config);
+            fail("Exception expected");
+        } catch (IllegalArgumentException expected) {
+            assertEquals("The batched LM supports forward difference Jacobians only", expected.getMessage());
+        }
+
+        config.setBroydenRefreshInterval(0);
+        config.setSinglePrecision(true);
+        try {
+            new LevMarNN(sensorContext, config);
+            fail("Exception expected");
+        } catch (IllegalArgumentException expected) {
+            assertEquals("The batched LM supports double precision only", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void testGetModeledSignals_sharedColumnsEqualSingleColumns() throws Exception {
+        final SensorContext sensorContext = SensorContextFactory.fromTypeString("MER_RR__1P");
+        final NnAtmoWatBatch model = new NnAtmoWatBatch(new AlphaTab(), sensorContext, new LevMarNNConfig(), 2);
+        final s_nn_atdata nn_data = new s_nn_atdata();
+        nn_data.setSun_thet(38.5);
+        nn_data.view_zeni = 23.1;
+        nn_data.azi_diff_hl = 140.0;
+        nn_data.temperature = 20.0;
+        nn_data.salinity = 35.0;
+        model.setPixel(0, nn_data);
+        nn_data.setSun_thet(43.9);
+        model.setPixel(1, nn_data);
+
+        // the columns of a forward difference Jacobian for each lane, each varying one parameter
+        final double[] p = {-1.5, 0.2, 0.5, -3.0, -2.5, -3.5, -1.0, -2.0};
+        final int numColumns = 18;
+        final int[] lanes = new int[numColumns];
+        final double[][] variables = new double[8][numColumns];
+        for (int c = 0; c < numColumns; c++) {
+            lanes[c] = c / 9;
+            for (int j = 0; j < 8; j++) {
+                variables[j][c] = p[j] + (c % 9 == j + 1 ? 0.01 : 0.0);
+            }
+        }
+        final int numBands = model.getNumberOfSignalBands();
+        final double[][] signals = new double[numBands][numColumns];
+        model.getModeledSignals(lanes, variables, numColumns, signals);
+
+        final double[][] column = new double[8][1];
+        final double[][] signal = new double[numBands][1];
+        for (int c = 0; c < numColumns; c++) {
+            for (int j = 0; j < 8; j++) {
+                column[j][0] = variables[j][c];
+            }
+            model.getModeledSignals(new int[]{lanes[c]}, column, 1, signal);
+            for (int i = 0; i < numBands; i++) {
+                assertEquals(signal[i][0], signals[i][c], 0.0);
+            }
+        }
+        // the lanes differ in geometry
+        assertTrue(signals[0][0] != signals[0][9]);
+    }
+
+    private static double[] assembleInput(double solar_zenith, double solar_azimuth, double view_zenith,
+                                          double view_azimuth, double surf_pressure, double ozone,
+                                          double temperature, double salinity, double[] toa_radiances,
+                                          double[] sun_spectral_fluxes) {
+        final double[] input = new double[40];
+        input[0] = solar_zenith;
+        input[1] = solar_azimuth;
+        input[2] = view_zenith;
+        input[3] = view_azimuth;
+        input[4] = surf_pressure;
+        input[5] = ozone;
+        input[8] = temperature;
+        input[9] = salinity;
+        for (int i = 0; i < 15; i++) {
+            input[i + 10] = toa_radiances[i];
+            input[i + 25] = sun_spectral_fluxes[i];
+        }
+        return input;
+    }
+
+    // evaluates the scalar test model column by column
+    private static class TestBatchModel implements BatchForwardModel {
+
+        private final BoundedLevenbergMarquardtTest.TestModel model;
+        private final double[] variables;
+        private final double[] signal;
+
+        private TestBatchModel(BoundedLevenbergMarquardtTest.TestModel model) {
+            this.model = model;
+            variables = new double[8];
+            signal = new double[11];
+        }
+
+        @Override
+        public int getNumberOfSignalBands() {
+            return 11;
+        }
+
+        @Override
+        public void getModeledSignals(int[] lanes, double[][] variables, int numColumns, double[][] signals) {
+            for (int c = 0; c < numColumns; c++) {
+                for (int j = 0; j < 8; j++) {
+                    this.variables[j] = variables[j][c];
+                }
+                model.getModeledSignal(this.variables, signal);
+                for (int i = 0; i < 11; i++) {
+                    signals[i][c] = signal[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import com.bc.ceres.binding.PropertySet;
+import com.bc.ceres.binding.ValidationException;
+import com.bc.siocs.core.CostFunction;
+import com.bc.siocs.core.StopCriterion;
+import com.bc.siocs.core.registry.StopCriteriaRegistry;
+import com.bc.siocs.core.support.AbstractCostFunction;
+import com.bc.siocs.core.support.ForwardModelAdapter;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BoundedLevenbergMarquardtTest {
+
+    private static final double[] LB = {-3, -3, -3, -3, -3, -3, -3, -3};
+    private static final double[] UB = {3, 3, 3, 3, 3, 3, 3, 3};
+
+    @Test
+    public void testCholeskySolve() {
+        final Random random = new Random(3);
+        final double[][] m = new double[11][8];
+        for (double[] row : m) {
+            for (int j = 0; j < 8; j++) {
+                row[j] = random.nextGaussian();
+            }
+        }
+        final double[] a = new double[64];
+        for (int j = 0; j < 8; j++) {
+            for (int k = 0; k < 8; k++) {
+                for (double[] row : m) {
+                    a[j * 8 + k] += row[j] * row[k];
+                }
+            }
+        }
+        final double[] expected = {1, -2, 3, -4, 0.5, 0.25, -0.125, 2};
+        final double[] b = new double[8];
+        for (int j = 0; j < 8; j++) {
+            for (int k = 0; k < 8; k++) {
+                b[j] += a[j * 8 + k] * expected[k];
+            }
+        }
+
+        final double[] x = new double[8];
+        assertTrue(BoundedLevenbergMarquardt.choleskySolve(a.clone(), b, x));
+        assertArrayEquals(expected, x, 1.0e-10);
+
+        final double[] singular = new double[64];
+        singular[0] = 1.0;
+        assertFalse(BoundedLevenbergMarquardt.choleskySolve(singular, b, x));
+    }
+
+    @Test
+    public void testOptimize_finiteDifferences() throws ValidationException {
+        assertFit(new BoundedLevenbergMarquardt());
+    }
+
+    @Test
+    public void testOptimize_analyticJacobian() throws ValidationException {
+        assertFit(new BoundedLevenbergMarquardt(true, 0));
+    }
+
+    @Test
+    public void testOptimize_broydenUpdates() throws ValidationException {
+        assertFit(new BoundedLevenbergMarquardt(false, 3));
+        assertFit(new BoundedLevenbergMarquardt(true, 3));
+    }
+
+    @Test
+    public void testOptimize_bounded() throws ValidationException {
+        final TestModel model = new TestModel();
+        final BoundedLevenbergMarquardt optimizer = new BoundedLevenbergMarquardt(true, 0);
+        optimizer.init(model, null, createStopCriterion());
+
+        final double[] p_true = {0.5, -0.3, 0.2, 5.0, 0.1, -0.2, 0.4, 0.3};
+        final double[] p = optimizer.optimize(new double[8], model.compute(p_true), LB, UB);
+        assertEquals(3.0, p[3], 0.0);
+        for (int j = 0; j < 8; j++) {
+            assertTrue(p[j] >= LB[j] && p[j] <= UB[j]);
+        }
+    }
+
+    @Test
+    public void testOptimize_weighted() throws ValidationException {
+        final TestModel model = new TestModel();
+        final double[] p_true = {0.5, -0.3, 0.2, 1.0, 0.1, -0.2, 0.4, 0.3};
+        final double[] x = model.compute(p_true);
+        x[10] += 1.0;
+
+        // the outlier is ignored with a zero weight
+        final double[] weights = new double[11];
+        Arrays.fill(weights, 1.0);
+        weights[10] = 0.0;
+        final BoundedLevenbergMarquardt optimizer = new BoundedLevenbergMarquardt(true, 0);
+        optimizer.init(model, new OcNnRdCostFunction(weights), createStopCriterion());
+        assertArrayEquals(p_true, optimizer.optimize(new double[8], x, LB, UB), 1.0e-3);
+        assertTrue(optimizer.getCost() < 1.0e-8);
+
+        final BoundedLevenbergMarquardt unweighted = new BoundedLevenbergMarquardt(true, 0);
+        unweighted.init(model, null, createStopCriterion());
+        final double[] p = unweighted.optimize(new double[8], x, LB, UB);
+        assertTrue(Math.abs(p[0] - p_true[0]) > 1.0e-2);
+        assertTrue(unweighted.getCost() > 1.0e-2);
+    }
+
+    @Test
+    public void testInit_rejectsUnsupportedCostFunctions() {
+        final BoundedLevenbergMarquardt optimizer = new BoundedLevenbergMarquardt();
+        try {
+            optimizer.init(new TestModel(), new OcNnRdCostFunction(new double[10]), createStopCriterion());
+            fail("ValidationException expected");
+        } catch (ValidationException expected) {
+        }
+        final double[] weights = new double[11];
+        weights[3] = -1.0;
+        try {
+            optimizer.init(new TestModel(), new OcNnRdCostFunction(weights), createStopCriterion());
+            fail("ValidationException expected");
+        } catch (ValidationException expected) {
+        }
+        final CostFunction costFunction = new AbstractCostFunction(AbstractCostFunction.createConfig(new double[11])) {
+            @Override
+            public double getCost(double[] signal) {
+                return 0.0;
+            }
+
+            @Override
+            public CostFunction clone() {
+                return this;
+            }
+
+            @Override
+            public String getName() {
+                return "test";
+            }
+        };
+        try {
+            optimizer.init(new TestModel(), costFunction, createStopCriterion());
+            fail("ValidationException expected");
+        } catch (ValidationException expected) {
+        }
+    }
+
+    private static void assertFit(BoundedLevenbergMarquardt optimizer) throws ValidationException {
+        final TestModel model = new TestModel();
+        optimizer.init(model, null, createStopCriterion());
+        assertEquals(BoundedLevenbergMarquardt.NAME, optimizer.getName());
+
+        final double[] p_true = {0.5, -0.3, 0.2, 1.0, 0.1, -0.2, 0.4, 0.3};
+        final double[] p0 = new double[8];
+        final double[] p = optimizer.optimize(p0, model.compute(p_true), LB, UB);
+        assertTrue(p == p0);
+        assertArrayEquals(p_true, p, 1.0e-3);
+        assertTrue(optimizer.getCost() < 1.0e-8);
+        assertTrue(optimizer.getNumberOfIterations() > 0 && optimizer.getNumberOfIterations() < 150);
+    }
+
+    static StopCriterion createStopCriterion() {
+        final StopCriterion stopCriterion = StopCriteriaRegistry.getInstance().get("Default");
+        final PropertySet config = stopCriterion.getConfig();
+        config.setValue("maximumNumberOfIterations", 150);
+        config.setValue("threshold", 1e-8);
+        stopCriterion.setConfig(config);
+        return stopCriterion;
+    }
+
+    // 11 smooth nonlinear signals of 8 variables
+    static class TestModel extends ForwardModelAdapter implements JacobianModel {
+
+        private final double[][] a;
+
+        TestModel() {
+            final Random random = new Random(7);
+            a = new double[11][8];
+            for (double[] row : a) {
+                for (int j = 0; j < 8; j++) {
+                    row[j] = random.nextDouble() + (j == 0 ? 0.0 : 0.1);
+                }
+            }
+            for (int i = 0; i < 8; i++) {
+                a[i][i] += 2.0;
+            }
+        }
+
+        double[] compute(double[] p) {
+            final double[] signal = new double[11];
+            getModeledSignal(p, signal);
+            return signal;
+        }
+
+        @Override
+        public void getModeledSignal(double[] variables, double[] signal) {
+            for (int i = 0; i < 11; i++) {
+                double sum = 0.0;
+                for (int j = 0; j < 8; j++) {
+                    sum += a[i][j] * Math.exp(0.5 * variables[j]);
+                }
+                signal[i] = sum;
+            }
+        }
+
+        @Override
+        public void getModeledSignal(double[] variables, double[] signal, double[][] jacobian) {
+            getModeledSignal(variables, signal);
+            for (int i = 0; i < 11; i++) {
+                for (int j = 0; j < 8; j++) {
+                    jacobian[i][j] = 0.5 * a[i][j] * Math.exp(0.5 * variables[j]);
+                }
+            }
+        }
+
+        @Override
+        public double[] getModeledSignal(double[] variables) {
+            return compute(variables);
+        }
+
+        @Override
+        public void setReferenceSignal(double[] signal) {
+        }
+
+        @Override
+        public int getVariableCount() {
+            return 8;
+        }
+
+        @Override
+        public int getNumberOfSignalBands() {
+            return 11;
+        }
+
+        @Override
+        public String getName() {
+            return "test";
+        }
+
+        @Override
+        public double[] getWavelengths() {
+            return new double[0];
+        }
+
+        @Override
+        public int[] getSpectralBandIndices() {
+            return new int[0];
+        }
+
+        @Override
+        public double[] processAuxdata(double[] auxdata, double[] estimates) {
+            return new double[0];
+        }
+
+        @Override
+        public boolean returnsIrradianceReflectances() {
+            return false;
+        }
+
+        @Override
+        public double[] getLowerBounds() {
+            return null;
+        }
+
+        @Override
+        public double[] getUpperBounds() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+/**
+ * The exact sigmoid, for reference computations in tests where the quantisation of the tables matters, e.g. finite
+ * differences.
+ */
+class ExactSigmoid implements Sigmoid {
+
+    public double get(double x) {
+        return AlphaTab.calpha(x);
+    }
+
+    public float get(float x) {
+        return (float) AlphaTab.calpha(x);
+    }
+
+    public boolean isSinglePrecision() {
+        return true;
+    }
+}
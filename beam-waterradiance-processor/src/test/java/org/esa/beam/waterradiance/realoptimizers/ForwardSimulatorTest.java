@@ -0,0 +1,152 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.esa.beam.ocnnrd.SensorContext;
+import org.esa.beam.ocnnrd.SensorContextFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ForwardSimulatorTest {
+
+    @Test
+    public void testCreateGrid() {
+        final ForwardSampleSpace sampleSpace = new ForwardSampleSpace();
+        sampleSpace.setRange(0, 10.0, 30.0);
+        sampleSpace.setParameterBounds(2);
+        final int[] size = new int[ForwardSampleSpace.NUM_VARIABLES];
+        size[0] = 3;
+        size[7] = 2;
+        size[8] = 5; // fixed variable, a single node
+        final ForwardSamples samples = sampleSpace.createGrid(size);
+
+        final double[] geometry = new double[5];
+        final double[] parameters = new double[8];
+        final List<double[]> nodes = new ArrayList<double[]>();
+        while (samples.next(geometry, parameters)) {
+            nodes.add(new double[]{geometry[0], parameters[2], parameters[3]});
+        }
+        assertEquals(6, nodes.size());
+        assertArrayEquals(new double[]{10.0, -2.3, LevMarNN.P_INIT[3]}, nodes.get(0), 1.0e-12);
+        assertArrayEquals(new double[]{10.0, 2.3, LevMarNN.P_INIT[3]}, nodes.get(1), 1.0e-12);
+        assertArrayEquals(new double[]{20.0, -2.3, LevMarNN.P_INIT[3]}, nodes.get(2), 1.0e-12);
+        assertArrayEquals(new double[]{30.0, 2.3, LevMarNN.P_INIT[3]}, nodes.get(5), 1.0e-12);
+        assertFalse(samples.next(geometry, parameters));
+    }
+
+    @Test
+    public void testCreateRandom() {
+        final ForwardSampleSpace sampleSpace = new ForwardSampleSpace();
+        sampleSpace.setRange(ForwardSampleSpace.getVariableIndex("view_zeni"), 5.0, 6.0);
+        final ForwardSamples samples = sampleSpace.createRandom(100, 7L);
+
+        final double[] geometry = new double[5];
+        final double[] parameters = new double[8];
+        int count = 0;
+        while (samples.next(geometry, parameters)) {
+            assertTrue(geometry[1] >= 5.0 && geometry[1] < 6.0);
+            assertEquals(30.0, geometry[0], 0.0);
+            assertEquals(LevMarNN.P_INIT[7], parameters[7], 0.0);
+            count++;
+        }
+        assertEquals(100, count);
+    }
+
+    @Test
+    public void testSimulate_independentOfNumberOfThreads() throws IOException {
+        final SensorContext sensorContext = SensorContextFactory.fromTypeString("MER_RR__1P");
+        final ForwardSampleSpace sampleSpace = new ForwardSampleSpace();
+        sampleSpace.setRange(0, 0.0, 70.0);
+        sampleSpace.setRange(2, 0.0, 180.0);
+        for (int i = 0; i < ForwardSampleSpace.NUM_PARAMETERS; i++) {
+            sampleSpace.setParameterBounds(i);
+        }
+
+        final CollectingSink single = new CollectingSink();
+        final ForwardSimulator singleThreaded = new ForwardSimulator(sensorContext, new LevMarNNConfig(), 1);
+        assertEquals(500, singleThreaded.simulate(sampleSpace.createRandom(500, 1L), single));
+        final CollectingSink multi = new CollectingSink();
+        final ForwardSimulator multiThreaded = new ForwardSimulator(sensorContext, new LevMarNNConfig(), 3);
+        assertEquals(500, multiThreaded.simulate(sampleSpace.createRandom(500, 1L), multi));
+
+        assertEquals(29, multi.numBands);
+        assertEquals(500, multi.records.size());
+        for (int i = 0; i < 500; i++) {
+            assertArrayEquals(single.records.get(i), multi.records.get(i), 0.0);
+        }
+    }
+
+    @Test
+    public void testSimulate_equalsForwardModel() throws IOException {
+        final SensorContext sensorContext = SensorContextFactory.fromTypeString("MER_RR__1P");
+        final ForwardSampleSpace sampleSpace = new ForwardSampleSpace();
+        final CollectingSink sink = new CollectingSink();
+        new ForwardSimulator(sensorContext, new LevMarNNConfig(), 2).simulate(sampleSpace.createRandom(1, 1L), sink);
+
+        final NnAtmoWat nnAtmoWat = new NnAtmoWat(NnModelRegistry.getAlphaTab(false), sensorContext, new LevMarNNConfig());
+        final s_nn_atdata nn_data = new s_nn_atdata();
+        nn_data.setSun_thet(30.0);
+        nn_data.setView_zeni(20.0);
+        nn_data.azi_diff_hl = 90.0;
+        nn_data.setTemperature(15.0);
+        nn_data.setSalinity(35.0);
+        final NNReturnData nnReturnData = nnAtmoWat.nn_atmo_wat(LevMarNN.P_INIT.clone(), new double[29], nn_data, new NNReturnData());
+
+        final double[] record = sink.records.get(0);
+        for (int band = 0; band < 29; band++) {
+            assertEquals(nnReturnData.getOutputValues()[band], record[13 + band], 0.0);
+            assertEquals(nnReturnData.getNn_atdata().tup_nn[band], record[13 + 3 * 29 + band], 0.0);
+        }
+    }
+
+    @Test
+    public void testCsvSink() throws IOException {
+        final StringWriter writer = new StringWriter();
+        final CsvForwardSimulationSink sink = new CsvForwardSimulationSink(writer);
+        sink.start(2);
+        sink.write(new double[]{1, 2, 3, 4, 5}, new double[]{6, 7, 8, 9, 10, 11, 12, 13},
+                   new double[]{0.5, 0.25}, new double[]{1, 2}, new double[]{3, 4}, new double[]{5, 6});
+        sink.close();
+
+        final String[] lines = writer.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("sun_zeni,view_zeni,azi_diff,temperature,salinity,log_aot,"));
+        assertTrue(lines[0].endsWith(",tup_0,tup_1"));
+        assertEquals("1.0,2.0,3.0,4.0,5.0,6.0,7.0,8.0,9.0,10.0,11.0,12.0,13.0,0.5,0.25,1.0,2.0,3.0,4.0,5.0,6.0", lines[1]);
+    }
+
+    private static class CollectingSink implements ForwardSimulationSink {
+
+        private final List<double[]> records = new ArrayList<double[]>();
+        private int numBands;
+
+        @Override
+        public void start(int numBands) {
+            this.numBands = numBands;
+        }
+
+        @Override
+        public void write(double[] geometry, double[] parameters, double[] rtosa, double[] rpath, double[] tdown,
+                          double[] tup) {
+            final double[] record = new double[13 + 4 * numBands];
+            System.arraycopy(geometry, 0, record, 0, 5);
+            System.arraycopy(parameters, 0, record, 5, 8);
+            System.arraycopy(rtosa, 0, record, 13, numBands);
+            System.arraycopy(rpath, 0, record, 13 + numBands, numBands);
+            System.arraycopy(tdown, 0, record, 13 + 2 * numBands, numBands);
+            System.arraycopy(tup, 0, record, 13 + 3 * numBands, numBands);
+            records.add(record);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
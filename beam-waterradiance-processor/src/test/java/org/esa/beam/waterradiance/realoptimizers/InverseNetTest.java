@@ -0,0 +1,125 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.esa.beam.ocnnrd.SensorContextFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class InverseNetTest {
+
+    private static final double[] LB = {-4.6, -3.8, -2.3, -19.9, -15.89, -17.23, -15.8, -14.92};
+    private static final double[] UB = {0.0, 0.788, 2.3, 0.685, 2.297, 1.6, 4.598, 4.599};
+
+    private File netFile;
+
+    @Before
+    public void setUp() {
+        netFile = new File(System.getProperty("java.io.tmpdir"), "inverse-net-test-" + System.nanoTime() + ".net");
+    }
+
+    @After
+    public void tearDown() {
+        new File(NnBinaryFile.getBinaryPath(netFile.getPath())).delete();
+    }
+
+    @Test
+    public void testEstimate_clipsToBounds() throws IOException {
+        // constant net, all outputs are the centre of [-10, 10] except the first two, which are at the upper limit
+        final double[] bias = new double[8];
+        bias[0] = 20.0;
+        bias[1] = 20.0;
+        writeNet(16, bias, -10.0, 10.0);
+
+        final InverseNet inverseNet = new InverseNet(netFile.getPath(), 11, new LevMarNNConfig(), new AlphaTab());
+        final s_nn_atdata nn_data = new s_nn_atdata();
+        final double[] rtosa = new double[11];
+        Arrays.fill(rtosa, 0.05);
+        final double[] p = new double[8];
+
+        inverseNet.estimate(nn_data, rtosa, LB, UB, p);
+
+        assertEquals(0.0, p[0], 1e-12);     // 10.0 clipped to the upper bound
+        assertEquals(0.788, p[1], 1e-12);   // 10.0 clipped to the upper bound
+        for (int i = 2; i < 8; i++) {
+            assertEquals(0.0, p[i], 1e-3);
+        }
+    }
+
+    @Test
+    public void testEstimate_rejectsNonPositiveReflectances() throws IOException {
+        writeNet(16, new double[8], -10.0, 10.0);
+
+        final InverseNet inverseNet = new InverseNet(netFile.getPath(), 11, new LevMarNNConfig(), new AlphaTab());
+        final double[] rtosa = new double[11];
+        Arrays.fill(rtosa, 0.05);
+        final double[] p = new double[8];
+        Arrays.fill(p, -1.0);
+
+        rtosa[3] = 0.0;
+        assertFalse(inverseNet.estimate(new s_nn_atdata(), rtosa, LB, UB, p));
+        rtosa[3] = Double.NaN;
+        assertFalse(inverseNet.estimate(new s_nn_atdata(), rtosa, LB, UB, p));
+        // the start parameters are kept
+        for (double value : p) {
+            assertEquals(-1.0, value, 0.0);
+        }
+    }
+
+    @Test
+    public void testLevmarNn_flagsPixelsWithoutEstimate() throws Exception {
+        writeNet(16, new double[8], -10.0, 10.0);
+        final LevMarNNConfig config = new LevMarNNConfig();
+        config.setInverseNetPath(netFile.getPath());
+        // any residual is accepted, only pixels without estimate are flagged
+        config.setInverseResidualThreshold(Double.MAX_VALUE);
+        final LevMarNN levMarNN = new LevMarNN(SensorContextFactory.fromTypeString("MER_RR__1P"), config);
+
+        final double[] input = new double[40];
+        input[0] = 38.532475;
+        input[1] = 142.5679;
+        input[2] = 23.14311;
+        input[3] = 103.322136;
+        input[4] = 1017.61487;
+        input[5] = 317.83008;
+        input[8] = 20.0;
+        input[9] = 12.0;
+        for (int i = 0; i < 15; i++) {
+            input[i + 10] = 10.0;
+            input[i + 25] = 1500.0;
+        }
+        final double[] output = new double[75];
+        levMarNN.levmar_nn(181, input.clone(), output);
+        assertEquals(0.0, output[60 + 9], 0.0);
+
+        // a negative radiance gives a negative reflectance, the logarithm of which is NaN
+        input[10] = -1.0;
+        levMarNN.levmar_nn(181, input.clone(), output);
+        assertEquals(1.0, output[60 + 9], 0.0);
+        for (int i = 60; i < 67; i++) {
+            assertFalse(Double.isNaN(output[i]));
+        }
+    }
+
+    @Test
+    public void testConstruct_rejectsNetNotMatchingTheBands() throws IOException {
+        writeNet(14, new double[8], 0.0, 1.0);
+
+        try {
+            new InverseNet(netFile.getPath(), 11, new LevMarNNConfig(), new AlphaTab());
+            fail("IOException expected");
+        } catch (IOException expected) {
+        }
+    }
+
+    private void writeNet(int nnin, double[] bias, double outmin, double outmax) throws IOException {
+        TestNets.writeConstantNet(netFile, nnin, bias, outmin, outmax);
+    }
+}
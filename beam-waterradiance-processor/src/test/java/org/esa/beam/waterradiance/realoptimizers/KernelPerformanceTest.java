@@ -0,0 +1,79 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Micro-benchmark of the mat-vec kernel: the blocked {@link LevMarNN#mvp} against the plain row-by-row scalar
+ * products, on the layers of the water forward net.
+ */
+public class KernelPerformanceTest {
+
+    private static final int NUM_WARMUP = 20000;
+    private static final int NUM_RUNS = 200000;
+
+    @Test
+    @Ignore
+    public void testMvp_waterNet() throws IOException {
+        final a_nn waterNet = LevMarNN.prepare_a_nn(new NnResources().getNetWaterPath());
+        final feedforward nn = waterNet.getNn();
+        final double[][] layer = nn.getLayer();
+        final int[] size = nn.getSize();
+        final int nplanes = (int) nn.getNplanes();
+        final AlphaTab alphaTab = new AlphaTab();
+
+        final double[][] act = new double[nplanes][];
+        final double[][] actReference = new double[nplanes][];
+        for (int pl = 0; pl < nplanes; pl++) {
+            act[pl] = new double[size[pl]];
+            actReference[pl] = new double[size[pl]];
+        }
+        for (int i = 0; i < size[0]; i++) {
+            act[0][i] = actReference[0][i] = (i + 0.5) / size[0];
+        }
+
+        for (int run = 0; run < NUM_WARMUP; run++) {
+            forward(layer, act, size, alphaTab);
+            forwardRowByRow(layer, actReference, size, alphaTab);
+        }
+
+        long start = System.nanoTime();
+        for (int run = 0; run < NUM_RUNS; run++) {
+            forwardRowByRow(layer, actReference, size, alphaTab);
+        }
+        final long referenceNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int run = 0; run < NUM_RUNS; run++) {
+            forward(layer, act, size, alphaTab);
+        }
+        final long blockedNanos = System.nanoTime() - start;
+
+        for (int i = 0; i < size[nplanes - 1]; i++) {
+            assertEquals(actReference[nplanes - 1][i], act[nplanes - 1][i], 0.0);
+        }
+
+        System.out.println("row by row: " + referenceNanos / NUM_RUNS + " ns per net evaluation");
+        System.out.println("blocked   : " + blockedNanos / NUM_RUNS + " ns per net evaluation");
+    }
+
+    private static void forward(double[][] layer, double[][] act, int[] size, AlphaTab alphaTab) {
+        for (int pl = 0; pl < size.length - 1; pl++) {
+            LevMarNN.mvp(layer[pl], act[pl], size[pl], act[pl + 1], size[pl + 1], alphaTab);
+        }
+    }
+
+    private static void forwardRowByRow(double[][] layer, double[][] act, int[] size, AlphaTab alphaTab) {
+        for (int pl = 0; pl < size.length - 1; pl++) {
+            final int n = size[pl];
+            final int m = size[pl + 1];
+            for (int i = 0; i < m; i++) {
+                act[pl + 1][i] = alphaTab.get(layer[pl][m * n + i] + LevMarNN.scp(layer[pl], i * n, act[pl], n));
+            }
+        }
+    }
+}
@@ -8,9 +8,18 @@ import java.io.IOException;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class LevMarNNAcceptanceTest {
 
+    private static final int NUM_BANDS = 12;
+    private static final int RW_OFFSET = 2 * NUM_BANDS;
+    private static final int TDOWN_OFFSET = 3 * NUM_BANDS;
+    private static final int AOT_550_INDEX = 5 * NUM_BANDS;
+    private static final int SUM_SQ_INDEX = 5 * NUM_BANDS + 7;
+    private static final int RESIDUAL_FLAG_INDEX = 5 * NUM_BANDS + 9;
+
     private static final double[] SUN_SPECTRAL_FLUXES_NORMAN = {
             1773.03,
             1942.73,
@@ -55,14 +64,115 @@ public class LevMarNNAcceptanceTest {
 
 
     private LevMarNN levMarNN;
+    private LevMarNN levMarNNBounded;
 
     @Before
     public void setUp() throws IOException {
         levMarNN = new LevMarNN(SensorContextFactory.fromTypeString("MER_RR__1P"));
+        final LevMarNNConfig config = new LevMarNNConfig();
+        config.setOptimizerName(BoundedLevenbergMarquardt.NAME);
+        levMarNNBounded = new LevMarNN(SensorContextFactory.fromTypeString("MER_RR__1P"), config);
     }
 
     @Test
     public void testL1b_testDataNorman() throws Exception {
+        final double[] input = createNormanInput();
+        final double[] output = new double[75];
+
+        int result_1 = levMarNN.levmar_nn(181, input, output);
+        assertEquals(0, result_1);
+        assertArrayEquals(expected_Norman, output, 1e-7);
+    }
+
+    @Test
+    public void testLib_MER_RR__1PRACR20060116_201233_000026092044_00200_20294_0000_ocean() throws Exception {
+        final double[] input = create20060116OceanInput();
+
+        final double[] output = new double[75];
+
+        int result_1 = levMarNN.levmar_nn(873, input, output);
+        assertEquals(0, result_1);
+        assertArrayEquals(expected_20060116_ocean, output, 1e-7);
+    }
+
+    @Test
+    public void testLib_MER_RR__1PRACR20060116_201233_000026092044_00200_20294_0000_cloud() throws Exception {
+        final double[] input = create20060116CloudInput();
+
+        final double[] output = new double[75];
+
+        int result_1 = levMarNN.levmar_nn(748, input, output);
+        assertEquals(0, result_1);
+        assertArrayEquals(expected_20060116_cloud, output, 1e-2);
+    }
+
+    @Test
+    public void testLib_MER_RR__1PRACR20060116_201233_000026092044_00200_20294_0000_land() throws Exception {
+        final double[] input = create20060116LandInput();
+
+        final double[] output = new double[75];
+
+        int result_1 = levMarNN.levmar_nn(723, input, output);
+        assertEquals(0, result_1);
+        assertArrayEquals(expected_20060116_land, output, 1e-2);
+    }
+
+    @Test
+    public void testBoundedLevenbergMarquardt_testDataNorman() throws Exception {
+        assertBoundedFit(181, createNormanInput(), expected_Norman, true, false);
+    }
+
+    @Test
+    public void testBoundedLevenbergMarquardt_20060116_ocean() throws Exception {
+        assertBoundedFit(873, create20060116OceanInput(), expected_20060116_ocean, true, true);
+    }
+
+    @Test
+    public void testBoundedLevenbergMarquardt_20060116_cloud() throws Exception {
+        // the cloud is outside the range of the nets, the fit ends at the aot bound
+        assertBoundedFit(748, create20060116CloudInput(), expected_20060116_cloud, false, false);
+    }
+
+    @Test
+    public void testBoundedLevenbergMarquardt_20060116_land() throws Exception {
+        assertBoundedFit(723, create20060116LandInput(), expected_20060116_land, true, false);
+    }
+
+    /**
+     * The water parameters of the fit are only determined for the open ocean pixel, for the other pixels the bounded
+     * optimizer ends in another minimum than the reference optimizer. Its fit must be at least as good, the
+     * atmosphere must agree unless the pixel is outside the range of the nets.
+     */
+    private void assertBoundedFit(int detector, double[] input, double[] expected, boolean checkAtmosphere,
+                                  boolean checkWater) throws Exception {
+        final double[] output = new double[75];
+        assertEquals(0, levMarNNBounded.levmar_nn(detector, input, output));
+
+        for (double value : output) {
+            assertFalse(Double.isNaN(value));
+        }
+        for (int i = 0; i < NUM_BANDS; i++) {
+            assertEquals("rl_tosa " + i, expected[i], output[i], 1e-7);
+        }
+        assertTrue("sum_sq " + output[SUM_SQ_INDEX], output[SUM_SQ_INDEX] <= expected[SUM_SQ_INDEX] + 1e-6);
+        assertEquals(expected[RESIDUAL_FLAG_INDEX], output[RESIDUAL_FLAG_INDEX], 0.0);
+        if (checkAtmosphere) {
+            for (int i = NUM_BANDS; i < RW_OFFSET; i++) {
+                assertEquals("rpath " + i, expected[i], output[i], 1e-2);
+            }
+            for (int i = TDOWN_OFFSET; i < AOT_550_INDEX; i++) {
+                assertEquals("tdown/tup " + i, expected[i], output[i], 1e-2);
+            }
+        }
+        if (checkWater) {
+            for (int i = RW_OFFSET; i < TDOWN_OFFSET; i++) {
+                assertEquals("rw " + i, expected[i], output[i], 1e-3);
+            }
+            assertEquals("aot_550", expected[AOT_550_INDEX], output[AOT_550_INDEX], 0.05 * expected[AOT_550_INDEX]);
+        }
+    }
+
+    private static double[] createNormanInput() {
         final double solar_zenith = 38.532475;
         final double solar_azimuth = 142.5679;
         final double view_zenith = 23.14311;
@@ -92,7 +202,7 @@ public class LevMarNNAcceptanceTest {
                 2.1505015
         };
 
-        final double[] input = assembleInput(solar_zenith,
+        return assembleInput(solar_zenith,
                 solar_azimuth,
                 view_zenith,
                 view_azimuth,
@@ -104,15 +214,9 @@ public class LevMarNNAcceptanceTest {
                 salinity,
                 toa_radiances,
                 SUN_SPECTRAL_FLUXES_NORMAN);
-        final double[] output = new double[75];
-
-        int result_1 = levMarNN.levmar_nn(181, input, output);
-        assertEquals(0, result_1);
-        assertArrayEquals(expected_Norman, output, 1e-7);
     }
 
-    @Test
-    public void testLib_MER_RR__1PRACR20060116_201233_000026092044_00200_20294_0000_ocean() throws Exception {
+    private static double[] create20060116OceanInput() {
         final double solar_zenith = 43.913773;
         final double solar_azimuth = 76.12128;
         final double view_zenith = 34.740032;
@@ -142,7 +246,7 @@ public class LevMarNNAcceptanceTest {
                 2.4926267
         };
 
-        final double[] input = assembleInput(solar_zenith,
+        return assembleInput(solar_zenith,
                 solar_azimuth,
                 view_zenith,
                 view_azimuth,
@@ -154,16 +258,9 @@ public class LevMarNNAcceptanceTest {
                 salinity,
                 toa_radiances,
                 SUN_SPECTRAL_FLUXES_20060116);
-
-        final double[] output = new double[75];
-
-        int result_1 = levMarNN.levmar_nn(873, input, output);
-        assertEquals(0, result_1);
-        assertArrayEquals(expected_20060116_ocean, output, 1e-7);
     }
 
-    @Test
-    public void testLib_MER_RR__1PRACR20060116_201233_000026092044_00200_20294_0000_cloud() throws Exception {
+    private static double[] create20060116CloudInput() {
         final double solar_zenith = 42.372684;
         final double solar_azimuth = 128.2194;
         final double view_zenith = 23.510494;
@@ -193,7 +290,7 @@ public class LevMarNNAcceptanceTest {
                 164.44276
         };
 
-        final double[] input = assembleInput(solar_zenith,
+        return assembleInput(solar_zenith,
                 solar_azimuth,
                 view_zenith,
                 view_azimuth,
@@ -205,16 +302,9 @@ public class LevMarNNAcceptanceTest {
                 salinity,
                 toa_radiances,
                 SUN_SPECTRAL_FLUXES_20060116);
-
-        final double[] output = new double[75];
-
-        int result_1 = levMarNN.levmar_nn(748, input, output);
-        assertEquals(0, result_1);
-        assertArrayEquals(expected_20060116_cloud, output, 1e-2);
     }
 
-    @Test
-    public void testLib_MER_RR__1PRACR20060116_201233_000026092044_00200_20294_0000_land() throws Exception {
+    private static double[] create20060116LandInput() {
         final double solar_zenith = 50.82132;
         final double solar_azimuth = 140.0397;
         final double view_zenith = 21.953356;
@@ -244,7 +334,7 @@ public class LevMarNNAcceptanceTest {
                 40.435944
         };
 
-        final double[] input = assembleInput(solar_zenith,
+        return assembleInput(solar_zenith,
                 solar_azimuth,
                 view_zenith,
                 view_azimuth,
@@ -256,15 +346,9 @@ public class LevMarNNAcceptanceTest {
                 salinity,
                 toa_radiances,
                 SUN_SPECTRAL_FLUXES_20060116);
-
-        final double[] output = new double[75];
-
-        int result_1 = levMarNN.levmar_nn(723, input, output);
-        assertEquals(0, result_1);
-        assertArrayEquals(expected_20060116_land, output, 1e-2);
     }
 
-    private double[] assembleInput(double solar_zenith,
+    private static double[] assembleInput(double solar_zenith,
                                    double solar_azimuth,
                                    double view_zenith,
                                    double view_azimuth,
@@ -0,0 +1,232 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.esa.beam.ocnnrd.SensorContext;
+import org.esa.beam.ocnnrd.SensorContextFactory;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Runs the pixels of the LevMarNNAcceptanceTest in double and in single precision and checks the deviations of the
+ * single precision results. The water leaving reflectances, aot_550 and the sum of squares of the fit are checked for
+ * all pixels. The IOPs are only checked for the open ocean pixel: for the other pixels they are not determined by the
+ * fit, already a relative change of the TOA radiances by 1e-7 changes them by up to 70% in double precision.
+ * <p/>
+ * The maximal and mean deviations of all pixels are reported per output, so that the tolerances can be judged from
+ * the data.
+ */
+public class LevMarNNPrecisionTest {
+
+    private static final int NUM_BANDS = 12;
+    private static final int RL_TOSA_OFFSET = 0;
+    private static final int RW_OFFSET = 2 * NUM_BANDS;
+    private static final int AOT_550_INDEX = 5 * NUM_BANDS;
+    private static final int IOP_OFFSET = 5 * NUM_BANDS + 2;
+    private static final int SUM_SQ_INDEX = 5 * NUM_BANDS + 7;
+    private static final String[] IOP_NAMES = {"a_pig", "a_part", "a_gelb", "b_spm", "b_wit"};
+
+    private static final double[] SUN_SPECTRAL_FLUXES_NORMAN = {
+            1773.03, 1942.73, 1993.86, 1994.48, 1864.34, 1706.86, 1583.67, 1522.19,
+            1455.78, 1309.06, 1297.21, 1217.26, 990.95, 961.43, 925.89
+    };
+
+    private static final double[] SUN_SPECTRAL_FLUXES_20060116 = {
+            1773.7241, 1943.4926, 1994.6368, 1995.2565, 1865.0692, 1707.5303, 1584.2865, 1522.7838,
+            1456.3502, 1309.5717, 1297.716, 1217.7358, 991.3362, 961.8075, 926.2471
+    };
+
+    private static Map<String, Deviation> deviations;
+
+    private LevMarNN levMarNNDouble;
+    private LevMarNN levMarNNSingle;
+
+    @BeforeClass
+    public static void setUpClass() {
+        deviations = new LinkedHashMap<String, Deviation>();
+    }
+
+    @AfterClass
+    public static void report() {
+        System.out.println("Single precision vs. double precision, deviations over all pixels:");
+        System.out.println(String.format("%-8s %12s %12s %12s %12s", "output", "max abs", "mean abs", "max rel", "mean rel"));
+        for (Map.Entry<String, Deviation> entry : deviations.entrySet()) {
+            final Deviation deviation = entry.getValue();
+            System.out.println(String.format("%-8s %12.4g %12.4g %12.4g %12.4g", entry.getKey(),
+                                             deviation.maxAbsolute, deviation.getMeanAbsolute(),
+                                             deviation.maxRelative, deviation.getMeanRelative()));
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        final SensorContext sensorContext = SensorContextFactory.fromTypeString("MER_RR__1P");
+        levMarNNDouble = new LevMarNN(sensorContext);
+        final LevMarNNConfig config = new LevMarNNConfig();
+        config.setSinglePrecision(true);
+        levMarNNSingle = new LevMarNN(sensorContext, config);
+    }
+
+    @Test
+    public void testNorman() throws Exception {
+        final double[] input = assembleInput(38.532475, 142.5679, 23.14311, 103.322136, 7.8687496, -2.525,
+                1017.61487, 317.83008, 20.0, 12.0,
+                new double[]{70.43595, 60.354992, 44.56492, 39.043613, 27.241674, 15.729385, 11.943042,
+                        10.802422, 8.662219, 6.4378233, 2.8837085, 5.4307566, 3.2948744, 3.0640657, 2.1505015},
+                SUN_SPECTRAL_FLUXES_NORMAN);
+
+        compare(181, input, true, false);
+    }
+
+    @Test
+    public void test20060116_ocean() throws Exception {
+        final double[] input = assembleInput(43.913773, 76.12128, 34.740032, 108.32797, 5.7124996, 2.25625,
+                1021.8688, 277.4056, 18.54, 35.34,
+                new double[]{84.99878, 73.27003, 53.322674, 44.631977, 27.512224, 16.187922, 12.244357,
+                        10.961995, 9.097538, 6.74975, 3.1055324, 5.605122, 3.3304179, 3.0823767, 2.4926267},
+                SUN_SPECTRAL_FLUXES_20060116);
+
+        compare(873, input, true, true);
+    }
+
+    @Test
+    public void test20060116_cloud() throws Exception {
+        final double[] input = assembleInput(42.372684, 128.2194, 23.510494, 102.27474, -9.75, 0.6750001,
+                1009.8656, 237.87592, 27.4855, 34.962,
+                new double[]{398.09485, 434.67896, 440.62158, 433.41943, 390.89935, 356.09332, 342.04077,
+                        331.19794, 312.51495, 287.70917, 135.00192, 237.70004, 215.58147, 205.36565, 164.44276},
+                SUN_SPECTRAL_FLUXES_20060116);
+
+        compare(748, input, true, false);
+    }
+
+    @Test
+    public void test20060116_land() throws Exception {
+        final double[] input = assembleInput(50.82132, 140.0397, 21.953356, 101.89219, -4.1289067, -1.8664063,
+                1018.4313, 231.5093, 24.5196, 34.808,
+                new double[]{66.59864, 59.22042, 45.29473, 41.82709, 39.72433, 26.201996, 20.222364,
+                        18.84353, 38.00525, 78.18966, 23.406841, 76.28124, 67.89858, 66.15208, 40.435944},
+                SUN_SPECTRAL_FLUXES_20060116);
+
+        // rw is not constrained over land
+        compare(723, input, false, false);
+    }
+
+    private void compare(int detector, double[] input, boolean checkRw, boolean checkIops) throws Exception {
+        final double[] outputDouble = new double[75];
+        final double[] outputSingle = new double[75];
+
+        assertEquals(0, levMarNNDouble.levmar_nn(detector, input.clone(), outputDouble));
+        assertEquals(0, levMarNNSingle.levmar_nn(detector, input.clone(), outputSingle));
+
+        // recorded before the assertions, so that the report also covers failing pixels
+        for (int i = 0; i < NUM_BANDS; i++) {
+            record("rl_tosa", outputDouble[RL_TOSA_OFFSET + i], outputSingle[RL_TOSA_OFFSET + i]);
+        }
+        if (checkRw) {
+            for (int i = 0; i < NUM_BANDS; i++) {
+                record("rw", outputDouble[RW_OFFSET + i], outputSingle[RW_OFFSET + i]);
+            }
+        }
+        record("aot_550", outputDouble[AOT_550_INDEX], outputSingle[AOT_550_INDEX]);
+        record("sum_sq", outputDouble[SUM_SQ_INDEX], outputSingle[SUM_SQ_INDEX]);
+        if (checkIops) {
+            for (int i = 0; i < IOP_NAMES.length; i++) {
+                record(IOP_NAMES[i], outputDouble[IOP_OFFSET + i], outputSingle[IOP_OFFSET + i]);
+            }
+        }
+
+        for (double value : outputSingle) {
+            assertFalse(Double.isNaN(value));
+        }
+        if (checkRw) {
+            for (int i = 0; i < NUM_BANDS; i++) {
+                assertEquals("rw " + i, outputDouble[RW_OFFSET + i], outputSingle[RW_OFFSET + i], 1e-3);
+            }
+        }
+        assertRelativeDeviation("aot_550", outputDouble[AOT_550_INDEX], outputSingle[AOT_550_INDEX], 0.05);
+        assertRelativeDeviation("sum_sq", outputDouble[SUM_SQ_INDEX], outputSingle[SUM_SQ_INDEX], 0.05);
+        if (checkIops) {
+            for (int i = 0; i < IOP_NAMES.length; i++) {
+                assertRelativeDeviation(IOP_NAMES[i], outputDouble[IOP_OFFSET + i], outputSingle[IOP_OFFSET + i], 0.25);
+            }
+        }
+    }
+
+    private static void record(String name, double expected, double actual) {
+        Deviation deviation = deviations.get(name);
+        if (deviation == null) {
+            deviation = new Deviation();
+            deviations.put(name, deviation);
+        }
+        deviation.add(expected, actual);
+    }
+
+    private static void assertRelativeDeviation(String name, double expected, double actual, double tolerance) {
+        assertEquals(name, expected, actual, tolerance * Math.abs(expected));
+    }
+
+    private static double[] assembleInput(double solar_zenith,
+                                          double solar_azimuth,
+                                          double view_zenith,
+                                          double view_azimuth,
+                                          double wind_x,
+                                          double wind_y,
+                                          double surf_pressure,
+                                          double ozone,
+                                          double temperature,
+                                          double salinity,
+                                          double[] toa_radiances,
+                                          double[] sun_spectral_fluxes) {
+        final double[] input = new double[40];
+        input[0] = solar_zenith;
+        input[1] = solar_azimuth;
+        input[2] = view_zenith;
+        input[3] = view_azimuth;
+        input[4] = surf_pressure;
+        input[5] = ozone;
+        input[6] = wind_x;
+        input[7] = wind_y;
+        input[8] = temperature;
+        input[9] = salinity;
+        for (int i = 0; i < 15; i++) {
+            input[i + 10] = toa_radiances[i];
+            input[i + 25] = sun_spectral_fluxes[i];
+        }
+        return input;
+    }
+
+    private static class Deviation {
+
+        private double maxAbsolute;
+        private double sumAbsolute;
+        private double maxRelative;
+        private double sumRelative;
+        private int count;
+
+        private void add(double expected, double actual) {
+            final double absolute = Math.abs(actual - expected);
+            final double relative = expected != 0.0 ? absolute / Math.abs(expected) : 0.0;
+            maxAbsolute = Math.max(maxAbsolute, absolute);
+            sumAbsolute += absolute;
+            maxRelative = Math.max(maxRelative, relative);
+            sumRelative += relative;
+            count++;
+        }
+
+        private double getMeanAbsolute() {
+            return sumAbsolute / count;
+        }
+
+        private double getMeanRelative() {
+            return sumRelative / count;
+        }
+    }
+}
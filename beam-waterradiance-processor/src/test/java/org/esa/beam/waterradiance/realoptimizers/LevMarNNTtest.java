@@ -2,7 +2,13 @@ package org.esa.beam.waterradiance.realoptimizers;
 
 import org.junit.Test;
 
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class LevMarNNTtest {
 
@@ -20,4 +26,119 @@ public class LevMarNNTtest {
         scp = LevMarNN.scp(x, y, 4);
         assertEquals(70.0, scp, 1e-8);
     }
+
+    @Test
+    public void testScp_withOffset() {
+        final double[] x = {1.0, 2.0, 3.0, 4.0};
+        final double[] y = {5.0, 6.0, 7.0, 8.0};
+
+        double scp = LevMarNN.scp(x, 1, y, 2);
+        assertEquals(28.0, scp, 1e-8);
+
+        scp = LevMarNN.scp(x, 2, y, 2);
+        assertEquals(39.0, scp, 1e-8);
+    }
+
+    @Test
+    public void testMvp() {
+        // two target neurons, three source neurons: weights row-major, followed by the biases
+        final double[] layer = {0.1, 0.2, 0.3, -0.4, -0.5, -0.6, 0.5, -0.5};
+        final double[] act = {1.0, 2.0, 3.0};
+        final double[] act_plus = new double[2];
+        final AlphaTab alphaTab = new AlphaTab();
+
+        LevMarNN.mvp(layer, act, 3, act_plus, 2, alphaTab);
+
+        assertEquals(alphaTab.get(1.9), act_plus[0], 1e-8);
+        assertEquals(alphaTab.get(-3.7), act_plus[1], 1e-8);
+    }
+
+    @Test
+    public void testMvp_equalsRowByRowScalarProducts() {
+        // seven target neurons, covering the four-row blocks and the remainder
+        final int n = 5;
+        final int m = 7;
+        final double[] layer = new double[m * n + m];
+        final Random random = new Random(42);
+        for (int i = 0; i < layer.length; i++) {
+            layer[i] = random.nextGaussian();
+        }
+        final double[] act = {0.1, 0.7, 0.3, 0.9, 0.5};
+        final double[] act_plus = new double[m];
+        final AlphaTab alphaTab = new AlphaTab();
+
+        LevMarNN.mvp(layer, act, n, act_plus, m, alphaTab);
+
+        for (int i = 0; i < m; i++) {
+            assertEquals(alphaTab.get(layer[m * n + i] + LevMarNN.scp(layer, i * n, act, n)), act_plus[i], 0.0);
+        }
+    }
+
+    @Test
+    public void testMmp() {
+        // two target neurons, three source neurons: weights row-major, followed by the biases
+        final double[] layer = {0.1, 0.2, 0.3, -0.4, -0.5, -0.6, 0.5, -0.5};
+        // two pixels, stored neuron by neuron
+        final double[] act = {1.0, 0.0, 2.0, 1.0, 3.0, 0.0};
+        final double[] act_plus = new double[4];
+        final AlphaTab alphaTab = new AlphaTab();
+
+        LevMarNN.mmp(layer, act, 3, act_plus, 2, 2, alphaTab);
+
+        assertEquals(alphaTab.get(1.9), act_plus[0], 1e-8);
+        assertEquals(alphaTab.get(0.7), act_plus[1], 1e-8);
+        assertEquals(alphaTab.get(-3.7), act_plus[2], 1e-8);
+        assertEquals(alphaTab.get(-1.0), act_plus[3], 1e-8);
+    }
+
+    @Test
+    public void testToParameters() {
+        final double[] expected = {-1.5, 0.2, LevMarNN.P_INIT[2], -4.0, -3.0, -2.0, -1.0, -5.0};
+        // aot, ang and the IOPs as written to the output, without the wind
+        final double[] values = {Math.exp(-1.5), Math.exp(0.2), Math.exp(-4.0), Math.exp(-3.0), Math.exp(-2.0),
+                Math.exp(-1.0), Math.exp(-5.0)};
+        final double[] p = new double[8];
+        assertTrue(LevMarNN.toParameters(values, p));
+        assertArrayEquals(expected, p, 1e-12);
+
+        values[0] = 1.0e-6;
+        assertTrue(LevMarNN.toParameters(values, p));
+        assertEquals(LevMarNN.LOWER_BOUNDS[0], p[0], 0.0);
+
+        values[3] = Double.NaN;
+        assertFalse(LevMarNN.toParameters(values, p));
+        values[3] = 0.0;
+        assertFalse(LevMarNN.toParameters(values, p));
+    }
+
+    @Test
+    public void testUseTheNn_batchEqualsSinglePixel() throws IOException {
+        final a_nn waterNet = LevMarNN.prepare_a_nn(new NnResources().getNetWaterPath());
+        final AlphaTab alphaTab = new AlphaTab();
+        final int numInputs = (int) waterNet.getNnin();
+        final int numOutputs = (int) waterNet.getNnout();
+        final int numPixels = 7;
+
+        final double[][] batchIn = new double[numInputs][numPixels];
+        for (int i = 0; i < numInputs; i++) {
+            final double min = waterNet.getInmin()[i];
+            final double max = waterNet.getInmax()[i];
+            for (int p = 0; p < numPixels; p++) {
+                batchIn[i][p] = min + (max - min) * (p + 0.5) / numPixels;
+            }
+        }
+        final double[][] batchOut = LevMarNN.use_the_nn(waterNet, batchIn, new double[numOutputs][numPixels], numPixels, alphaTab);
+
+        final double[] in = new double[numInputs];
+        final double[] out = new double[numOutputs];
+        for (int p = 0; p < numPixels; p++) {
+            for (int i = 0; i < numInputs; i++) {
+                in[i] = batchIn[i][p];
+            }
+            LevMarNN.use_the_nn(waterNet, in, out, alphaTab);
+            for (int i = 0; i < numOutputs; i++) {
+                assertEquals(out[i], batchOut[i][p], 1e-12);
+            }
+        }
+    }
 }
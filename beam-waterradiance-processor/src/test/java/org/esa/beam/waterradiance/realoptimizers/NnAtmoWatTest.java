@@ -0,0 +1,139 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.esa.beam.ocnnrd.SensorContextFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class NnAtmoWatTest {
+
+    private static final double[] P = {Math.log(0.1), Math.log(1.0), Math.log(3.0), Math.log(0.005),
+            Math.log(0.005), Math.log(0.005), Math.log(0.01), Math.log(0.01)};
+
+    private NnAtmoWat nnAtmoWat;
+    private s_nn_atdata nn_data;
+
+    @Before
+    public void setUp() throws IOException {
+        nnAtmoWat = createNnAtmoWat();
+
+        nn_data = new s_nn_atdata();
+        nn_data.setSun_thet(38.53);
+        nn_data.setView_zeni(23.14);
+        nn_data.azi_diff_hl = 142.57;
+        nn_data.setTemperature(12.0);
+        nn_data.setSalinity(35.0);
+    }
+
+    @Test
+    public void testNnAtmoWat_prunedNetsEqualFullSpectrum() {
+        final int[] lam29_meris11_ix = {1, 2, 4, 6, 11, 12, 15, 20, 22, 24, 25};
+        final double[] full = nnAtmoWat.nn_atmo_wat(P, new double[29], nn_data, new NNReturnData()).getOutputValues().clone();
+        final double[] fit = nnAtmoWat.nn_atmo_wat(P, new double[11], nn_data, new NNReturnData()).getOutputValues();
+
+        for (int i = 0; i < 11; i++) {
+            assertEquals(full[lam29_meris11_ix[i]], fit[i], 0.0);
+        }
+    }
+
+    @Test
+    public void testNnAtmoWat_reusedNetOutputsEqualFreshEvaluation() throws IOException {
+        final double[] p_water = P.clone();
+        p_water[5] += 0.5;
+        final double[] p_atmo = P.clone();
+        p_atmo[1] += 0.5;
+
+        // consecutive calls changing only water or only atmosphere parameters reuse the outputs of the other nets
+        nnAtmoWat.nn_atmo_wat(P, new double[11], nn_data, new NNReturnData());
+        final double[] waterStep = nnAtmoWat.nn_atmo_wat(p_water, new double[11], nn_data, new NNReturnData()).getOutputValues().clone();
+        final double[] atmoStep = nnAtmoWat.nn_atmo_wat(p_atmo, new double[11], nn_data, new NNReturnData()).getOutputValues().clone();
+
+        final double[] waterFresh = createNnAtmoWat().nn_atmo_wat(p_water, new double[11], nn_data, new NNReturnData()).getOutputValues();
+        final double[] atmoFresh = createNnAtmoWat().nn_atmo_wat(p_atmo, new double[11], nn_data, new NNReturnData()).getOutputValues();
+        assertArrayEquals(waterFresh, waterStep, 0.0);
+        assertArrayEquals(atmoFresh, atmoStep, 0.0);
+    }
+
+    @Test
+    public void testJacobian_equalsFiniteDifferences() {
+        final double[] p = P;
+        final double[] rtosa = new double[11];
+        final double[][] jacobian = new double[11][8];
+        nnAtmoWat.nn_atmo_wat_jacobian(p, rtosa, jacobian, nn_data);
+
+        final double[] expected = nnAtmoWat.nn_atmo_wat(p, new double[11], nn_data, new NNReturnData()).getOutputValues();
+        for (int i = 0; i < 11; i++) {
+            assertEquals(expected[i], rtosa[i], 1e-12);
+        }
+
+        final double h = 1e-6;
+        for (int k = 0; k < 8; k++) {
+            final double[] p_plus = p.clone();
+            final double[] p_minus = p.clone();
+            p_plus[k] += h;
+            p_minus[k] -= h;
+            final double[] r_plus = nnAtmoWat.nn_atmo_wat(p_plus, new double[11], nn_data, new NNReturnData()).getOutputValues();
+            final double[] r_minus = nnAtmoWat.nn_atmo_wat(p_minus, new double[11], nn_data, new NNReturnData()).getOutputValues();
+            for (int i = 0; i < 11; i++) {
+                final double finiteDifference = (r_plus[i] - r_minus[i]) / (2.0 * h);
+                assertEquals("band " + i + ", parameter " + k, finiteDifference, jacobian[i][k],
+                        1e-5 * Math.abs(finiteDifference) + 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testNnAtmoWat_pixelsOffTheAtmosphereLutUseTheNets() throws IOException {
+        // a coarse table without temperature axis, the pixel temperature is off its single node
+        final File lutFile = new File(System.getProperty("java.io.tmpdir"), "nn-atmo-wat-test-" + System.nanoTime() + ".lut");
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(lutFile)));
+            try {
+                AtmosphereLutTool.generate(SensorContextFactory.fromTypeString("MER_RR__1P"),
+                                           new int[]{2, 2, 2, 1, 1, 2, 2, 2}, out);
+            } finally {
+                out.close();
+            }
+            final LevMarNNConfig config = new LevMarNNConfig();
+            config.setAtmosphereLutPath(lutFile.getPath());
+            final NnAtmoWat lutModel = new NnAtmoWat(new ExactSigmoid(),
+                                                     SensorContextFactory.fromTypeString("MER_RR__1P"), config);
+
+            final double[] expected = nnAtmoWat.nn_atmo_wat(P, new double[11], nn_data, new NNReturnData()).getOutputValues();
+            final double[] actual = lutModel.nn_atmo_wat(P, new double[11], nn_data, new NNReturnData()).getOutputValues();
+            assertArrayEquals(expected, actual, 0.0);
+
+            final double[][] expectedJacobian = new double[11][8];
+            final double[][] actualJacobian = new double[11][8];
+            nnAtmoWat.nn_atmo_wat_jacobian(P, new double[11], expectedJacobian, nn_data);
+            lutModel.nn_atmo_wat_jacobian(P, new double[11], actualJacobian, nn_data);
+            for (int i = 0; i < 11; i++) {
+                assertArrayEquals(expectedJacobian[i], actualJacobian[i], 0.0);
+            }
+
+            // on the table the outputs are interpolated
+            nn_data.setTemperature(15.0);
+            final double[] interpolated = lutModel.nn_atmo_wat(P, new double[11], nn_data, new NNReturnData()).getOutputValues();
+            final double[] nets = nnAtmoWat.nn_atmo_wat(P, new double[11], nn_data, new NNReturnData()).getOutputValues();
+            assertFalse(Arrays.equals(nets, interpolated));
+        } finally {
+            lutFile.delete();
+        }
+    }
+
+    private static NnAtmoWat createNnAtmoWat() throws IOException {
+        // the exact sigmoid, the quantised tables are not differentiable
+        final Sigmoid exactAlpha = new ExactSigmoid();
+        return new NnAtmoWat(exactAlpha, SensorContextFactory.fromTypeString("MER_RR__1P"), new LevMarNNConfig());
+    }
+}
@@ -0,0 +1,126 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+public class NnBinaryFileTest {
+
+    private File binaryFile;
+    private File netFile;
+
+    @Before
+    public void setUp() throws IOException {
+        binaryFile = File.createTempFile("nn_test", NnBinaryFile.EXTENSION);
+    }
+
+    @After
+    public void tearDown() {
+        if (netFile != null) {
+            netFile.delete();
+        }
+        // mapped files may stay locked on some platforms until the buffer is collected
+        if (binaryFile.isFile() && !binaryFile.delete()) {
+            binaryFile.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testGetBinaryPath() {
+        assertEquals("auxdata/27x19x27_416.2.bnet", NnBinaryFile.getBinaryPath("auxdata/27x19x27_416.2.net"));
+        assertEquals("auxdata/some_net.bnet", NnBinaryFile.getBinaryPath("auxdata/some_net"));
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        final a_nn textNet = LevMarNN.prepare_a_nn_from_text(new NnResources().getNetWaterPath());
+
+        NnBinaryFile.write(textNet, binaryFile);
+        final a_nn binaryNet = NnBinaryFile.read(binaryFile);
+
+        assertEquals(textNet.getNnin(), binaryNet.getNnin());
+        assertEquals(textNet.getNnout(), binaryNet.getNnout());
+        assertArrayEquals(textNet.getInmin(), binaryNet.getInmin(), 0.0);
+        assertArrayEquals(textNet.getInmax(), binaryNet.getInmax(), 0.0);
+        assertArrayEquals(textNet.getOutmin(), binaryNet.getOutmin(), 0.0);
+        assertArrayEquals(textNet.getOutmax(), binaryNet.getOutmax(), 0.0);
+
+        final feedforward textFf = textNet.getNn();
+        final feedforward binaryFf = binaryNet.getNn();
+        assertEquals(textFf.getNplanes(), binaryFf.getNplanes());
+        assertArrayEquals(textFf.getSize(), binaryFf.getSize());
+        for (int pl = 0; pl < textFf.getNplanes() - 1; pl++) {
+            assertArrayEquals(textFf.getLayer()[pl], binaryFf.getLayer()[pl], 0.0);
+        }
+
+        final AlphaTab alphaTab = new AlphaTab();
+        final double[] in = {30.0, 20.0, 90.0, 15.0, 35.0, -4.0, -4.0, -4.0, -3.0, -3.0};
+        final double[] expected = LevMarNN.use_the_nn(textNet, in, new double[(int) textNet.getNnout()], alphaTab);
+        final double[] actual = LevMarNN.use_the_nn(binaryNet, in, new double[(int) textNet.getNnout()], alphaTab);
+        assertArrayEquals(expected, actual, 0.0);
+    }
+
+    @Test
+    public void testRead_invalidFile() throws IOException {
+        final FileOutputStream out = new FileOutputStream(binaryFile);
+        out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        out.close();
+
+        try {
+            NnBinaryFile.read(binaryFile);
+            fail("IOException expected");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testRead_outOfDate() throws IOException {
+        netFile = new File(binaryFile.getPath().replace(NnBinaryFile.EXTENSION, ".net"));
+        copy(new File(new NnResources().getNetWaterPath()), netFile, false);
+        NnBinaryFile.write(LevMarNN.prepare_a_nn_from_text(netFile.getPath()), netFile, binaryFile);
+        assertNotNull(NnBinaryFile.read(binaryFile, netFile));
+
+        // an edited ASCII file invalidates the binary file, the ASCII file is used instead
+        copy(new File(new NnResources().getNetWaterPath()), netFile, true);
+        try {
+            NnBinaryFile.read(binaryFile, netFile);
+            fail("IOException expected");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("out of date"));
+        }
+        final a_nn net = LevMarNN.prepare_a_nn(netFile.getPath());
+        assertEquals(LevMarNN.prepare_a_nn_from_text(netFile.getPath()).getNnin(), net.getNnin());
+
+        // without ASCII file the binary file is used as it is
+        assertTrue(netFile.delete());
+        assertNotNull(NnBinaryFile.read(binaryFile, netFile));
+    }
+
+    // copies a file, optionally appending a line to make it differ from the original
+    private static void copy(File source, File target, boolean appendLine) throws IOException {
+        final InputStream in = new FileInputStream(source);
+        final OutputStream out = new FileOutputStream(target);
+        try {
+            final byte[] bytes = new byte[65536];
+            int count;
+            while ((count = in.read(bytes)) > 0) {
+                out.write(bytes, 0, count);
+            }
+            if (appendLine) {
+                out.write('\n');
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
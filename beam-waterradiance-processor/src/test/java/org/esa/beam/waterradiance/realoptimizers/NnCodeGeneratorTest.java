@@ -0,0 +1,116 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class NnCodeGeneratorTest {
+
+    private File cacheDir;
+
+    @Before
+    public void setUp() {
+        cacheDir = new File(System.getProperty("java.io.tmpdir"), "nn-codegen-test-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        deleteTree(cacheDir);
+    }
+
+    @Test
+    public void testGetClassName() {
+        assertEquals("NnEvaluator_v1_10x17x97x47x35", NnCodeGenerator.getClassName(new int[]{10, 17, 97, 47, 35}));
+    }
+
+    @Test
+    public void testGenerateSource() {
+        final String source = NnCodeGenerator.generateSource("NnEvaluator_v1_2x3x1", new int[]{2, 3, 1});
+
+        assertTrue(source.contains("public final class NnEvaluator_v1_2x3x1 implements NnEvaluator"));
+        assertTrue(source.contains("sum += w[o + 1] * a1;"));
+        assertTrue(source.contains("out[i] = w[6 + i] + sum;"));
+        assertTrue(source.contains("out[i] = w[3 + i] + sum;"));
+    }
+
+    @Test
+    public void testCreateEvaluator_equalsInterpretedEvaluation() throws Exception {
+        if (ToolProvider.getSystemJavaCompiler() == null) {
+            return; // no JDK, nothing to compile with
+        }
+        final feedforward ff = createNet(new int[]{10, 17, 23, 5});
+        final feedforward generated = ff.createWorkingCopy();
+        generated.setEvaluator(new NnCodeGenerator(cacheDir).createEvaluator(ff));
+        final AlphaTab alphaTab = new AlphaTab();
+
+        final Random random = new Random(3);
+        for (int run = 0; run < 10; run++) {
+            for (int i = 0; i < 10; i++) {
+                final double input = random.nextDouble();
+                ff.setInput(i, input);
+                generated.setInput(i, input);
+            }
+            LevMarNN.ff_proc(ff, 0, alphaTab);
+            LevMarNN.ff_proc(generated, 0, alphaTab);
+
+            for (int i = 0; i < 5; i++) {
+                assertEquals(ff.getOutput()[i], generated.getOutput()[i], 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testCreateEvaluator_loadsCachedClass() throws Exception {
+        if (ToolProvider.getSystemJavaCompiler() == null) {
+            return;
+        }
+        final feedforward ff = createNet(new int[]{4, 6, 3});
+        assertNotNull(new NnCodeGenerator(cacheDir).createEvaluator(ff));
+
+        final File classFile = new File(cacheDir, "org/esa/beam/waterradiance/realoptimizers/generated/NnEvaluator_v1_4x6x3.class");
+        assertTrue(classFile.isFile());
+        final long lastModified = classFile.lastModified();
+
+        assertNotNull(new NnCodeGenerator(cacheDir).createEvaluator(ff));
+        assertEquals(lastModified, classFile.lastModified());
+    }
+
+    private static feedforward createNet(int[] size) {
+        final Random random = new Random(17);
+        final feedforward ff = new feedforward();
+        ff.setNplanes(size.length);
+        ff.setSize(size);
+        final double[][] layer = new double[size.length - 1][];
+        for (int pl = 0; pl < layer.length; pl++) {
+            layer[pl] = new double[size[pl + 1] * size[pl] + size[pl + 1]];
+            for (int i = 0; i < layer[pl].length; i++) {
+                layer[pl][i] = random.nextGaussian();
+            }
+        }
+        ff.setLayer(layer);
+        final double[][] act = new double[size.length][];
+        for (int pl = 0; pl < size.length; pl++) {
+            act[pl] = new double[size[pl]];
+        }
+        ff.setAct(act);
+        return ff;
+    }
+
+    private static void deleteTree(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
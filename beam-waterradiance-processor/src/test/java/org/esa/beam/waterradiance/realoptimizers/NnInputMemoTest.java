@@ -0,0 +1,30 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NnInputMemoTest {
+
+    @Test
+    public void testContains() {
+        final NnInputMemo memo = new NnInputMemo(3);
+        final a_nn net = new a_nn();
+        final double[] inputs = {1.0, 2.0, 3.0, 4.0};
+        assertFalse(memo.contains(net, inputs));
+
+        memo.put(net, inputs);
+        assertTrue(memo.contains(net, inputs));
+        assertTrue(memo.contains(net, new double[]{1.0, 2.0, 3.0, 5.0}));  // beyond the memo size
+        assertFalse(memo.contains(net, new double[]{1.0, 2.0, 3.5, 4.0}));
+        assertFalse(memo.contains(new a_nn(), inputs));
+
+        inputs[0] = 0.5;
+        assertFalse(memo.contains(net, inputs));
+
+        memo.put(net, inputs);
+        memo.clear();
+        assertFalse(memo.contains(net, inputs));
+    }
+}
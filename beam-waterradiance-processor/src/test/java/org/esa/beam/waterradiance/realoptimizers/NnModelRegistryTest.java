@@ -0,0 +1,94 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class NnModelRegistryTest {
+
+    private NnResources nnResources;
+    private LevMarNNConfig config;
+
+    @Before
+    public void setUp() {
+        nnResources = new NnResources();
+        config = new LevMarNNConfig();
+    }
+
+    @Test
+    public void testGetNet_sharesModelButNotWorkspace() throws IOException {
+        final a_nn net_1 = NnModelRegistry.getNet(nnResources.getNetWaterPath(), config);
+        final a_nn net_2 = NnModelRegistry.getNet(nnResources.getNetWaterPath(), config);
+
+        assertNotSame(net_1, net_2);
+        assertSame(net_1.getInmin(), net_2.getInmin());
+        assertSame(net_1.getOutmax(), net_2.getOutmax());
+        assertSame(net_1.getNn().getLayer(), net_2.getNn().getLayer());
+        assertNotSame(net_1.getNn().getAct(), net_2.getNn().getAct());
+        assertNotSame(net_1.getNn().getAct()[0], net_2.getNn().getAct()[0]);
+    }
+
+    @Test
+    public void testGetNet_singlePrecisionIsSeparateModel() throws IOException {
+        final a_nn doubleNet = NnModelRegistry.getNet(nnResources.getNormNetPath(), config);
+        final LevMarNNConfig singlePrecisionConfig = new LevMarNNConfig();
+        singlePrecisionConfig.setSinglePrecision(true);
+        final a_nn singleNet = NnModelRegistry.getNet(nnResources.getNormNetPath(), singlePrecisionConfig);
+
+        assertFalse(doubleNet.getNn().isSinglePrecision());
+        assertTrue(singleNet.getNn().isSinglePrecision());
+        assertNotNull(singleNet.getNn().getActF());
+    }
+
+    @Test
+    public void testGetNet_foldedIsSeparateModel() throws IOException {
+        final LevMarNNConfig foldedConfig = new LevMarNNConfig();
+        foldedConfig.setFoldInputNormalisation(true);
+        final a_nn net = NnModelRegistry.getNet(nnResources.getNormNetPath(), config);
+        final a_nn foldedNet = NnModelRegistry.getNet(nnResources.getNormNetPath(), foldedConfig);
+
+        assertFalse(net.isInputFolded());
+        assertTrue(foldedNet.isInputFolded());
+        assertNotSame(net.getNn().getLayer()[0], foldedNet.getNn().getLayer()[0]);
+    }
+
+    @Test
+    public void testGetNetStack_sharesModelButNotWorkspace() throws IOException {
+        final String rhopathPath = nnResources.getAcForwardNetPath("ac_rhopath_b29/17x37x31_51.9.net");
+        final String tdownPath = nnResources.getAcForwardNetPath("t_down_b29/17x37x31_132.6.net");
+        final AlphaTab alphaTab = NnModelRegistry.getAlphaTab(false);
+        final NnStack stack_1 = NnModelRegistry.getNetStack(config, null, rhopathPath, tdownPath);
+        final NnStack stack_2 = NnModelRegistry.getNetStack(config, null, rhopathPath, tdownPath);
+        assertNotSame(stack_1, stack_2);
+
+        final double[] in_1 = {0.8, 0.3, 0.2, 0.9, -2.3, 1.0, 3.0, 15.0, 35.0};
+        final double[] in_2 = {0.5, -0.3, 0.4, 0.7, -1.3, 0.5, 7.0, 25.0, 30.0};
+        final double[][] out_1 = stack_1.use_the_nn(in_1, new double[2][29], alphaTab);
+        final double[][] out_2 = stack_2.use_the_nn(in_2, new double[2][29], alphaTab);
+        final double[][] out_1_again = stack_2.use_the_nn(in_1, new double[2][29], alphaTab);
+
+        assertArrayEquals(out_1[0], out_1_again[0], 0.0);
+        assertArrayEquals(out_1[1], out_1_again[1], 0.0);
+        assertFalse(out_1[0][0] == out_2[0][0]);
+    }
+
+    @Test
+    public void testGetAlphaTab() {
+        assertSame(NnModelRegistry.getAlphaTab(false), NnModelRegistry.getAlphaTab(false));
+        assertSame(NnModelRegistry.getAlphaTab(true), NnModelRegistry.getAlphaTab(true));
+        assertNotSame(NnModelRegistry.getAlphaTab(false), NnModelRegistry.getAlphaTab(true));
+        assertTrue(NnModelRegistry.getAlphaTab(true).isSinglePrecision());
+    }
+
+    @Test
+    public void testGetSmileTables() throws IOException {
+        final SmileTables tables = NnModelRegistry.getSmileTables(nnResources);
+
+        assertSame(tables, NnModelRegistry.getSmileTables(nnResources));
+        assertEquals(3700, tables.getRrLam().length);
+        assertEquals(15, tables.getRrLam()[0].length);
+    }
+}
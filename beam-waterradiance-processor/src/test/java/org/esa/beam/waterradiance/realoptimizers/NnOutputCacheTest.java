@@ -0,0 +1,79 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NnOutputCacheTest {
+
+    @Test
+    public void testGetPut() {
+        final NnOutputCache cache = new NnOutputCache(3, 2, 4, 1.0e-3);
+        final double[] outputs = new double[2];
+
+        assertFalse(cache.get(new double[]{0.1, 0.2, 0.3}, outputs));
+        cache.put(new double[]{0.1, 0.2, 0.3}, new double[]{1.0, 2.0});
+
+        assertTrue(cache.get(new double[]{0.1, 0.2, 0.3}, outputs));
+        assertArrayEquals(new double[]{1.0, 2.0}, outputs, 0.0);
+
+        // within the quantisation step
+        assertTrue(cache.get(new double[]{0.1002, 0.1998, 0.3001}, outputs));
+        assertArrayEquals(new double[]{1.0, 2.0}, outputs, 0.0);
+
+        // next quantisation cell
+        assertFalse(cache.get(new double[]{0.1, 0.2, 0.301}, outputs));
+
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0.5, cache.getHitRatio(), 0.0);
+    }
+
+    @Test
+    public void testPut_evictsLeastRecentlyUsed() {
+        final NnOutputCache cache = new NnOutputCache(1, 1, 3, 1.0);
+        final double[] outputs = new double[1];
+        for (int i = 0; i < 3; i++) {
+            cache.put(new double[]{i}, new double[]{10 * i});
+        }
+        assertTrue(cache.get(new double[]{0}, outputs));
+
+        cache.put(new double[]{3}, new double[]{30});
+
+        assertEquals(3, cache.size());
+        assertFalse(cache.get(new double[]{1}, outputs));
+        assertTrue(cache.get(new double[]{0}, outputs));
+        assertEquals(0.0, outputs[0], 0.0);
+        assertTrue(cache.get(new double[]{2}, outputs));
+        assertTrue(cache.get(new double[]{3}, outputs));
+        assertEquals(30.0, outputs[0], 0.0);
+    }
+
+    @Test
+    public void testPut_manyEvictionsKeepTableConsistent() {
+        final NnOutputCache cache = new NnOutputCache(2, 1, 16, 1.0);
+        final double[] outputs = new double[1];
+        final Random random = new Random(5);
+        final double[][] recent = new double[16][];
+        for (int i = 0; i < 5000; i++) {
+            final double[] inputs = {random.nextInt(40), random.nextInt(40)};
+            if (!cache.get(inputs, outputs)) {
+                cache.put(inputs, new double[]{inputs[0] * 100 + inputs[1]});
+            } else {
+                assertEquals(inputs[0] * 100 + inputs[1], outputs[0], 0.0);
+            }
+            recent[i % 16] = inputs;
+        }
+        assertEquals(16, cache.size());
+        // the most recently used keys are all present
+        for (double[] inputs : recent) {
+            assertTrue(cache.get(inputs, outputs));
+            assertEquals(inputs[0] * 100 + inputs[1], outputs[0], 0.0);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class NnPartialSumsTest {
+
+    private static final int N = 10;
+    private static final int M = 17;
+
+    private double[] layer;
+    private double[] input;
+
+    @Before
+    public void setUp() {
+        final Random random = new Random(17);
+        layer = new double[M * N + M];
+        for (int i = 0; i < layer.length; i++) {
+            layer[i] = random.nextGaussian();
+        }
+        input = new double[N];
+        for (int i = 0; i < N; i++) {
+            input[i] = random.nextDouble();
+        }
+    }
+
+    @Test
+    public void testComputeSums_equalFullScalarProducts() {
+        final NnPartialSums partialSums = new NnPartialSums(5, false);
+
+        assertSums(partialSums.computeSums(layer, input, N, M), 0.0);
+
+        // varying inputs only
+        input[7] = 0.25;
+        input[9] = 0.75;
+        assertSums(partialSums.computeSums(layer, input, N, M), 0.0);
+
+        // constant inputs changed, e.g. the next pixel
+        input[2] = 0.5;
+        assertSums(partialSums.computeSums(layer, input, N, M), 0.0);
+    }
+
+    @Test
+    public void testComputeSums_rankOneUpdate() {
+        final NnPartialSums partialSums = new NnPartialSums(5, true);
+        final double[] base = input.clone();
+        partialSums.computeSums(layer, input, N, M);
+
+        for (int k = 5; k < N; k++) {
+            System.arraycopy(base, 0, input, 0, N);
+            input[k] += 0.01;
+            assertSums(partialSums.computeSums(layer, input, N, M), 1e-14);
+        }
+
+        input[5] = 0.1;
+        input[6] = 0.2;
+        assertSums(partialSums.computeSums(layer, input, N, M), 0.0);
+    }
+
+    private void assertSums(double[] sums, double delta) {
+        for (int i = 0; i < M; i++) {
+            assertEquals(LevMarNN.scp(layer, i * N, input, N), sums[i], delta);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class NnStackTest {
+
+    private NnResources nnResources;
+    private AlphaTab alphaTab;
+
+    @Before
+    public void setUp() {
+        nnResources = new NnResources();
+        alphaTab = new AlphaTab();
+    }
+
+    @Test
+    public void testUseTheNn_equalsSeparateNets() throws IOException {
+        final a_nn rhopath = LevMarNN.prepare_a_nn(nnResources.getAcForwardNetPath("ac_rhopath_b29/17x37x31_51.9.net"));
+        final a_nn tdown = LevMarNN.prepare_a_nn(nnResources.getAcForwardNetPath("t_down_b29/17x37x31_132.6.net"));
+        final a_nn tup = LevMarNN.prepare_a_nn(nnResources.getAcForwardNetPath("ac_tup_b29/17x37x31_118.5.net"));
+        final NnStack stack = new NnStack(rhopath, tdown, tup);
+
+        final double[] in = {0.8, 0.3, 0.2, 0.9, -2.3, 1.0, 3.0, 15.0, 35.0};
+        final double[][] stackOut = stack.use_the_nn(in, new double[3][29], alphaTab);
+
+        final a_nn[] nets = {rhopath, tdown, tup};
+        final double[] out = new double[29];
+        for (int j = 0; j < nets.length; j++) {
+            LevMarNN.use_the_nn(nets[j], in, out, alphaTab);
+            for (int i = 0; i < out.length; i++) {
+                assertEquals(out[i], stackOut[j][i], 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testCreate_differentInputsRejected() throws IOException {
+        final a_nn rhopath = LevMarNN.prepare_a_nn(nnResources.getAcForwardNetPath("ac_rhopath_b29/17x37x31_51.9.net"));
+        final a_nn water = LevMarNN.prepare_a_nn(nnResources.getNetWaterPath());
+
+        try {
+            new NnStack(rhopath, water);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SimulatedSpectraTableTest {
+
+    private static final double[] LB = {-4.6, -3.8, -2.3, -19.9, -15.89, -17.23, -15.8, -14.92};
+    private static final double[] UB = {0.0, 0.788, 2.3, 0.685, 2.297, 1.6, 4.598, 4.599};
+
+    private File tableFile;
+
+    @Before
+    public void setUp() {
+        tableFile = new File(System.getProperty("java.io.tmpdir"), "spectra-table-test-" + System.nanoTime() + ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        tableFile.delete();
+    }
+
+    @Test
+    public void testEstimate_nearestSpectrum() throws IOException {
+        writeTable("# test table\n" +
+                   "30.0 10.0 90.0 15.0 35.0 0.20 0.10 -1.0 -1.0 -1.0 -1.0 -1.0 -1.0 -1.0 -1.0\n" +
+                   "30.0 10.0 90.0 15.0 35.0 0.10 0.05 -2.0 -2.0 -2.0 -2.0 -2.0 -2.0 -2.0 -2.0\n" +
+                   "60.0 40.0 10.0 25.0 38.0 0.20 0.10 -3.0 -3.0 -3.0 -3.0 -3.0 -3.0 -3.0 2.0\n");
+        final SimulatedSpectraTable table = new SimulatedSpectraTable(tableFile.getPath(), 2);
+        assertEquals(3, table.getNumEntries());
+
+        final s_nn_atdata nn_data = new s_nn_atdata();
+        nn_data.setSun_thet(32.0);
+        nn_data.setView_zeni(12.0);
+        nn_data.azi_diff_hl = 85.0;
+        nn_data.setTemperature(15.0);
+        nn_data.setSalinity(35.0);
+        final double[] p = new double[8];
+
+        table.estimate(nn_data, new double[]{0.11, 0.05}, LB, UB, p);
+        assertArrayEquals(new double[]{-2.0, -2.0, -2.0, -2.0, -2.0, -2.0, -2.0, -2.0}, p, 0.0);
+
+        table.estimate(nn_data, new double[]{0.19, 0.11}, LB, UB, p);
+        assertArrayEquals(new double[]{-1.0, -1.0, -1.0, -1.0, -1.0, -1.0, -1.0, -1.0}, p, 0.0);
+
+        // same spectrum, other geometry; the parameters are clipped to the bounds
+        nn_data.setSun_thet(58.0);
+        nn_data.setView_zeni(39.0);
+        nn_data.azi_diff_hl = 12.0;
+        nn_data.setTemperature(24.0);
+        nn_data.setSalinity(38.0);
+        table.estimate(nn_data, new double[]{0.19, 0.11}, LB, UB, p);
+        assertArrayEquals(new double[]{-3.0, -3.0, -2.3, -3.0, -3.0, -3.0, -3.0, 2.0}, p, 0.0);
+    }
+
+    @Test
+    public void testEstimate_rejectsNonPositiveReflectances() throws IOException {
+        writeTable("30.0 10.0 90.0 15.0 35.0 0.20 0.10 -1.0 -1.0 -1.0 -1.0 -1.0 -1.0 -1.0 -1.0\n");
+        final SimulatedSpectraTable table = new SimulatedSpectraTable(tableFile.getPath(), 2);
+        final s_nn_atdata nn_data = new s_nn_atdata();
+        final double[] p = {0.5, 0.5, 0.5, 0.5, 0.5, 0.5, 0.5, 0.5};
+
+        assertFalse(table.estimate(nn_data, new double[]{0.19, 0.0}, LB, UB, p));
+        assertFalse(table.estimate(nn_data, new double[]{-0.01, 0.11}, LB, UB, p));
+        assertFalse(table.estimate(nn_data, new double[]{Double.NaN, 0.11}, LB, UB, p));
+        assertArrayEquals(new double[]{0.5, 0.5, 0.5, 0.5, 0.5, 0.5, 0.5, 0.5}, p, 0.0);
+    }
+
+    @Test
+    public void testEstimate_treeFindsNearestEntry() throws IOException {
+        // same geometry everywhere, the distance is measured on the reflectances only
+        final Random random = new Random(5);
+        final int numEntries = 500;
+        final double[][] rtosa = new double[numEntries][3];
+        final StringBuilder content = new StringBuilder();
+        for (int e = 0; e < numEntries; e++) {
+            content.append("30.0 10.0 90.0 15.0 35.0");
+            for (int b = 0; b < 3; b++) {
+                rtosa[e][b] = 0.01 + 0.2 * random.nextDouble();
+                content.append(' ').append(rtosa[e][b]);
+            }
+            // the first parameter identifies the entry
+            content.append(' ').append(-4.0 + 0.001 * e).append(" 0.0 0.0 0.0 0.0 0.0 0.0 0.0\n");
+        }
+        writeTable(content.toString());
+        final SimulatedSpectraTable table = NnModelRegistry.getSpectraTable(tableFile.getPath(), 3);
+        final s_nn_atdata nn_data = new s_nn_atdata();
+        final double[] p = new double[8];
+
+        for (int q = 0; q < 200; q++) {
+            final double[] query = new double[3];
+            for (int b = 0; b < 3; b++) {
+                query[b] = 0.01 + 0.2 * random.nextDouble();
+            }
+            int expected = 0;
+            double minDistance = Double.MAX_VALUE;
+            for (int e = 0; e < numEntries; e++) {
+                double distance = 0.0;
+                for (int b = 0; b < 3; b++) {
+                    final double d = Math.log(rtosa[e][b]) - Math.log(query[b]);
+                    distance += d * d;
+                }
+                if (distance < minDistance) {
+                    minDistance = distance;
+                    expected = e;
+                }
+            }
+            assertTrue(table.estimate(nn_data, query, LB, UB, p));
+            assertEquals(-4.0 + 0.001 * expected, p[0], 1e-12);
+        }
+    }
+
+    @Test
+    public void testEstimate_rejectsNaNGeometry() throws IOException {
+        writeTable("30.0 10.0 90.0 15.0 35.0 0.20 0.10 -1.0 -1.0 -1.0 -1.0 -1.0 -1.0 -1.0 -1.0\n" +
+                   "60.0 40.0 10.0 25.0 38.0 0.20 0.10 -3.0 -3.0 -3.0 -3.0 -3.0 -3.0 -3.0 2.0\n");
+        final SimulatedSpectraTable table = new SimulatedSpectraTable(tableFile.getPath(), 2);
+        final s_nn_atdata nn_data = new s_nn_atdata();
+        nn_data.setSun_thet(Double.NaN);
+        final double[] p = {0.5, 0.5, 0.5, 0.5, 0.5, 0.5, 0.5, 0.5};
+
+        assertFalse(table.estimate(nn_data, new double[]{0.19, 0.11}, LB, UB, p));
+        assertArrayEquals(new double[]{0.5, 0.5, 0.5, 0.5, 0.5, 0.5, 0.5, 0.5}, p, 0.0);
+    }
+
+    @Test
+    public void testConstruct_rejectsTableNotMatchingTheBands() throws IOException {
+        writeTable("30.0 10.0 90.0 15.0 35.0 0.20 0.10 -1.0 -1.0 -1.0 -1.0 -1.0 -1.0 -1.0 -1.0\n");
+
+        try {
+            new SimulatedSpectraTable(tableFile.getPath(), 3);
+            fail("IOException expected");
+        } catch (IOException expected) {
+        }
+    }
+
+    private void writeTable(String content) throws IOException {
+        final Writer writer = new FileWriter(tableFile);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes nets for tests. Public for the operator tests in other packages.
+ */
+public class TestNets {
+
+    /**
+     * Writes a net without hidden layer and with zero weights, whose normalised outputs are the sigmoid of the given
+     * biases. Only the binary file next to the given path is written.
+     *
+     * @param netFile the path of the net
+     * @param nnin    the number of inputs, all in [0, 1]
+     * @param bias    the biases of the outputs
+     * @param outmin  the minimum of all outputs
+     * @param outmax  the maximum of all outputs
+     * @throws IOException on failures writing the file
+     */
+    public static void writeConstantNet(File netFile, int nnin, double[] bias, double outmin, double outmax) throws IOException {
+        final int nnout = bias.length;
+        final a_nn net = new a_nn();
+        net.setNnin(nnin);
+        net.setNnout(nnout);
+        final double[] inmin = new double[nnin];
+        final double[] inmax = new double[nnin];
+        Arrays.fill(inmax, 1.0);
+        net.setInmin(inmin);
+        net.setInmax(inmax);
+        final double[] min = new double[nnout];
+        final double[] max = new double[nnout];
+        Arrays.fill(min, outmin);
+        Arrays.fill(max, outmax);
+        net.setOutmin(min);
+        net.setOutmax(max);
+
+        final feedforward ff = new feedforward();
+        ff.setNplanes(2);
+        ff.setSize(new int[]{nnin, nnout});
+        final double[] layer = new double[nnout * nnin + nnout];
+        System.arraycopy(bias, 0, layer, nnout * nnin, nnout);
+        ff.setLayer(new double[][]{layer});
+        ff.setAct(new double[][]{new double[nnin], new double[nnout]});
+        net.setNn(ff);
+
+        NnBinaryFile.write(net, new File(NnBinaryFile.getBinaryPath(netFile.getPath())));
+    }
+}
@@ -0,0 +1,69 @@
+package org.esa.beam.waterradiance.realoptimizers;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class a_nnTest {
+
+    private NnResources nnResources;
+
+    @Before
+    public void setUp() {
+        nnResources = new NnResources();
+    }
+
+    @Test
+    public void testRanges() throws IOException {
+        final a_nn net = LevMarNN.prepare_a_nn(nnResources.getNormNetPath());
+
+        for (int i = 0; i < net.getNnin(); i++) {
+            assertEquals(net.getInmax()[i] - net.getInmin()[i], net.getInrange()[i], 0.0);
+        }
+        for (int i = 0; i < net.getNnout(); i++) {
+            assertEquals(net.getOutmax()[i] - net.getOutmin()[i], net.getOutrange()[i], 0.0);
+        }
+    }
+
+    @Test
+    public void testGetLayerInput() throws IOException {
+        final a_nn net = LevMarNN.prepare_a_nn(nnResources.getNetWaterPath());
+
+        for (int i = 0; i < net.getNnin(); i++) {
+            final double range = net.getInrange()[i];
+            final double value = net.getInmin()[i] + 0.37 * range;
+            // multiplied with the precomputed reciprocal of the range, at most one rounding step off the division
+            final double expected = (value - net.getInmin()[i]) / range;
+            assertEquals(expected, net.getLayerInput(i, value), Math.ulp(expected));
+            assertEquals(1.0 / range, net.getLayerInputDerivative(i), 0.0);
+        }
+    }
+
+    @Test
+    public void testFoldInputNormalisation() throws IOException {
+        // the exact sigmoid, the quantised table may round a pre-activation into the neighbouring cell
+        final Sigmoid exactAlpha = new ExactSigmoid();
+        final a_nn net = LevMarNN.prepare_a_nn(nnResources.getNetWaterPath());
+        final a_nn foldedNet = LevMarNN.prepare_a_nn(nnResources.getNetWaterPath());
+        foldedNet.foldInputNormalisation();
+        assertTrue(foldedNet.isInputFolded());
+        assertFalse(net.isInputFolded());
+
+        final int nnin = (int) net.getNnin();
+        final double[] in = new double[nnin];
+        for (int i = 0; i < nnin; i++) {
+            in[i] = net.getInmin()[i] + 0.37 * net.getInrange()[i];
+            assertEquals(in[i], foldedNet.getLayerInput(i, in[i]), 0.0);
+            assertEquals(1.0, foldedNet.getLayerInputDerivative(i), 0.0);
+        }
+
+        final double[] out = LevMarNN.use_the_nn(net, in, new double[(int) net.getNnout()], exactAlpha);
+        final double[] foldedOut = LevMarNN.use_the_nn(foldedNet, in, new double[(int) net.getNnout()], exactAlpha);
+        for (int i = 0; i < out.length; i++) {
+            assertEquals(out[i], foldedOut[i], 1e-10 * Math.max(1.0, Math.abs(out[i])));
+        }
+    }
+}